@@ -0,0 +1,38 @@
+package com.example.droidpod;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Glide model for the album art of a MediaStore album.
+ * Equality and toString() make up the memory and disk cache keys.
+ */
+public class AlbumArt {
+
+    private final long albumId;
+
+    public AlbumArt(long albumId) {
+        this.albumId = albumId;
+    }
+
+    public long getAlbumId() {
+        return albumId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof AlbumArt)) return false;
+        return albumId == ((AlbumArt) o).albumId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(albumId);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "albumart:" + albumId;
+    }
+}
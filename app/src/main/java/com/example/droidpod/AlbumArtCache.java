@@ -0,0 +1,144 @@
+package com.example.droidpod;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.util.HashSet;
+
+/**
+ * Album art decoded off the caller's thread and scaled down to a fixed size cap,
+ * cached per album ID so consecutive tracks of an album decode the art only once.
+ * Albums without art are remembered too.
+ */
+public class AlbumArtCache {
+
+    /**
+     * Receives art on the handler passed to {@link #load(Long, Handler, Callback)}
+     */
+    public interface Callback {
+        /**
+         * @param albumId album the art belongs to
+         * @param art scaled art, or null if the album has none
+         */
+        void onAlbumArt(long albumId, Bitmap art);
+    }
+
+    private final Context context;
+    private final int maxSize;
+    private final LruCache<Long, Bitmap> cache;
+    // guarded by cache
+    private final HashSet<Long> missing = new HashSet<>();
+    private final HandlerThread thread;
+    private final Handler decodeHandler;
+
+    /**
+     * @param context context
+     * @param maxSize largest width or height of the cached art, in px
+     * @param maxBytes memory budget of the cache
+     */
+    public AlbumArtCache(Context context, int maxSize, int maxBytes) {
+        this.context = context.getApplicationContext();
+        this.maxSize = maxSize;
+        this.cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+        thread = new HandlerThread("AlbumArt", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        decodeHandler = new Handler(thread.getLooper());
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * gets art that is already decoded
+     * @param albumId album ID, may be null
+     * @return cached art, or null if it is not cached or the album has none
+     */
+    public Bitmap getCached(Long albumId) {
+        return albumId == null ? null : cache.get(albumId);
+    }
+
+    /**
+     * Checks whether a load would not decode anything
+     * @param albumId album ID, may be null
+     * @return true if the art, or its absence, is already known
+     */
+    public boolean isKnown(Long albumId) {
+        if (albumId == null)
+            return true;
+        synchronized (cache) {
+            return cache.get(albumId) != null || missing.contains(albumId);
+        }
+    }
+
+    /**
+     * Decodes the art of an album in the background, unless it is cached
+     * @param albumId album ID, ignored if null
+     * @param handler handler the callback runs on
+     * @param callback receives the art
+     */
+    public void load(final Long albumId, final Handler handler, final Callback callback) {
+        if (albumId == null)
+            return;
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap art = decode(albumId);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onAlbumArt(albumId, art);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops the decode thread and drops the cached art
+     */
+    public void release() {
+        decodeHandler.removeCallbacksAndMessages(null);
+        thread.quitSafely();
+        synchronized (cache) {
+            cache.evictAll();
+            missing.clear();
+        }
+    }
+
+    private Bitmap decode(long albumId) {
+        synchronized (cache) {
+            Bitmap cached = cache.get(albumId);
+            if (cached != null || missing.contains(albumId))
+                return cached;
+        }
+
+        Bitmap art = MediaPlayerService.getAlbumArt(context, albumId, maxSize);
+        if (art != null && Math.max(art.getWidth(), art.getHeight()) > maxSize) {
+            // inSampleSize only reaches powers of two, finish with an exact scale
+            float scale = (float) maxSize / Math.max(art.getWidth(), art.getHeight());
+            Bitmap scaled = Bitmap.createScaledBitmap(art, Math.max(1, Math.round(art.getWidth() * scale)),
+                    Math.max(1, Math.round(art.getHeight() * scale)), true);
+            if (scaled != art)
+                art.recycle();
+            art = scaled;
+        }
+
+        synchronized (cache) {
+            if (art != null)
+                cache.put(albumId, art);
+            else
+                missing.add(albumId);
+        }
+        return art;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.droidpod;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Priority;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.data.DataFetcher;
+import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.load.model.ModelLoaderFactory;
+import com.bumptech.glide.load.model.MultiModelLoaderFactory;
+import com.bumptech.glide.signature.ObjectKey;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams album art from MediaStore for {@link AlbumArt} models.
+ * Glide runs the fetcher on its source executor and downsamples the stream
+ * to the target size, so no full-size bitmap is ever decoded on the main thread.
+ */
+public class AlbumArtLoader implements ModelLoader<AlbumArt, InputStream> {
+
+    private static final Uri ALBUM_ART_URI = Uri.parse("content://media/external/audio/albumart");
+
+    private final ContentResolver contentResolver;
+
+    AlbumArtLoader(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    @Override
+    public LoadData<InputStream> buildLoadData(@NonNull AlbumArt model, int width, int height,
+                                               @NonNull Options options) {
+        return new LoadData<>(new ObjectKey(model), new Fetcher(contentResolver, model));
+    }
+
+    @Override
+    public boolean handles(@NonNull AlbumArt model) {
+        return true;
+    }
+
+    /**
+     * Opens the album art stream for one album
+     */
+    private static class Fetcher implements DataFetcher<InputStream> {
+
+        private final ContentResolver contentResolver;
+        private final AlbumArt model;
+        private InputStream stream;
+
+        Fetcher(ContentResolver contentResolver, AlbumArt model) {
+            this.contentResolver = contentResolver;
+            this.model = model;
+        }
+
+        @Override
+        public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super InputStream> callback) {
+            Uri uri = ContentUris.withAppendedId(ALBUM_ART_URI, model.getAlbumId());
+            try {
+                stream = contentResolver.openInputStream(uri);
+                if (stream == null) {
+                    callback.onLoadFailed(new FileNotFoundException("no album art for " + model));
+                    return;
+                }
+                callback.onDataReady(stream);
+            } catch (FileNotFoundException | SecurityException e) {
+                callback.onLoadFailed(e);
+            }
+        }
+
+        @Override
+        public void cleanup() {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) { }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            // opening the stream is quick and cannot be interrupted
+        }
+
+        @NonNull
+        @Override
+        public Class<InputStream> getDataClass() {
+            return InputStream.class;
+        }
+
+        @NonNull
+        @Override
+        public DataSource getDataSource() {
+            return DataSource.LOCAL;
+        }
+    }
+
+    /**
+     * Registered in {@link DroidPodGlideModule}
+     */
+    public static class Factory implements ModelLoaderFactory<AlbumArt, InputStream> {
+
+        private final Context context;
+
+        public Factory(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @NonNull
+        @Override
+        public ModelLoader<AlbumArt, InputStream> build(@NonNull MultiModelLoaderFactory multiFactory) {
+            return new AlbumArtLoader(context.getContentResolver());
+        }
+
+        @Override
+        public void teardown() { }
+    }
+}
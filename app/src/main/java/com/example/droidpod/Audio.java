@@ -9,6 +9,10 @@ public class Audio implements Serializable {
     private String album;
     private String artist;
     private Long albumId;
+    // from the file's own tags, see TagReader; null and 0 when unknown
+    private String albumArtist;
+    private int trackNumber;
+    private int discNumber;
 
     public Audio(String data, String title, String album, String artist, Long albumId) {
         this.data = data;
@@ -57,4 +61,28 @@ public class Audio implements Serializable {
     public void setAlbumId(Long albumId) {
         this.albumId = albumId;
     }
+
+    public String getAlbumArtist() {
+        return albumArtist;
+    }
+
+    public void setAlbumArtist(String albumArtist) {
+        this.albumArtist = albumArtist;
+    }
+
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    public void setTrackNumber(int trackNumber) {
+        this.trackNumber = trackNumber;
+    }
+
+    public int getDiscNumber() {
+        return discNumber;
+    }
+
+    public void setDiscNumber(int discNumber) {
+        this.discNumber = discNumber;
+    }
 }
@@ -0,0 +1,35 @@
+package com.example.droidpod;
+
+import android.database.Cursor;
+
+/**
+ * Maps MediaStore audio rows to {@link Audio} objects using fixed column
+ * positions, so no column lookup happens per row
+ */
+public final class AudioCursorMapper {
+
+    // positions in LibrarySync's projection
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_IS_MUSIC = 1;
+    static final int COLUMN_DATA = 2;
+    static final int COLUMN_TITLE = 3;
+    static final int COLUMN_ALBUM = 4;
+    static final int COLUMN_ARTIST = 5;
+    static final int COLUMN_ALBUM_ID = 6;
+
+    private AudioCursorMapper() { }
+
+    /**
+     * Reads the row the cursor is positioned on
+     * @param cursor cursor over LibrarySync's projection
+     * @return track for the row
+     */
+    public static Audio fromRow(Cursor cursor) {
+        String data = cursor.getString(COLUMN_DATA);
+        String title = cursor.getString(COLUMN_TITLE);
+        String album = cursor.getString(COLUMN_ALBUM);
+        String artist = cursor.getString(COLUMN_ARTIST);
+        Long albumId = cursor.getLong(COLUMN_ALBUM_ID);
+        return new Audio(data, title, album, artist, albumId);
+    }
+}
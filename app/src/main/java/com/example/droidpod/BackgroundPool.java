@@ -0,0 +1,37 @@
+package com.example.droidpod;
+
+import android.os.Process;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * Fork-join pools for bulk library work, whose workers run at background priority
+ * and leave a core free for playback and the UI
+ */
+public final class BackgroundPool {
+
+    private BackgroundPool() { }
+
+    /**
+     * @param name worker thread name prefix
+     * @return pool with one worker less than there are cores, at least one
+     */
+    public static ForkJoinPool create(final String name) {
+        return new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread worker = new ForkJoinWorkerThread(pool) {
+                            @Override
+                            protected void onStart() {
+                                super.onStart();
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            }
+                        };
+                        worker.setName(name + "-" + worker.getPoolIndex());
+                        return worker;
+                    }
+                }, null, false);
+    }
+}
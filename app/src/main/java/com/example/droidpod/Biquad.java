@@ -0,0 +1,122 @@
+package com.example.droidpod;
+
+/**
+ * Second order IIR filter for interleaved float PCM, with the peaking and shelf
+ * responses of the RBJ audio EQ cookbook. Runs in transposed direct form II,
+ * keeping two state values per channel.
+ */
+public class Biquad {
+
+    public static final int PEAKING = 0;
+    public static final int LOW_SHELF = 1;
+    public static final int HIGH_SHELF = 2;
+
+    private float b0 = 1f;
+    private float b1;
+    private float b2;
+    private float a1;
+    private float a2;
+    private final float[] z1;
+    private final float[] z2;
+
+    /**
+     * @param maxChannels most channels the filter will process
+     */
+    public Biquad(int maxChannels) {
+        z1 = new float[maxChannels];
+        z2 = new float[maxChannels];
+    }
+
+    /**
+     * Computes the coefficients of a response; the filter state is kept
+     * @param type PEAKING, LOW_SHELF or HIGH_SHELF
+     * @param sampleRate sample rate in Hz
+     * @param frequency center or corner frequency in Hz
+     * @param gainDb gain at the frequency, or of the shelf
+     * @param q quality, the shelf slope for shelves
+     */
+    public void setCoefficients(int type, float sampleRate, float frequency, float gainDb, float q) {
+        double a = Math.pow(10, gainDb / 40.0);
+        double w0 = 2 * Math.PI * Math.min(frequency, sampleRate * 0.45) / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * Math.max(q, 0.01));
+        double sqrtA2Alpha = 2 * Math.sqrt(a) * alpha;
+        double nb0, nb1, nb2, na0, na1, na2;
+        switch (type) {
+            case LOW_SHELF:
+                nb0 = a * ((a + 1) - (a - 1) * cos + sqrtA2Alpha);
+                nb1 = 2 * a * ((a - 1) - (a + 1) * cos);
+                nb2 = a * ((a + 1) - (a - 1) * cos - sqrtA2Alpha);
+                na0 = (a + 1) + (a - 1) * cos + sqrtA2Alpha;
+                na1 = -2 * ((a - 1) + (a + 1) * cos);
+                na2 = (a + 1) + (a - 1) * cos - sqrtA2Alpha;
+                break;
+            case HIGH_SHELF:
+                nb0 = a * ((a + 1) + (a - 1) * cos + sqrtA2Alpha);
+                nb1 = -2 * a * ((a - 1) + (a + 1) * cos);
+                nb2 = a * ((a + 1) + (a - 1) * cos - sqrtA2Alpha);
+                na0 = (a + 1) - (a - 1) * cos + sqrtA2Alpha;
+                na1 = 2 * ((a - 1) - (a + 1) * cos);
+                na2 = (a + 1) - (a - 1) * cos - sqrtA2Alpha;
+                break;
+            default:
+                nb0 = 1 + alpha * a;
+                nb1 = -2 * cos;
+                nb2 = 1 - alpha * a;
+                na0 = 1 + alpha / a;
+                na1 = -2 * cos;
+                na2 = 1 - alpha / a;
+                break;
+        }
+        b0 = (float) (nb0 / na0);
+        b1 = (float) (nb1 / na0);
+        b2 = (float) (nb2 / na0);
+        a1 = (float) (na1 / na0);
+        a2 = (float) (na2 / na0);
+    }
+
+    /**
+     * Sets normalized coefficients directly, for responses defined by their coefficients
+     */
+    public void setCoefficients(double b0, double b1, double b2, double a1, double a2) {
+        this.b0 = (float) b0;
+        this.b1 = (float) b1;
+        this.b2 = (float) b2;
+        this.a1 = (float) a1;
+        this.a2 = (float) a2;
+    }
+
+    /**
+     * Clears the filter state, e.g. after a seek
+     */
+    public void reset() {
+        for (int c = 0; c < z1.length; c++) {
+            z1[c] = 0;
+            z2[c] = 0;
+        }
+    }
+
+    /**
+     * Filters interleaved samples in place
+     * @param pcm samples
+     * @param offset index of the first sample
+     * @param frames number of frames
+     * @param channels samples per frame
+     */
+    public void process(float[] pcm, int offset, int frames, int channels) {
+        int end = offset + frames * channels;
+        for (int c = 0; c < channels; c++) {
+            float s1 = z1[c];
+            float s2 = z2[c];
+            for (int i = offset + c; i < end; i += channels) {
+                float x = pcm[i];
+                float y = b0 * x + s1;
+                s1 = b1 * x - a1 * y + s2;
+                s2 = b2 * x - a2 * y;
+                pcm[i] = y;
+            }
+            z1[c] = s1;
+            z2[c] = s2;
+        }
+    }
+}
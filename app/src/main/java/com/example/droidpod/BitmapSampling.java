@@ -0,0 +1,33 @@
+package com.example.droidpod;
+
+/**
+ * Sample size selection for decoding bitmaps close to the size they are shown at
+ */
+public final class BitmapSampling {
+
+    private BitmapSampling() { }
+
+    /**
+     * gets the largest power-of-two sample size that keeps both decoded
+     * dimensions at or above the requested ones
+     * @param width source width in px
+     * @param height source height in px
+     * @param reqWidth requested width in px
+     * @param reqHeight requested height in px
+     * @return value for BitmapFactory.Options.inSampleSize, at least 1
+     */
+    public static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int inSampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0)
+            return inSampleSize;
+
+        if (height > reqHeight || width > reqWidth) {
+            int halfHeight = height / 2;
+            int halfWidth = width / 2;
+            while ((halfHeight / inSampleSize) >= reqHeight && (halfWidth / inSampleSize) >= reqWidth) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+}
@@ -0,0 +1,797 @@
+package com.example.droidpod;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * {@link PlaybackEngine} that decodes with MediaExtractor and MediaCodec into a
+ * {@link PcmRing} and streams the ring to an AudioTrack.
+ * A decoder thread keeps the ring full, so start is immediate once prepared and a
+ * seek refills only a few slots before it completes; seeks are frame accurate, the
+ * decoded audio before the target is trimmed. The writer thread only moves ring
+ * buffers into the track and does not allocate. 16-bit output runs through a
+ * {@link DspChain} as it is decoded.
+ * Engines are pooled, the two threads live as long as the engine.
+ */
+public class CodecEngine implements PlaybackEngine {
+
+    private static final String TAG = "CodecEngine";
+
+    private static final int RING_SLOTS = 16;
+    private static final int SLOT_BYTES = 16 * 1024;
+    // slots decoded before prepare and seek complete
+    private static final int PREFILL_SLOTS = 4;
+    // slots decoded per step before the decoder thread looks at other work
+    private static final int STEP_SLOTS = 4;
+    private static final long DEQUEUE_TIMEOUT_US = 5000;
+    // writer wait for data, and retry delay while the track is full
+    private static final long WRITER_WAIT_MS = 10;
+    // a draining track whose head does not move for this long is stopped to play out,
+    // e.g. a short file that never filled the track up to its start threshold
+    private static final long DRAIN_STALL_MS = 250;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_INITIALIZED = 1;
+    private static final int STATE_PREPARING = 2;
+    private static final int STATE_PREPARED = 3;
+    private static final int STATE_STARTED = 4;
+    private static final int STATE_PAUSED = 5;
+    private static final int STATE_COMPLETED = 6;
+    private static final int STATE_STOPPED = 7;
+    private static final int STATE_ERROR = 8;
+
+    // decode results
+    private static final int DECODE_FULL = 0;
+    private static final int DECODE_YIELD = 1;
+    private static final int DECODE_DONE = 2;
+
+    private final Handler callbacks;
+    private final HandlerThread decoderThread;
+    private final Handler decoder;
+    private final Thread writer;
+    private final PcmRing ring = new PcmRing(RING_SLOTS, SLOT_BYTES);
+    // 16-bit views of the ring slots for the DSP chain
+    private final ShortBuffer[] pcm16 = new ShortBuffer[RING_SLOTS];
+    private final Object lock = new Object();
+    // disabled settings, for the track gain alone
+    private final DspParams noDsp = new DspParams();
+
+    private Listener listener;
+    private AudioAttributes attributes;
+    private String path;
+    private float volume = 1f;
+    // playback thread state, see the STATE constants
+    private int state = STATE_IDLE;
+    // bumped by reset(), events of an older data source are dropped
+    private volatile int session;
+
+    // decoder thread only
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private MediaExtractor extractor;
+    private MediaCodec codec;
+    private boolean inputDone;
+    private boolean outputDone;
+    private int outIndex = -1;
+    private ByteBuffer outBuffer;
+    private long outTimeUs;
+    private boolean outEnd;
+    // audio before this time is dropped after a seek, -1 if none
+    private long seekTargetUs = -1;
+    private int channels;
+    private int encoding;
+    private DspChain dsp;
+
+    // shared between the threads
+    private volatile AudioTrack track;
+    private volatile int sampleRate;
+    private volatile int frameBytes;
+    private volatile int durationMs = -1;
+    private volatile boolean playing;
+    private volatile boolean quit;
+    private volatile boolean decoderStarved;
+    // set by a seek, the writer then flushes the track before writing again
+    private volatile boolean flushRequested;
+    // media time and track head position the position is counted from
+    private volatile long basePositionUs;
+    private volatile long baseHead;
+    private volatile long pendingSeekUs;
+    // a fast seek starts at the sync sample instead of trimming up to the target
+    private volatile boolean pendingSeekFast;
+    private volatile DspParams dspParams;
+    private volatile float replayGainDb;
+
+    // writer thread only
+    private long framesQueued;
+    private boolean draining;
+    // head position seen by the last drain() and when it last moved
+    private long drainPlayed;
+    private long drainMovedAt;
+
+    // event parameters, read on the playback thread
+    private volatile int preparedSession;
+    private volatile int seekSession;
+    private volatile int completionSession;
+    private volatile int errorSession;
+    private volatile int errorExtra;
+
+    /**
+     * Creates the engine; its events are delivered on the calling thread's looper
+     */
+    public CodecEngine() {
+        noDsp.setEnabled(false);
+        callbacks = new Handler(Looper.myLooper());
+        for (int i = 0; i < RING_SLOTS; i++) {
+            pcm16[i] = ring.buffer(i).asShortBuffer();
+        }
+        decoderThread = new HandlerThread("Decoder", Process.THREAD_PRIORITY_AUDIO);
+        decoderThread.start();
+        decoder = new Handler(decoderThread.getLooper());
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                writeLoop();
+            }
+        }, "AudioWriter");
+        writer.start();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setAudioAttributes(AudioAttributes attributes) {
+        this.attributes = attributes;
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        if (state != STATE_IDLE)
+            throw new IllegalStateException("setDataSource in state " + state);
+        this.path = path;
+        state = STATE_INITIALIZED;
+    }
+
+    @Override
+    public void prepareAsync() {
+        if (state != STATE_INITIALIZED && state != STATE_STOPPED)
+            throw new IllegalStateException("prepareAsync in state " + state);
+        state = STATE_PREPARING;
+        decoder.post(prepareTask);
+    }
+
+    @Override
+    public void start() {
+        if (state == STATE_COMPLETED) {
+            // like MediaPlayer, starting a completed track plays it again
+            seekTo(0);
+        } else if (state != STATE_PREPARED && state != STATE_PAUSED && state != STATE_STARTED) {
+            throw new IllegalStateException("start in state " + state);
+        }
+        state = STATE_STARTED;
+        AudioTrack track = this.track;
+        if (track != null)
+            track.play();
+        synchronized (lock) {
+            playing = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (state != STATE_STARTED && state != STATE_PAUSED)
+            throw new IllegalStateException("pause in state " + state);
+        state = STATE_PAUSED;
+        playing = false;
+        AudioTrack track = this.track;
+        if (track != null)
+            track.pause();
+    }
+
+    @Override
+    public void stop() {
+        playing = false;
+        AudioTrack track = this.track;
+        if (track != null)
+            track.pause();
+        decoder.removeCallbacks(decodeTask);
+        state = STATE_STOPPED;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return state == STATE_STARTED;
+    }
+
+    @Override
+    public void seekTo(int position) {
+        seekTo(position, SEEK_PRECISE);
+    }
+
+    @Override
+    public void seekTo(int position, int mode) {
+        if (state < STATE_PREPARED || state > STATE_COMPLETED)
+            throw new IllegalStateException("seekTo in state " + state);
+        if (state == STATE_COMPLETED)
+            state = STATE_PAUSED;
+        pendingSeekUs = Math.max(0, position) * 1000L;
+        pendingSeekFast = mode == SEEK_FAST;
+        // only the latest of several queued seeks is run
+        decoder.removeCallbacks(seekTask);
+        decoder.post(seekTask);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        AudioTrack track = this.track;
+        if (track == null || flushRequested || sampleRate == 0)
+            return (int) (basePositionUs / 1000);
+        long played = (track.getPlaybackHeadPosition() & 0xffffffffL) - baseHead;
+        return (int) (basePositionUs / 1000 + Math.max(0, played) * 1000 / sampleRate);
+    }
+
+    @Override
+    public int getDuration() {
+        return durationMs;
+    }
+
+    @Override
+    public void setVolume(float left, float right) {
+        volume = Math.max(left, right);
+        AudioTrack track = this.track;
+        if (track != null)
+            track.setVolume(volume);
+    }
+
+    @Override
+    public void setDsp(DspParams params) {
+        // the chain picks up later changes of the same params by itself
+        dspParams = params;
+    }
+
+    @Override
+    public void setReplayGain(float gainDb) {
+        replayGainDb = gainDb;
+    }
+
+    @Override
+    public boolean setNext(PlaybackEngine next) {
+        // the next engine is prefilled, starting it on completion is near instant
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        playing = false;
+        session++;
+        decoder.removeCallbacksAndMessages(null);
+        callbacks.removeCallbacksAndMessages(null);
+        decoder.post(releaseTask);
+        path = null;
+        durationMs = -1;
+        state = STATE_IDLE;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        synchronized (lock) {
+            quit = true;
+            lock.notifyAll();
+        }
+        decoderThread.quitSafely();
+    }
+
+    // decoder thread
+
+    private final Runnable prepareTask = new Runnable() {
+        @Override
+        public void run() {
+            int session = CodecEngine.this.session;
+            try {
+                open(path);
+                fill(PREFILL_SLOTS);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "cannot play " + path, e);
+                closeCodec();
+                postError(session, MediaPlayer.MEDIA_ERROR_IO);
+                return;
+            }
+            preparedSession = session;
+            callbacks.post(preparedEvent);
+            decoder.post(decodeTask);
+        }
+    };
+
+    private final Runnable decodeTask = new Runnable() {
+        @Override
+        public void run() {
+            if (codec == null)
+                return;
+            int result;
+            try {
+                result = decode(STEP_SLOTS);
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "decoding failed", e);
+                postError(session, MediaPlayer.MEDIA_ERROR_MALFORMED);
+                return;
+            }
+            if (result == DECODE_YIELD) {
+                decoder.post(this);
+            } else if (result == DECODE_FULL) {
+                decoderStarved = true;
+                // the writer may have freed a slot before the flag was set
+                if (ring.hasSpace()) {
+                    decoderStarved = false;
+                    decoder.post(this);
+                }
+            }
+        }
+    };
+
+    private final Runnable seekTask = new Runnable() {
+        @Override
+        public void run() {
+            if (codec == null)
+                return;
+            long target = pendingSeekUs;
+            boolean fast = pendingSeekFast;
+            decoder.removeCallbacks(decodeTask);
+            ring.clear();
+            flushRequested = true;
+            try {
+                extractor.seekTo(target, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                codec.flush();
+                outIndex = -1;
+                inputDone = false;
+                outputDone = false;
+                long sync = extractor.getSampleTime();
+                seekTargetUs = fast ? -1 : target;
+                basePositionUs = fast && sync >= 0 ? sync : target;
+                if (dsp != null)
+                    dsp.reset();
+                fill(PREFILL_SLOTS);
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "seek failed", e);
+                postError(session, MediaPlayer.MEDIA_ERROR_MALFORMED);
+                return;
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            seekSession = session;
+            callbacks.post(seekCompleteEvent);
+            decoder.post(decodeTask);
+        }
+    };
+
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            closeCodec();
+            ring.clear();
+        }
+    };
+
+    /**
+     * Opens the extractor, decoder and track for the first audio track of a file
+     */
+    private void open(String path) throws IOException {
+        closeCodec();
+        ring.clear();
+        extractor = new MediaExtractor();
+        extractor.setDataSource(path);
+        MediaFormat format = null;
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat candidate = extractor.getTrackFormat(i);
+            String mime = candidate.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                format = candidate;
+                break;
+            }
+        }
+        if (format == null)
+            throw new IOException("no audio track in " + path);
+
+        durationMs = format.containsKey(MediaFormat.KEY_DURATION)
+                ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : -1;
+        codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        codec.configure(format, null, null, 0);
+        codec.start();
+        inputDone = false;
+        outputDone = false;
+        outIndex = -1;
+        seekTargetUs = -1;
+        basePositionUs = 0;
+        flushRequested = true;
+        openTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    /**
+     * Builds the track for a PCM format, replacing the current one if the format differs
+     */
+    private void openTrack(int sampleRate, int channels, int encoding) {
+        if (track != null && sampleRate == this.sampleRate && channels == this.channels
+                && encoding == this.encoding)
+            return;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.encoding = encoding;
+        frameBytes = channels * (encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2);
+        if (dsp != null)
+            dsp.configure(sampleRate, Math.min(channels, DspChain.MAX_CHANNELS));
+
+        AudioFormat audioFormat = new AudioFormat.Builder()
+                .setSampleRate(sampleRate)
+                .setEncoding(encoding)
+                .setChannelMask(channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO)
+                .build();
+        int minBuffer = AudioTrack.getMinBufferSize(sampleRate, audioFormat.getChannelMask(), encoding);
+        AudioTrack.Builder builder = new AudioTrack.Builder()
+                .setAudioFormat(audioFormat)
+                .setBufferSizeInBytes(Math.max(minBuffer * 2, SLOT_BYTES))
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY);
+        if (attributes != null)
+            builder.setAudioAttributes(attributes);
+        AudioTrack created = builder.build();
+        created.setVolume(volume);
+
+        AudioTrack old;
+        synchronized (lock) {
+            old = track;
+            track = created;
+            // the writer starts counting frames on the new track
+            flushRequested = true;
+        }
+        if (old != null)
+            old.release();
+    }
+
+    private void closeCodec() {
+        if (codec != null) {
+            try {
+                codec.stop();
+            } catch (IllegalStateException ignored) { }
+            codec.release();
+            codec = null;
+        }
+        if (extractor != null) {
+            extractor.release();
+            extractor = null;
+        }
+        outIndex = -1;
+        AudioTrack old;
+        synchronized (lock) {
+            old = track;
+            track = null;
+        }
+        if (old != null)
+            old.release();
+    }
+
+    /**
+     * Decodes until the ring holds a number of slots or the stream ended
+     */
+    private void fill(int slots) {
+        while (ring.size() < slots && decode(1) == DECODE_YIELD) {
+            // decode(1) yields after each published slot
+        }
+    }
+
+    /**
+     * Decodes into the ring
+     * @param maxSlots slots to publish before yielding
+     * @return DECODE_FULL, DECODE_YIELD or DECODE_DONE
+     */
+    private int decode(int maxSlots) {
+        int published = 0;
+        while (!outputDone) {
+            if (!inputDone)
+                feedInput();
+            if (outIndex < 0) {
+                int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    onOutputFormat(codec.getOutputFormat());
+                    continue;
+                }
+                if (index < 0)
+                    continue;
+                outIndex = index;
+                outBuffer = codec.getOutputBuffer(index);
+                outBuffer.position(info.offset);
+                outBuffer.limit(info.offset + info.size);
+                outTimeUs = info.presentationTimeUs;
+                outEnd = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            }
+
+            if (seekTargetUs >= 0)
+                trimToSeekTarget();
+            while (outBuffer.remaining() >= frameBytes) {
+                if (published == maxSlots)
+                    return DECODE_YIELD;
+                int slot = ring.acquireWrite();
+                if (slot < 0)
+                    return DECODE_FULL;
+                ByteBuffer dst = ring.buffer(slot);
+                int bytes = Math.min(dst.remaining(), outBuffer.remaining());
+                bytes -= bytes % frameBytes;
+                int limit = outBuffer.limit();
+                outBuffer.limit(outBuffer.position() + bytes);
+                dst.put(outBuffer);
+                outBuffer.limit(limit);
+                dst.flip();
+                processSlot(slot, bytes / frameBytes);
+                ring.publish(slot, outTimeUs);
+                outTimeUs += framesToUs(bytes / frameBytes);
+                published++;
+            }
+
+            codec.releaseOutputBuffer(outIndex, false);
+            outIndex = -1;
+            outBuffer = null;
+            if (outEnd) {
+                outputDone = true;
+                ring.publishEnd();
+            }
+        }
+        return DECODE_DONE;
+    }
+
+    /**
+     * Runs the DSP chain over a filled slot
+     */
+    private void processSlot(int slot, int frames) {
+        DspParams params = dspParams;
+        float gainDb = replayGainDb;
+        if (params == null && gainDb == 0f || encoding != AudioFormat.ENCODING_PCM_16BIT
+                || channels > DspChain.MAX_CHANNELS)
+            return;
+        if (params == null)
+            params = noDsp;
+        if (dsp == null || dsp.getParams() != params) {
+            // once per settings object, not per block
+            dsp = new DspChain(params);
+            dsp.configure(sampleRate, channels);
+        }
+        dsp.setTrackGainDb(gainDb);
+        dsp.process(pcm16[slot], frames);
+    }
+
+    private void feedInput() {
+        int index = codec.dequeueInputBuffer(0);
+        if (index < 0)
+            return;
+        ByteBuffer buffer = codec.getInputBuffer(index);
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+        } else {
+            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+            extractor.advance();
+        }
+    }
+
+    private void onOutputFormat(MediaFormat format) {
+        int encoding = format.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                ? format.getInteger(MediaFormat.KEY_PCM_ENCODING) : AudioFormat.ENCODING_PCM_16BIT;
+        openTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), encoding);
+    }
+
+    /**
+     * Skips the decoded frames before the seek target, the decoder resumes from the
+     * sync sample before it
+     */
+    private void trimToSeekTarget() {
+        long skipFrames = (seekTargetUs - outTimeUs) * sampleRate / 1000000;
+        if (skipFrames <= 0) {
+            seekTargetUs = -1;
+            return;
+        }
+        int available = outBuffer.remaining() / frameBytes;
+        int frames = (int) Math.min(skipFrames, available);
+        outBuffer.position(outBuffer.position() + frames * frameBytes);
+        outTimeUs += framesToUs(frames);
+        if (frames < available)
+            seekTargetUs = -1;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000 / sampleRate;
+    }
+
+    // writer thread
+
+    private void writeLoop() {
+        while (!quit) {
+            try {
+                synchronized (lock) {
+                    while (!quit && !playing && !flushRequested) {
+                        lock.wait();
+                    }
+                }
+                if (flushRequested)
+                    flushTrack();
+                if (!playing) {
+                    // a pause does not count as a stalled drain
+                    draining = false;
+                    continue;
+                }
+
+                int slot = ring.acquireRead(WRITER_WAIT_MS);
+                if (slot < 0) {
+                    if (ring.isDrained())
+                        drain();
+                    continue;
+                }
+                if (writeSlot(ring.buffer(slot)) && !ring.release()) {
+                    // dropped by a seek while being written, the flush discards it
+                    flushRequested = true;
+                }
+                if (decoderStarved && ring.hasSpace()) {
+                    decoderStarved = false;
+                    decoder.post(decodeTask);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a slot to the track without blocking on a paused track
+     * @return true once the whole slot was written, false if interrupted by a pause or seek
+     */
+    private boolean writeSlot(ByteBuffer buffer) throws InterruptedException {
+        while (buffer.hasRemaining()) {
+            if (!playing || flushRequested)
+                return false;
+            int written;
+            synchronized (lock) {
+                AudioTrack track = this.track;
+                if (track == null)
+                    return false;
+                written = track.write(buffer, buffer.remaining(), AudioTrack.WRITE_NON_BLOCKING);
+            }
+            if (written < 0) {
+                Log.d(TAG, "track write failed " + written);
+                playing = false;
+                postError(session, MediaPlayer.MEDIA_ERROR_IO);
+                return false;
+            }
+            framesQueued += written / frameBytes;
+            if (written == 0)
+                Thread.sleep(WRITER_WAIT_MS);
+        }
+        return true;
+    }
+
+    private void flushTrack() {
+        synchronized (lock) {
+            AudioTrack track = this.track;
+            flushRequested = false;
+            framesQueued = 0;
+            draining = false;
+            if (track == null)
+                return;
+            track.pause();
+            track.flush();
+            baseHead = track.getPlaybackHeadPosition() & 0xffffffffL;
+            if (playing)
+                track.play();
+        }
+    }
+
+    /**
+     * Plays out the end of the stream and reports the completion. The head of a stopped
+     * track reads 0, so it is followed while the track still plays and the track is only
+     * stopped once it has played everything or stalls.
+     */
+    private void drain() throws InterruptedException {
+        long outstandingMs;
+        synchronized (lock) {
+            // the decoder thread releases tracks under the lock
+            AudioTrack track = this.track;
+            if (track == null)
+                return;
+            long played = (track.getPlaybackHeadPosition() & 0xffffffffL) - baseHead;
+            long now = SystemClock.uptimeMillis();
+            if (!draining || played != drainPlayed) {
+                draining = true;
+                drainPlayed = played;
+                drainMovedAt = now;
+            }
+            if (played < framesQueued && now - drainMovedAt < DRAIN_STALL_MS) {
+                outstandingMs = -1;
+            } else {
+                // stop() plays the frames still queued before stopping, at most a buffer
+                track.stop();
+                long outstanding = Math.min(Math.max(0, framesQueued - played), track.getBufferSizeInFrames());
+                outstandingMs = outstanding * 1000 / sampleRate;
+            }
+        }
+        if (outstandingMs < 0) {
+            Thread.sleep(WRITER_WAIT_MS);
+            return;
+        }
+        if (outstandingMs > 0)
+            Thread.sleep(outstandingMs);
+        if (!playing || flushRequested)
+            return;
+        playing = false;
+        completionSession = session;
+        callbacks.post(completionEvent);
+    }
+
+    // playback thread events
+
+    private void postError(int session, int extra) {
+        errorSession = session;
+        errorExtra = extra;
+        callbacks.post(errorEvent);
+    }
+
+    private final Runnable preparedEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (preparedSession != session || state != STATE_PREPARING)
+                return;
+            state = STATE_PREPARED;
+            if (listener != null)
+                listener.onPrepared(CodecEngine.this);
+        }
+    };
+
+    private final Runnable seekCompleteEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (seekSession == session && listener != null)
+                listener.onSeekComplete(CodecEngine.this);
+        }
+    };
+
+    private final Runnable completionEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (completionSession != session || state != STATE_STARTED)
+                return;
+            state = STATE_COMPLETED;
+            if (listener != null)
+                listener.onCompletion(CodecEngine.this);
+        }
+    };
+
+    private final Runnable errorEvent = new Runnable() {
+        @Override
+        public void run() {
+            if (errorSession != session)
+                return;
+            state = STATE_ERROR;
+            playing = false;
+            if (listener != null && !listener.onError(CodecEngine.this, MediaPlayer.MEDIA_ERROR_UNKNOWN, errorExtra))
+                listener.onCompletion(CodecEngine.this);
+        }
+    };
+}
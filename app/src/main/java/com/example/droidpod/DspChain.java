@@ -0,0 +1,185 @@
+package com.example.droidpod;
+
+import java.nio.ShortBuffer;
+
+/**
+ * In-place PCM processing stage: track gain and pre-gain, the parametric EQ bands
+ * and a soft limiter, in that order. The track gain (ReplayGain) applies even with
+ * the EQ disabled. One chain serves one stream on one thread; settings come
+ * from a shared {@link DspParams}. Everything is allocated up front, processing a
+ * block does not allocate.
+ */
+public class DspChain {
+
+    public static final int MAX_CHANNELS = 8;
+
+    // 16-bit blocks are converted through this many float samples at a time
+    private static final int SCRATCH_SAMPLES = 4096;
+    private static final float LIMITER_RELEASE_S = 0.1f;
+
+    private final DspParams params;
+    private final Biquad[] bands = new Biquad[DspParams.BANDS];
+    private final boolean[] bandActive = new boolean[DspParams.BANDS];
+    private final float[] scratch = new float[SCRATCH_SAMPLES];
+
+    private int sampleRate = 44100;
+    private int channels = 2;
+    private int version = -1;
+    private boolean enabled;
+    private float preGain = 1f;
+    private float threshold = 1f;
+    private float releaseCoef;
+    private float envelope;
+    private volatile float trackGain = 1f;
+
+    public DspChain(DspParams params) {
+        this.params = params;
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = new Biquad(MAX_CHANNELS);
+        }
+    }
+
+    public DspParams getParams() {
+        return params;
+    }
+
+    /**
+     * Sets the loudness normalization gain of the current track
+     * @param gainDb gain in dB, 0 for none
+     */
+    public void setTrackGainDb(float gainDb) {
+        trackGain = dbToLinear(gainDb);
+    }
+
+    /**
+     * Sets the stream format and clears the filter state
+     * @param sampleRate sample rate in Hz
+     * @param channels interleaved channels, at most MAX_CHANNELS
+     */
+    public void configure(int sampleRate, int channels) {
+        if (channels > MAX_CHANNELS)
+            throw new IllegalArgumentException("too many channels: " + channels);
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        version = -1;
+        reset();
+    }
+
+    /**
+     * Clears the filter and limiter state, e.g. after a seek
+     */
+    public void reset() {
+        for (Biquad band : bands) {
+            band.reset();
+        }
+        envelope = 0;
+    }
+
+    /**
+     * Processes interleaved float samples in place, nominally within [-1, 1]
+     * @param pcm samples
+     * @param offset index of the first sample
+     * @param frames number of frames
+     */
+    public void process(float[] pcm, int offset, int frames) {
+        sync();
+        float track = trackGain;
+        if (!enabled && track == 1f)
+            return;
+        int end = offset + frames * channels;
+        float gain = enabled ? track * preGain : track;
+        if (gain != 1f) {
+            for (int i = offset; i < end; i++) {
+                pcm[i] *= gain;
+            }
+        }
+        if (enabled) {
+            for (int b = 0; b < bands.length; b++) {
+                if (bandActive[b])
+                    bands[b].process(pcm, offset, frames, channels);
+            }
+        }
+        limit(pcm, offset, end, enabled ? threshold : 1f);
+    }
+
+    /**
+     * Processes interleaved 16-bit samples in place, starting at the buffer's position
+     * @param pcm samples; position and limit are not changed
+     * @param frames number of frames
+     */
+    public void process(ShortBuffer pcm, int frames) {
+        sync();
+        if (!enabled && trackGain == 1f)
+            return;
+        int base = pcm.position();
+        int total = frames * channels;
+        int chunk = SCRATCH_SAMPLES - SCRATCH_SAMPLES % channels;
+        for (int done = 0; done < total; done += chunk) {
+            int count = Math.min(chunk, total - done);
+            for (int j = 0; j < count; j++) {
+                scratch[j] = pcm.get(base + done + j) * (1f / 32768f);
+            }
+            process(scratch, 0, count / channels);
+            for (int j = 0; j < count; j++) {
+                int s = Math.round(scratch[j] * 32768f);
+                if (s > Short.MAX_VALUE)
+                    s = Short.MAX_VALUE;
+                else if (s < Short.MIN_VALUE)
+                    s = Short.MIN_VALUE;
+                pcm.put(base + done + j, (short) s);
+            }
+        }
+    }
+
+    /**
+     * Scales frames whose peak envelope is over the threshold; the envelope follows
+     * peaks at once and falls back exponentially, so gain recovers smoothly
+     */
+    private void limit(float[] pcm, int offset, int end, float threshold) {
+        float env = envelope;
+        for (int i = offset; i < end; i += channels) {
+            float peak = 0f;
+            for (int c = 0; c < channels; c++) {
+                float a = Math.abs(pcm[i + c]);
+                if (a > peak)
+                    peak = a;
+            }
+            env = peak > env ? peak : peak + releaseCoef * (env - peak);
+            if (env > threshold) {
+                float gain = threshold / env;
+                for (int c = 0; c < channels; c++) {
+                    pcm[i + c] *= gain;
+                }
+            }
+        }
+        envelope = env;
+    }
+
+    /**
+     * Takes over changed settings; only recomputes coefficients, does not allocate
+     */
+    private void sync() {
+        if (params.getVersion() == version)
+            return;
+        synchronized (params) {
+            version = params.getVersion();
+            enabled = params.enabled;
+            preGain = dbToLinear(params.preGainDb);
+            threshold = dbToLinear(params.limiterThresholdDb);
+            for (int b = 0; b < bands.length; b++) {
+                boolean active = params.gainsDb[b] != 0f;
+                if (active && !bandActive[b])
+                    bands[b].reset();
+                bandActive[b] = active;
+                if (active)
+                    bands[b].setCoefficients(params.types[b], sampleRate, params.frequencies[b],
+                            params.gainsDb[b], params.qs[b]);
+            }
+        }
+        releaseCoef = (float) Math.exp(-1.0 / (LIMITER_RELEASE_S * sampleRate));
+    }
+
+    static float dbToLinear(float db) {
+        return (float) Math.pow(10, db / 20.0);
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.droidpod;
+
+/**
+ * Settings of the {@link DspChain}: pre-gain, a five band parametric EQ and the
+ * limiter threshold. Set from any thread; every change bumps a version, and each
+ * chain picks the new values up at its next block.
+ */
+public class DspParams {
+
+    public static final int BANDS = 5;
+
+    private static final float[] DEFAULT_FREQUENCIES = {60, 230, 910, 3600, 14000};
+
+    boolean enabled = true;
+    float preGainDb;
+    float limiterThresholdDb = -1f;
+    final int[] types = {Biquad.LOW_SHELF, Biquad.PEAKING, Biquad.PEAKING, Biquad.PEAKING, Biquad.HIGH_SHELF};
+    final float[] frequencies = DEFAULT_FREQUENCIES.clone();
+    final float[] gainsDb = new float[BANDS];
+    final float[] qs = {0.707f, 1f, 1f, 1f, 0.707f};
+    private volatile int version;
+
+    public int getVersion() {
+        return version;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        version++;
+    }
+
+    public synchronized float getPreGainDb() {
+        return preGainDb;
+    }
+
+    /**
+     * @param gainDb gain applied before the EQ, e.g. the track's ReplayGain
+     */
+    public synchronized void setPreGainDb(float gainDb) {
+        preGainDb = gainDb;
+        version++;
+    }
+
+    public synchronized float getLimiterThresholdDb() {
+        return limiterThresholdDb;
+    }
+
+    /**
+     * @param thresholdDb peak level the limiter holds the output to, in dBFS
+     */
+    public synchronized void setLimiterThresholdDb(float thresholdDb) {
+        limiterThresholdDb = Math.min(0f, thresholdDb);
+        version++;
+    }
+
+    /**
+     * Configures an EQ band; a band at 0 dB is bypassed
+     * @param band band index below BANDS
+     * @param type Biquad.PEAKING, LOW_SHELF or HIGH_SHELF
+     * @param frequency center or corner frequency in Hz
+     * @param gainDb boost or cut
+     * @param q band quality
+     */
+    public synchronized void setBand(int band, int type, float frequency, float gainDb, float q) {
+        types[band] = type;
+        frequencies[band] = frequency;
+        gainsDb[band] = gainDb;
+        qs[band] = q;
+        version++;
+    }
+
+    public synchronized void setBandGain(int band, float gainDb) {
+        gainsDb[band] = gainDb;
+        version++;
+    }
+
+    public synchronized float getBandGain(int band) {
+        return gainsDb[band];
+    }
+
+    public synchronized float getBandFrequency(int band) {
+        return frequencies[band];
+    }
+}
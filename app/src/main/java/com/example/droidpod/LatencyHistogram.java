@@ -0,0 +1,155 @@
+package com.example.droidpod;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of non-negative values, laid out like HdrHistogram: values
+ * below 2^precisionBits are counted exactly, above that every power of two is split
+ * into 2^(precisionBits - 1) equal buckets, so the relative error stays below
+ * 2^(1 - precisionBits). Recording is lock-free and allocation-free, so it can run on
+ * callback threads; reads while recording see a slightly torn but usable state.
+ */
+public class LatencyHistogram {
+
+    private final int precisionBits;
+    private final int subBuckets;
+    private final long highest;
+    private final AtomicLongArray counts;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param highest largest value told apart, larger values count as this one
+     * @param precisionBits buckets per power of two are 2^(precisionBits - 1), e.g. 7 for
+     *                      under 2% error
+     */
+    public LatencyHistogram(long highest, int precisionBits) {
+        if (precisionBits < 2 || precisionBits > 16 || highest < 1)
+            throw new IllegalArgumentException("highest " + highest + ", precisionBits " + precisionBits);
+        this.precisionBits = precisionBits;
+        this.subBuckets = 1 << precisionBits;
+        this.highest = highest;
+        this.counts = new AtomicLongArray(indexOf(highest) + 1);
+    }
+
+    /**
+     * Counts a value
+     * @param value value, clamped to [0, highest]
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        else if (value > highest)
+            value = highest;
+        counts.incrementAndGet(indexOf(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+        long seen;
+        while (value > (seen = max.get())) {
+            if (max.compareAndSet(seen, value))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long count = total.get();
+        return count == 0 ? 0 : (double) sum.get() / count;
+    }
+
+    /**
+     * gets the value at or below which the given share of recorded values lie
+     * @param percentile percentile in [0, 100]
+     * @return the highest value of the bucket holding the percentile, capped at the
+     *         largest recorded value; 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalent(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Drops every recorded value
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Prints a summary line, followed by the non-empty buckets as "lowest count" lines
+     * so dumps of different devices or builds can be merged
+     * @param out writer
+     * @param name histogram name
+     * @param unit unit of the values, e.g. "us"
+     */
+    public void writeTo(PrintWriter out, String name, String unit) {
+        out.println(String.format(Locale.ROOT,
+                "%s: count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d (%s)",
+                name, getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), getValueAtPercentile(99.9), getMax(), unit));
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count != 0)
+                out.println("  " + lowestEquivalent(i) + " " + count);
+        }
+    }
+
+    /**
+     * gets the bucket of a value in [0, highest]
+     */
+    int indexOf(long value) {
+        if (value < subBuckets)
+            return (int) value;
+        // values in [2^k, 2^(k+1)) keep their top precisionBits bits
+        int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+        int sub = (int) (value >>> shift);
+        return subBuckets + (shift - 1) * (subBuckets / 2) + (sub - subBuckets / 2);
+    }
+
+    long lowestEquivalent(int index) {
+        if (index < subBuckets)
+            return index;
+        int half = subBuckets / 2;
+        int shift = (index - subBuckets) / half + 1;
+        long sub = (index - subBuckets) % half + half;
+        return sub << shift;
+    }
+
+    long highestEquivalent(int index) {
+        if (index < subBuckets)
+            return index;
+        int shift = (index - subBuckets) / (subBuckets / 2) + 1;
+        return lowestEquivalent(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.droidpod;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Persisted local copy of the device's MediaStore audio library.
+ * Tracks are keyed by their MediaStore row ID so deltas can be applied in place,
+ * and held in a {@link TrackTable} rather than as Audio objects.
+ */
+public class LibraryIndex {
+
+    private static final String FILE_NAME = "library.idx";
+    private static final int MAGIC = 0x64504c49; // "dPLI"
+    // 3: strings are length-prefixed UTF-8, writeUTF is limited to 64 KiB
+    private static final int FORMAT_VERSION = 3;
+    // longest string read back, anything longer means the file is corrupt
+    private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    private final File file;
+    private final TrackTable tracks = new TrackTable();
+    private String mediaStoreVersion;
+    private long generation;
+    // rows in title order, null after a change
+    private int[] titleOrder;
+
+    public LibraryIndex(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the index from disk, leaving it empty if there is none or it is unreadable
+     */
+    public void load() {
+        tracks.clear();
+        mediaStoreVersion = null;
+        generation = 0;
+        titleOrder = null;
+        if (!file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return;
+            mediaStoreVersion = readString(in);
+            generation = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                String data = readString(in);
+                String title = readString(in);
+                String album = readString(in);
+                String artist = readString(in);
+                long albumId = in.readLong();
+                Audio audio = new Audio(data, title, album, artist, albumId);
+                String albumArtist = readString(in);
+                audio.setAlbumArtist(albumArtist.isEmpty() ? null : albumArtist);
+                audio.setTrackNumber(in.readInt());
+                audio.setDiscNumber(in.readInt());
+                tracks.put(id, audio);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tracks.clear();
+            mediaStoreVersion = null;
+            generation = 0;
+        }
+    }
+
+    /**
+     * Writes the index to disk, replacing the previous copy atomically
+     */
+    public void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            writeString(out, mediaStoreVersion == null ? "" : mediaStoreVersion);
+            out.writeLong(generation);
+            out.writeInt(tracks.size());
+            for (int row = 0; row < tracks.size(); row++) {
+                Audio audio = tracks.get(row);
+                out.writeLong(tracks.getKey(row));
+                writeString(out, nonNull(audio.getData()));
+                writeString(out, nonNull(audio.getTitle()));
+                writeString(out, nonNull(audio.getAlbum()));
+                writeString(out, nonNull(audio.getArtist()));
+                out.writeLong(audio.getAlbumId() == null ? 0 : audio.getAlbumId());
+                writeString(out, nonNull(audio.getAlbumArtist()));
+                out.writeInt(audio.getTrackNumber());
+                out.writeInt(audio.getDiscNumber());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file))
+            tmp.delete();
+    }
+
+    /**
+     * Adds or replaces a track
+     * @param id MediaStore row ID
+     * @param audio track
+     */
+    public void put(long id, Audio audio) {
+        tracks.put(id, audio);
+        titleOrder = null;
+    }
+
+    /**
+     * Removes a track
+     * @param id MediaStore row ID
+     * @return true if the track was in the index
+     */
+    public boolean remove(long id) {
+        if (!tracks.remove(id))
+            return false;
+        titleOrder = null;
+        return true;
+    }
+
+    /**
+     * Drops every track, used when a full rescan is required
+     */
+    public void clear() {
+        tracks.clear();
+        generation = 0;
+        titleOrder = null;
+    }
+
+    public int size() {
+        return tracks.size();
+    }
+
+    /**
+     * gets the highest MediaStore row ID in the index
+     * @return highest ID, -1 if the index is empty
+     */
+    public long getMaxId() {
+        long max = -1;
+        for (int row = 0; row < tracks.size(); row++) {
+            max = Math.max(max, tracks.getKey(row));
+        }
+        return max;
+    }
+
+    /**
+     * gets the MediaStore row ID of a track
+     * @param row row in [0, size()), rows change order when tracks are removed
+     * @return row ID
+     */
+    public long getId(int row) {
+        return tracks.getKey(row);
+    }
+
+    /**
+     * gets a track by its ID
+     * @param id MediaStore row ID
+     * @return track built from the index, or null if it is not in the index
+     */
+    public Audio getById(long id) {
+        int row = tracks.indexOf(id);
+        return row < 0 ? null : tracks.get(row);
+    }
+
+    /**
+     * gets a track
+     * @param row row in [0, size())
+     * @return track built from the index, not retained by it
+     */
+    public Audio get(int row) {
+        return tracks.get(row);
+    }
+
+    /**
+     * gets the tracks sorted by title, the ordering the MediaStore query used;
+     * tracks are built as they are read
+     * @return view that is valid until the index next changes
+     */
+    public List<Audio> snapshot() {
+        if (titleOrder == null) {
+            Integer[] rows = new Integer[tracks.size()];
+            // decoded once for the sort, not per comparison
+            final String[] titles = new String[rows.length];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = row;
+                titles[row] = tracks.getTitle(row) == null ? "" : tracks.getTitle(row);
+            }
+            Arrays.sort(rows, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return titles[a].compareToIgnoreCase(titles[b]);
+                }
+            });
+            titleOrder = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                titleOrder[i] = rows[i];
+            }
+        }
+        return tracks.view(titleOrder);
+    }
+
+    public String getMediaStoreVersion() {
+        return mediaStoreVersion;
+    }
+
+    public void setMediaStoreVersion(String mediaStoreVersion) {
+        this.mediaStoreVersion = mediaStoreVersion;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes, without writeUTF's 64 KiB limit
+     */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES)
+            throw new IOException("bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String nonNull(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.droidpod;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Process-wide owner of the library. It runs the {@link LibrarySync} and hands out
+ * immutable, versioned snapshots of what it publishes, so activities and the player
+ * service share one copy in memory and a recreated activity shows the library without
+ * reading it again. Snapshots stay valid after newer ones are published.
+ */
+public class LibraryRepository {
+
+    /**
+     * One published state of the library
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final PagedAudioList pages;
+        private final List<Audio> tracks;
+        private final LibrarySync.Changes changes;
+
+        Snapshot(long version, PagedAudioList pages, LibrarySync.Changes changes) {
+            this.version = version;
+            this.pages = pages;
+            this.tracks = Collections.unmodifiableList(pages);
+            this.changes = changes;
+        }
+
+        /**
+         * gets the version, increasing with every publish within the process
+         * @return version, at least 1
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * gets the tracks sorted by title
+         * @return read-only tracks
+         */
+        public List<Audio> getTracks() {
+            return tracks;
+        }
+
+        /**
+         * gets the paged window the tracks are read through, e.g. to keep the rows on
+         * screen while the list is diffed
+         * @return paged window behind {@link #getTracks()}
+         */
+        public PagedAudioList getPages() {
+            return pages;
+        }
+
+        /**
+         * gets the tracks that changed since the snapshot of the previous version
+         * @return changes, null if they are unknown and the whole library may differ
+         */
+        public LibrarySync.Changes getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * Receives snapshots on the main thread
+     */
+    public interface Listener {
+        void onLibraryChanged(Snapshot snapshot);
+    }
+
+    private static LibraryRepository instance;
+
+    /**
+     * gets the repository, creating it on first use; the sync starts with {@link #start()}
+     * @param context context
+     * @return process-wide repository
+     */
+    public static synchronized LibraryRepository get(Context context) {
+        if (instance == null)
+            instance = new LibraryRepository(context.getApplicationContext());
+        return instance;
+    }
+
+    private final LibrarySync sync;
+    // main thread only
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    private boolean started;
+    // written on the main thread, read from any
+    private volatile Snapshot snapshot;
+    // snapshot handed to the player service, kept until it takes it; guarded by this
+    private Snapshot handedOver;
+
+    private LibraryRepository(Context context) {
+        sync = new LibrarySync(context, new LibrarySync.Listener() {
+            @Override
+            public void onLibraryLoaded(PagedAudioList audioList, LibrarySync.Changes changes) {
+                publish(audioList, changes);
+            }
+        });
+    }
+
+    /**
+     * Starts syncing with MediaStore, once per process; the sync runs for as long as the process
+     */
+    public synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        sync.start();
+    }
+
+    /**
+     * gets the latest snapshot
+     * @return snapshot, or null if none was published yet
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Keeps a snapshot for the player service to take, even if newer ones are
+     * published in between
+     * @param snapshot snapshot the user played from
+     */
+    public synchronized void handOver(Snapshot snapshot) {
+        handedOver = snapshot;
+    }
+
+    /**
+     * Takes the snapshot of a version that was handed over, or is the latest
+     * @param version version of the snapshot
+     * @return snapshot, or null if the version is neither handed over nor the latest
+     */
+    public synchronized Snapshot take(long version) {
+        Snapshot taken = handedOver;
+        if (taken != null && taken.getVersion() == version) {
+            handedOver = null;
+            return taken;
+        }
+        taken = snapshot;
+        return taken != null && taken.getVersion() == version ? taken : null;
+    }
+
+    /**
+     * Registers a listener on the main thread; it is called right away with the
+     * latest snapshot if there is one
+     * @param listener listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        Snapshot current = snapshot;
+        if (current != null)
+            listener.onLibraryChanged(current);
+    }
+
+    /**
+     * Unregisters a listener, on the main thread
+     * @param listener listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * gets the search index, kept up to date with the library on the sync thread
+     * @return search index over title, artist and album
+     */
+    public SearchIndex getSearchIndex() {
+        return sync.getSearchIndex();
+    }
+
+    /**
+     * Schedules a sync, e.g. after storage permission has been granted
+     */
+    public void requestSync() {
+        sync.requestSync();
+    }
+
+    /**
+     * Sets whether the files' tags are read
+     * @param mode LibrarySync.TAG_SCAN_OFF, TAG_SCAN_ENRICH or TAG_SCAN_REPLACE
+     */
+    public void setTagScanMode(int mode) {
+        sync.setTagScanMode(mode);
+    }
+
+    private void publish(PagedAudioList tracks, LibrarySync.Changes changes) {
+        Snapshot published = next(snapshot, tracks, changes);
+        snapshot = published;
+        for (Listener listener : new ArrayList<>(listeners)) {
+            listener.onLibraryChanged(published);
+        }
+    }
+
+    /**
+     * Builds the snapshot that follows another
+     * @param previous latest snapshot, null before the first publish
+     * @param tracks tracks the sync loaded
+     * @param changes tracks changed since the previous snapshot, null if unknown
+     * @return snapshot with the next version
+     */
+    static Snapshot next(Snapshot previous, PagedAudioList tracks, LibrarySync.Changes changes) {
+        return new Snapshot(previous == null ? 1 : previous.getVersion() + 1, tracks, changes);
+    }
+}
@@ -0,0 +1,540 @@
+package com.example.droidpod;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Keeps the persisted {@link LibraryIndex} in step with MediaStore on a background thread.
+ * On API 30+ only rows whose GENERATION_MODIFIED is newer than the last sync are read,
+ * older devices and MediaStore version changes fall back to a full rescan.
+ * Optionally the files' own tags, read by {@link TagScanner}, enrich the MediaStore
+ * rows, or a directory scan replaces MediaStore altogether.
+ */
+public class LibrarySync {
+
+    private static final String TAG = "LibrarySync";
+    private static final String SNAPSHOT_FILE = "library-snapshot.bin";
+
+    public static final int TAG_SCAN_OFF = 0;
+    // MediaStore rows, with fields the files' tags carry taken from the tags
+    public static final int TAG_SCAN_ENRICH = 1;
+    // the Music directory is scanned instead of querying MediaStore
+    public static final int TAG_SCAN_REPLACE = 2;
+    // stored in place of the MediaStore version, so changing the mode forces a rescan
+    private static final String TAGGED_VERSION_SUFFIX = "+tags";
+    private static final String DIRECTORY_SCAN_VERSION = "directory-scan";
+
+    // coalesce the bursts of change notifications MediaStore sends while scanning
+    private static final long SYNC_DELAY_MS = 500;
+
+    private static final Uri AUDIO_URI = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+    private static final String MUSIC_SELECTION = MediaStore.Audio.Media.IS_MUSIC + " != 0";
+    // IDs per query when looking for deleted rows
+    private static final int ID_BATCH = 2000;
+    // column order is what AudioCursorMapper reads
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.IS_MUSIC,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM_ID
+    };
+
+    /**
+     * Receives library snapshots on the main thread, as paged windows over a
+     * memory-mapped copy of the sorted library
+     */
+    public interface Listener {
+        /**
+         * @param audioList sorted library
+         * @param changes tracks changed since the previous snapshot, null if the
+         *                library was rebuilt or loaded from disk
+         */
+        void onLibraryLoaded(PagedAudioList audioList, Changes changes);
+    }
+
+    /**
+     * Tracks added, changed or removed between two published snapshots, by file path
+     */
+    public static final class Changes {
+        private final HashMap<String, Audio> tracks = new HashMap<>();
+
+        /**
+         * gets the changed paths, each with its track as it is now
+         * @return track by path, null for paths no longer in the library
+         */
+        public Map<String, Audio> getTracks() {
+            return Collections.unmodifiableMap(tracks);
+        }
+
+        void removed(Audio audio) {
+            if (audio != null && audio.getData() != null && !tracks.containsKey(audio.getData()))
+                tracks.put(audio.getData(), null);
+        }
+
+        void put(Audio audio) {
+            if (audio.getData() != null)
+                tracks.put(audio.getData(), audio);
+        }
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final LibraryIndex index;
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // IDs reported deleted by the observer since the last sync; touched on the sync thread only
+    private final HashSet<Long> pendingDeletes = new HashSet<>();
+    // rows waiting for their tags before they are indexed, in TAG_SCAN_ENRICH mode; a
+    // rescan puts the whole library here, so it is columnar rather than a map of tracks
+    private final TrackTable untagged = new TrackTable();
+    // changes since the last publish, null once the library was rebuilt
+    private Changes changes;
+    private int tagScanMode;
+    private ForkJoinPool tagPool;
+    private TagScanner tagScanner;
+
+    private HandlerThread syncThread;
+    private Handler syncHandler;
+    private ContentObserver observer;
+
+    public LibrarySync(Context context, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        this.index = new LibraryIndex(this.context);
+    }
+
+    /**
+     * Publishes the persisted index, then syncs it and watches MediaStore for changes
+     */
+    public void start() {
+        syncThread = new HandlerThread(TAG);
+        syncThread.start();
+        syncHandler = new Handler(syncThread.getLooper());
+
+        syncHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                index.load();
+                for (int row = 0; row < index.size(); row++) {
+                    searchIndex.put(index.getId(row), index.get(row));
+                }
+                searchIndex.compact();
+                if (index.size() > 0)
+                    publish();
+                sync();
+            }
+        });
+
+        observer = new ContentObserver(syncHandler) {
+            @Override
+            public void onChange(boolean selfChange, Collection<Uri> uris, int flags) {
+                if ((flags & ContentResolver.NOTIFY_DELETE) != 0) {
+                    for (Uri uri : uris) {
+                        try {
+                            pendingDeletes.add(ContentUris.parseId(uri));
+                        } catch (NumberFormatException | UnsupportedOperationException ignored) { }
+                    }
+                }
+                requestSync();
+            }
+
+            @Override
+            public void onChange(boolean selfChange) {
+                requestSync();
+            }
+        };
+        context.getContentResolver().registerContentObserver(AUDIO_URI, true, observer);
+    }
+
+    /**
+     * Stops watching MediaStore and shuts down the sync thread
+     */
+    public void stop() {
+        if (observer != null) {
+            context.getContentResolver().unregisterContentObserver(observer);
+            observer = null;
+        }
+        if (syncThread != null) {
+            syncThread.quitSafely();
+            syncThread = null;
+        }
+        if (tagPool != null) {
+            tagPool.shutdown();
+            tagPool = null;
+        }
+    }
+
+    /**
+     * gets the search index, kept up to date with the library on the sync thread
+     * @return search index over title, artist and album
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Sets whether the files' tags are read, persisted for later sessions; the library
+     * is rebuilt in the new mode by the next sync
+     * @param mode TAG_SCAN_OFF, TAG_SCAN_ENRICH or TAG_SCAN_REPLACE
+     */
+    public void setTagScanMode(int mode) {
+        new StorageService(context).storeTagScanMode(mode);
+        requestSync();
+    }
+
+    /**
+     * Schedules a sync, e.g. after storage permission has been granted
+     */
+    public void requestSync() {
+        if (syncHandler == null)
+            return;
+        syncHandler.removeCallbacks(syncRunnable);
+        syncHandler.postDelayed(syncRunnable, SYNC_DELAY_MS);
+    }
+
+    private final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    /**
+     * Brings the index up to date and publishes it if anything changed
+     */
+    private void sync() {
+        boolean changed;
+        tagScanMode = new StorageService(context).loadTagScanMode();
+        try {
+            String version = MediaStore.getVersion(context)
+                    + (tagScanMode == TAG_SCAN_ENRICH ? TAGGED_VERSION_SUFFIX : "");
+            if (tagScanMode == TAG_SCAN_REPLACE) {
+                changed = scanDirectories();
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    && version.equals(index.getMediaStoreVersion()) && index.getGeneration() > 0) {
+                changed = applyDelta();
+            } else {
+                changed = rescan(version);
+            }
+        } catch (SecurityException e) {
+            // storage permission not granted yet
+            Log.d(TAG, "library sync skipped: " + e.getMessage());
+            return;
+        }
+
+        if (changed) {
+            index.save();
+            publish();
+        } else if (index.size() == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Reads every row; used on first run, pre-R devices and MediaStore version changes
+     * @param version current MediaStore version
+     * @return true if the index was rebuilt
+     */
+    private boolean rescan(String version) {
+        // read the generation first so rows changed mid-scan are picked up by the next delta
+        long generation = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL) : 0;
+        Cursor cursor = context.getContentResolver().query(AUDIO_URI, PROJECTION, MUSIC_SELECTION,
+                null, null);
+        if (cursor == null)
+            return false;
+
+        index.clear();
+        searchIndex.clear();
+        changes = null;
+        try {
+            while (cursor.moveToNext()) {
+                putTrack(cursor.getLong(AudioCursorMapper.COLUMN_ID), AudioCursorMapper.fromRow(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        applyTags();
+        searchIndex.compact();
+        pendingDeletes.clear();
+        index.setMediaStoreVersion(version);
+        index.setGeneration(generation);
+        return true;
+    }
+
+    /**
+     * Applies only rows modified since the stored generation, plus deletions
+     * @return true if the index changed
+     */
+    private boolean applyDelta() {
+        long generation = MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL);
+        boolean changed = false;
+
+        if (generation != index.getGeneration()) {
+            // includes rows that stopped being music, so they can be dropped
+            String selection = MediaStore.MediaColumns.GENERATION_MODIFIED + " > ?";
+            String[] args = {String.valueOf(index.getGeneration())};
+            Cursor cursor = context.getContentResolver().query(AUDIO_URI, PROJECTION, selection,
+                    args, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext()) {
+                        long id = cursor.getLong(AudioCursorMapper.COLUMN_ID);
+                        if (cursor.getInt(AudioCursorMapper.COLUMN_IS_MUSIC) != 0)
+                            putTrack(id, AudioCursorMapper.fromRow(cursor));
+                        else
+                            removeTrack(id);
+                        changed = true;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            index.setGeneration(generation);
+        }
+
+        for (Long id : pendingDeletes) {
+            changed |= removeTrack(id);
+        }
+        pendingDeletes.clear();
+        applyTags();
+
+        changed |= reconcileDeletes();
+        return changed;
+    }
+
+    /**
+     * Deletions do not bump a generation, so compare the row count and highest ID
+     * with the index and only walk the ID column when they disagree. IDs are then
+     * read in batches in ID order, so no single cursor has to hold the whole column.
+     * @return true if stale IDs were removed
+     */
+    private boolean reconcileDeletes() {
+        String[] idOnly = {MediaStore.Audio.Media._ID};
+        if (matchesIndex(idOnly))
+            return false;
+
+        HashSet<Long> live = new HashSet<>(index.size() * 2);
+        long after = -1;
+        while (true) {
+            Bundle args = new Bundle();
+            args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                    MUSIC_SELECTION + " AND " + MediaStore.Audio.Media._ID + " > ?");
+            args.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    new String[]{String.valueOf(after)});
+            args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, MediaStore.Audio.Media._ID);
+            args.putInt(ContentResolver.QUERY_ARG_LIMIT, ID_BATCH);
+            Cursor cursor = context.getContentResolver().query(AUDIO_URI, idOnly, args, null);
+            if (cursor == null)
+                return false;
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    after = cursor.getLong(0);
+                    live.add(after);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count < ID_BATCH)
+                break;
+        }
+
+        ArrayList<Long> stale = new ArrayList<>();
+        for (int row = 0; row < index.size(); row++) {
+            if (!live.contains(index.getId(row)))
+                stale.add(index.getId(row));
+        }
+        for (Long id : stale) {
+            removeTrack(id);
+        }
+        return !stale.isEmpty();
+    }
+
+    /**
+     * Checks whether MediaStore holds as many music rows as the index, with the same
+     * highest ID, reading one row
+     * @param idOnly ID projection
+     * @return true if nothing can have been deleted
+     */
+    private boolean matchesIndex(String[] idOnly) {
+        Bundle args = new Bundle();
+        args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, MUSIC_SELECTION);
+        args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, MediaStore.Audio.Media._ID + " DESC");
+        args.putInt(ContentResolver.QUERY_ARG_LIMIT, 1);
+        Cursor cursor = context.getContentResolver().query(AUDIO_URI, idOnly, args, null);
+        if (cursor == null)
+            return true;
+        try {
+            int count = cursor.getExtras().getInt(ContentResolver.EXTRA_TOTAL_COUNT, -1);
+            long maxId = cursor.moveToFirst() ? cursor.getLong(0) : -1;
+            if (count < 0)
+                count = countMusicRows(idOnly);
+            return count == index.size() && maxId == index.getMaxId();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Counts music rows for providers that do not report a total with limited queries
+     */
+    private int countMusicRows(String[] idOnly) {
+        Cursor cursor = context.getContentResolver().query(AUDIO_URI, idOnly, MUSIC_SELECTION,
+                null, null);
+        if (cursor == null)
+            return index.size();
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds the library from the audio files under the Music directory and their tags
+     * @return true, the index is always rebuilt
+     */
+    private boolean scanDirectories() {
+        long start = SystemClock.elapsedRealtime();
+        File music = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC);
+        Map<String, TrackTags> files = tagScanner().scan(Collections.singletonList(music));
+
+        index.clear();
+        searchIndex.clear();
+        changes = null;
+        for (Map.Entry<String, TrackTags> file : files.entrySet()) {
+            String path = file.getKey();
+            String name = new File(path).getName();
+            int dot = name.lastIndexOf('.');
+            Audio audio = new Audio(path, dot > 0 ? name.substring(0, dot) : name, null, null, null);
+            file.getValue().applyTo(audio);
+            putTrack(pathId(path), audio);
+        }
+        searchIndex.compact();
+        pendingDeletes.clear();
+        index.setMediaStoreVersion(DIRECTORY_SCAN_VERSION);
+        index.setGeneration(0);
+        Log.d(TAG, "scanned " + files.size() + " files in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Reads the tags of the rows collected since the last call and indexes them
+     */
+    private void applyTags() {
+        if (untagged.size() == 0)
+            return;
+        ArrayList<String> paths = new ArrayList<>(untagged.size());
+        for (int row = 0; row < untagged.size(); row++) {
+            if (untagged.getData(row) != null)
+                paths.add(untagged.getData(row));
+        }
+        Map<String, TrackTags> tags = tagScanner().read(paths);
+        for (int row = 0; row < untagged.size(); row++) {
+            long id = untagged.getKey(row);
+            Audio audio = untagged.get(row);
+            TrackTags trackTags = audio.getData() != null ? tags.get(audio.getData()) : null;
+            if (trackTags != null)
+                trackTags.applyTo(audio);
+            indexTrack(id, audio);
+        }
+        untagged.clear();
+    }
+
+    private TagScanner tagScanner() {
+        if (tagScanner == null) {
+            tagPool = BackgroundPool.create("TagScanner");
+            tagScanner = new TagScanner(tagPool);
+        }
+        return tagScanner;
+    }
+
+    /**
+     * Stable ID of a file found by a directory scan, negative so it never equals a MediaStore ID
+     */
+    private static long pathId(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash = (hash ^ path.charAt(i)) * 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+
+    private void putTrack(long id, Audio audio) {
+        if (tagScanMode == TAG_SCAN_ENRICH) {
+            // indexed by applyTags() once the tags are read
+            untagged.put(id, audio);
+            return;
+        }
+        indexTrack(id, audio);
+    }
+
+    private void indexTrack(long id, Audio audio) {
+        if (changes != null) {
+            changes.removed(index.getById(id));
+            changes.put(audio);
+        }
+        index.put(id, audio);
+        searchIndex.put(id, audio);
+    }
+
+    private boolean removeTrack(long id) {
+        untagged.remove(id);
+        searchIndex.remove(id);
+        if (changes != null)
+            changes.removed(index.getById(id));
+        return index.remove(id);
+    }
+
+    /**
+     * Writes the sorted library to a snapshot file and hands the UI a paged window over it.
+     * The file is replaced by rename, so windows over older snapshots stay readable.
+     */
+    private void publish() {
+        File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        final PagedAudioList snapshot;
+        try {
+            PlaylistFile.write(file, index.snapshot());
+            snapshot = new PagedAudioList(PlaylistFile.open(file, false));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        final Changes published = changes;
+        changes = new Changes();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onLibraryLoaded(snapshot, published);
+            }
+        });
+    }
+}
@@ -0,0 +1,370 @@
+package com.example.droidpod;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures the loudness of library tracks in the background, decoding files in
+ * parallel on a fork-join pool of background priority threads. Only files that are
+ * new or changed since the last run are decoded, and only the tracks the library sync
+ * reports as changed are looked at, the whole library once per process or when the
+ * changes are unknown. Album values are recomputed from the per-track results of the
+ * albums that changed. Results go to the process-wide {@link LoudnessCache}.
+ */
+public class LoudnessAnalyzer {
+
+    private static final String TAG = "LoudnessAnalyzer";
+    private static final String CACHE_FILE = "loudness.bin";
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private static LoudnessCache cache;
+
+    // what the cache still has to be checked against, merged from every published
+    // snapshot by the analyzers of the process; guarded by LoudnessAnalyzer.class
+    private static long mergedVersion;
+    private static boolean checkAll = true;
+    // changed paths, with their tracks as they are now or null if removed
+    private static final HashMap<String, Audio> unchecked = new HashMap<>();
+
+    /**
+     * gets the loudness cache shared by the analyzer and the player, reading it on first use
+     * @param context context
+     * @return loaded cache
+     */
+    public static synchronized LoudnessCache cache(Context context) {
+        if (cache == null) {
+            cache = new LoudnessCache(new File(context.getApplicationContext().getFilesDir(), CACHE_FILE));
+            cache.load();
+        }
+        return cache;
+    }
+
+    private final Context context;
+    private HandlerThread thread;
+    private Handler handler;
+    private ForkJoinPool pool;
+    // bumped for each run, running tasks of an older run stop early
+    private volatile int run;
+
+    public LoudnessAnalyzer(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Analyzes the tracks of a library snapshot not yet in the cache, replacing a run
+     * in progress; does nothing if the cache is up to date with the snapshot
+     * @param library library snapshot
+     */
+    public void analyze(LibraryRepository.Snapshot library) {
+        if (!merge(library))
+            return;
+        if (thread == null) {
+            thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            pool = BackgroundPool.create(TAG);
+        }
+        final int current = ++run;
+        final List<Audio> tracks = library.getTracks();
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                analyzeLibrary(tracks, current);
+            }
+        });
+    }
+
+    /**
+     * Adds the changes of a snapshot to what is left to check. A snapshot that does
+     * not follow the last merged one, or has no changes, means the whole library.
+     * @param library published snapshot
+     * @return true if anything is left to check
+     */
+    private static synchronized boolean merge(LibraryRepository.Snapshot library) {
+        if (library.getVersion() < mergedVersion)
+            return false;
+        if (library.getVersion() > mergedVersion) {
+            LibrarySync.Changes changes = library.getChanges();
+            if (changes == null || library.getVersion() != mergedVersion + 1) {
+                checkAll = true;
+                unchecked.clear();
+            } else if (!checkAll) {
+                unchecked.putAll(changes.getTracks());
+            }
+            mergedVersion = library.getVersion();
+        }
+        return checkAll || !unchecked.isEmpty();
+    }
+
+    /**
+     * Cancels the current run and shuts the threads down
+     */
+    public void stop() {
+        run++;
+        if (thread != null) {
+            pool.shutdownNow();
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+
+    private void analyzeLibrary(List<Audio> library, int current) {
+        if (current != run)
+            return;
+        long version;
+        boolean all;
+        // album ID of each track to check, by path
+        HashMap<String, Long> tracks = new HashMap<>();
+        ArrayList<String> removed = new ArrayList<>();
+        synchronized (LoudnessAnalyzer.class) {
+            version = mergedVersion;
+            all = checkAll;
+            for (Map.Entry<String, Audio> track : unchecked.entrySet()) {
+                if (track.getValue() == null)
+                    removed.add(track.getKey());
+                else
+                    tracks.put(track.getKey(), track.getValue().getAlbumId());
+            }
+        }
+        if (all) {
+            for (Audio audio : library) {
+                String path = audio.getData();
+                if (path != null && !tracks.containsKey(path))
+                    tracks.put(path, audio.getAlbumId());
+            }
+        }
+
+        LoudnessCache cache = cache(context);
+        // albums whose values have to be recomputed
+        HashSet<Long> albums = new HashSet<>();
+        boolean changed = false;
+        for (String path : removed) {
+            LoudnessCache.Entry entry = cache.remove(path);
+            if (entry != null) {
+                changed = true;
+                albums.add(entry.getAlbumId());
+            }
+        }
+        ArrayList<String> pending = new ArrayList<>();
+        for (Map.Entry<String, Long> track : tracks.entrySet()) {
+            String path = track.getKey();
+            Long albumId = track.getValue();
+            File file = new File(path);
+            LoudnessCache.Entry entry = cache.getIfCurrent(path, file.length(), file.lastModified());
+            if (entry == null) {
+                LoudnessCache.Entry stale = cache.get(path);
+                if (stale != null)
+                    albums.add(stale.getAlbumId());
+                albums.add(albumId);
+                pending.add(path);
+            } else if (!Objects.equals(entry.getAlbumId(), albumId)) {
+                albums.add(entry.getAlbumId());
+                albums.add(albumId);
+                cache.setAlbumId(path, albumId);
+                changed = true;
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            long start = System.nanoTime();
+            pool.invoke(new AnalyzeTask(pending, 0, pending.size(), current));
+            Log.d(TAG, "analyzed " + pending.size() + " tracks in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+            for (String path : pending) {
+                cache.setAlbumId(path, tracks.get(path));
+            }
+            changed = true;
+        }
+        if (current != run)
+            return;
+        if (all)
+            changed |= cache.retainAll(tracks.keySet());
+
+        if (changed) {
+            // entries dropped by a full check leave no album behind, so it recomputes all
+            HashMap<Long, ArrayList<String>> members = cache.albumTracks(all ? null : albums);
+            for (ArrayList<String> album : members.values()) {
+                updateAlbum(cache, album);
+            }
+            cache.save();
+        }
+        checked(version);
+    }
+
+    /**
+     * Clears what is left to check after a run that finished, unless a newer snapshot
+     * was merged meanwhile; its own run checks again
+     * @param version last merged version when the run started
+     */
+    private static synchronized void checked(long version) {
+        if (version != mergedVersion)
+            return;
+        checkAll = false;
+        unchecked.clear();
+    }
+
+    /**
+     * Sets every track of an album to the album's loudness and peak
+     */
+    private static void updateAlbum(LoudnessCache cache, ArrayList<String> tracks) {
+        int count = tracks.size();
+        float[] loudness = new float[count];
+        int[] blocks = new int[count];
+        float peak = 0;
+        for (int i = 0; i < count; i++) {
+            LoudnessCache.Entry entry = cache.get(tracks.get(i));
+            if (entry == null)
+                continue;
+            loudness[i] = entry.getLoudness();
+            blocks[i] = entry.getBlocks();
+            peak = Math.max(peak, entry.getPeak());
+        }
+        float albumLoudness = LoudnessMeter.albumLoudness(loudness, blocks, count);
+        for (String path : tracks) {
+            cache.setAlbum(path, albumLoudness, peak);
+        }
+    }
+
+    /**
+     * Splits a range of files in halves until single files are left
+     */
+    private class AnalyzeTask extends RecursiveAction {
+        private final List<String> paths;
+        private final int from;
+        private final int to;
+        private final int current;
+
+        AnalyzeTask(List<String> paths, int from, int to, int current) {
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+            this.current = current;
+        }
+
+        @Override
+        protected void compute() {
+            if (current != run)
+                return;
+            if (to - from == 1) {
+                String path = paths.get(from);
+                File file = new File(path);
+                long size = file.length();
+                long modified = file.lastModified();
+                LoudnessMeter meter = measure(path, current);
+                if (current != run)
+                    return;
+                if (meter == null) {
+                    // failures may be transient, e.g. no codec instance free, so nothing is
+                    // cached and the file is retried by the next run; a stale result goes
+                    cache(context).remove(path);
+                    return;
+                }
+                cache(context).put(path, new LoudnessCache.Entry(size, modified, meter.getLoudness(),
+                        meter.getPeak(), meter.getGatedBlocks()));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new AnalyzeTask(paths, from, mid, current), new AnalyzeTask(paths, mid, to, current));
+        }
+    }
+
+    /**
+     * Decodes a file and measures it
+     * @param path file path
+     * @param current run the file belongs to
+     * @return meter over the whole file, or null if it could not be decoded or the run was cancelled
+     */
+    private LoudnessMeter measure(String path, int current) {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(path);
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat candidate = extractor.getTrackFormat(i);
+                String mime = candidate.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = candidate;
+                    break;
+                }
+            }
+            if (format == null)
+                return null;
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            if (channels > DspChain.MAX_CHANNELS)
+                return null;
+            LoudnessMeter meter = new LoudnessMeter(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), channels);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            while (true) {
+                if (current != run || Thread.currentThread().isInterrupted())
+                    return null;
+                if (!inputDone) {
+                    int in = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (in >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(in), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(in, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int out = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat output = codec.getOutputFormat();
+                    if (output.containsKey(MediaFormat.KEY_PCM_ENCODING)
+                            && output.getInteger(MediaFormat.KEY_PCM_ENCODING) != AudioFormat.ENCODING_PCM_16BIT)
+                        return null;
+                    meter = new LoudnessMeter(output.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            output.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                    channels = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (out >= 0) {
+                    ByteBuffer pcm = codec.getOutputBuffer(out);
+                    pcm.position(info.offset);
+                    pcm.limit(info.offset + info.size);
+                    meter.process(pcm.slice().order(ByteOrder.nativeOrder()).asShortBuffer(),
+                            info.size / (2 * channels));
+                    codec.releaseOutputBuffer(out, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        return meter;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "cannot analyze " + path + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (codec != null)
+                codec.release();
+            extractor.release();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.example.droidpod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loudness analysis results by file path, valid while the file's size and mtime match.
+ * Held in memory so gain lookups at track start cost no I/O; persisted as one
+ * compact binary file rewritten after each analysis run that changed it.
+ */
+public class LoudnessCache {
+
+    private static final int MAGIC = 0x64504c43; // "dPLC"
+    // 2: failed analyses are no longer stored, version 1 files may hold them as silence
+    // 3: album IDs are stored; version 2 files are read with unknown albums
+    private static final int FORMAT_VERSION = 3;
+    private static final long NO_ALBUM_ID = Long.MIN_VALUE;
+
+    /**
+     * Analysis result of one file
+     */
+    public static class Entry {
+        final long size;
+        final long modified;
+        final float loudness;
+        final float peak;
+        final int blocks;
+        float albumLoudness;
+        float albumPeak;
+        Long albumId;
+
+        /**
+         * @param size file size the analysis was made for
+         * @param modified file mtime the analysis was made for
+         * @param loudness integrated loudness in LUFS
+         * @param peak sample peak
+         * @param blocks gated 400 ms blocks, 0 if nothing passed the gate
+         */
+        public Entry(long size, long modified, float loudness, float peak, int blocks) {
+            this.size = size;
+            this.modified = modified;
+            this.loudness = loudness;
+            this.peak = peak;
+            this.blocks = blocks;
+            albumLoudness = loudness;
+            albumPeak = peak;
+        }
+
+        public float getLoudness() {
+            return loudness;
+        }
+
+        public float getPeak() {
+            return peak;
+        }
+
+        public int getBlocks() {
+            return blocks;
+        }
+
+        public float getAlbumLoudness() {
+            return albumLoudness;
+        }
+
+        public float getAlbumPeak() {
+            return albumPeak;
+        }
+
+        /**
+         * @return album ID of the track, null if it has none or it is not known yet
+         */
+        public Long getAlbumId() {
+            return albumId;
+        }
+    }
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    public LoudnessCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the cache file, replacing the entries in memory
+     */
+    public synchronized void load() {
+        entries.clear();
+        if (!file.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                return;
+            int version = in.readInt();
+            if (version != FORMAT_VERSION && version != 2)
+                return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readFloat(), in.readFloat(), in.readInt());
+                entry.albumLoudness = in.readFloat();
+                entry.albumPeak = in.readFloat();
+                if (version >= 3) {
+                    long albumId = in.readLong();
+                    entry.albumId = albumId == NO_ALBUM_ID ? null : albumId;
+                }
+                entries.put(path, entry);
+            }
+        } catch (IOException e) {
+            // a damaged cache only costs a re-analysis
+            entries.clear();
+        }
+    }
+
+    /**
+     * Writes all entries to a temporary file and renames it over the cache
+     */
+    public synchronized void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeFloat(entry.loudness);
+                    out.writeFloat(entry.peak);
+                    out.writeInt(entry.blocks);
+                    out.writeFloat(entry.albumLoudness);
+                    out.writeFloat(entry.albumPeak);
+                    out.writeLong(entry.albumId == null ? NO_ALBUM_ID : entry.albumId);
+                }
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    public synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * gets the entry of a file if it was analyzed in its current state
+     * @param path file path
+     * @param size current file size
+     * @param modified current file mtime
+     * @return entry, or null if the file is new or changed
+     */
+    public synchronized Entry getIfCurrent(String path, long size, long modified) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.size == size && entry.modified == modified ? entry : null;
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        entries.put(path, entry);
+    }
+
+    /**
+     * @param path file path
+     * @return removed entry, null if there was none
+     */
+    public synchronized Entry remove(String path) {
+        return entries.remove(path);
+    }
+
+    /**
+     * Sets the album a track's entry belongs to
+     * @param path file path
+     * @param albumId album ID, null for none
+     */
+    public synchronized void setAlbumId(String path, Long albumId) {
+        Entry entry = entries.get(path);
+        if (entry != null)
+            entry.albumId = albumId;
+    }
+
+    /**
+     * Groups the paths of the entries by album, without reading the library
+     * @param albumIds albums to collect, null for all
+     * @return paths by album ID
+     */
+    public synchronized HashMap<Long, ArrayList<String>> albumTracks(Set<Long> albumIds) {
+        HashMap<Long, ArrayList<String>> albums = new HashMap<>();
+        for (Map.Entry<String, Entry> item : entries.entrySet()) {
+            Long albumId = item.getValue().albumId;
+            if (albumId == null || albumIds != null && !albumIds.contains(albumId))
+                continue;
+            ArrayList<String> tracks = albums.get(albumId);
+            if (tracks == null)
+                albums.put(albumId, tracks = new ArrayList<>());
+            tracks.add(item.getKey());
+        }
+        return albums;
+    }
+
+    /**
+     * Sets the album values of a track's entry
+     * @param path file path
+     * @param loudness album loudness in LUFS
+     * @param peak album peak
+     */
+    public synchronized void setAlbum(String path, float loudness, float peak) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entry.albumLoudness = loudness;
+            entry.albumPeak = peak;
+        }
+    }
+
+    /**
+     * Drops the entries of files no longer in the library
+     * @param paths paths to keep
+     * @return true if any entry was dropped
+     */
+    public synchronized boolean retainAll(Collection<String> paths) {
+        Set<String> keep = paths instanceof Set ? (Set<String>) paths : new HashSet<>(paths);
+        return entries.keySet().retainAll(keep);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * gets the gain to play a file at, without touching the file
+     * @param path file path
+     * @param album true for album gain, false for track gain
+     * @return gain in dB, 0 if the file was not analyzed
+     */
+    public synchronized float gainDb(String path, boolean album) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.blocks == 0)
+            return 0f;
+        return album ? LoudnessMeter.gainDb(entry.albumLoudness, entry.albumPeak)
+                : LoudnessMeter.gainDb(entry.loudness, entry.peak);
+    }
+}
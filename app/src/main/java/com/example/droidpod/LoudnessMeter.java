@@ -0,0 +1,234 @@
+package com.example.droidpod;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Integrated loudness and sample peak of one track, per ITU-R BS.1770 / EBU R128:
+ * K-weighting, 400 ms blocks overlapping by 75%, an absolute gate at -70 LUFS and a
+ * relative gate 10 LU below the ungated level. ReplayGain 2.0 gains are the distance
+ * to -18 LUFS.
+ */
+public class LoudnessMeter {
+
+    public static final float REFERENCE_LUFS = -18f;
+    // reported for tracks with no block above the absolute gate
+    public static final float SILENCE_LUFS = -70f;
+
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final int SUB_BLOCKS = 4;
+    private static final int SCRATCH_SAMPLES = 4096;
+
+    private final int channels;
+    private final int subBlockFrames;
+    private final float[] weights;
+    private final Biquad shelf;
+    private final Biquad highPass;
+    private final float[] scratch;
+
+    private final double[] subEnergies = new double[SUB_BLOCKS];
+    private int subBlocks;
+    private int subFrames;
+    private double subEnergy;
+    private double[] blockEnergies = new double[1024];
+    private int blocks;
+    // blocks counted by the last energy() call
+    private int gatedBlocks;
+    private float peak;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param channels interleaved channels, at most DspChain.MAX_CHANNELS
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        this.channels = channels;
+        subBlockFrames = sampleRate / 10;
+        weights = new float[channels];
+        for (int c = 0; c < channels; c++) {
+            // surround channels of 5.1 count 1.41 times, LFE is not told apart
+            weights[c] = c >= 4 ? 1.41f : 1f;
+        }
+        shelf = new Biquad(channels);
+        highPass = new Biquad(channels);
+        setKWeighting(sampleRate);
+        scratch = new float[SCRATCH_SAMPLES - SCRATCH_SAMPLES % channels];
+    }
+
+    /**
+     * Derives the two K-weighting stages of BS.1770 for a sample rate, the standard
+     * gives their coefficients for 48 kHz only
+     */
+    private void setKWeighting(int sampleRate) {
+        // high shelf of about +4 dB, modelling the head
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / q + k * k;
+        shelf.setCoefficients((vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0,
+                (vh - vb * k / q + k * k) / a0, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+
+        // high-pass at 38 Hz
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        highPass.setCoefficients(1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+    }
+
+    /**
+     * Measures interleaved float samples within [-1, 1]; the input is not changed
+     * @param pcm samples
+     * @param offset index of the first sample
+     * @param frames number of frames
+     */
+    public void process(float[] pcm, int offset, int frames) {
+        int total = frames * channels;
+        for (int done = 0; done < total; done += scratch.length) {
+            int count = Math.min(scratch.length, total - done);
+            System.arraycopy(pcm, offset + done, scratch, 0, count);
+            measure(count / channels);
+        }
+    }
+
+    /**
+     * Measures interleaved 16-bit samples from the buffer's position, which is not changed
+     * @param pcm samples
+     * @param frames number of frames
+     */
+    public void process(ShortBuffer pcm, int frames) {
+        int base = pcm.position();
+        int total = frames * channels;
+        for (int done = 0; done < total; done += scratch.length) {
+            int count = Math.min(scratch.length, total - done);
+            for (int j = 0; j < count; j++) {
+                scratch[j] = pcm.get(base + done + j) * (1f / 32768f);
+            }
+            measure(count / channels);
+        }
+    }
+
+    private void measure(int frames) {
+        int count = frames * channels;
+        for (int j = 0; j < count; j++) {
+            float a = Math.abs(scratch[j]);
+            if (a > peak)
+                peak = a;
+        }
+        shelf.process(scratch, 0, frames, channels);
+        highPass.process(scratch, 0, frames, channels);
+
+        for (int i = 0; i < count; i += channels) {
+            double e = 0;
+            for (int c = 0; c < channels; c++) {
+                float x = scratch[i + c];
+                e += weights[c] * x * x;
+            }
+            subEnergy += e;
+            if (++subFrames == subBlockFrames)
+                endSubBlock();
+        }
+    }
+
+    /**
+     * Closes a 100 ms step; each step completes a 400 ms block once four were seen
+     */
+    private void endSubBlock() {
+        subEnergies[subBlocks % SUB_BLOCKS] = subEnergy / subBlockFrames;
+        subBlocks++;
+        subEnergy = 0;
+        subFrames = 0;
+        if (subBlocks < SUB_BLOCKS)
+            return;
+        double block = 0;
+        for (double e : subEnergies) {
+            block += e;
+        }
+        if (blocks == blockEnergies.length)
+            blockEnergies = Arrays.copyOf(blockEnergies, blocks * 2);
+        blockEnergies[blocks++] = block / SUB_BLOCKS;
+    }
+
+    /**
+     * @return gated integrated loudness in LUFS, SILENCE_LUFS if nothing passed the gate
+     */
+    public float getLoudness() {
+        double absolute = energy(ABSOLUTE_GATE_LUFS);
+        if (gatedBlocks == 0)
+            return SILENCE_LUFS;
+        return (float) toLufs(energy(toLufs(absolute) + RELATIVE_GATE_LU));
+    }
+
+    /**
+     * @return number of blocks that passed both gates, the track's weight in an album
+     */
+    public int getGatedBlocks() {
+        getLoudness();
+        return gatedBlocks;
+    }
+
+    public float getPeak() {
+        return peak;
+    }
+
+    /**
+     * Mean energy of the blocks louder than a gate
+     */
+    private double energy(double gateLufs) {
+        double gate = fromLufs(gateLufs);
+        double sum = 0;
+        gatedBlocks = 0;
+        for (int i = 0; i < blocks; i++) {
+            if (blockEnergies[i] > gate) {
+                sum += blockEnergies[i];
+                gatedBlocks++;
+            }
+        }
+        return gatedBlocks == 0 ? 0 : sum / gatedBlocks;
+    }
+
+    static double toLufs(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    static double fromLufs(double lufs) {
+        return Math.pow(10, (lufs + 0.691) / 10);
+    }
+
+    /**
+     * Loudness of an album from its tracks' loudness, weighted by their gated blocks;
+     * close to gating all the album's blocks together
+     * @param loudness per-track loudness in LUFS
+     * @param blocks per-track gated block counts
+     * @param count number of tracks
+     * @return album loudness in LUFS
+     */
+    public static float albumLoudness(float[] loudness, int[] blocks, int count) {
+        double sum = 0;
+        long weight = 0;
+        for (int i = 0; i < count; i++) {
+            if (blocks[i] == 0)
+                continue;
+            sum += fromLufs(loudness[i]) * blocks[i];
+            weight += blocks[i];
+        }
+        return weight == 0 ? SILENCE_LUFS : (float) toLufs(sum / weight);
+    }
+
+    /**
+     * ReplayGain for a loudness, lowered if it would push the peak over full scale
+     * @param loudness loudness in LUFS
+     * @param peak sample peak, 1 at full scale
+     * @return gain in dB
+     */
+    public static float gainDb(float loudness, float peak) {
+        if (loudness <= SILENCE_LUFS)
+            return 0f;
+        float gain = REFERENCE_LUFS - loudness;
+        if (peak > 0) {
+            float headroom = (float) (-20 * Math.log10(peak));
+            gain = Math.min(gain, headroom);
+        }
+        return gain;
+    }
+}
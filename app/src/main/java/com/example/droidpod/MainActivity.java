@@ -3,38 +3,87 @@ package com.example.droidpod;
 import android.Manifest;
 import android.app.Activity;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.provider.MediaStore;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.text.InputType;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.SearchView;
 import androidx.core.app.ActivityCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.ArrayList;
+import com.bumptech.glide.Glide;
+
+import java.util.Collections;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
     private MediaPlayerService player;
+    private MediaPlayerService.LocalBinder playerBinder;
     boolean serviceBound = false;
 
-    ArrayList<Audio> audioList;
+    private RecyclerView recyclerView;
+    private RecyclerViewAdapter adapter;
+    private ViewTreeObserver.OnDrawListener firstDrawListener;
+    private LibraryRepository repository;
+    private LoudnessAnalyzer loudnessAnalyzer;
+    private LibraryRepository.Snapshot library;
+    // library snapshot the adapter positions refer to, null while showing search results
+    private LibraryRepository.Snapshot shownLibrary;
+    private String searchQuery = "";
+    // runs queries, which wait while the sync thread merges the search index
+    private HandlerThread searchThread;
+    private Handler searchHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // type-ahead results shown while searching
+    private static final int SEARCH_LIMIT = 200;
 
-    public static final String Broadcast_PLAY_NEW_AUDIO = "com.example.droidPod.PlayNewAudio";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.begin("MainActivity.onCreate");
         super.onCreate(savedInstanceState);
+
+        StartupTrace.begin("setContentView");
+        setContentView(R.layout.activity_main);
+        StartupTrace.end();
+
+        StartupTrace.begin("initRecyclerView");
+        initRecyclerView();
+        StartupTrace.end();
+
+        // the stored library index is read on the sync thread, not here; a recreated
+        // activity gets the snapshot already in memory
+        StartupTrace.begin("LibraryRepository.start");
+        loudnessAnalyzer = new LoudnessAnalyzer(this);
+        repository = LibraryRepository.get(this);
+        repository.start();
+        repository.addListener(libraryListener);
+        StartupTrace.end();
+
+        StartupTrace.begin("permission check");
         if (!checkPermissionForReadExternalStorage()) {
             try {
                 requestPermissionForReadExternalStorage();
@@ -42,83 +91,287 @@ public class MainActivity extends AppCompatActivity {
                 e.printStackTrace();
             }
         }
-        setContentView(R.layout.activity_main);
-        loadAudio();
-        initRecyclerView();
+        StartupTrace.end();
+
+        deferUntilFirstDraw();
+        StartupTrace.end();
     }
 
     /**
-     * Sets the recycler view adapter and custom touch listener for
-     * items in the user's audio list
+     * Sets the recycler view adapter for items in the user's audio list.
+     * Row clicks and album art preloading are set up after the first frame.
      */
     private void initRecyclerView() {
-        if (audioList.size() > 0) {
-            RecyclerView recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
-            RecyclerViewAdapter adapter = new RecyclerViewAdapter(getApplication(), audioList);
-            recyclerView.setAdapter(adapter);
-            recyclerView.setLayoutManager(new LinearLayoutManager(this));
-            recyclerView.addOnItemTouchListener(new CustomTouchListener(this, new onItemClickListener() {
+        recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
+        adapter = new RecyclerViewAdapter(getApplication());
+        recyclerView.setAdapter(adapter);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.addOnChildAttachStateChangeListener(new RecyclerView.OnChildAttachStateChangeListener() {
+            @Override
+            public void onChildViewAttachedToWindow(@NonNull View view) {
+                if (StartupTrace.isFinished())
+                    return;
+                StartupTrace.mark("first row bound");
+                reportFullyDrawn();
+                StartupTrace.finish();
+            }
+
+            @Override
+            public void onChildViewDetachedFromWindow(@NonNull View view) { }
+        });
+    }
+
+    /**
+     * Runs {@link #initDeferred()} right after the first frame has been drawn
+     */
+    private void deferUntilFirstDraw() {
+        final View decorView = getWindow().getDecorView();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        firstDrawListener = new ViewTreeObserver.OnDrawListener() {
+            @Override
+            public void onDraw() {
+                if (firstDrawListener == null)
+                    return;
+                firstDrawListener = null;
+                StartupTrace.mark("first frame");
+                // draw listeners cannot be removed while they are dispatched
+                final ViewTreeObserver.OnDrawListener listener = this;
+                handler.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        decorView.getViewTreeObserver().removeOnDrawListener(listener);
+                        initDeferred();
+                    }
+                });
+            }
+        };
+        decorView.getViewTreeObserver().addOnDrawListener(firstDrawListener);
+    }
+
+    /**
+     * Work that is not needed to show the first frame: row clicks, and Glide, which
+     * is initialized on a background thread before album art preloading starts
+     */
+    private void initDeferred() {
+        StartupTrace.begin("deferred init");
+        recyclerView.addOnItemTouchListener(new CustomTouchListener(this, new onItemClickListener() {
+            @Override
+            public void onClick(View view, int index) {
+                playAudio(index, SystemClock.uptimeMillis());
+                Intent intent = new Intent(MainActivity.this, TransportActivity.class);
+                startActivity(intent);
+            }
+        }));
+
+        final Context appContext = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Trace.beginSection("Glide.get");
+                Glide.get(appContext);
+                Trace.endSection();
+                StartupTrace.mark("Glide ready");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        adapter.startPreloading();
+                    }
+                });
+            }
+        }, "GlideInit").start();
+        StartupTrace.end();
+    }
+
+    private final LibraryRepository.Listener libraryListener = new LibraryRepository.Listener() {
+        @Override
+        public void onLibraryChanged(LibraryRepository.Snapshot snapshot) {
+            showLibrary(snapshot);
+            // measures only tracks that are new or changed since the last run
+            loudnessAnalyzer.analyze(snapshot);
+        }
+    };
+
+    /**
+     * Shows a library snapshot published by the background sync
+     * @param library tracks sorted by title
+     */
+    private void showLibrary(LibraryRepository.Snapshot library) {
+        this.library = library;
+        showTracks();
+        if (library.getTracks().size() == 0) {
+            // no row will be bound, so the cold start ends here
+            StartupTrace.finish();
+            Toast.makeText(getApplicationContext(), "No media files found", Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Shows the whole library, or the ranked matches of the current search
+     */
+    private void showTracks() {
+        if (searchQuery.isEmpty() && library != null) {
+            final LibraryRepository.Snapshot shown = library;
+            adapter.submitList(library.getTracks(), library.getPages(), new Runnable() {
                 @Override
-                public void onClick(View view, int index) {
-                    playAudio(index);
-                    Intent intent = new Intent(MainActivity.this, TransportActivity.class);
-                    startActivity(intent);
+                public void run() {
+                    shownLibrary = shown;
                 }
-            }));
+            });
+        } else if (!searchQuery.isEmpty()) {
+            search(searchQuery);
         }
     }
 
     /**
-     * Initializes media player and storage services
-     * Sends broadcast play new audio
-     * @param audioIndex audio index the user clicked
+     * Searches the library off the UI thread and shows the results if the query is
+     * still the current one; a newer query replaces one that has not started yet
+     * @param query trimmed query
      */
-    private void playAudio(int audioIndex) {
-        StorageService storage = new StorageService(getApplicationContext());
-        if (!serviceBound) {
-            storage.storeAudio(audioList);
-            storage.storeAudioIndex(audioIndex);
-
-            Intent playerIntent = new Intent(this, MediaPlayerService.class);
-            startService(playerIntent);
-            bindService(playerIntent, serviceConnection, Context.BIND_AUTO_CREATE);
-        } else {
-            storage.storeAudioIndex(audioIndex);
-            //Service is active
-            Intent broadcastIntent = new Intent(Broadcast_PLAY_NEW_AUDIO);
-            sendBroadcast(broadcastIntent);
+    private void search(final String query) {
+        if (searchThread == null) {
+            searchThread = new HandlerThread("Search");
+            searchThread.start();
+            searchHandler = new Handler(searchThread.getLooper());
         }
+        final SearchIndex index = repository.getSearchIndex();
+        searchHandler.removeCallbacksAndMessages(null);
+        searchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final List<Audio> results = index.search(query, SEARCH_LIMIT);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!query.equals(searchQuery))
+                            return;
+                        adapter.submitList(results, null, new Runnable() {
+                            @Override
+                            public void run() {
+                                shownLibrary = null;
+                            }
+                        });
+                    }
+                });
+            }
+        });
     }
 
-    private void loadAudio() {
-        ContentResolver contentResolver = getApplicationContext().getContentResolver();
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        SearchView searchView = (SearchView) menu.findItem(R.id.action_search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return false;
+            }
 
-        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0";
-        String sortOrder = MediaStore.Audio.Media.TITLE + " ASC";
-        Cursor cursor = contentResolver.query(uri, null, selection, null, sortOrder);
-        audioList = new ArrayList<>();
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                searchQuery = newText.trim();
+                showTracks();
+                return true;
+            }
+        });
+        return true;
+    }
 
-        if (cursor != null && cursor.getCount() > 0) {
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_startup_report) {
+            new AlertDialog.Builder(this)
+                    .setTitle(R.string.action_startup_report)
+                    .setMessage(StartupTrace.report())
+                    .setPositiveButton(android.R.string.ok, null)
+                    .show();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_play_stream) {
+            showPlayStreamDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
 
-            while (cursor.moveToNext()) {
-                String data = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.DATA));
-                String title = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.TITLE));
-                String album = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM));
-                String artist = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST));
-                Long albumId = cursor.getLong(cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ID));
+    /**
+     * Asks for the http(s) URL of a track on a media server and plays it
+     */
+    private void showPlayStreamDialog() {
+        final EditText input = new EditText(this);
+        input.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_URI);
+        input.setHint(R.string.play_stream_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_play_stream)
+                .setView(input)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String url = input.getText().toString().trim();
+                        if (!StreamProxy.isRemote(url)) {
+                            Toast.makeText(getApplicationContext(), R.string.play_stream_invalid,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        Audio stream = new Audio(url, Uri.parse(url).getLastPathSegment(), null, null, null);
+                        play(Collections.singletonList(stream), 0, null, SystemClock.uptimeMillis());
+                        startActivity(new Intent(MainActivity.this, TransportActivity.class));
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
 
-                audioList.add(new Audio(data, title, album, artist, albumId));
-            }
-        } else { Toast.makeText(getApplicationContext(), "No media files found", Toast.LENGTH_LONG).show(); }
+    /**
+     * Plays the shown list from a position. A bound service gets the list directly and
+     * stores it itself; otherwise the library snapshot is handed over to the service
+     * it starts, or, for search results, the list is stored for it to start from.
+     * @param audioIndex audio index the user clicked
+     * @param requestedAt SystemClock.uptimeMillis() of the click
+     */
+    private void playAudio(int audioIndex, long requestedAt) {
+        // adapter positions refer to the list currently shown, which is never modified
+        play(adapter.getCurrentList(), audioIndex, shownLibrary, requestedAt);
+    }
 
-        assert cursor != null;
-        cursor.close();
+    /**
+     * Plays a list from a position
+     * @param audioList tracks, not modified afterwards
+     * @param audioIndex position to start at
+     * @param library library snapshot the list is, null for other lists
+     * @param requestedAt SystemClock.uptimeMillis() of the user action
+     */
+    private void play(List<Audio> audioList, int audioIndex, LibraryRepository.Snapshot library,
+                      long requestedAt) {
+        if (playerBinder != null) {
+            playerBinder.playIndex(audioList, audioIndex, requestedAt);
+            return;
+        }
+        Intent playerIntent = new Intent(this, MediaPlayerService.class);
+        if (library != null) {
+            // kept for the service even if the repository publishes a newer library meanwhile
+            repository.handOver(library);
+            playerIntent.putExtra(MediaPlayerService.EXTRA_LIBRARY_VERSION, library.getVersion());
+            playerIntent.putExtra(MediaPlayerService.EXTRA_INDEX, audioIndex);
+        } else {
+            StorageService storage = new StorageService(getApplicationContext());
+            storage.storeAudio(audioList);
+            storage.storeAudioIndex(audioIndex);
+        }
+        playerIntent.putExtra(MediaPlayerService.EXTRA_REQUESTED_AT, requestedAt);
+        startService(playerIntent);
+        bindService(playerIntent, serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // the repository outlives the activity, only stop listening to it
+        repository.removeListener(libraryListener);
+        loudnessAnalyzer.stop();
+        if (searchThread != null)
+            searchThread.quitSafely();
+        mainHandler.removeCallbacksAndMessages(null);
         if (serviceBound) {
             unbindService(serviceConnection);
             //service is active
@@ -131,14 +384,15 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             // We've bound to LocalService, cast the IBinder and get LocalService instance
-            MediaPlayerService.LocalBinder binder = (MediaPlayerService.LocalBinder) service;
-            player = binder.getService();
+            playerBinder = (MediaPlayerService.LocalBinder) service;
+            player = playerBinder.getService();
             serviceBound = true;
         }
 
         @Override
         public void onServiceDisconnected(ComponentName name) {
             serviceBound = false;
+            playerBinder = null;
         }
     };
 
@@ -159,6 +413,14 @@ public class MainActivity extends AppCompatActivity {
         return result == PackageManager.PERMISSION_GRANTED;
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (checkPermissionForReadExternalStorage()) {
+            repository.requestSync();
+        }
+    }
+
     public void requestPermissionForReadExternalStorage() throws Exception {
         try {
             ActivityCompat.requestPermissions((Activity) this,
@@ -0,0 +1,197 @@
+package com.example.droidpod;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.media.audiofx.DynamicsProcessing;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * {@link PlaybackEngine} backed by the platform MediaPlayer, chaining tracks
+ * gaplessly with setNextMediaPlayer. Its PCM is not reachable, so the DSP settings
+ * are mapped onto a DynamicsProcessing effect on the player's audio session. Track
+ * gain rides on the effect's input gain while it is active and is otherwise applied
+ * as volume, which can only attenuate.
+ */
+public class MediaPlayerEngine implements PlaybackEngine, MediaPlayer.OnPreparedListener,
+        MediaPlayer.OnCompletionListener, MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnErrorListener {
+
+    private final MediaPlayer player = new MediaPlayer();
+    private Listener listener;
+    private DynamicsProcessing dynamics;
+    private boolean dynamicsActive;
+    private float preGainDb;
+    private float replayGainDb;
+    private float volume = 1f;
+
+    public MediaPlayerEngine() {
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnSeekCompleteListener(this);
+        player.setOnErrorListener(this);
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setAudioAttributes(AudioAttributes attributes) {
+        player.setAudioAttributes(attributes);
+    }
+
+    @Override
+    public void setDataSource(String path) throws IOException {
+        player.setDataSource(path);
+    }
+
+    @Override
+    public void prepareAsync() {
+        player.prepareAsync();
+    }
+
+    @Override
+    public void start() {
+        player.start();
+    }
+
+    @Override
+    public void pause() {
+        player.pause();
+    }
+
+    @Override
+    public void stop() {
+        player.stop();
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return player.isPlaying();
+    }
+
+    @Override
+    public void seekTo(int position) {
+        player.seekTo(position);
+    }
+
+    @Override
+    public void seekTo(int position, int mode) {
+        player.seekTo(position, mode == SEEK_FAST ? MediaPlayer.SEEK_PREVIOUS_SYNC : MediaPlayer.SEEK_CLOSEST);
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        return player.getCurrentPosition();
+    }
+
+    @Override
+    public int getDuration() {
+        return player.getDuration();
+    }
+
+    @Override
+    public void setVolume(float left, float right) {
+        volume = Math.max(left, right);
+        applyVolume();
+    }
+
+    private void applyVolume() {
+        float gain = dynamicsActive ? 1f : DspChain.dbToLinear(Math.min(replayGainDb, 0f));
+        player.setVolume(volume * gain, volume * gain);
+    }
+
+    /**
+     * Maps the settings onto DynamicsProcessing: input gain, one pre-EQ band per
+     * EQ band reaching up to the next band, and the limiter
+     */
+    @Override
+    public void setDsp(DspParams params) {
+        if (params == null || !params.isEnabled()) {
+            if (dynamics != null)
+                dynamics.setEnabled(false);
+            dynamicsActive = false;
+            applyVolume();
+            return;
+        }
+        try {
+            if (dynamics == null) {
+                DynamicsProcessing.Config config = new DynamicsProcessing.Config.Builder(
+                        DynamicsProcessing.VARIANT_FAVOR_FREQUENCY_RESOLUTION, 2,
+                        true, DspParams.BANDS, false, 0, false, 0, true).build();
+                // the session outlives reset(), so the effect is created once per engine
+                dynamics = new DynamicsProcessing(0, player.getAudioSessionId(), config);
+            }
+            preGainDb = params.getPreGainDb();
+            dynamics.setInputGainAllChannelsTo(preGainDb + replayGainDb);
+            DynamicsProcessing.Eq eq = new DynamicsProcessing.Eq(true, true, DspParams.BANDS);
+            for (int b = 0; b < DspParams.BANDS; b++) {
+                float cutoff = b + 1 < DspParams.BANDS
+                        ? (float) Math.sqrt(params.getBandFrequency(b) * params.getBandFrequency(b + 1)) : 20000f;
+                eq.setBand(b, new DynamicsProcessing.EqBand(true, cutoff, params.getBandGain(b)));
+            }
+            dynamics.setPreEqAllChannelsTo(eq);
+            dynamics.setLimiterAllChannelsTo(new DynamicsProcessing.Limiter(true, true, 0,
+                    1f, 60f, 10f, params.getLimiterThresholdDb(), 0f));
+            dynamics.setEnabled(true);
+            dynamicsActive = true;
+        } catch (RuntimeException e) {
+            Log.d("MediaPlayerEngine", "DynamicsProcessing unavailable", e);
+            dynamicsActive = false;
+        }
+        applyVolume();
+    }
+
+    @Override
+    public void setReplayGain(float gainDb) {
+        replayGainDb = gainDb;
+        if (dynamicsActive)
+            dynamics.setInputGainAllChannelsTo(preGainDb + gainDb);
+        applyVolume();
+    }
+
+    @Override
+    public boolean setNext(PlaybackEngine next) {
+        if (next != null && !(next instanceof MediaPlayerEngine))
+            return false;
+        player.setNextMediaPlayer(next != null ? ((MediaPlayerEngine) next).player : null);
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        player.reset();
+    }
+
+    @Override
+    public void release() {
+        if (dynamics != null)
+            dynamics.release();
+        player.release();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if (listener != null)
+            listener.onPrepared(this);
+    }
+
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+        if (listener != null)
+            listener.onCompletion(this);
+    }
+
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+        if (listener != null)
+            listener.onSeekComplete(this);
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        return listener != null && listener.onError(this, what, extra);
+    }
+}
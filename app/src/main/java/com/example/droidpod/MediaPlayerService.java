@@ -2,7 +2,6 @@ package com.example.droidpod;
 
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ContentUris;
@@ -18,40 +17,112 @@ import android.media.MediaPlayer;
 import android.media.session.MediaSessionManager;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
-import android.support.v4.media.MediaMetadataCompat;
+import android.os.SystemClock;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
-import androidx.core.app.NotificationCompat;
-
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
- * Service to control MediaPlayer object
+ * Service to control the playback engine, MediaPlayer or the MediaCodec based {@link CodecEngine}.
+ * Every engine call runs on the playback thread of {@link PlaybackCommandExecutor};
+ * receivers, session callbacks and bound clients only queue commands there.
  */
-public class MediaPlayerService extends Service implements MediaPlayer.OnCompletionListener,
-        MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnSeekCompleteListener,
-        MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener,
-        AudioManager.OnAudioFocusChangeListener {
-
-    private MediaPlayer mediaPlayer;
+public class MediaPlayerService extends Service implements PlaybackEngine.Listener,
+        AudioManager.OnAudioFocusChangeListener, PlaybackCommandExecutor.Target {
+
+    private PlaybackEngine mediaPlayer;
+    // true once mediaPlayer has left the Preparing state
+    private boolean mediaPlayerPrepared;
+    private final PlaybackEnginePool playerPool = new PlaybackEnginePool();
+    // EQ, pre-gain and limiter applied by every engine
+    private final DspParams dspParams = new DspParams();
+    public static final int REPLAY_GAIN_OFF = 0;
+    public static final int REPLAY_GAIN_TRACK = 1;
+    public static final int REPLAY_GAIN_ALBUM = 2;
+    private volatile int replayGainMode = REPLAY_GAIN_TRACK;
+    // analysis results, read on the playback thread once loaded
+    private LoudnessCache loudness;
     private AudioManager audioManager;
     private int resumePosition;
     private AudioFocusRequest mFocusRequest;
     private AudioAttributes mPlaybackAttributes;
+    private PlaybackCommandExecutor commands;
 
-    // audio files
-    protected ArrayList<Audio> audioList;
-    protected int audioIndex = -1;
+    // play queue and the playlist it was built over, used on the playback thread only
+    private PlayQueue queue;
+    private List<Audio> playlist;
+    private QueueStore queueStore;
     protected Audio activeAudio;
+    // writes playlists handed over by bound clients, off the playback thread
+    private HandlerThread persistThread;
+    private Handler persistHandler;
+
+    // uptime of the tap behind the latest play command, 0 if none is pending
+    private volatile long requestedAt;
+    // PlaybackTelemetry route of that command
+    private volatile int requestedRoute;
+    // uptime and route of the tap the track being prepared answers, used on the
+    // playback thread only
+    private long preparingRequestedAt;
+    private int preparingRoute;
+    private static final String LATENCY_TAG = "PlaybackLatency";
+
+    // latency and error counts, read through dumpsys
+    private final PlaybackTelemetry telemetry = new PlaybackTelemetry();
+    private static final String TELEMETRY_FILE = "playback-telemetry.txt";
+
+    // remote tracks are played through a local proxy that caches them on disk
+    private static final String STREAM_CACHE_DIR = "streams";
+    private static final long STREAM_CACHE_BYTES = 512L * 1024 * 1024;
+    private StreamProxy streamProxy;
+    // System.nanoTime() of the pending prepares and seek, 0 if none; playback thread only
+    private long prepareStartNs;
+    private long nextPrepareStartNs;
+    private long seekStartNs;
+    // whether the files being prepared had been read ahead, for telemetry
+    private boolean prepareReadAhead;
+    private boolean nextPrepareReadAhead;
+
+    // reads the files of the next queue entries while a track plays
+    private Readahead readahead;
+    private static final int READAHEAD_TRACKS = 3;
+
+    // per-track resume positions, used on the playback thread only
+    private PositionStore positions;
+    // position to start the current track at once prepared, -1 to use its saved one
+    private int startPosition = -1;
+    private boolean positionSavesRunning;
+    // saved positions are restored for tracks at least this long, e.g. audiobooks and mixes
+    private static final int LONG_FORM_MS = 10 * 60 * 1000;
+    // a track saved this close to its end starts over instead
+    private static final int RESUME_END_MARGIN_MS = 15 * 1000;
+    // batched position writes while playing
+    private static final long POSITION_SAVE_INTERVAL_MS = 15 * 1000;
+
+    // gapless playback: the following queue item prepared on a second player
+    private boolean gaplessEnabled = true;
+    private PlaybackEngine nextPlayer;
+    private int nextItem = -1;
+    private boolean nextPrepared;
 
     // phone vars
     private boolean onGoingCall = false;
@@ -64,48 +135,299 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     public static final String ACTION_NEXT = "com.example.droidPod.ACTION_NEXT";
     public static final String ACTION_STOP = "com.example.droidPod.ACTION_STOP";
 
+    // media session custom action playing a position of the current playlist
+    public static final String ACTION_PLAY_INDEX = "com.example.droidPod.ACTION_PLAY_INDEX";
+    public static final String EXTRA_INDEX = "com.example.droidPod.INDEX";
+    // SystemClock.uptimeMillis() of the user action, for tap-to-sound logging
+    public static final String EXTRA_REQUESTED_AT = "com.example.droidPod.REQUESTED_AT";
+    // start extra: the playlist is this version of the in-memory library snapshot, not the
+    // stored one; EXTRA_INDEX is the position in it
+    public static final String EXTRA_LIBRARY_VERSION = "com.example.droidPod.LIBRARY_VERSION";
+
+    // metadata key carrying the MediaStore album ID, for loading art through Glide
+    public static final String METADATA_KEY_ALBUM_ID = "com.example.droidPod.ALBUM_ID";
+
+    private static final long PLAYBACK_ACTIONS = PlaybackStateCompat.ACTION_PLAY
+            | PlaybackStateCompat.ACTION_PAUSE | PlaybackStateCompat.ACTION_PLAY_PAUSE
+            | PlaybackStateCompat.ACTION_SKIP_TO_NEXT | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+            | PlaybackStateCompat.ACTION_STOP | PlaybackStateCompat.ACTION_SEEK_TO
+            | PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE | PlaybackStateCompat.ACTION_SET_REPEAT_MODE;
+
     //MediaSession
     private MediaSessionManager mediaSessionManager;
     private MediaSessionCompat mediaSession;
     protected MediaControllerCompat.TransportControls transportControls;
 
-    //AudioPlayer notification ID
-    private static final int NOTIFICATION_ID = 1;
-    private static final String CHANNEL_ID = "Transport Controller";
+    // playback notification and session metadata, used on the playback thread only
+    private PlaybackNotifier notifier;
+    private MetadataPublisher metadataPublisher;
+    private int metadataArtSize = MetadataPublisher.DEFAULT_ART_SIZE;
 
     //Playback Status
     protected PlaybackStatus mStatus;
 
     /**
-     * Initialize the MediaPlayer object
+     * Initialize the playback engine for the active audio,
+     * recycling the previous player and dropping any prepared next track
      */
     private void initMediaPlayer() {
-        mediaPlayer = new MediaPlayer();
-
-        // event listeners
-        mediaPlayer.setOnCompletionListener(this);
-        mediaPlayer.setOnErrorListener(this);
-        mediaPlayer.setOnPreparedListener(this);
-        mediaPlayer.setOnBufferingUpdateListener(this);
-        mediaPlayer.setOnSeekCompleteListener(this);
-        mediaPlayer.setOnInfoListener(this);
-
-        mediaPlayer.reset();
+        discardNextPlayer();
+        if (mediaPlayer != null) {
+            playerPool.recycle(mediaPlayer);
+        }
+        mediaPlayerPrepared = false;
+        prepareStartNs = System.nanoTime();
+        prepareReadAhead = readahead.wasRead(activeAudio.getData());
+        // a seek on the previous player is not timed
+        seekStartNs = 0;
+        mediaPlayer = preparePlayer(activeAudio);
+        if (mediaPlayer == null) {
+            stopSelf();
+        }
+    }
 
-        // initialization of the audio attributes and focus request
-        mPlaybackAttributes = new AudioAttributes.Builder()
-                .setUsage(AudioAttributes.USAGE_MEDIA)
-                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                .build();
-        mediaPlayer.setAudioAttributes(mPlaybackAttributes);
+    /**
+     * Takes a player from the pool and starts preparing a track on it
+     * @param audio track to prepare
+     * @return preparing player, or null if the track cannot be opened
+     */
+    private PlaybackEngine preparePlayer(Audio audio) {
+        PlaybackEngine player = playerPool.acquire();
+        player.setListener(this);
+        player.setDsp(dspParams);
+        player.setReplayGain(replayGainDb(audio));
+        player.setAudioAttributes(mPlaybackAttributes);
 
         try {
-            mediaPlayer.setDataSource(activeAudio.getData());
+            player.setDataSource(sourceOf(audio));
         } catch (IOException e) {
             e.printStackTrace();
-            stopSelf();
+            telemetry.recordError(audio.getData(), "open");
+            playerPool.recycle(player);
+            return null;
+        }
+        player.prepareAsync();
+        return player;
+    }
+
+    /**
+     * gets what an engine opens for a track: its file, or for http(s) URLs the address
+     * of the track on the caching proxy, which is started on first use
+     * @param audio track
+     * @return path or URL
+     */
+    private String sourceOf(Audio audio) {
+        String data = audio.getData();
+        if (!StreamProxy.isRemote(data))
+            return data;
+        if (streamProxy == null) {
+            StreamProxy proxy = new StreamProxy(new StreamCache(
+                    new File(getCacheDir(), STREAM_CACHE_DIR), STREAM_CACHE_BYTES));
+            try {
+                proxy.start();
+            } catch (IOException e) {
+                // stream without caching
+                e.printStackTrace();
+                return data;
+            }
+            streamProxy = proxy;
         }
-        mediaPlayer.prepareAsync();
+        return streamProxy.proxyUrl(data);
+    }
+
+    /**
+     * gets the loudness normalization gain of a track from the analysis results, without file I/O
+     * @param audio track
+     * @return gain in dB, 0 if normalization is off or the track was not analyzed yet
+     */
+    private float replayGainDb(Audio audio) {
+        if (replayGainMode == REPLAY_GAIN_OFF || loudness == null || audio == null)
+            return 0f;
+        return loudness.gainDb(audio.getData(), replayGainMode == REPLAY_GAIN_ALBUM);
+    }
+
+    /**
+     * Prepares the following queue entry on a second player, so it can be
+     * chained and start without a gap
+     */
+    private void prepareNextPlayer() {
+        discardNextPlayer();
+        if (!gaplessEnabled || queue == null)
+            return;
+
+        int item = queue.peekNext();
+        commitQueue();
+        if (item < 0)
+            return;
+        nextItem = item;
+        nextPrepared = false;
+        nextPrepareStartNs = System.nanoTime();
+        nextPrepareReadAhead = readahead.wasRead(queue.get(item).getData());
+        nextPlayer = preparePlayer(queue.get(item));
+    }
+
+    /**
+     * Reads the files of the next queue entries ahead, except the one already
+     * preparing on the next player
+     */
+    private void readAhead() {
+        if (queue == null)
+            return;
+        int[] items = queue.peekAhead(READAHEAD_TRACKS, nextItem);
+        ArrayList<String> paths = new ArrayList<>(items.length);
+        for (int item : items) {
+            paths.add(queue.get(item).getData());
+        }
+        readahead.prefetch(paths);
+    }
+
+    /**
+     * Unchains and recycles the pre-prepared next player, if any
+     */
+    private void discardNextPlayer() {
+        if (nextPlayer == null)
+            return;
+        if (mediaPlayer != null && nextPrepared) {
+            try {
+                mediaPlayer.setNext(null);
+            } catch (IllegalStateException ignored) { }
+        }
+        playerPool.recycle(nextPlayer);
+        nextPlayer = null;
+        nextItem = -1;
+        nextPrepared = false;
+    }
+
+    /**
+     * Makes the pre-prepared next player the active one, once the queue has moved to its item
+     * @return false if no next player was ready
+     */
+    private boolean promoteNextPlayer() {
+        if (nextPlayer == null || !nextPrepared)
+            return false;
+
+        PlaybackEngine finished = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        activeAudio = queue.get(nextItem);
+        nextPlayer = null;
+        nextItem = -1;
+        nextPrepared = false;
+        playerPool.recycle(finished);
+        return true;
+    }
+
+    /**
+     * Continues on the pre-prepared next player once the queue has moved to its item,
+     * then prepares and reads ahead the entries after it
+     * @return false if no next player was ready
+     */
+    private boolean advanceToNextPlayer() {
+        if (!promoteNextPlayer())
+            return false;
+        // a chained next player has already started, an unchained one starts now
+        playMedia();
+        prepareNextPlayer();
+        readAhead();
+        return true;
+    }
+
+    /**
+     * Turns gapless playback on or off
+     * @param enabled true to pre-prepare the next track while one is playing
+     */
+    public void setGaplessEnabled(final boolean enabled) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                gaplessEnabled = enabled;
+                if (!enabled) {
+                    discardNextPlayer();
+                } else if (mediaPlayer != null && nextPlayer == null && mediaPlayer.isPlaying()) {
+                    prepareNextPlayer();
+                }
+            }
+        });
+    }
+
+    /**
+     * Selects the playback engine, persisted for later sessions. A playing track is
+     * reopened on the new engine at its position, otherwise it applies from the next track.
+     * @param type PlaybackEnginePool.ENGINE_MEDIA_PLAYER or ENGINE_CODEC
+     */
+    public void setPlaybackEngine(final int type) {
+        new StorageService(getApplicationContext()).storePlaybackEngine(type);
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (type == playerPool.getEngineType())
+                    return;
+                playerPool.setEngineType(type);
+                if (mediaPlayer != null && mediaPlayerPrepared && mediaPlayer.isPlaying()) {
+                    startPosition = mediaPlayer.getCurrentPosition();
+                    stopMedia();
+                    initMediaPlayer();
+                }
+            }
+        });
+    }
+
+    /**
+     * gets the EQ, pre-gain and limiter settings; call {@link #applyDsp()} after changing them
+     * @return settings shared by all engines
+     */
+    public DspParams getDspParams() {
+        return dspParams;
+    }
+
+    /**
+     * Applies changed DSP settings to the playing and the prepared next track
+     */
+    public void applyDsp() {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mediaPlayer != null)
+                    mediaPlayer.setDsp(dspParams);
+                if (nextPlayer != null)
+                    nextPlayer.setDsp(dspParams);
+            }
+        });
+    }
+
+    /**
+     * Sets how tracks are loudness normalized, persisted for later sessions
+     * @param mode REPLAY_GAIN_OFF, REPLAY_GAIN_TRACK or REPLAY_GAIN_ALBUM
+     */
+    public void setReplayGainMode(final int mode) {
+        new StorageService(getApplicationContext()).storeReplayGainMode(mode);
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                replayGainMode = mode;
+                if (mediaPlayer != null)
+                    mediaPlayer.setReplayGain(replayGainDb(activeAudio));
+                if (nextPlayer != null)
+                    nextPlayer.setReplayGain(replayGainDb(queue.get(nextItem)));
+            }
+        });
+    }
+
+    public int getReplayGainMode() {
+        return replayGainMode;
+    }
+
+    /**
+     * Sets how many bytes of upcoming files are read ahead while a track plays,
+     * persisted for later sessions
+     * @param bytes budget per track change, 0 to turn reading ahead off
+     */
+    public void setReadaheadBudget(long bytes) {
+        new StorageService(getApplicationContext()).storeReadaheadBudget(bytes);
+        readahead.setBudget(bytes);
+    }
+
+    public long getReadaheadBudget() {
+        return readahead.getBudget();
     }
 
     /**
@@ -116,6 +438,30 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     public void onCreate() {
         super.onCreate();
 
+        // players are created on the playback thread, so their callbacks arrive there too
+        commands = new PlaybackCommandExecutor(this);
+        persistThread = new HandlerThread("PlaylistPersist", Process.THREAD_PRIORITY_BACKGROUND);
+        persistThread.start();
+        persistHandler = new Handler(persistThread.getLooper());
+        // no processing until the EQ is set up
+        dspParams.setEnabled(false);
+        StorageService settings = new StorageService(getApplicationContext());
+        final int engineType = settings.loadPlaybackEngine();
+        replayGainMode = settings.loadReplayGainMode();
+        readahead = new Readahead(this, settings.loadReadaheadBudget());
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                playerPool.setEngineType(engineType);
+                // read once here, so gains at track start are memory lookups
+                loudness = LoudnessAnalyzer.cache(getApplicationContext());
+            }
+        });
+        mPlaybackAttributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build();
+
         // Notification channel instantiation
         createNotificationChannel();
         // Manage incoming phone calls during playback.
@@ -125,9 +471,6 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
 
         //ACTION_AUDIO_BECOMING_NOISY -- change in audio outputs -- BroadcastReceiver
         registerBecomingNoisyReceiver();
-
-        //Listen for new Audio to play -- BroadcastReceiver
-        register_playNewAudio();
     }
 
     /**
@@ -137,23 +480,47 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mediaPlayer != null) {
-            stopMedia();
-            mediaPlayer.release();
-        }
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                commands.removeCallbacks(positionSaveTick);
+                if (positions != null)
+                    savePosition();
+                if (mediaPlayer != null) {
+                    stopMedia();
+                    discardNextPlayer();
+                    mediaPlayer.release();
+                    mediaPlayer = null;
+                }
+                playerPool.releaseAll();
+                readahead.stop();
+                if (streamProxy != null)
+                    streamProxy.stop();
+                if (queueStore != null)
+                    queueStore.close();
+                if (notifier != null)
+                    notifier.release();
+                if (metadataPublisher != null)
+                    metadataPublisher.release();
+            }
+        });
+        commands.quit();
         removeAudioFocus();
         if (phoneStateListener != null) {
             telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
         }
 
-        removeNotification();
-
         //unregister BroadcastReceivers
         unregisterReceiver(becomingNoisyReceiver);
-        unregisterReceiver(playNewAudio);
 
-        //clear cached playlist
-        new StorageService(getApplicationContext()).clearCachedAudioPlaylist();
+        //clear cached playlist, after any pending write of it
+        persistHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                new StorageService(getApplicationContext()).clearCachedAudioPlaylist();
+            }
+        });
+        persistThread.quitSafely();
     }
 
     /**
@@ -180,6 +547,8 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * Pause media playback
      */
     private void pauseMedia() {
+        if (mediaPlayer == null)
+            return;
         if (mediaPlayer.isPlaying()) {
             mediaPlayer.pause();
             resumePosition = mediaPlayer.getCurrentPosition();
@@ -190,44 +559,12 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * Resume media playback
      */
     private void resumeMedia() {
-        if (!mediaPlayer.isPlaying()) {
-            mediaPlayer.seekTo(resumePosition);
-            mediaPlayer.start();
-        }
-    }
-
-    /**
-     * Assign active audio track and initialize new media player
-     */
-    private final BroadcastReceiver playNewAudio = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            //Get the new media index form SharedPreferences
-            audioIndex = new StorageService(getApplicationContext()).loadAudioIndex();
-            if (audioIndex != -1 && audioIndex < audioList.size()) {
-                //index is in a valid range
-                activeAudio = audioList.get(audioIndex);
-            } else {
-                stopSelf();
-            }
-
-            //A PLAY_NEW_AUDIO action received
-            //reset mediaPlayer to play the new Audio
-            stopMedia();
-            mediaPlayer.reset();
+        if (mediaPlayer == null) {
             initMediaPlayer();
-            updateMetaData();
-            mStatus = PlaybackStatus.PLAYING;
-            buildNotification();
+        } else if (!mediaPlayer.isPlaying()) {
+            seekOwn(resumePosition);
+            mediaPlayer.start();
         }
-    };
-
-    /**
-     * register playNewAudio receiver
-     */
-    private void register_playNewAudio() {
-        IntentFilter filter = new IntentFilter(MainActivity.Broadcast_PLAY_NEW_AUDIO);
-        registerReceiver(playNewAudio, filter);
     }
 
     /**
@@ -252,44 +589,31 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         // through its MediaSessionCompat.Callback.
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
 
-        //Set mediaSession's MetaData
-        updateMetaData();
-
         // Attach Callback to receive MediaSession updates
         mediaSession.setCallback(new MediaSessionCompat.Callback() {
 
             @Override
             public void onPlay() {
                 super.onPlay();
-                resumeMedia();
-                mStatus = PlaybackStatus.PLAYING;
-                buildNotification();
+                commands.play();
             }
 
             @Override
             public void onPause() {
                 super.onPause();
-                pauseMedia();
-                mStatus = PlaybackStatus.PAUSED;
-                buildNotification();
+                commands.pause();
             }
 
             @Override
             public void onSkipToNext() {
                 super.onSkipToNext();
-                skipToNext();
-                updateMetaData();
-                mStatus = PlaybackStatus.PLAYING;
-                buildNotification();
+                commands.skip(1);
             }
 
             @Override
             public void onSkipToPrevious() {
                 super.onSkipToPrevious();
-                skipToPrevious();
-                updateMetaData();
-                mStatus = PlaybackStatus.PLAYING;
-                buildNotification();
+                commands.skip(-1);
             }
 
             @Override
@@ -303,6 +627,34 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
             @Override
             public void onSeekTo(long position) {
                 super.onSeekTo(position);
+                commands.seekTo((int) position);
+            }
+
+            @Override
+            public void onCustomAction(String action, Bundle extras) {
+                super.onCustomAction(action, extras);
+                if (!ACTION_PLAY_INDEX.equals(action) || extras == null)
+                    return;
+                requestedRoute = PlaybackTelemetry.ROUTE_SESSION;
+                requestedAt = extras.getLong(EXTRA_REQUESTED_AT, SystemClock.uptimeMillis());
+                commands.playIndex(extras.getInt(EXTRA_INDEX));
+            }
+
+            @Override
+            public void onSetShuffleMode(int shuffleMode) {
+                super.onSetShuffleMode(shuffleMode);
+                setShuffle(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            }
+
+            @Override
+            public void onSetRepeatMode(int repeatMode) {
+                super.onSetRepeatMode(repeatMode);
+                if (repeatMode == PlaybackStateCompat.REPEAT_MODE_ONE)
+                    setRepeatMode(PlayQueue.REPEAT_ONE);
+                else if (repeatMode == PlaybackStateCompat.REPEAT_MODE_NONE)
+                    setRepeatMode(PlayQueue.REPEAT_OFF);
+                else
+                    setRepeatMode(PlayQueue.REPEAT_ALL);
             }
         });
     }
@@ -311,55 +663,339 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * updates shown metadata to that of the currently playing track
      */
     private void updateMetaData() {
-        Bitmap albumArt = getAlbumArt(this, activeAudio.getAlbumId());
-
-        // Update the current metadata
-        mediaSession.setMetadata(new MediaMetadataCompat.Builder()
-                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt)
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, activeAudio.getArtist())
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, activeAudio.getAlbum())
-                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, activeAudio.getTitle())
-                .build());
+        if (activeAudio == null || mediaSession == null)
+            return;
+        if (metadataPublisher == null)
+            metadataPublisher = new MetadataPublisher(this, mediaSession, metadataArtSize);
+        // the art follows asynchronously
+        metadataPublisher.publish(activeAudio, mediaPlayerPrepared ? mediaPlayer.getDuration() : -1);
     }
 
     /**
-     * Skips current track, and goes onto next in audio list
+     * Adds the duration to the published metadata once the track is prepared
      */
-    private void skipToNext() {
-        if (audioIndex == audioList.size() - 1) {
-            audioIndex = 0;
-            activeAudio = audioList.get(audioIndex);
+    private void updateMetaDataDuration() {
+        if (metadataPublisher != null)
+            metadataPublisher.setDuration(mediaPlayer.getDuration());
+    }
+
+    /**
+     * Sets the size cap of the album art published with the session metadata
+     * @param artSize largest width or height in px
+     */
+    public void setMetadataArtSize(final int artSize) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                metadataArtSize = artSize;
+                if (metadataPublisher != null)
+                    metadataPublisher.setArtSize(artSize);
+            }
+        });
+    }
+
+    /**
+     * Publishes an immutable snapshot of the playback state to the media session.
+     * Controllers extrapolate the position from it instead of polling the player.
+     */
+    private void updatePlaybackState() {
+        if (mediaSession == null)
+            return;
+
+        int state;
+        float speed = 0f;
+        long position = 0;
+        if (mediaPlayer == null || !mediaPlayerPrepared) {
+            state = PlaybackStateCompat.STATE_BUFFERING;
         } else {
-            activeAudio = audioList.get(++audioIndex);
+            position = mediaPlayer.getCurrentPosition();
+            if (mStatus == PlaybackStatus.PLAYING && mediaPlayer.isPlaying()) {
+                state = PlaybackStateCompat.STATE_PLAYING;
+                speed = 1f;
+            } else {
+                state = PlaybackStateCompat.STATE_PAUSED;
+            }
+        }
+
+        mediaSession.setPlaybackState(new PlaybackStateCompat.Builder()
+                .setActions(PLAYBACK_ACTIONS)
+                .setState(state, position, speed, SystemClock.elapsedRealtime())
+                .build());
+    }
+
+    /**
+     * gets the token controllers use to follow this service's media session
+     * @return media session token
+     */
+    public MediaSessionCompat.Token getSessionToken() {
+        return mediaSession.getSessionToken();
+    }
+
+    /**
+     * Moves through the queue by a number of coalesced skips.
+     * Going back restarts the current track first if 3 sec or more have passed.
+     * @param steps tracks to move, negative for previous
+     */
+    private void skipBy(int steps) {
+        if (steps < 0 && mediaPlayerPrepared && mediaPlayer.getCurrentPosition() >= 3000)
+            steps++;
+        if (steps == 0) {
+            seekOwn(0);
+            resumePosition = 0;
+            return;
         }
+        int current = queue.current();
+        int item = current;
+        for (; steps > 0; steps--) {
+            int next = queue.next(false);
+            if (next < 0)
+                break;
+            item = next;
+        }
+        for (; steps < 0; steps++) {
+            item = queue.previous();
+        }
+        if (item < 0 || (item == current && steps > 0)) {
+            // already at the end of the queue
+            commitQueue();
+            return;
+        }
+        rememberPosition();
+        playItem(item);
+    }
 
-        new StorageService(getApplicationContext()).storeAudioIndex(audioIndex);
+    /**
+     * Stops the current track and starts the queue's current item
+     * @param item item ID the queue has moved to
+     */
+    private void playItem(int item) {
+        stopMedia();
+        // a track already prepared in the background continues on the next player
+        if (item != nextItem || !advanceToNextPlayer()) {
+            activeAudio = queue.get(item);
+            initMediaPlayer();
+        }
+        commitQueue();
+    }
+
+    /**
+     * Persists the queue changes made by the last command
+     */
+    private void commitQueue() {
+        if (queue != null && queueStore != null)
+            queueStore.commit(queue);
+    }
+
+    /**
+     * Re-prepares the gapless next player if a queue edit changed the following item
+     */
+    private void onQueueEdited() {
+        if (nextPlayer != null && queue.peekNext() != nextItem)
+            prepareNextPlayer();
+        commitQueue();
+    }
+
+    /**
+     * Queues a track to play right after the current one
+     * @param audio track
+     */
+    public void playNext(final Audio audio) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue == null)
+                    return;
+                queue.playNext(audio);
+                onQueueEdited();
+            }
+        });
+    }
+
+    /**
+     * Appends a track to the end of the queue
+     * @param audio track
+     */
+    public void enqueue(final Audio audio) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue == null)
+                    return;
+                queue.enqueue(audio);
+                onQueueEdited();
+            }
+        });
+    }
+
+    /**
+     * Removes a queue item; the current track keeps playing until it ends
+     * @param item item ID
+     */
+    public void removeFromQueue(final int item) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue == null || !queue.remove(item))
+                    return;
+                onQueueEdited();
+            }
+        });
+    }
+
+    /**
+     * Turns shuffle on or off
+     * @param shuffle true to shuffle the rest of the queue
+     */
+    public void setShuffle(final boolean shuffle) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue == null)
+                    return;
+                queue.setShuffle(shuffle);
+                mediaSession.setShuffleMode(shuffle ? PlaybackStateCompat.SHUFFLE_MODE_ALL
+                        : PlaybackStateCompat.SHUFFLE_MODE_NONE);
+                onQueueEdited();
+            }
+        });
+    }
+
+    /**
+     * @param mode {@link PlayQueue#REPEAT_OFF}, {@link PlayQueue#REPEAT_ALL} or {@link PlayQueue#REPEAT_ONE}
+     */
+    public void setRepeatMode(final int mode) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue == null)
+                    return;
+                queue.setRepeatMode(mode);
+                mediaSession.setRepeatMode(mode == PlayQueue.REPEAT_ONE ? PlaybackStateCompat.REPEAT_MODE_ONE
+                        : mode == PlayQueue.REPEAT_ALL ? PlaybackStateCompat.REPEAT_MODE_ALL
+                        : PlaybackStateCompat.REPEAT_MODE_NONE);
+                onQueueEdited();
+            }
+        });
+    }
+
+    @Override
+    public void onPlay() {
+        resumeMedia();
+        mStatus = PlaybackStatus.PLAYING;
+        startPositionSaves();
+        buildNotification();
+        updatePlaybackState();
+    }
+
+    @Override
+    public void onPause() {
+        pauseMedia();
+        savePosition();
+        mStatus = PlaybackStatus.PAUSED;
+        buildNotification();
+        updatePlaybackState();
+    }
+
+    @Override
+    public void onSkip(int steps) {
+        if (queue == null || queue.current() < 0)
+            return;
+        skipBy(steps);
+        updateMetaData();
+        mStatus = PlaybackStatus.PLAYING;
+        buildNotification();
+        updatePlaybackState();
+    }
+
+    @Override
+    public void onPlayIndex(List<Audio> handedOver, int index) {
+        // a bound client hands over its playlist, other callers address the current one
+        List<Audio> list = handedOver != null ? handedOver : playlist;
+        if (list == null)
+            list = new StorageService(getApplicationContext()).loadPlaylist();
+        if (list == null || list.isEmpty()) {
+            stopSelf();
+            return;
+        }
+        int size = list.size();
+        int start = (index % size + size) % size;
+        rememberPosition();
+        preparingRequestedAt = requestedAt;
+        preparingRoute = requestedRoute;
+        requestedAt = 0;
+        startQueue(list, start);
+
+        //reset mediaPlayer to play the new Audio
         stopMedia();
-        mediaPlayer.reset();
         initMediaPlayer();
+        updateMetaData();
+        mStatus = PlaybackStatus.PLAYING;
+        buildNotification();
+        updatePlaybackState();
+        persistQueue(handedOver, start);
     }
 
     /**
-     * Goes back to previous track from current track
+     * Persists a new queue once its first track is preparing. A handed over playlist
+     * is written to the playlist file first, on the persist thread, since the queue
+     * snapshot is only valid over the stored playlist.
+     * @param written playlist to store, null if the stored one is unchanged
+     * @param index start position, kept for when the queue cannot be restored
      */
-    private void skipToPrevious() {
-        // check track time to restart track if under 3 sec has passed
-        if (getCurrentVal() < 3000) {
-            // checks if current track is first in playlist
-            if (audioIndex == 0) {
-                audioIndex = audioList.size() - 1;
-                activeAudio = audioList.get(audioIndex);
-            } else {
-                activeAudio = audioList.get(--audioIndex);
+    private void persistQueue(final List<Audio> written, final int index) {
+        final PlayQueue started = queue;
+        final Runnable snapshot = new Runnable() {
+            @Override
+            public void run() {
+                // a newer queue is persisted by its own call
+                if (queue == started)
+                    queueStore.reset(started);
             }
+        };
+        if (written == null) {
+            new StorageService(getApplicationContext()).storeAudioIndex(index);
+            commands.post(snapshot);
+            return;
+        }
+        persistHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                StorageService storage = new StorageService(getApplicationContext());
+                storage.storeAudio(written);
+                storage.storeAudioIndex(index);
+                commands.post(snapshot);
+            }
+        });
+    }
 
-            new StorageService(getApplicationContext()).storeAudioIndex(audioIndex);
-            stopMedia();
-            mediaPlayer.reset();
-            initMediaPlayer();
-        } else {
-            mediaPlayer.seekTo(0);
+    @Override
+    public void onSeek(int position, int mode) {
+        if (mStatus == PlaybackStatus.PAUSED) {
+            resumePosition = position;
+        }
+        if (mediaPlayer == null || !mediaPlayerPrepared) {
+            // nothing to seek yet, let the next pending seek through
+            commands.onSeekComplete();
+            return;
+        }
+        seekStartNs = System.nanoTime();
+        mediaPlayer.seekTo(position, mode);
+    }
+
+    /**
+     * Seeks the current track outside the user's seeks, e.g. to a resume point. It
+     * counts as the seek in flight, so a user seek waits for it; if one is in flight
+     * already, this seek queues behind it like a user seek.
+     * @param position target position in ms
+     */
+    private void seekOwn(int position) {
+        if (!commands.beginOwnSeek()) {
+            commands.seekTo(position);
+            return;
         }
+        // only user seeks are timed
+        seekStartNs = 0;
+        mediaPlayer.seekTo(position);
     }
 
     /**
@@ -383,12 +1019,8 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * @param time ms time toString
      * @return String conversion of the raw int data
      */
-    public String timeToString(int time) {
-        int minutes = time / 60000;
-        int seconds = (time % 60000) / 1000;
-        if (seconds < 10)
-            return minutes + ":0" + seconds;
-        return minutes + ":" + seconds;
+    public static String timeToString(int time) {
+        return TimeFormat.minutesSeconds(time);
     }
 
     /**
@@ -408,111 +1040,76 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     }
 
     /**
-     * Move playback position
+     * Move playback position; seeks requested while one is in flight collapse to the latest
      * @param position target length to move playback to in ms
      */
     public void seekTo(int position) {
-        mediaPlayer.seekTo(position);
+        commands.seekTo(position);
     }
 
     /**
-     * Builds notification for current play track
+     * Previews a position while the user drags the seek bar: a fast seek to the sync
+     * sample before it, collapsing like {@link #seekTo(int)}; finish with seekTo
+     * @param position target length to move playback to in ms
      */
-    protected void buildNotification() {
-        int notificationAction = android.R.drawable.ic_media_pause;
-        PendingIntent play_pauseAction = null;
-
-        // Build notification based on MediaPlayer state
-        if (mStatus == PlaybackStatus.PLAYING) {
-            notificationAction = android.R.drawable.ic_media_pause;
-            play_pauseAction = playbackAction(1);
-        } else if (mStatus == PlaybackStatus.PAUSED) {
-            notificationAction = android.R.drawable.ic_media_play;
-            play_pauseAction = playbackAction(0);
-        }
-
-        Bitmap largeIcon = getAlbumArt(this, activeAudio.getAlbumId());
-
-        // Create notification
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat
-                .Builder(this, CHANNEL_ID).setShowWhen(false)
-                .setContentText(activeAudio.getArtist())
-                .setContentTitle(activeAudio.getAlbum())
-                .setContentInfo(activeAudio.getTitle())
-                .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
-                        .setMediaSession(mediaSession.getSessionToken())
-                .setShowActionsInCompactView(0, 1, 2)).setColor(getResources()
-                        .getColor(R.color.design_default_color_primary, getTheme()))
-                .setLargeIcon(largeIcon).setSmallIcon(android.R.drawable.stat_sys_headset)
-                .addAction(android.R.drawable.ic_media_previous, "previous", playbackAction(3))
-                .addAction(notificationAction, "pause", play_pauseAction)
-                .addAction(android.R.drawable.ic_media_next, "next", playbackAction(2));
-
-        ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
-                .notify(NOTIFICATION_ID, notificationBuilder.build());
+    public void scrubTo(int position) {
+        commands.seekTo(position, PlaybackEngine.SEEK_FAST);
     }
 
+    /**
+     * Shows the current track in the notification; unchanged notifications are not re-posted
+     */
+    protected void buildNotification() {
+        if (activeAudio == null || mediaSession == null)
+            return;
+        if (notifier == null)
+            notifier = new PlaybackNotifier(this, mediaSession.getSessionToken());
+        notifier.update(activeAudio, mStatus != PlaybackStatus.PAUSED);
+    }
 
     /**
-     * Get album art of a particular album.
+     * Get album art of a particular album, subsampled close to the size it is shown at.
      * @param context context
      * @param album_id ID of the album to retrieve album art
-     * @return album art bitmap
+     * @param maxSize largest width or height needed, in px
+     * @return album art bitmap, or null if the album has none
      */
-    public static Bitmap getAlbumArt(Context context, Long album_id) {
-        Bitmap albumArtBitMap = null;
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        try {
-
-            final Uri sArtworkUri = Uri.parse("content://media/external/audio/albumart");
-            Uri uri = ContentUris.withAppendedId(sArtworkUri, album_id);
-            ParcelFileDescriptor pfd = context.getContentResolver()
-                    .openFileDescriptor(uri, "r");
-
-            if (pfd != null) {
-                FileDescriptor fd = pfd.getFileDescriptor();
-                albumArtBitMap = BitmapFactory.decodeFileDescriptor(fd, null, options);
-                pfd = null;
-                fd = null;
-            }
-        } catch (Error | Exception ignored) { }
-
-        return albumArtBitMap;
+    public static Bitmap getAlbumArt(Context context, Long album_id, int maxSize) {
+        if (album_id == null)
+            return null;
+
+        final Uri sArtworkUri = Uri.parse("content://media/external/audio/albumart");
+        Uri uri = ContentUris.withAppendedId(sArtworkUri, album_id);
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null)
+                return null;
+
+            // the descriptor position is left unchanged, so it can be decoded twice
+            FileDescriptor fd = pfd.getFileDescriptor();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+
+            options.inSampleSize = BitmapSampling.calculateInSampleSize(options.outWidth,
+                    options.outHeight, maxSize, maxSize);
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (Error | Exception ignored) {
+            return null;
+        }
     }
 
     /**
      * Removes notification
      */
     private void removeNotification() {
-        NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        notificationManager.cancel(NOTIFICATION_ID);
-    }
-
-    /**
-     * Generates media player actions from notification triggers
-     * @param actionNumber 0: Play, 1: Pause, 2: Next, 3: Prev
-     * @return PENDING INTENT
-     */
-    protected PendingIntent playbackAction(int actionNumber) {
-        Intent playbackAction = new Intent(this, MediaPlayerService.class);
-        switch (actionNumber) {
-            case 0:
-                playbackAction.setAction(ACTION_PLAY);
-                return PendingIntent.getService(this, actionNumber, playbackAction, 0);
-            case 1:
-                playbackAction.setAction(ACTION_PAUSE);
-                return PendingIntent.getService(this, actionNumber, playbackAction, 0);
-            case 2:
-                playbackAction.setAction(ACTION_NEXT);
-                return PendingIntent.getService(this, actionNumber, playbackAction, 0);
-            case 3:
-                playbackAction.setAction(ACTION_PREVIOUS);
-                return PendingIntent.getService(this, actionNumber, playbackAction, 0);
-            default:
-                break;
-        }
-        return null;
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (notifier != null)
+                    notifier.cancel();
+            }
+        });
     }
 
     /**
@@ -545,37 +1142,56 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     }
 
     /**
-     * Invoked when the network stream has updated buffering
-     * @param mp media player
-     * @param percent percent loaded
-     */
-    @Override
-    public void onBufferingUpdate(MediaPlayer mp, int percent) {
-        //Invoked indicating buffering status of
-        //a media resource being streamed over the network.
-    }
-
-    /**
-     * Stops media and service
+     * Advances to the next track
      * Invoked upon completion of media playback
-     * @param mp media player
+     * @param mp playback engine
      */
     @Override
-    public void onCompletion(MediaPlayer mp) {
-        stopMedia();
-        stopSelf();
+    public void onCompletion(PlaybackEngine mp) {
+        if (mp != mediaPlayer)
+            return;
+
+        // played to the end, the next time it starts over
+        positions().update(activeAudio.getData(), 0);
+        int item = queue.next(true);
+        if (item < 0) {
+            // end of the queue
+            commitQueue();
+            resumePosition = 0;
+            mStatus = PlaybackStatus.PAUSED;
+            buildNotification();
+            updatePlaybackState();
+            return;
+        }
+        if (item == nextItem && advanceToNextPlayer()) {
+            commitQueue();
+        } else {
+            playItem(item);
+        }
+        updateMetaData();
+        mStatus = PlaybackStatus.PLAYING;
+        buildNotification();
+        updatePlaybackState();
     }
 
     /**
      * Error handling function
      * Catches asynchronous operational errors
-     * @param mp MediaPlayer object
+     * @param mp playback engine
      * @param i error
      * @param extra error descriptor
      * @return false on completion
      */
     @Override
-    public boolean onError(MediaPlayer mp, int i, int extra) {
+    public boolean onError(PlaybackEngine mp, int i, int extra) {
+        Audio failed = mp == nextPlayer ? queue.get(nextItem) : activeAudio;
+        telemetry.recordError(failed == null ? null : failed.getData(), i + "/" + extra);
+        if (mp == nextPlayer) {
+            // the current track keeps playing and completion falls back to a normal skip
+            Log.d("MediaPlayer Error", "next track failed to prepare " + i + " " + extra);
+            discardNextPlayer();
+            return true;
+        }
         switch (i) {
             case MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK:
                 Log.d("MediaPlayer Error", "MEDIA ERROR NOT VALID FOR PROGRESSIVE PLAYBACK " + extra);
@@ -591,35 +1207,119 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     }
 
     /**
-     * Invoked when info is being communicated
-     * @param mp media player
-     * @param what index
-     * @param extra info
-     * @return false
+     * Starts media playback, or chains the next track once it is primed
+     * Invoked when the media playback is primed.
+     * @param mp
      */
     @Override
-    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+    public void onPrepared(PlaybackEngine mp) {
+        if (mp == nextPlayer) {
+            telemetry.recordPrepare(nextPrepareStartNs, nextPrepareReadAhead);
+            nextPrepared = true;
+            mediaPlayer.setNext(nextPlayer);
+            return;
+        }
+        telemetry.recordPrepare(prepareStartNs, prepareReadAhead);
+        mediaPlayerPrepared = true;
+        int start = resumePointFor(mp.getDuration());
+        startPosition = -1;
+        if (start > 0)
+            seekOwn(start);
+        playMedia();
+        logRequestLatency();
+        startPositionSaves();
+        updateMetaDataDuration();
+        updatePlaybackState();
+        prepareNextPlayer();
+        readAhead();
+    }
 
-        return false;
+    /**
+     * Logs and records the time from the tap that asked for the current track until its
+     * engine was started; output latency of the audio path comes on top
+     */
+    private void logRequestLatency() {
+        if (preparingRequestedAt <= 0)
+            return;
+        long latencyMs = SystemClock.uptimeMillis() - preparingRequestedAt;
+        Log.d(LATENCY_TAG, "tap to start " + latencyMs + " ms, route " + preparingRoute);
+        telemetry.recordTapToStart(latencyMs, preparingRoute);
+        preparingRequestedAt = 0;
     }
 
     /**
-     * Starts media playback
-     * Invoked when the media playback is primed.
-     * @param mp
+     * Picks where the freshly prepared current track starts: the position playback
+     * stopped at before a restart, else the saved position of a long track
+     * @param duration track duration in ms
+     * @return position in ms
      */
-    @Override
-    public void onPrepared(MediaPlayer mp) {
-        playMedia();
+    private int resumePointFor(int duration) {
+        int start = startPosition;
+        if (start < 0)
+            start = duration >= LONG_FORM_MS ? positions().get(activeAudio.getData()) : 0;
+        return start < duration - RESUME_END_MARGIN_MS ? start : 0;
+    }
+
+    private PositionStore positions() {
+        if (positions == null) {
+            positions = new StorageService(getApplicationContext()).positionStore();
+            positions.load();
+        }
+        return positions;
     }
 
+    /**
+     * Notes the current track's position for the next batched write
+     */
+    private void rememberPosition() {
+        if (activeAudio == null || mediaPlayer == null || !mediaPlayerPrepared)
+            return;
+        positions().update(activeAudio.getData(), mediaPlayer.getCurrentPosition());
+    }
+
+    /**
+     * Writes the current track's position along with the batched ones
+     */
+    private void savePosition() {
+        rememberPosition();
+        if (positions != null)
+            positions.flush();
+    }
+
+    private void startPositionSaves() {
+        if (positionSavesRunning)
+            return;
+        positionSavesRunning = true;
+        commands.postDelayed(positionSaveTick, POSITION_SAVE_INTERVAL_MS);
+    }
+
+    // saves the position every few seconds while playing, stops once paused
+    private final Runnable positionSaveTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mStatus != PlaybackStatus.PLAYING || mediaPlayer == null) {
+                positionSavesRunning = false;
+                return;
+            }
+            savePosition();
+            commands.postDelayed(this, POSITION_SAVE_INTERVAL_MS);
+        }
+    };
+
     /**
      * Invoked when the seek call has completed
      * @param mp
      */
     @Override
-    public void onSeekComplete(MediaPlayer mp) {
-
+    public void onSeekComplete(PlaybackEngine mp) {
+        if (mp == mediaPlayer) {
+            if (seekStartNs != 0) {
+                telemetry.recordSeek(seekStartNs);
+                seekStartNs = 0;
+            }
+            commands.onSeekComplete();
+            updatePlaybackState();
+        }
     }
 
     /**
@@ -627,7 +1327,20 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      * @param focusChange
      */
     @Override
-    public void onAudioFocusChange(int focusChange) {
+    public void onAudioFocusChange(final int focusChange) {
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                handleAudioFocusChange(focusChange);
+            }
+        });
+    }
+
+    /**
+     * Applies an audio focus change on the playback thread
+     * @param focusChange
+     */
+    private void handleAudioFocusChange(int focusChange) {
         switch (focusChange) {
             // audio focus gain => resume playback
             case AudioManager.AUDIOFOCUS_GAIN:
@@ -636,22 +1349,35 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
                 else if (!mediaPlayer.isPlaying())
                     mediaPlayer.start();
                 mediaPlayer.setVolume(1.0f, 1.0f);
+                updatePlaybackState();
                 break;
             // audio focus loss => stop and release player
             case AudioManager.AUDIOFOCUS_LOSS:
+                if (mediaPlayer == null)
+                    break;
+                // playing again later continues from here
+                if (mediaPlayerPrepared)
+                    startPosition = mediaPlayer.getCurrentPosition();
+                savePosition();
                 if (mediaPlayer.isPlaying())
                     mediaPlayer.stop();
+                discardNextPlayer();
                 mediaPlayer.release();
                 mediaPlayer = null;
+                mediaPlayerPrepared = false;
+                // a seek in flight on the released player never completes
+                commands.onSeekComplete();
+                updatePlaybackState();
                 break;
             // short audio focus loss => pause playback
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                if (mediaPlayer.isPlaying())
+                if (mediaPlayer != null && mediaPlayer.isPlaying())
                     mediaPlayer.pause();
+                updatePlaybackState();
                 break;
             // short audio focus loss (e.g. notification) => lower volume
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                if (mediaPlayer.isPlaying())
+                if (mediaPlayer != null && mediaPlayer.isPlaying())
                     mediaPlayer.setVolume(0.1f, 0.1f);
                 break;
         }
@@ -667,33 +1393,44 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        try {
-            StorageService storage = new StorageService(getApplicationContext());
-            audioList = storage.loadAudio();
-            audioIndex = storage.loadAudioIndex();
-
-            if (audioIndex != -1 && audioIndex < audioList.size()) {
-                activeAudio = audioList.get(audioIndex);
-            } else {
-                stopSelf();
-            }
-        } catch (NullPointerException e) {
-            stopSelf();
-        }
-
-
-        if (mediaSessionManager == null) {
+        final boolean firstStart = mediaSessionManager == null;
+        if (firstStart) {
             try {
                 initMediaSession();
-                initMediaPlayer();
             } catch (RemoteException e) {
                 e.printStackTrace();
                 stopSelf();
             }
-            mStatus = PlaybackStatus.PLAYING;
-            buildNotification();
         }
 
+        // a start without action comes from the library with a new playlist, a null
+        // intent is a restart after the process was killed
+        final boolean newPlaylist = intent != null && intent.getAction() == null;
+        final long startRequestedAt = newPlaylist ? intent.getLongExtra(EXTRA_REQUESTED_AT, 0) : 0;
+        final long libraryVersion = newPlaylist ? intent.getLongExtra(EXTRA_LIBRARY_VERSION, 0) : 0;
+        final int libraryIndex = newPlaylist ? intent.getIntExtra(EXTRA_INDEX, -1) : -1;
+        commands.post(new Runnable() {
+            @Override
+            public void run() {
+                if (queue != null && !newPlaylist)
+                    return;
+                // command intents only get here to restore the queue after a restart
+                if (!loadQueue(!newPlaylist, libraryVersion, libraryIndex))
+                    return;
+                preparingRequestedAt = startRequestedAt;
+                preparingRoute = PlaybackTelemetry.ROUTE_STARTED;
+                // a restart continues where playback stopped
+                if (!newPlaylist && activeAudio.getData().equals(positions().getLastPath()))
+                    startPosition = positions().getLastPosition();
+                stopMedia();
+                initMediaPlayer();
+                updateMetaData();
+                mStatus = PlaybackStatus.PLAYING;
+                buildNotification();
+                updatePlaybackState();
+            }
+        });
+
         // check if audio focus can be gained
         if (!requestAudioFocus()) {
             stopSelf();
@@ -703,6 +1440,84 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         return super.onStartCommand(intent, flags, startId);
     }
 
+    /**
+     * Loads the play queue on the playback thread, restoring the persisted one if asked
+     * to and it belongs to the stored playlist, else starting at the stored index
+     * @param restore true to continue the persisted queue
+     * @param libraryVersion version of the library snapshot handed over to play instead
+     *                       of the stored playlist, 0 for none
+     * @param libraryIndex position in that snapshot to start at
+     * @return false if there is nothing valid to play
+     */
+    private boolean loadQueue(boolean restore, long libraryVersion, int libraryIndex) {
+        StorageService storage = new StorageService(getApplicationContext());
+        if (queueStore == null)
+            queueStore = storage.queueStore();
+        if (!restore && libraryVersion > 0) {
+            // the library the user played from is shared with the activity, it is
+            // stored as the playlist in the background; the index belongs to that
+            // snapshot only, never to the stored playlist
+            LibraryRepository.Snapshot library = LibraryRepository.get(this).take(libraryVersion);
+            if (library == null || libraryIndex < 0 || libraryIndex >= library.getTracks().size()) {
+                Log.w("MediaPlayerService", "library version " + libraryVersion + " is gone, not playing");
+                if (queue == null)
+                    stopSelf();
+                return false;
+            }
+            startQueue(library.getTracks(), libraryIndex);
+            persistQueue(library.getTracks(), libraryIndex);
+            return true;
+        }
+
+        List<Audio> playlist = storage.loadPlaylist();
+        if (playlist == null || playlist.isEmpty()) {
+            stopSelf();
+            return false;
+        }
+
+        PlayQueue restored = restore ? queueStore.restore(playlist, new Random()) : null;
+        if (restored != null) {
+            discardNextPlayer();
+            queue = restored;
+            this.playlist = playlist;
+        } else {
+            int index = storage.loadAudioIndex();
+            if (index < 0 || index >= playlist.size()) {
+                stopSelf();
+                return false;
+            }
+            startQueue(playlist, index);
+            queueStore.reset(queue);
+        }
+        int item = queue.current();
+        if (item < 0) {
+            stopSelf();
+            return false;
+        }
+        activeAudio = queue.get(item);
+        return true;
+    }
+
+    /**
+     * Replaces the queue with a new one over a playlist; the caller persists it
+     * @param playlist base playlist
+     * @param start position to start playing at
+     */
+    private void startQueue(List<Audio> playlist, int start) {
+        discardNextPlayer();
+        if (queueStore == null)
+            queueStore = new StorageService(getApplicationContext()).queueStore();
+        PlayQueue previous = queue;
+        queue = new PlayQueue(playlist, start, new Random());
+        if (previous != null) {
+            // shuffle and repeat are player settings, they carry over to the new playlist
+            queue.setRepeatMode(previous.getRepeatMode());
+            queue.setShuffle(previous.isShuffle());
+        }
+        this.playlist = playlist;
+        activeAudio = queue.get(queue.current());
+    }
+
     /**
      * Requests audio focus
      * @return true if request has been granted
@@ -723,10 +1538,13 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         int res = audioManager.requestAudioFocus(mFocusRequest);
         synchronized (mFocusLock) {
             if (res == AudioManager.AUDIOFOCUS_REQUEST_FAILED) {
+                telemetry.recordFocus(PlaybackTelemetry.FOCUS_FAILED);
                 return false;
             } else if (res == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+                telemetry.recordFocus(PlaybackTelemetry.FOCUS_GRANTED);
                 return true;
             } else if (res == AudioManager.AUDIOFOCUS_REQUEST_DELAYED) {
+                telemetry.recordFocus(PlaybackTelemetry.FOCUS_DELAYED);
                 mPlaybackDelayed = true;
                 return true;
             }
@@ -742,6 +1560,33 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         return AudioManager.AUDIOFOCUS_REQUEST_GRANTED == audioManager.abandonAudioFocusRequest(mFocusRequest);
     }
 
+    /**
+     * Prints the playback telemetry, for
+     * {@code adb shell dumpsys activity service com.example.droidpod/.MediaPlayerService}.
+     * The argument "export" also writes it to the app's external files directory,
+     * "reset" clears it after printing.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        String header = Build.MANUFACTURER + " " + Build.MODEL + ", API " + Build.VERSION.SDK_INT
+                + ", " + BuildConfig.VERSION_NAME + " (" + BuildConfig.VERSION_CODE + ")";
+        writer.println(header);
+        telemetry.writeTo(writer);
+        for (String arg : args) {
+            if ("export".equals(arg)) {
+                File file = new File(getExternalFilesDir(null), TELEMETRY_FILE);
+                try {
+                    telemetry.export(file, header);
+                    writer.println("exported to " + file);
+                } catch (IOException e) {
+                    writer.println("export failed: " + e);
+                }
+            } else if ("reset".equals(arg)) {
+                telemetry.reset();
+            }
+        }
+    }
+
     /**
      * Binds media player service
      */
@@ -749,6 +1594,19 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         public MediaPlayerService getService() {
             return MediaPlayerService.this;
         }
+
+        /**
+         * Plays a playlist from a position. The playlist is used as given and written
+         * to storage in the background once the track is preparing.
+         * @param playlist tracks to queue; must not change afterwards
+         * @param index position to start at
+         * @param requestedAt SystemClock.uptimeMillis() of the tap, 0 if unknown
+         */
+        public void playIndex(List<Audio> playlist, int index, long requestedAt) {
+            requestedRoute = PlaybackTelemetry.ROUTE_BOUND;
+            MediaPlayerService.this.requestedAt = requestedAt;
+            commands.playIndex(playlist, index);
+        }
     }
 
     /**
@@ -757,9 +1615,7 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
     private final BroadcastReceiver becomingNoisyReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            pauseMedia();
-            mStatus = PlaybackStatus.PAUSED;
-            buildNotification();
+            commands.pause();
         }
     };
 
@@ -780,26 +1636,13 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
 
         phoneStateListener = new PhoneStateListener() {
             @Override
-            public void onCallStateChanged(int state, String incomingNumber) {
-                // checks if phone is ringing or in call
-                switch (state) {
-                    case TelephonyManager.CALL_STATE_OFFHOOK:
-                    case TelephonyManager.CALL_STATE_RINGING:
-                        if (mediaPlayer != null) {
-                            pauseMedia();
-                            onGoingCall = true;
-                        }
-                        break;
-                    case TelephonyManager.CALL_STATE_IDLE:
-                        // Phone idle. Start playing.
-                        if (mediaPlayer != null) {
-                            if (onGoingCall) {
-                                onGoingCall = false;
-                                resumeMedia();
-                            }
-                        }
-                        break;
-                }
+            public void onCallStateChanged(final int state, String incomingNumber) {
+                commands.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleCallState(state);
+                    }
+                });
             }
         };
         // Register the listener with the telephony manager
@@ -808,6 +1651,34 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
                 PhoneStateListener.LISTEN_CALL_STATE);
     }
 
+    /**
+     * Pauses for calls and resumes afterwards, on the playback thread
+     * @param state telephony call state
+     */
+    private void handleCallState(int state) {
+        // checks if phone is ringing or in call
+        switch (state) {
+            case TelephonyManager.CALL_STATE_OFFHOOK:
+            case TelephonyManager.CALL_STATE_RINGING:
+                if (mediaPlayer != null) {
+                    pauseMedia();
+                    onGoingCall = true;
+                    updatePlaybackState();
+                }
+                break;
+            case TelephonyManager.CALL_STATE_IDLE:
+                // Phone idle. Start playing.
+                if (mediaPlayer != null) {
+                    if (onGoingCall) {
+                        onGoingCall = false;
+                        resumeMedia();
+                        updatePlaybackState();
+                    }
+                }
+                break;
+        }
+    }
+
     /**
      * Invoked to create notification channel
      */
@@ -815,7 +1686,7 @@ public class MediaPlayerService extends Service implements MediaPlayer.OnComplet
         CharSequence name = getString(R.string.channel_name);
         String description = getString(R.string.channel_description);
         int importance = NotificationManager.IMPORTANCE_LOW;
-        NotificationChannel channel = new NotificationChannel(CHANNEL_ID, name, importance);
+        NotificationChannel channel = new NotificationChannel(PlaybackNotifier.CHANNEL_ID, name, importance);
         channel.setDescription(description);
 
         // Register the channel with the system; you can't change the importance
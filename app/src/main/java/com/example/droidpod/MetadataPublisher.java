@@ -0,0 +1,121 @@
+package com.example.droidpod;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+/**
+ * Publishes track metadata to the media session in two steps: the text right away,
+ * then the album art once it has been decoded in the background. Art is scaled down
+ * to a size cap before it is put into the metadata, since every controller, the lock
+ * screen and Bluetooth receive a copy of the bitmap across Binder.
+ * Must be used from a single thread with a Looper.
+ */
+public class MetadataPublisher {
+
+    // large enough for the lock screen and AVRCP cover art
+    public static final int DEFAULT_ART_SIZE = 512;
+
+    // decoded art of a few albums at the size cap
+    private static final int ART_CACHE_BYTES = 6 * 1024 * 1024;
+
+    private final Context context;
+    private final MediaSessionCompat mediaSession;
+    private final Handler handler;
+    private AlbumArtCache artCache;
+
+    private MediaMetadataCompat current;
+    private Long currentAlbumId;
+    // bumped per published track, so late art of a previous track is dropped
+    private int generation;
+
+    public MetadataPublisher(Context context, MediaSessionCompat mediaSession, int artSize) {
+        this.context = context;
+        this.mediaSession = mediaSession;
+        this.handler = new Handler(Looper.myLooper());
+        this.artCache = new AlbumArtCache(context, artSize, ART_CACHE_BYTES);
+    }
+
+    /**
+     * Changes the art size cap; the current track's art is published again at the new size
+     * @param artSize largest width or height of published art, in px
+     */
+    public void setArtSize(int artSize) {
+        if (artSize == artCache.getMaxSize())
+            return;
+        artCache.release();
+        artCache = new AlbumArtCache(context, artSize, ART_CACHE_BYTES);
+        // art still on its way from the old cache has the old size
+        generation++;
+        if (current != null) {
+            current = new MediaMetadataCompat.Builder(current)
+                    .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, null)
+                    .build();
+            mediaSession.setMetadata(current);
+            loadArt(currentAlbumId);
+        }
+    }
+
+    /**
+     * Publishes a track's text metadata now, and its art when it is ready
+     * @param audio track being played
+     * @param duration track length in ms, or -1 if not known yet
+     */
+    public void publish(Audio audio, long duration) {
+        generation++;
+        currentAlbumId = audio.getAlbumId();
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, audio.getArtist())
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, audio.getAlbum())
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, audio.getTitle())
+                .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, artCache.getCached(currentAlbumId));
+        if (currentAlbumId != null)
+            builder.putLong(MediaPlayerService.METADATA_KEY_ALBUM_ID, currentAlbumId);
+        if (duration >= 0)
+            builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
+        current = builder.build();
+        mediaSession.setMetadata(current);
+
+        if (!artCache.isKnown(currentAlbumId))
+            loadArt(currentAlbumId);
+    }
+
+    /**
+     * Adds the duration once the track is prepared
+     * @param duration track length in ms
+     */
+    public void setDuration(long duration) {
+        if (current == null)
+            return;
+        current = new MediaMetadataCompat.Builder(current)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
+                .build();
+        mediaSession.setMetadata(current);
+    }
+
+    /**
+     * Stops loading art and drops the cache
+     */
+    public void release() {
+        handler.removeCallbacksAndMessages(null);
+        artCache.release();
+    }
+
+    private void loadArt(Long albumId) {
+        final int requested = generation;
+        artCache.load(albumId, handler, new AlbumArtCache.Callback() {
+            @Override
+            public void onAlbumArt(long albumId, Bitmap art) {
+                if (requested != generation || art == null || current == null)
+                    return;
+                current = new MediaMetadataCompat.Builder(current)
+                        .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, art)
+                        .build();
+                mediaSession.setMetadata(current);
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.droidpod;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Read-only window over a large track list, usually a memory-mapped {@link PlaylistFile}.
+ * Tracks are decoded a page at a time and only the most recently used pages are kept,
+ * so heap use stays the same whether the library has 1k or 200k tracks. While a diff
+ * walks the list the pages of the rows on screen are kept as well, see
+ * {@link #setDiffing(int, int)}.
+ */
+public class PagedAudioList extends AbstractList<Audio> implements RandomAccess {
+
+    static final int PAGE_SIZE = 64;
+    // a few screens in either direction
+    static final int MAX_PAGES = 16;
+
+    private final List<Audio> source;
+    private final LinkedHashMap<Integer, Audio[]> pages =
+            new LinkedHashMap<Integer, Audio[]>(MAX_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Audio[]> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+    // pages of the rows on screen while a diff runs, outside the LRU; -1 when none
+    private int pinnedFirst = -1;
+    private int pinnedLast = -1;
+    private final HashMap<Integer, Audio[]> pinned = new HashMap<>();
+
+    public PagedAudioList(List<Audio> source) {
+        this.source = source;
+    }
+
+    /**
+     * gets a track, decoding its page if it is not cached;
+     * safe to call from the UI and a background differ at the same time
+     * @param index track index
+     * @return track
+     */
+    @Override
+    public synchronized Audio get(int index) {
+        if (index < 0 || index >= source.size())
+            throw new IndexOutOfBoundsException("index " + index + ", size " + source.size());
+
+        int pageIndex = index / PAGE_SIZE;
+        boolean isPinned = pageIndex >= pinnedFirst && pageIndex <= pinnedLast;
+        Audio[] page = isPinned ? pinned.get(pageIndex) : pages.get(pageIndex);
+        if (page == null) {
+            page = pages.remove(pageIndex);
+            if (page == null)
+                page = decode(pageIndex);
+            if (isPinned)
+                pinned.put(pageIndex, page);
+            else
+                pages.put(pageIndex, page);
+        }
+        return page[index % PAGE_SIZE];
+    }
+
+    private Audio[] decode(int pageIndex) {
+        int start = pageIndex * PAGE_SIZE;
+        Audio[] page = new Audio[Math.min(PAGE_SIZE, source.size() - start)];
+        for (int i = 0; i < page.length; i++) {
+            page[i] = source.get(start + i);
+        }
+        return page;
+    }
+
+    /**
+     * Keeps the pages of the rows on screen while a diff walks the list. The diff's
+     * passes over the whole list go through the usual window, so they cannot evict
+     * what the UI binds, and heap use grows only by the visible rows.
+     * @param firstVisible first row on screen, -1 once the diff is applied
+     * @param lastVisible last row on screen
+     */
+    public synchronized void setDiffing(int firstVisible, int lastVisible) {
+        for (Map.Entry<Integer, Audio[]> page : pinned.entrySet()) {
+            pages.put(page.getKey(), page.getValue());
+        }
+        pinned.clear();
+        if (firstVisible < 0 || lastVisible < firstVisible) {
+            pinnedFirst = -1;
+            pinnedLast = -1;
+            return;
+        }
+        pinnedFirst = firstVisible / PAGE_SIZE;
+        pinnedLast = lastVisible / PAGE_SIZE;
+        for (int pageIndex = pinnedFirst; pageIndex <= pinnedLast; pageIndex++) {
+            Audio[] page = pages.remove(pageIndex);
+            if (page != null)
+                pinned.put(pageIndex, page);
+        }
+    }
+
+    @Override
+    public int size() {
+        return source.size();
+    }
+
+    /**
+     * gets the number of decoded pages currently held
+     * @return cached page count, at most {@link #MAX_PAGES} plus the pages on screen
+     *         while diffing
+     */
+    public synchronized int cachedPageCount() {
+        return pages.size() + pinned.size();
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.droidpod;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed ring of reusable PCM buffers between one decoder and one audio writer.
+ * All buffers are allocated up front, so neither side allocates while playing.
+ * The producer fills the slot from {@link #acquireWrite()} and publishes it; the
+ * consumer drains the slot from {@link #acquireRead(long)} and releases it. A
+ * {@link #clear()} for a seek drops everything queued, and the consumer learns
+ * from {@link #release()} that the slot it was writing had been dropped.
+ */
+public class PcmRing {
+
+    private final ByteBuffer[] buffers;
+    private final long[] timesUs;
+    private int head;
+    private int tail;
+    private int count;
+    private boolean ended;
+    private int generation;
+    // slot the consumer holds, reserved from the producer even after a clear
+    private int reading = -1;
+    private int readingGeneration;
+
+    /**
+     * @param slots number of buffers
+     * @param slotBytes size of each buffer
+     */
+    public PcmRing(int slots, int slotBytes) {
+        buffers = new ByteBuffer[slots];
+        timesUs = new long[slots];
+        for (int i = 0; i < slots; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(slotBytes).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public int capacity() {
+        return buffers.length;
+    }
+
+    public ByteBuffer buffer(int slot) {
+        return buffers[slot];
+    }
+
+    /**
+     * gets the presentation time of a published slot's first frame
+     * @param slot slot index
+     * @return time in us
+     */
+    public synchronized long timeUs(int slot) {
+        return timesUs[slot];
+    }
+
+    /**
+     * gets an empty, cleared slot for the producer to fill
+     * @return slot index, or -1 if the ring is full
+     */
+    public synchronized int acquireWrite() {
+        if (count == buffers.length || tail == reading)
+            return -1;
+        buffers[tail].clear();
+        return tail;
+    }
+
+    /**
+     * Hands a filled slot to the consumer; its buffer must be flipped for reading
+     * @param slot slot from {@link #acquireWrite()}
+     * @param timeUs presentation time of its first frame
+     */
+    public synchronized void publish(int slot, long timeUs) {
+        timesUs[slot] = timeUs;
+        tail = (tail + 1) % buffers.length;
+        count++;
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the stream after the published slots
+     */
+    public synchronized void publishEnd() {
+        ended = true;
+        notifyAll();
+    }
+
+    /**
+     * gets the oldest published slot, waiting up to a timeout for one. The slot is
+     * returned again until it is released, so a partly written buffer keeps its position.
+     * @param timeoutMs longest wait, 0 to return at once
+     * @return slot index, or -1 if none was published in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized int acquireRead(long timeoutMs) throws InterruptedException {
+        if (count == 0 && !ended && timeoutMs > 0)
+            wait(timeoutMs);
+        if (count == 0)
+            return -1;
+        reading = head;
+        readingGeneration = generation;
+        return head;
+    }
+
+    /**
+     * Returns the slot from {@link #acquireRead(long)} to the producer
+     * @return false if the ring was cleared meanwhile, i.e. the slot's data was stale
+     */
+    public synchronized boolean release() {
+        reading = -1;
+        if (readingGeneration != generation)
+            return false;
+        head = (head + 1) % buffers.length;
+        count--;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean hasSpace() {
+        return count < buffers.length && tail != reading;
+    }
+
+    /**
+     * @return true once the end was published and every slot was consumed
+     */
+    public synchronized boolean isDrained() {
+        return ended && count == 0;
+    }
+
+    /**
+     * Drops all published slots and the end marker
+     */
+    public synchronized void clear() {
+        // start after the slot being read, so the producer is not held up by it
+        if (tail == reading)
+            tail = (tail + 1) % buffers.length;
+        head = tail;
+        count = 0;
+        ended = false;
+        generation++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,722 @@
+package com.example.droidpod;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Playback queue over a base playlist.
+ *
+ * Every entry has a stable item ID: the base tracks are 0..n-1 and enqueued tracks
+ * are numbered after them. The main order is the item IDs in sequence, or a shuffle
+ * permutation that is drawn lazily, one Fisher-Yates step per track played, so
+ * shuffling costs O(1) per step whatever the queue length. Tracks added with
+ * {@link #playNext(Audio)} play before the main order continues. Removal only marks
+ * the item, which is skipped when reached.
+ *
+ * Each state change is written to an optional journal as a small record, and
+ * {@link #replay(DataInput)} applies such records to a queue restored from a
+ * {@link #writeSnapshot(DataOutput) snapshot}. Records describe the resulting state,
+ * not the command, so replay needs no random source.
+ */
+public class PlayQueue {
+
+    public static final int REPEAT_OFF = 0;
+    public static final int REPEAT_ALL = 1;
+    public static final int REPEAT_ONE = 2;
+
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_UP_NEXT_PUSH = 3;
+    private static final int OP_UP_NEXT_POLL = 4;
+    private static final int OP_SWAP = 5;
+    private static final int OP_DRAWN = 6;
+    private static final int OP_CURSOR = 7;
+    private static final int OP_SHUFFLE = 8;
+    private static final int OP_REPEAT = 9;
+
+    private static final int[] EMPTY = new int[0];
+
+    private final List<Audio> base;
+    private final ArrayList<Audio> added = new ArrayList<>();
+    private final BitSet removed = new BitSet();
+    // items that only play through the up-next list, never in the main order
+    private final BitSet upNextOnly = new BitSet();
+    private final ArrayDeque<Integer> upNext = new ArrayDeque<>();
+    private final Random random;
+
+    private boolean shuffle;
+    private int repeatMode = REPEAT_OFF;
+    // shuffle order: perm[pos] - 1 is the item at pos, where[item] - 1 its position;
+    // 0 stands for the identity, so the arrays need no initialization
+    private int[] perm = EMPTY;
+    private int[] where = EMPTY;
+    // positions below drawn are fixed for the current shuffle pass
+    private int drawn;
+    // position in the main order of the current or last played main item
+    private int cursor;
+    // up-next item being played, or -1
+    private int playingUpNext = -1;
+
+    private DataOutput journal;
+    private int journalRecords;
+    // hash of the base playlist's paths, computed on the first snapshot
+    private long baseIdentity;
+    private boolean baseIdentityKnown;
+
+    /**
+     * @param base base playlist, not modified
+     * @param start position of the first track to play
+     * @param random source for shuffle draws
+     */
+    public PlayQueue(List<Audio> base, int start, Random random) {
+        this.base = base;
+        this.random = random;
+        this.cursor = Math.max(0, Math.min(start, base.size() - 1));
+    }
+
+    /**
+     * Starts writing state changes to a journal
+     * @param journal record sink, or null to stop journaling
+     */
+    public void setJournal(DataOutput journal) {
+        this.journal = journal;
+        this.journalRecords = 0;
+    }
+
+    /**
+     * gets the number of records written since the journal was set
+     * @return record count
+     */
+    public int getJournalRecords() {
+        return journalRecords;
+    }
+
+    /**
+     * gets the number of item IDs in use, including removed items
+     * @return one more than the highest item ID
+     */
+    public int itemCount() {
+        return base.size() + added.size();
+    }
+
+    /**
+     * gets a track by item ID
+     * @param id item ID
+     * @return track
+     */
+    public Audio get(int id) {
+        return id < base.size() ? base.get(id) : added.get(id - base.size());
+    }
+
+    public boolean isRemoved(int id) {
+        return removed.get(id);
+    }
+
+    /**
+     * gets the item being played
+     * @return item ID, or -1 if the queue is empty
+     */
+    public int current() {
+        if (playingUpNext >= 0)
+            return playingUpNext;
+        return cursor < itemCount() ? order(cursor) : -1;
+    }
+
+    /**
+     * Moves to the following item
+     * @param fromCompletion true when the current track ended by itself, so
+     *                       {@link #REPEAT_ONE} plays it again
+     * @return new current item ID, or -1 at the end of the queue, leaving it unchanged
+     */
+    public int next(boolean fromCompletion) {
+        if (fromCompletion && repeatMode == REPEAT_ONE)
+            return current();
+
+        Integer up;
+        while ((up = upNext.peekFirst()) != null) {
+            pollUpNext();
+            if (!removed.get(up)) {
+                setCursor(cursor, up);
+                return up;
+            }
+        }
+
+        int pos = nextPosition();
+        if (pos < 0)
+            return -1;
+        setCursor(pos, -1);
+        return order(pos);
+    }
+
+    /**
+     * gets the item {@link #next(boolean) next(true)} would move to, so it can be
+     * prepared ahead of time. Shuffle draws the item if needed, which does not
+     * change what is played.
+     * @return item ID, or -1 if unknown until the current item ends
+     */
+    public int peekNext() {
+        if (repeatMode == REPEAT_ONE)
+            return current();
+        for (Integer up : upNext) {
+            if (!removed.get(up))
+                return up;
+        }
+
+        int count = itemCount();
+        for (int pos = cursor + 1; pos < count; pos++) {
+            if (shuffle && pos >= drawn)
+                draw(pos);
+            if (isPlayable(order(pos)))
+                return order(pos);
+        }
+        if (repeatMode == REPEAT_ALL && !shuffle) {
+            // a new shuffle pass is only drawn once it starts
+            for (int pos = 0; pos <= cursor && pos < count; pos++) {
+                if (isPlayable(pos))
+                    return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * gets items that follow the current one, e.g. to read their files ahead. Unlike
+     * {@link #peekNext()} nothing is drawn, so with shuffle only positions already
+     * drawn are known, and the wrap-around of a repeated queue is not followed.
+     * @param count items wanted
+     * @return item IDs in play order, possibly fewer than count
+     */
+    public int[] peekAhead(int count) {
+        return peekAhead(count, -1);
+    }
+
+    /**
+     * gets items that follow the current one, leaving one out
+     * @param count items wanted
+     * @param skip item ID not to list, e.g. the one already preparing; -1 for none
+     * @return item IDs in play order, possibly fewer than count
+     * @see #peekAhead(int)
+     */
+    public int[] peekAhead(int count, int skip) {
+        if (count <= 0 || repeatMode == REPEAT_ONE)
+            return EMPTY;
+        int[] items = new int[count];
+        int found = 0;
+        for (Integer up : upNext) {
+            if (found == count)
+                break;
+            if (!removed.get(up) && up != skip)
+                items[found++] = up;
+        }
+        int total = itemCount();
+        for (int pos = cursor + 1; pos < total && found < count; pos++) {
+            if (shuffle && pos >= drawn)
+                break;
+            int item = order(pos);
+            if (isPlayable(item) && item != skip)
+                items[found++] = item;
+        }
+        return Arrays.copyOf(items, found);
+    }
+
+    /**
+     * Moves to the previous item. The first item stays current unless repeating
+     * the whole unshuffled queue, and an up-next item returns to the main item
+     * it interrupted.
+     * @return new current item ID
+     */
+    public int previous() {
+        if (playingUpNext >= 0) {
+            setCursor(cursor, -1);
+            return current();
+        }
+        int count = itemCount();
+        int pos = cursor;
+        for (int visited = 0; visited < count; visited++) {
+            pos--;
+            if (pos < 0) {
+                if (shuffle || repeatMode == REPEAT_OFF)
+                    return current();
+                pos = count - 1;
+            }
+            if (isPlayable(order(pos))) {
+                setCursor(pos, -1);
+                return order(pos);
+            }
+        }
+        return current();
+    }
+
+    /**
+     * Plays an item of the main order now; in shuffle mode it is drawn next
+     * @param id item ID
+     * @return false if the item is removed or only queued as up-next
+     */
+    public boolean jumpTo(int id) {
+        if (id < 0 || id >= itemCount() || !isPlayable(id))
+            return false;
+        if (!shuffle) {
+            setCursor(id, -1);
+            return true;
+        }
+        int pos = where(id);
+        if (pos >= drawn) {
+            if (pos != drawn)
+                swap(drawn, pos);
+            pos = drawn;
+            setDrawn(drawn + 1);
+        }
+        setCursor(pos, -1);
+        return true;
+    }
+
+    /**
+     * Appends a track to the end of the main order
+     * @param audio track
+     * @return item ID of the track
+     */
+    public int enqueue(Audio audio) {
+        return addItem(audio, false);
+    }
+
+    /**
+     * Queues a track to play right after the current one
+     * @param audio track
+     * @return item ID of the track
+     */
+    public int playNext(Audio audio) {
+        int id = addItem(audio, true);
+        pushUpNext(id);
+        return id;
+    }
+
+    /**
+     * Removes an item; the current item keeps playing until it is left
+     * @param id item ID
+     * @return false if the item did not exist or was already removed
+     */
+    public boolean remove(int id) {
+        if (id < 0 || id >= itemCount() || removed.get(id))
+            return false;
+        removed.set(id);
+        record(OP_REMOVE, id, 0);
+        return true;
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    /**
+     * Turns shuffle on or off. The current item stays current and, when turning
+     * shuffle on, becomes the first item of the shuffle pass.
+     * @param on true to shuffle
+     */
+    public void setShuffle(boolean on) {
+        if (on == shuffle)
+            return;
+        int currentMain = cursor < itemCount() ? order(cursor) : 0;
+        setShuffleFlag(on);
+        if (on) {
+            if (itemCount() > 0) {
+                swap(0, currentMain);
+                setDrawn(1);
+            }
+            setCursor(0, playingUpNext);
+        } else {
+            setCursor(currentMain, playingUpNext);
+        }
+    }
+
+    public int getRepeatMode() {
+        return repeatMode;
+    }
+
+    /**
+     * @param mode {@link #REPEAT_OFF}, {@link #REPEAT_ALL} or {@link #REPEAT_ONE}
+     */
+    public void setRepeatMode(int mode) {
+        if (mode == repeatMode)
+            return;
+        repeatMode = mode;
+        record(OP_REPEAT, mode, 0);
+    }
+
+    /**
+     * Writes the whole state; together with the journal records written after it,
+     * this restores the queue
+     * @param out destination
+     * @throws IOException on write failure
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(base.size());
+        out.writeLong(getBaseIdentity());
+        out.writeInt(added.size());
+        for (int i = 0; i < added.size(); i++) {
+            writeAudio(out, added.get(i), upNextOnly.get(base.size() + i));
+        }
+        writeBits(out, removed);
+        out.writeInt(upNext.size());
+        for (int id : upNext) {
+            out.writeInt(id);
+        }
+        out.writeBoolean(shuffle);
+        out.writeInt(repeatMode);
+
+        int moved = 0;
+        for (int value : perm) {
+            if (value != 0)
+                moved++;
+        }
+        out.writeInt(moved);
+        for (int pos = 0; pos < perm.length; pos++) {
+            if (perm[pos] != 0) {
+                out.writeInt(pos);
+                out.writeInt(perm[pos] - 1);
+            }
+        }
+        out.writeInt(drawn);
+        out.writeInt(cursor);
+        out.writeInt(playingUpNext);
+    }
+
+    /**
+     * Restores a queue written by {@link #writeSnapshot(DataOutput)}
+     * @param in source
+     * @param base the same base playlist the snapshot was taken over
+     * @param random source for shuffle draws
+     * @return restored queue
+     * @throws IOException if the snapshot is malformed or belongs to another playlist
+     */
+    public static PlayQueue readSnapshot(DataInput in, List<Audio> base, Random random) throws IOException {
+        if (in.readInt() != base.size())
+            throw new IOException("queue snapshot of another playlist");
+        PlayQueue queue = new PlayQueue(base, 0, random);
+        // a playlist of the same length is not necessarily the same one
+        if (in.readLong() != queue.getBaseIdentity())
+            throw new IOException("queue snapshot of another playlist");
+        int addedCount = in.readInt();
+        for (int i = 0; i < addedCount; i++) {
+            boolean upNextOnly = in.readBoolean();
+            queue.addItem(readAudio(in), upNextOnly);
+        }
+        queue.removed.or(readBits(in));
+        int upNextCount = in.readInt();
+        for (int i = 0; i < upNextCount; i++) {
+            queue.upNext.addLast(queue.checkId(in.readInt()));
+        }
+        queue.shuffle = in.readBoolean();
+        queue.repeatMode = in.readInt();
+
+        int moved = in.readInt();
+        int count = queue.itemCount();
+        for (int i = 0; i < moved; i++) {
+            int pos = queue.checkId(in.readInt());
+            int id = queue.checkId(in.readInt());
+            queue.ensurePermCapacity(count);
+            queue.perm[pos] = id + 1;
+            queue.where[id] = pos + 1;
+        }
+        queue.drawn = in.readInt();
+        queue.cursor = in.readInt();
+        queue.playingUpNext = in.readInt();
+        if (queue.drawn < 0 || queue.drawn > count || queue.cursor < 0 || queue.cursor > Math.max(0, count - 1)
+                || queue.playingUpNext >= count)
+            throw new IOException("corrupt queue snapshot");
+        return queue;
+    }
+
+    /**
+     * gets a hash of the base playlist's track paths, which tells a snapshot's playlist
+     * from another one of the same length. The base is not modified, so it is computed once.
+     * @return 64-bit FNV-1a hash of the paths in order
+     */
+    long getBaseIdentity() {
+        if (!baseIdentityKnown) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < base.size(); i++) {
+                String path = base.get(i).getData();
+                int length = path == null ? -1 : path.length();
+                for (int c = 0; c < length; c++) {
+                    hash = (hash ^ path.charAt(c)) * 0x100000001b3L;
+                }
+                // separator, so the paths' boundaries count too
+                hash = (hash ^ (length & 0xffff) ^ 0x10000) * 0x100000001b3L;
+            }
+            baseIdentity = hash;
+            baseIdentityKnown = true;
+        }
+        return baseIdentity;
+    }
+
+    /**
+     * Applies journal records until the end of the input. A record cut short by a
+     * crash while it was written is ignored.
+     * @param in journal records
+     * @return number of records applied
+     * @throws IOException if a record is malformed
+     */
+    public int replay(DataInput in) throws IOException {
+        DataOutput journal = this.journal;
+        this.journal = null;
+        int applied = 0;
+        try {
+            while (true) {
+                int op;
+                try {
+                    op = in.readUnsignedByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                switch (op) {
+                    case OP_ADD:
+                        boolean onlyUpNext = in.readBoolean();
+                        addItem(readAudio(in), onlyUpNext);
+                        break;
+                    case OP_REMOVE:
+                        removed.set(checkId(in.readInt()));
+                        break;
+                    case OP_UP_NEXT_PUSH:
+                        pushUpNext(checkId(in.readInt()));
+                        break;
+                    case OP_UP_NEXT_POLL:
+                        pollUpNext();
+                        break;
+                    case OP_SWAP: {
+                        int a = checkId(in.readInt());
+                        int b = checkId(in.readInt());
+                        swap(a, b);
+                        break;
+                    }
+                    case OP_DRAWN:
+                        setDrawn(in.readInt());
+                        break;
+                    case OP_CURSOR: {
+                        int pos = in.readInt();
+                        int up = in.readInt();
+                        setCursor(pos, up);
+                        break;
+                    }
+                    case OP_SHUFFLE:
+                        setShuffleFlag(in.readBoolean());
+                        break;
+                    case OP_REPEAT:
+                        repeatMode = in.readInt();
+                        break;
+                    default:
+                        throw new IOException("unknown queue record " + op);
+                }
+                applied++;
+            }
+        } catch (EOFException e) {
+            // torn last record
+        } finally {
+            this.journal = journal;
+        }
+        return applied;
+    }
+
+    private boolean isPlayable(int id) {
+        return !removed.get(id) && !upNextOnly.get(id);
+    }
+
+    private int order(int pos) {
+        if (!shuffle)
+            return pos;
+        return pos < perm.length && perm[pos] != 0 ? perm[pos] - 1 : pos;
+    }
+
+    private int where(int id) {
+        return id < where.length && where[id] != 0 ? where[id] - 1 : id;
+    }
+
+    /**
+     * Finds the next playable position of the main order, drawing shuffle positions
+     * as they are reached
+     * @return position, or -1 at the end of the queue
+     */
+    private int nextPosition() {
+        int count = itemCount();
+        int pos = cursor;
+        for (int visited = 0; visited <= count; visited++) {
+            pos++;
+            if (pos >= count) {
+                if (repeatMode == REPEAT_OFF || count == 0)
+                    return -1;
+                pos = 0;
+                if (shuffle)
+                    setDrawn(0); // start a new shuffle pass
+            }
+            if (shuffle && pos >= drawn)
+                draw(pos);
+            if (isPlayable(order(pos)))
+                return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * One Fisher-Yates step: fixes a random undrawn item at pos
+     */
+    private void draw(int pos) {
+        int pick = pos + random.nextInt(itemCount() - pos);
+        if (pick != pos)
+            swap(pos, pick);
+        setDrawn(pos + 1);
+    }
+
+    private int addItem(Audio audio, boolean onlyUpNext) {
+        int id = itemCount();
+        added.add(audio);
+        if (onlyUpNext)
+            upNextOnly.set(id);
+        if (journal != null) {
+            try {
+                journal.writeByte(OP_ADD);
+                writeAudio(journal, audio, onlyUpNext);
+                journalRecords++;
+            } catch (IOException e) {
+                journal = null;
+            }
+        }
+        return id;
+    }
+
+    private void pushUpNext(int id) {
+        upNext.addFirst(id);
+        record(OP_UP_NEXT_PUSH, id, 0);
+    }
+
+    private void pollUpNext() {
+        upNext.pollFirst();
+        record(OP_UP_NEXT_POLL, 0, 0);
+    }
+
+    private void swap(int a, int b) {
+        ensurePermCapacity(itemCount());
+        int itemA = order(a);
+        int itemB = order(b);
+        perm[a] = itemB + 1;
+        perm[b] = itemA + 1;
+        where[itemB] = a + 1;
+        where[itemA] = b + 1;
+        record(OP_SWAP, a, b);
+    }
+
+    private void setDrawn(int drawn) {
+        this.drawn = drawn;
+        record(OP_DRAWN, drawn, 0);
+    }
+
+    private void setCursor(int pos, int up) {
+        cursor = pos;
+        playingUpNext = up;
+        record(OP_CURSOR, pos, up);
+    }
+
+    private void setShuffleFlag(boolean on) {
+        shuffle = on;
+        perm = EMPTY;
+        where = EMPTY;
+        drawn = 0;
+        record(OP_SHUFFLE, on ? 1 : 0, 0);
+    }
+
+    private void ensurePermCapacity(int count) {
+        if (perm.length < count) {
+            int capacity = Math.max(count, perm.length + (perm.length >> 1));
+            perm = Arrays.copyOf(perm, capacity);
+            where = Arrays.copyOf(where, capacity);
+        }
+    }
+
+    private int checkId(int id) throws IOException {
+        if (id < 0 || id >= itemCount())
+            throw new IOException("queue item " + id + " out of range");
+        return id;
+    }
+
+    private void record(int op, int a, int b) {
+        if (journal == null)
+            return;
+        try {
+            journal.writeByte(op);
+            switch (op) {
+                case OP_SWAP:
+                case OP_CURSOR:
+                    journal.writeInt(a);
+                    journal.writeInt(b);
+                    break;
+                case OP_SHUFFLE:
+                    journal.writeBoolean(a != 0);
+                    break;
+                case OP_UP_NEXT_POLL:
+                    break;
+                default:
+                    journal.writeInt(a);
+                    break;
+            }
+            journalRecords++;
+        } catch (IOException e) {
+            // the queue stays usable, it is just no longer persisted
+            journal = null;
+        }
+    }
+
+    private static void writeAudio(DataOutput out, Audio audio, boolean onlyUpNext) throws IOException {
+        out.writeBoolean(onlyUpNext);
+        writeString(out, audio.getData());
+        writeString(out, audio.getTitle());
+        writeString(out, audio.getAlbum());
+        writeString(out, audio.getArtist());
+        out.writeBoolean(audio.getAlbumId() != null);
+        if (audio.getAlbumId() != null)
+            out.writeLong(audio.getAlbumId());
+    }
+
+    private static Audio readAudio(DataInput in) throws IOException {
+        String data = readString(in);
+        String title = readString(in);
+        String album = readString(in);
+        String artist = readString(in);
+        Long albumId = in.readBoolean() ? in.readLong() : null;
+        return new Audio(data, title, album, artist, albumId);
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBits(DataOutput out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    private static BitSet readBits(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("corrupt queue snapshot");
+        long[] words = new long[length];
+        for (int i = 0; i < length; i++) {
+            words[i] = in.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.droidpod;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.List;
+
+/**
+ * Single playback thread that owns every MediaPlayer call.
+ * Transport commands from receivers, the media session, notification intents and
+ * bound clients are queued here and run in order. Bursts are coalesced: rapid skips
+ * become one track change to the final track, and seeks issued while another seek
+ * is in flight collapse to the latest position.
+ */
+public class PlaybackCommandExecutor {
+
+    // skips arriving within this window of each other become one track change
+    private static final long TRACK_CHANGE_DELAY_MS = 120;
+
+    /**
+     * Receives the coalesced commands on the playback thread
+     */
+    public interface Target {
+        void onPlay();
+
+        void onPause();
+
+        /**
+         * @param steps net number of tracks to move, negative for previous
+         */
+        void onSkip(int steps);
+
+        /**
+         * @param playlist playlist to start a new queue over, null for the current one
+         * @param index position in the playlist
+         */
+        void onPlayIndex(List<Audio> playlist, int index);
+
+        /**
+         * @param position target in ms
+         * @param mode PlaybackEngine.SEEK_PRECISE or SEEK_FAST
+         */
+        void onSeek(int position, int mode);
+    }
+
+    private final Target target;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // pending commands, guarded by this
+    private int pendingSkip;
+    private boolean hasPendingIndex;
+    private int pendingIndex;
+    private List<Audio> pendingPlaylist;
+    private int pendingSeek = -1;
+    private int pendingSeekMode;
+    private boolean seekInFlight;
+
+    public PlaybackCommandExecutor(Target target) {
+        this.target = target;
+        thread = new HandlerThread("Playback", Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * gets the playback thread's looper; MediaPlayers created on it deliver their callbacks there
+     * @return playback looper
+     */
+    public Looper getLooper() {
+        return thread.getLooper();
+    }
+
+    /**
+     * Runs work on the playback thread, after every command queued before it
+     * @param work work touching playback state
+     */
+    public void post(Runnable work) {
+        handler.post(work);
+    }
+
+    /**
+     * Runs work on the playback thread after a delay
+     * @param work work touching playback state
+     * @param delayMs delay in ms
+     */
+    public void postDelayed(Runnable work, long delayMs) {
+        handler.postDelayed(work, delayMs);
+    }
+
+    public void removeCallbacks(Runnable work) {
+        handler.removeCallbacks(work);
+    }
+
+    public void play() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                target.onPlay();
+            }
+        });
+    }
+
+    public void pause() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                target.onPause();
+            }
+        });
+    }
+
+    /**
+     * Moves through the queue; skips in quick succession are summed
+     * @param steps tracks to move, negative for previous
+     */
+    public void skip(int steps) {
+        synchronized (this) {
+            if (hasPendingIndex)
+                pendingIndex += steps;
+            else
+                pendingSkip += steps;
+        }
+        scheduleTrackChange(TRACK_CHANGE_DELAY_MS);
+    }
+
+    /**
+     * Jumps to a queue position, replacing any pending skips
+     * @param index queue position; the target wraps it into the queue's range
+     */
+    public void playIndex(int index) {
+        playIndex(null, index);
+    }
+
+    /**
+     * Starts a new queue over a playlist, replacing any pending skips or jumps
+     * @param playlist playlist handed over by the caller; it must not change afterwards
+     * @param index position in the playlist
+     */
+    public void playIndex(List<Audio> playlist, int index) {
+        synchronized (this) {
+            hasPendingIndex = true;
+            pendingIndex = index;
+            pendingPlaylist = playlist;
+            pendingSkip = 0;
+        }
+        scheduleTrackChange(0);
+    }
+
+    /**
+     * Seeks the current track; only the latest of several pending seeks is issued
+     * @param position target position in ms
+     */
+    public void seekTo(int position) {
+        seekTo(position, PlaybackEngine.SEEK_PRECISE);
+    }
+
+    /**
+     * Seeks the current track; only the latest of several pending seeks is issued,
+     * in its own mode
+     * @param position target position in ms
+     * @param mode PlaybackEngine.SEEK_PRECISE, or SEEK_FAST for previews while scrubbing
+     */
+    public void seekTo(int position, int mode) {
+        boolean issue;
+        synchronized (this) {
+            pendingSeek = position;
+            pendingSeekMode = mode;
+            issue = !seekInFlight;
+        }
+        if (issue) {
+            handler.removeCallbacks(seekRunnable);
+            handler.post(seekRunnable);
+        }
+    }
+
+    /**
+     * Marks a seek the target issues on its own, e.g. to a resume point, as the one in
+     * flight, so seeks requested meanwhile wait for its completion
+     * @return false if another seek is in flight; the caller then requests its seek
+     *         through {@link #seekTo(int)} instead
+     */
+    public synchronized boolean beginOwnSeek() {
+        if (seekInFlight)
+            return false;
+        seekInFlight = true;
+        return true;
+    }
+
+    /**
+     * Called on the playback thread when the player finished a seek,
+     * so the most recent pending seek can be issued
+     */
+    public void onSeekComplete() {
+        boolean issue;
+        synchronized (this) {
+            seekInFlight = false;
+            issue = pendingSeek >= 0;
+        }
+        if (issue)
+            handler.post(seekRunnable);
+    }
+
+    /**
+     * Stops the playback thread once the already queued work has run
+     */
+    public void quit() {
+        handler.removeCallbacks(trackChangeRunnable);
+        handler.removeCallbacks(seekRunnable);
+        thread.quitSafely();
+    }
+
+    private void scheduleTrackChange(long delayMs) {
+        handler.removeCallbacks(trackChangeRunnable);
+        handler.postDelayed(trackChangeRunnable, delayMs);
+    }
+
+    private final Runnable trackChangeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean jump;
+            int index;
+            List<Audio> playlist;
+            int steps;
+            synchronized (PlaybackCommandExecutor.this) {
+                jump = hasPendingIndex;
+                index = pendingIndex;
+                playlist = pendingPlaylist;
+                steps = pendingSkip;
+                hasPendingIndex = false;
+                pendingPlaylist = null;
+                pendingSkip = 0;
+                // seeks were aimed at the track being left
+                pendingSeek = -1;
+                seekInFlight = false;
+            }
+            if (jump)
+                target.onPlayIndex(playlist, index);
+            else if (steps != 0)
+                target.onSkip(steps);
+        }
+    };
+
+    private final Runnable seekRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int position;
+            int mode;
+            synchronized (PlaybackCommandExecutor.this) {
+                if (seekInFlight || pendingSeek < 0)
+                    return;
+                position = pendingSeek;
+                mode = pendingSeekMode;
+                pendingSeek = -1;
+                seekInFlight = true;
+            }
+            target.onSeek(position, mode);
+        }
+    };
+}
@@ -0,0 +1,95 @@
+package com.example.droidpod;
+
+import android.media.AudioAttributes;
+
+import java.io.IOException;
+
+/**
+ * Player of one track at a time, modelled on the subset of MediaPlayer the service uses.
+ * Engines are created on the playback thread and call their listener there.
+ * Errors use the MediaPlayer error codes.
+ */
+public interface PlaybackEngine {
+
+    // seek modes: the exact position, or the sync sample before it, which is cheaper
+    int SEEK_PRECISE = 0;
+    int SEEK_FAST = 1;
+
+    /**
+     * Receives engine events on the playback thread
+     */
+    interface Listener {
+        void onPrepared(PlaybackEngine engine);
+
+        void onCompletion(PlaybackEngine engine);
+
+        void onSeekComplete(PlaybackEngine engine);
+
+        /**
+         * @return true if handled, false to get {@link #onCompletion} as well
+         */
+        boolean onError(PlaybackEngine engine, int what, int extra);
+    }
+
+    void setListener(Listener listener);
+
+    void setAudioAttributes(AudioAttributes attributes);
+
+    void setDataSource(String path) throws IOException;
+
+    /**
+     * Starts preparing the data source, {@link Listener#onPrepared} follows
+     */
+    void prepareAsync();
+
+    void start();
+
+    void pause();
+
+    void stop();
+
+    boolean isPlaying();
+
+    /**
+     * @param position target in ms, {@link Listener#onSeekComplete} follows
+     */
+    void seekTo(int position);
+
+    /**
+     * @param position target in ms, {@link Listener#onSeekComplete} follows
+     * @param mode SEEK_PRECISE or SEEK_FAST
+     */
+    void seekTo(int position, int mode);
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    void setVolume(float left, float right);
+
+    /**
+     * Applies EQ, pre-gain and limiter settings to the engine's output
+     * @param params settings, or null for none; pass them again after changing them
+     */
+    void setDsp(DspParams params);
+
+    /**
+     * Sets the loudness normalization gain of the current track, independent of the DSP settings
+     * @param gainDb gain in dB, 0 for none
+     */
+    void setReplayGain(float gainDb);
+
+    /**
+     * Chains an engine to start without a gap when this one completes
+     * @param next prepared engine of the same kind, or null to unchain
+     * @return false if the engine cannot chain, the next one is then started on completion
+     */
+    boolean setNext(PlaybackEngine next);
+
+    /**
+     * Returns the engine to the idle state, ready for a new data source
+     */
+    void reset();
+
+    void release();
+}
@@ -0,0 +1,77 @@
+package com.example.droidpod;
+
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of idle playback engines, so track changes reuse a reset
+ * engine instead of allocating a new native player every time
+ */
+public class PlaybackEnginePool {
+
+    public static final int ENGINE_MEDIA_PLAYER = 0;
+    public static final int ENGINE_CODEC = 1;
+
+    // the current and the pre-prepared next track are the most ever in use
+    private static final int MAX_IDLE = 2;
+
+    private final ArrayDeque<PlaybackEngine> idle = new ArrayDeque<>(MAX_IDLE);
+    private int engineType = ENGINE_MEDIA_PLAYER;
+
+    public int getEngineType() {
+        return engineType;
+    }
+
+    /**
+     * Selects the engine handed out from now on, releasing idle engines of the other kind
+     * @param type ENGINE_MEDIA_PLAYER or ENGINE_CODEC
+     */
+    public void setEngineType(int type) {
+        if (type == engineType)
+            return;
+        engineType = type;
+        releaseAll();
+    }
+
+    /**
+     * gets an idle engine in the idle state, or a new one if the pool is empty
+     * @return engine ready for setDataSource()
+     */
+    public PlaybackEngine acquire() {
+        PlaybackEngine engine = idle.poll();
+        if (engine != null)
+            return engine;
+        return engineType == ENGINE_CODEC ? new CodecEngine() : new MediaPlayerEngine();
+    }
+
+    /**
+     * Resets an engine and returns it to the pool, releasing it if the pool is full
+     * or it is of a kind no longer in use
+     * @param engine engine no longer in use
+     */
+    public void recycle(PlaybackEngine engine) {
+        if (engine == null)
+            return;
+        try {
+            engine.reset();
+        } catch (IllegalStateException e) {
+            engine.release();
+            return;
+        }
+        boolean current = (engine instanceof CodecEngine) == (engineType == ENGINE_CODEC);
+        if (current && idle.size() < MAX_IDLE) {
+            idle.push(engine);
+        } else {
+            engine.release();
+        }
+    }
+
+    /**
+     * Releases every pooled engine
+     */
+    public void releaseAll() {
+        PlaybackEngine engine;
+        while ((engine = idle.poll()) != null) {
+            engine.release();
+        }
+    }
+}
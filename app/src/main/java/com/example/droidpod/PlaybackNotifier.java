@@ -0,0 +1,155 @@
+package com.example.droidpod;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.Objects;
+
+/**
+ * Keeps the playback notification in step with the player.
+ * The last posted model is remembered and the notification is only re-posted when
+ * a visible field changed. PendingIntents and builders are created once, and the
+ * large icon is a pre-scaled thumbnail loaded asynchronously per album.
+ * Must be used from a single thread with a Looper.
+ */
+public class PlaybackNotifier {
+
+    static final String CHANNEL_ID = "Transport Controller";
+    private static final int NOTIFICATION_ID = 1;
+
+    // thumbnails of a few albums, enough for skipping back and forth
+    private static final int ART_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final Handler handler;
+    private final AlbumArtCache artCache;
+
+    // one builder per play state, as actions cannot be replaced on a builder
+    private final NotificationCompat.Builder playingBuilder;
+    private final NotificationCompat.Builder pausedBuilder;
+
+    // model of the posted notification
+    private boolean posted;
+    private String title;
+    private String artist;
+    private String album;
+    private Long albumId;
+    private boolean playing;
+    private Bitmap art;
+
+    public PlaybackNotifier(Context context, MediaSessionCompat.Token sessionToken) {
+        this.context = context;
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.handler = new Handler(Looper.myLooper());
+        int iconSize = context.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        this.artCache = new AlbumArtCache(context, iconSize, ART_CACHE_BYTES);
+
+        PendingIntent previous = playbackAction(MediaPlayerService.ACTION_PREVIOUS, 3);
+        PendingIntent next = playbackAction(MediaPlayerService.ACTION_NEXT, 2);
+        playingBuilder = newBuilder(sessionToken)
+                .addAction(android.R.drawable.ic_media_previous, "previous", previous)
+                .addAction(android.R.drawable.ic_media_pause, "pause",
+                        playbackAction(MediaPlayerService.ACTION_PAUSE, 1))
+                .addAction(android.R.drawable.ic_media_next, "next", next);
+        pausedBuilder = newBuilder(sessionToken)
+                .addAction(android.R.drawable.ic_media_previous, "previous", previous)
+                .addAction(android.R.drawable.ic_media_play, "pause",
+                        playbackAction(MediaPlayerService.ACTION_PLAY, 0))
+                .addAction(android.R.drawable.ic_media_next, "next", next);
+    }
+
+    /**
+     * Shows a track, re-posting only if something visible changed
+     * @param audio track being played
+     * @param playing true for the pause action, false for the play action
+     */
+    public void update(Audio audio, boolean playing) {
+        if (audio == null)
+            return;
+        Long albumId = audio.getAlbumId();
+        Bitmap art = Objects.equals(albumId, this.albumId) ? this.art : artCache.getCached(albumId);
+        if (!artCache.isKnown(albumId)) {
+            artCache.load(albumId, handler, new AlbumArtCache.Callback() {
+                @Override
+                public void onAlbumArt(long loadedId, Bitmap loaded) {
+                    if (posted && Objects.equals(loadedId, PlaybackNotifier.this.albumId)
+                            && loaded != PlaybackNotifier.this.art) {
+                        PlaybackNotifier.this.art = loaded;
+                        post();
+                    }
+                }
+            });
+        }
+
+        if (posted && playing == this.playing && art == this.art && Objects.equals(albumId, this.albumId)
+                && Objects.equals(audio.getTitle(), title) && Objects.equals(audio.getArtist(), artist)
+                && Objects.equals(audio.getAlbum(), album))
+            return;
+
+        this.title = audio.getTitle();
+        this.artist = audio.getArtist();
+        this.album = audio.getAlbum();
+        this.albumId = albumId;
+        this.playing = playing;
+        this.art = art;
+        post();
+    }
+
+    /**
+     * Removes the notification; the next update posts it again
+     */
+    public void cancel() {
+        posted = false;
+        notificationManager.cancel(NOTIFICATION_ID);
+    }
+
+    /**
+     * Removes the notification and stops loading art
+     */
+    public void release() {
+        cancel();
+        handler.removeCallbacksAndMessages(null);
+        artCache.release();
+    }
+
+    private void post() {
+        NotificationCompat.Builder builder = playing ? playingBuilder : pausedBuilder;
+        builder.setContentText(artist)
+                .setContentTitle(album)
+                .setContentInfo(title)
+                .setLargeIcon(art);
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+        posted = true;
+    }
+
+    private NotificationCompat.Builder newBuilder(MediaSessionCompat.Token sessionToken) {
+        return new NotificationCompat.Builder(context, CHANNEL_ID).setShowWhen(false)
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setStyle(new androidx.media.app.NotificationCompat.MediaStyle()
+                        .setMediaSession(sessionToken)
+                        .setShowActionsInCompactView(0, 1, 2))
+                .setColor(context.getResources()
+                        .getColor(R.color.design_default_color_primary, context.getTheme()))
+                .setSmallIcon(android.R.drawable.stat_sys_headset);
+    }
+
+    /**
+     * Creates the PendingIntent for a notification button, once per action
+     * @param action MediaPlayerService action
+     * @param requestCode distinct request code per action
+     * @return intent starting the service with the action
+     */
+    private PendingIntent playbackAction(String action, int requestCode) {
+        Intent intent = new Intent(context, MediaPlayerService.class).setAction(action);
+        return PendingIntent.getService(context, requestCode, intent, 0);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.droidpod;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Field telemetry of the player: how long tracks take to prepare, split by whether
+ * their files were read ahead, and seeks to complete, how long a tap takes until
+ * playback starts, split by the route the request took, how audio focus requests end
+ * and which errors occur for which file formats. Everything is counted in memory
+ * without locks and read through {@link #writeTo(PrintWriter)}, e.g. from dumpsys.
+ */
+public class PlaybackTelemetry {
+
+    public static final int FOCUS_GRANTED = 0;
+    public static final int FOCUS_DELAYED = 1;
+    public static final int FOCUS_FAILED = 2;
+    private static final String[] FOCUS_NAMES = {"granted", "delayed", "failed"};
+
+    // routes a play request reaches the service by
+    public static final int ROUTE_BOUND = 0;
+    public static final int ROUTE_SESSION = 1;
+    public static final int ROUTE_STARTED = 2;
+    private static final String[] ROUTE_NAMES = {"bound", "session", "started"};
+
+    // latencies in microseconds, up to a minute
+    private static final long HIGHEST_US = 60L * 1000 * 1000;
+    private static final int PRECISION_BITS = 7;
+
+    private final LatencyHistogram prepare = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+    private final LatencyHistogram prepareReadAhead = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+    private final LatencyHistogram prepareCold = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+    private final LatencyHistogram seek = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+    private final LatencyHistogram tapToStart = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+    private final LatencyHistogram[] tapToStartByRoute = new LatencyHistogram[ROUTE_NAMES.length];
+    private final AtomicLongArray focus = new AtomicLongArray(FOCUS_NAMES.length);
+    // "format code" -> count
+    private final ConcurrentHashMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+    public PlaybackTelemetry() {
+        for (int i = 0; i < tapToStartByRoute.length; i++) {
+            tapToStartByRoute[i] = new LatencyHistogram(HIGHEST_US, PRECISION_BITS);
+        }
+    }
+
+    /**
+     * @param startNs System.nanoTime() when prepareAsync was called
+     * @param readAhead true if the track's file had been read ahead
+     */
+    public void recordPrepare(long startNs, boolean readAhead) {
+        long us = (System.nanoTime() - startNs) / 1000;
+        prepare.record(us);
+        (readAhead ? prepareReadAhead : prepareCold).record(us);
+    }
+
+    /**
+     * @param startNs System.nanoTime() when seekTo was called
+     */
+    public void recordSeek(long startNs) {
+        seek.record((System.nanoTime() - startNs) / 1000);
+    }
+
+    /**
+     * @param latencyMs time from the user's tap until the engine was started
+     * @param route ROUTE_BOUND for a list handed to the bound service, ROUTE_SESSION for
+     *              a media session command, ROUTE_STARTED for a list the started
+     *              service reads from storage or the library
+     */
+    public void recordTapToStart(long latencyMs, int route) {
+        tapToStart.record(latencyMs * 1000);
+        tapToStartByRoute[route].record(latencyMs * 1000);
+    }
+
+    /**
+     * @param outcome FOCUS_GRANTED, FOCUS_DELAYED or FOCUS_FAILED
+     */
+    public void recordFocus(int outcome) {
+        focus.incrementAndGet(outcome);
+    }
+
+    /**
+     * Counts an error of a file
+     * @param path file the error occurred on, its extension is the format
+     * @param code error, e.g. "what/extra" of the engine
+     */
+    public void recordError(String path, String code) {
+        String key = formatOf(path) + " " + code;
+        AtomicLong count = errors.get(key);
+        if (count == null) {
+            AtomicLong added = new AtomicLong();
+            count = errors.putIfAbsent(key, added);
+            if (count == null)
+                count = added;
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Prints every histogram and counter
+     * @param out writer
+     */
+    public void writeTo(PrintWriter out) {
+        prepare.writeTo(out, "prepare", "us");
+        prepareReadAhead.writeTo(out, "prepare read ahead", "us");
+        prepareCold.writeTo(out, "prepare cold", "us");
+        seek.writeTo(out, "seek", "us");
+        tapToStart.writeTo(out, "tap to start", "us");
+        for (int i = 0; i < ROUTE_NAMES.length; i++) {
+            tapToStartByRoute[i].writeTo(out, "tap to start " + ROUTE_NAMES[i], "us");
+        }
+        out.print("focus requests:");
+        for (int i = 0; i < FOCUS_NAMES.length; i++) {
+            out.print(" " + FOCUS_NAMES[i] + "=" + focus.get(i));
+        }
+        out.println();
+        out.println("errors:");
+        for (Map.Entry<String, AtomicLong> error : new TreeMap<>(errors).entrySet()) {
+            out.println("  " + error.getKey() + " " + error.getValue().get());
+        }
+    }
+
+    /**
+     * Writes the dump to a file, replacing it
+     * @param file target file
+     * @param header first line, e.g. device and build
+     * @throws IOException if the file cannot be written
+     */
+    public void export(File file, String header) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.println(header);
+            writeTo(out);
+        }
+    }
+
+    /**
+     * Drops everything recorded so far
+     */
+    public void reset() {
+        prepare.reset();
+        prepareReadAhead.reset();
+        prepareCold.reset();
+        seek.reset();
+        tapToStart.reset();
+        for (LatencyHistogram histogram : tapToStartByRoute) {
+            histogram.reset();
+        }
+        for (int i = 0; i < focus.length(); i++) {
+            focus.set(i, 0);
+        }
+        errors.clear();
+    }
+
+    static String formatOf(String path) {
+        if (path == null)
+            return "unknown";
+        int dot = path.lastIndexOf('.');
+        if (dot < 0 || dot < path.lastIndexOf('/'))
+            return "unknown";
+        return path.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.droidpod;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact binary playlist, read lazily through a memory-mapped file.
+ *
+ * Layout (big endian):
+ * <pre>
+ * int magic, int version, int stringCount, int trackCount
+ * int[stringCount]  string offsets, relative to the string section
+ * trackCount x { int data, int title, int album, int artist, int albumArtist, long albumId,
+ *                int trackNumber, int discNumber }
+ * string section: { int byteLength, byte[byteLength] UTF-8 } per interned string
+ * </pre>
+ * Track records are fixed size so track N is decoded without touching the others,
+ * string references of -1 and an albumId of {@link #NO_ALBUM_ID} stand for null.
+ */
+public class PlaylistFile extends AbstractList<Audio> implements RandomAccess {
+
+    private static final int MAGIC = 0x6450504c; // "dPPL"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int TRACK_SIZE = 36;
+    private static final long NO_ALBUM_ID = Long.MIN_VALUE;
+    // string references per track
+    private static final int FIELDS = 5;
+
+    private final ByteBuffer buffer;
+    private final int trackCount;
+    private final int offsetsStart;
+    private final int tracksStart;
+    private final int stringsStart;
+    // decoded strings, shared by every track that references them; null when not caching
+    private final String[] strings;
+
+    private PlaylistFile(ByteBuffer buffer, boolean cacheStrings) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException("not a playlist file");
+
+        int stringCount = buffer.getInt(8);
+        trackCount = buffer.getInt(12);
+        offsetsStart = HEADER_SIZE;
+        tracksStart = offsetsStart + 4 * stringCount;
+        stringsStart = tracksStart + TRACK_SIZE * trackCount;
+        if (stringCount < 0 || trackCount < 0 || stringsStart > buffer.limit())
+            throw new IOException("truncated playlist file");
+        strings = cacheStrings ? new String[stringCount] : null;
+    }
+
+    /**
+     * Maps a playlist file; nothing is decoded until a track is requested
+     * @param file playlist written by {@link #write(File, List)}
+     * @return lazily decoded playlist
+     * @throws IOException if the file is missing or malformed
+     */
+    public static PlaylistFile open(File file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * Maps a playlist file, optionally without keeping decoded strings around, for
+     * callers that bound their own cache of decoded tracks
+     * @param file playlist written by {@link #write(File, List)}
+     * @param cacheStrings true to decode each pooled string only once
+     * @return lazily decoded playlist
+     * @throws IOException if the file is missing or malformed
+     */
+    public static PlaylistFile open(File file, boolean cacheStrings) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new PlaylistFile(map, cacheStrings);
+        }
+    }
+
+    /**
+     * Wraps an in-memory copy of a playlist file
+     * @param buffer encoded playlist
+     * @return lazily decoded playlist
+     * @throws IOException if the buffer is malformed
+     */
+    public static PlaylistFile wrap(ByteBuffer buffer) throws IOException {
+        return new PlaylistFile(buffer.duplicate(), true);
+    }
+
+    /**
+     * Writes a playlist to a temporary file and renames it into place, so readers
+     * holding a mapping of the old file are unaffected
+     * @param file destination
+     * @param audioList tracks to write
+     * @throws IOException on write failure
+     */
+    public static void write(File file, List<Audio> audioList) throws IOException {
+        ByteBuffer encoded = encode(audioList);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             FileChannel channel = out.getChannel()) {
+            while (encoded.hasRemaining()) {
+                channel.write(encoded);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    /**
+     * Encodes a playlist, interning repeated strings such as artist and album names
+     * @param audioList tracks to encode
+     * @return buffer positioned at 0, limited to the encoded length
+     */
+    public static ByteBuffer encode(List<Audio> audioList) {
+        HashMap<String, Integer> pool = new HashMap<>();
+        ArrayList<byte[]> poolBytes = new ArrayList<>();
+        int trackCount = audioList.size();
+        int[] refs = new int[trackCount * FIELDS];
+        int stringBytes = 0;
+
+        for (int i = 0; i < trackCount; i++) {
+            Audio audio = audioList.get(i);
+            String[] fields = {audio.getData(), audio.getTitle(), audio.getAlbum(), audio.getArtist(),
+                    audio.getAlbumArtist()};
+            for (int f = 0; f < FIELDS; f++) {
+                String s = fields[f];
+                if (s == null) {
+                    refs[i * FIELDS + f] = -1;
+                    continue;
+                }
+                Integer ref = pool.get(s);
+                if (ref == null) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    ref = poolBytes.size();
+                    pool.put(s, ref);
+                    poolBytes.add(bytes);
+                    stringBytes += 4 + bytes.length;
+                }
+                refs[i * FIELDS + f] = ref;
+            }
+        }
+
+        int stringCount = poolBytes.size();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4 * stringCount
+                + TRACK_SIZE * trackCount + stringBytes);
+        out.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(stringCount).putInt(trackCount);
+
+        int offset = 0;
+        for (byte[] bytes : poolBytes) {
+            out.putInt(offset);
+            offset += 4 + bytes.length;
+        }
+        for (int i = 0; i < trackCount; i++) {
+            Audio audio = audioList.get(i);
+            Long albumId = audio.getAlbumId();
+            for (int f = 0; f < FIELDS; f++) {
+                out.putInt(refs[i * FIELDS + f]);
+            }
+            out.putLong(albumId == null ? NO_ALBUM_ID : albumId);
+            out.putInt(audio.getTrackNumber()).putInt(audio.getDiscNumber());
+        }
+        for (byte[] bytes : poolBytes) {
+            out.putInt(bytes.length).put(bytes);
+        }
+        out.flip();
+        return out;
+    }
+
+    @Override
+    public Audio get(int index) {
+        if (index < 0 || index >= trackCount)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + trackCount);
+
+        int record = tracksStart + index * TRACK_SIZE;
+        long albumId = buffer.getLong(record + 20);
+        Audio audio = new Audio(string(buffer.getInt(record)),
+                string(buffer.getInt(record + 4)),
+                string(buffer.getInt(record + 8)),
+                string(buffer.getInt(record + 12)),
+                albumId == NO_ALBUM_ID ? null : albumId);
+        audio.setAlbumArtist(string(buffer.getInt(record + 16)));
+        audio.setTrackNumber(buffer.getInt(record + 28));
+        audio.setDiscNumber(buffer.getInt(record + 32));
+        return audio;
+    }
+
+    @Override
+    public int size() {
+        return trackCount;
+    }
+
+    private String string(int ref) {
+        if (ref < 0)
+            return null;
+        String s = strings != null ? strings[ref] : null;
+        if (s == null) {
+            int position = stringsStart + buffer.getInt(offsetsStart + 4 * ref);
+            int length = buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + 4);
+            view.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            if (strings != null)
+                strings[ref] = s;
+        }
+        return s;
+    }
+}
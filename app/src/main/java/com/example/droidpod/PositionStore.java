@@ -0,0 +1,225 @@
+package com.example.droidpod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-track resume positions, persisted as an append-only log of
+ * (path, position) records. Updates are kept in memory and appended in one write
+ * by {@link #flush()}; the last record in the file is the last played track, so a
+ * single sequential read restores both the positions and where playback stopped.
+ * The log is rewritten with one record per track once it is mostly stale.
+ */
+public class PositionStore {
+
+    private static final int MAGIC = 0x6450504f; // "dPPO"
+    private static final int FORMAT_VERSION = 1;
+
+    // compact once the log holds this many records and four times as many as tracks
+    private static final int COMPACT_RECORDS = 1024;
+    // tracks kept by a compaction, most recently updated first
+    private static final int MAX_TRACKS = 2000;
+
+    private final File file;
+    // positions in update order, the last entry is the last played track
+    private final LinkedHashMap<String, Integer> positions = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Integer> pending = new LinkedHashMap<>();
+    private int records;
+    private String lastPath;
+    private int lastPosition;
+
+    public PositionStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the log, keeping the newest position of each track. A record cut short
+     * by a crash while it was written is ignored and cut off the file, so later
+     * records are not appended after it.
+     */
+    public void load() {
+        positions.clear();
+        pending.clear();
+        records = 0;
+        lastPath = null;
+        lastPosition = 0;
+        if (!file.exists())
+            return;
+
+        // end of the last complete record, 0 until the header is known to be good
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                throw new IOException("not a position log: " + file);
+            valid = 8;
+            while (true) {
+                String path = in.readUTF();
+                int position = in.readInt();
+                put(positions, path, position);
+                lastPath = path;
+                lastPosition = position;
+                records++;
+                valid += 2 + utfLength(path) + 4;
+            }
+        } catch (EOFException e) {
+            // end of the log, or a torn last record
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (file.length() > valid)
+            truncate(valid);
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * gets the number of bytes writeUTF encodes a string to, without the length prefix
+     */
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+        }
+        return length;
+    }
+
+    /**
+     * gets the saved position of a track
+     * @param path track file path
+     * @return position in ms, 0 if none is saved
+     */
+    public int get(String path) {
+        Integer position = positions.get(path);
+        return position == null ? 0 : position;
+    }
+
+    /**
+     * gets the track that was updated last, i.e. where playback stopped
+     * @return file path, or null if nothing was saved
+     */
+    public String getLastPath() {
+        return lastPath;
+    }
+
+    public int getLastPosition() {
+        return lastPosition;
+    }
+
+    /**
+     * Records a track's position in memory; it is written by the next {@link #flush()}
+     * @param path track file path
+     * @param position position in ms, 0 to forget the track
+     */
+    public void update(String path, int position) {
+        if (path == null)
+            return;
+        put(positions, path, position);
+        put(pending, path, position);
+        lastPath = path;
+        lastPosition = position;
+    }
+
+    /**
+     * Appends the pending updates in one write, compacting the log if it is mostly stale
+     */
+    public void flush() {
+        if (pending.isEmpty())
+            return;
+        if (records + pending.size() >= COMPACT_RECORDS && records + pending.size() >= 4 * positions.size()) {
+            compact();
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            boolean fresh = !file.exists() || file.length() == 0;
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+            }
+            for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+            try (FileOutputStream file = new FileOutputStream(this.file, !fresh)) {
+                bytes.writeTo(file);
+            }
+            records += pending.size();
+            pending.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the log with the newest position of each track, dropping forgotten
+     * tracks and the least recently updated ones beyond the track limit
+     */
+    public void compact() {
+        Iterator<Map.Entry<String, Integer>> it = positions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            // the last track is kept even at 0, it tells where playback stopped
+            if (entry.getValue() == 0 && !entry.getKey().equals(lastPath))
+                it.remove();
+        }
+        it = positions.entrySet().iterator();
+        for (int excess = positions.size() - MAX_TRACKS; excess > 0 && it.hasNext(); excess--) {
+            it.next();
+            it.remove();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                for (Map.Entry<String, Integer> entry : positions.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+            records = positions.size();
+            pending.clear();
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Number of records in the log, including superseded ones
+     * @return record count
+     */
+    int getRecordCount() {
+        return records;
+    }
+
+    private static void put(LinkedHashMap<String, Integer> map, String path, int position) {
+        // re-insert so iteration order is update order
+        map.remove(path);
+        map.put(path, position);
+    }
+}
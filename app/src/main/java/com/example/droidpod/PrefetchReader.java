@@ -0,0 +1,114 @@
+package com.example.droidpod;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the parts of an audio file a player opens first, so they are in the page cache
+ * when the track starts: the head of the file, which holds the tags and the first frames,
+ * and for MP4/M4A files the moov atom, which may sit at the end. The bytes are read into
+ * one reused direct buffer and dropped. Not thread-safe.
+ */
+public class PrefetchReader {
+
+    // top-level atoms walked before giving up on finding moov
+    private static final int MAX_ATOMS = 64;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+
+    /**
+     * @param bufferSize bytes read per call, e.g. 64 KiB
+     */
+    public PrefetchReader(int bufferSize) {
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Reads the head of a file and, if it is MP4, its moov atom, within a budget
+     * @param file audio file
+     * @param headBytes bytes read from the start
+     * @param budget most bytes read in total
+     * @return bytes read
+     * @throws IOException if the file cannot be read
+     */
+    public long read(File file, long headBytes, long budget) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long head = Math.min(Math.min(headBytes, budget), size);
+            long read = readRange(channel, 0, head);
+            long[] moov = findMoov(channel, size);
+            if (moov != null && moov[0] + moov[1] > head) {
+                // only the part of moov the head did not cover
+                long start = Math.max(moov[0], head);
+                read += readRange(channel, start, Math.min(moov[0] + moov[1] - start, budget - read));
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Finds the top-level moov atom of an MP4 file
+     * @param channel file
+     * @param size file size
+     * @return offset and length of moov, or null if the file is not MP4 or has none
+     * @throws IOException if the file cannot be read
+     */
+    long[] findMoov(FileChannel channel, long size) throws IOException {
+        long pos = 0;
+        for (int i = 0; i < MAX_ATOMS && pos + 8 <= size; i++) {
+            header.clear();
+            if (!readFully(channel, pos, Math.min(16, (int) (size - pos))))
+                return null;
+            long length = header.getInt(0) & 0xffffffffL;
+            int type = header.getInt(4);
+            if (i == 0 && type != fourCc("ftyp"))
+                return null;
+            if (length == 1) {
+                if (header.position() < 16)
+                    return null;
+                length = header.getLong(8);
+            } else if (length == 0) {
+                length = size - pos;
+            }
+            if (length < 8)
+                return null;
+            if (type == fourCc("moov"))
+                return new long[]{pos, Math.min(length, size - pos)};
+            pos += length;
+        }
+        return null;
+    }
+
+    private long readRange(FileChannel channel, long start, long length) throws IOException {
+        long read = 0;
+        while (read < length) {
+            buffer.clear();
+            if (length - read < buffer.capacity())
+                buffer.limit((int) (length - read));
+            int count = channel.read(buffer, start + read);
+            if (count < 0)
+                break;
+            read += count;
+        }
+        return read;
+    }
+
+    private boolean readFully(FileChannel channel, long pos, int length) throws IOException {
+        header.limit(length);
+        while (header.hasRemaining()) {
+            if (channel.read(header, pos + header.position()) < 0)
+                break;
+        }
+        return header.position() >= 8;
+    }
+
+    private static int fourCc(String type) {
+        return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+    }
+}
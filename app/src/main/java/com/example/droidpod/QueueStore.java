@@ -0,0 +1,120 @@
+package com.example.droidpod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Persists a {@link PlayQueue} as a snapshot followed by an append-only journal of
+ * its state changes. A queue edit or track change costs a few bytes on disk, and the
+ * file is rewritten as a fresh snapshot only once the journal has grown long.
+ */
+public class QueueStore {
+
+    private static final int MAGIC = 0x64505051; // "dPPQ"
+    private static final int FORMAT_VERSION = 2;
+
+    // rewrite the snapshot once this many records have been appended
+    private static final int COMPACT_RECORDS = 4096;
+
+    private final File file;
+    private DataOutputStream journal;
+
+    public QueueStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Restores the persisted queue and keeps journaling its changes
+     * @param base base playlist the queue was created over
+     * @param random source for shuffle draws
+     * @return restored queue, or null if there is none for this playlist
+     */
+    public PlayQueue restore(List<Audio> base, Random random) {
+        if (!file.exists())
+            return null;
+        PlayQueue queue;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                return null;
+            queue = PlayQueue.readSnapshot(in, base, random);
+            queue.replay(in);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        // start from a compact file again
+        reset(queue);
+        return queue;
+    }
+
+    /**
+     * Writes a snapshot of the queue, replacing whatever was persisted, and
+     * journals the queue's changes from now on
+     * @param queue queue to persist
+     */
+    public void reset(PlayQueue queue) {
+        close();
+        queue.setJournal(null);
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                queue.writeSnapshot(out);
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            queue.setJournal(journal);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Flushes the records of the last change, compacting the file if the journal got long.
+     * Call after each command that changed the queue.
+     * @param queue queue being journaled
+     */
+    public void commit(PlayQueue queue) {
+        if (journal == null)
+            return;
+        if (queue.getJournalRecords() >= COMPACT_RECORDS) {
+            reset(queue);
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flushes and closes the journal
+     */
+    public void close() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException ignored) { }
+        journal = null;
+    }
+
+    /**
+     * Closes the journal and deletes the persisted queue
+     */
+    public void delete() {
+        close();
+        file.delete();
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.droidpod;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the files of upcoming queue entries ahead on a background priority thread, so
+ * opening them when their track starts hits the page cache instead of slow storage.
+ * Each request reads the head (and for MP4 the moov atom) of a few files within a byte
+ * budget, replacing a request in progress. In battery saver only the next file is read,
+ * with a quarter of the budget. Streamed tracks are left to the stream cache.
+ */
+public class Readahead {
+
+    private static final String TAG = "Readahead";
+
+    public static final long DEFAULT_BUDGET_BYTES = 4L << 20;
+    // per file, enough for tags, headers and the first seconds of audio
+    private static final long HEAD_BYTES = 256L << 10;
+    private static final int BUFFER_BYTES = 64 << 10;
+    // files remembered as read, so overlapping requests skip them
+    private static final int REMEMBERED = 16;
+
+    private final PowerManager power;
+    private HandlerThread thread;
+    private Handler handler;
+    private PrefetchReader reader;
+    private volatile long budgetBytes;
+    // bumped for each request, a running request of an older one stops early
+    private volatile int run;
+    // paths read recently, least recently requested first; guarded by itself
+    private final LinkedHashMap<String, Boolean> read = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > REMEMBERED;
+        }
+    };
+
+    /**
+     * @param context context
+     * @param budgetBytes bytes read per request, 0 to turn reading ahead off
+     */
+    public Readahead(Context context, long budgetBytes) {
+        this.power = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @param bytes bytes read per request, 0 to turn reading ahead off
+     */
+    public void setBudget(long bytes) {
+        budgetBytes = bytes;
+    }
+
+    public long getBudget() {
+        return budgetBytes;
+    }
+
+    /**
+     * Reads the given files ahead, replacing a request in progress
+     * @param paths files in the order they will play, the first one most important
+     */
+    public void prefetch(final List<String> paths) {
+        if (budgetBytes <= 0 || paths.isEmpty())
+            return;
+        if (thread == null) {
+            thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            reader = new PrefetchReader(BUFFER_BYTES);
+        }
+        final int current = ++run;
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                readAll(paths, current);
+            }
+        });
+    }
+
+    /**
+     * @param path file path
+     * @return true if the file was read ahead recently
+     */
+    public boolean wasRead(String path) {
+        synchronized (read) {
+            return path != null && read.containsKey(path);
+        }
+    }
+
+    /**
+     * Cancels the current request and shuts the thread down
+     */
+    public void stop() {
+        run++;
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+        }
+    }
+
+    private void readAll(List<String> paths, int current) {
+        long budget = budgetBytes;
+        int files = paths.size();
+        if (power != null && power.isPowerSaveMode()) {
+            budget /= 4;
+            files = 1;
+        }
+        long start = System.nanoTime();
+        long total = 0;
+        for (int i = 0; i < files && total < budget; i++) {
+            if (current != run)
+                return;
+            String path = paths.get(i);
+            if (path == null || StreamProxy.isRemote(path))
+                continue;
+            synchronized (read) {
+                // refreshes its place, the page cache likely still holds it
+                if (read.get(path) != null)
+                    continue;
+            }
+            try {
+                total += reader.read(new File(path), HEAD_BYTES, budget - total);
+                synchronized (read) {
+                    read.put(path, Boolean.TRUE);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "cannot read " + path + ": " + e.getMessage());
+            }
+        }
+        if (total > 0)
+            Log.d(TAG, "read " + total / 1024 + " KiB ahead in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -1,32 +1,157 @@
 package com.example.droidpod;
 
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.ListPreloader;
+import com.bumptech.glide.RequestBuilder;
+import com.bumptech.glide.RequestManager;
+import com.bumptech.glide.integration.recyclerview.RecyclerViewPreloader;
+import com.bumptech.glide.util.FixedPreloadSizeProvider;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import de.hdodenhof.circleimageview.CircleImageView;
 
-public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapter.ViewHolder> {
+public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapter.ViewHolder>
+        implements ListPreloader.PreloadModelProvider<Audio> {
 
     private static final String TAG = "RecyclerViewAdapter";
 
-    private List<Audio> list = Collections.emptyList();
+    // rows of album art to load ahead of the scroll direction
+    private static final int PRELOAD_ROWS = 12;
+
+    /**
+     * Tracks are identified by file path; a changed tag shows up as a content change
+     */
+    private static final DiffUtil.ItemCallback<Audio> AUDIO_DIFF = new DiffUtil.ItemCallback<Audio>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Audio oldItem, @NonNull Audio newItem) {
+            return Objects.equals(oldItem.getData(), newItem.getData());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Audio oldItem, @NonNull Audio newItem) {
+            return Objects.equals(oldItem.getTitle(), newItem.getTitle())
+                    && Objects.equals(oldItem.getAlbum(), newItem.getAlbum())
+                    && Objects.equals(oldItem.getArtist(), newItem.getArtist())
+                    && Objects.equals(oldItem.getAlbumId(), newItem.getAlbumId());
+        }
+    };
+
+    // diffs run on a background executor and are applied as item range notifications
+    private final AsyncListDiffer<Audio> differ = new AsyncListDiffer<>(this, AUDIO_DIFF);
+    // paged lists a pending diff walks, keeping the visible rows until it is applied
+    private final ArrayList<PagedAudioList> diffing = new ArrayList<>();
+    // pages behind the list adapter positions refer to, null if it is not paged
+    private PagedAudioList shownPages;
     private final Context mContext;
+    // created on first use, so Glide is not initialized before the first frame
+    private RequestManager glide;
+    private final int albumArtSize;
+    private RecyclerView recyclerView;
+    private RecyclerViewPreloader<Audio> preloader;
 
-    public RecyclerViewAdapter(Context mContext, ArrayList<Audio> list) {
-        this.list = list;
+    public RecyclerViewAdapter(Context mContext) {
         this.mContext = mContext;
+        this.albumArtSize = mContext.getResources().getDimensionPixelSize(R.dimen.list_album_art_size);
+    }
+
+    /**
+     * Replaces the shown tracks; only the rows that differ are rebound
+     * @param list new track list
+     */
+    public void submitList(List<Audio> list) {
+        submitList(list, null, null);
+    }
+
+    /**
+     * Replaces the shown tracks
+     * @param list new track list
+     * @param pages paged window the list reads through, e.g. a library snapshot's, null
+     *              if it is not paged
+     * @param committed run once adapter positions refer to the new list
+     */
+    public void submitList(List<Audio> list, final PagedAudioList pages, final Runnable committed) {
+        int first = -1;
+        int last = -1;
+        if (recyclerView != null && recyclerView.getLayoutManager() instanceof LinearLayoutManager) {
+            LinearLayoutManager layout = (LinearLayoutManager) recyclerView.getLayoutManager();
+            first = layout.findFirstVisibleItemPosition();
+            last = layout.findLastVisibleItemPosition();
+        }
+        beginDiff(shownPages, first, last);
+        beginDiff(pages, first, last);
+        differ.submitList(list, new Runnable() {
+            @Override
+            public void run() {
+                shownPages = pages;
+                // a superseded diff never commits, so this ends every diff begun so far
+                for (PagedAudioList paged : diffing) {
+                    paged.setDiffing(-1, -1);
+                }
+                diffing.clear();
+                if (committed != null)
+                    committed.run();
+            }
+        });
+    }
+
+    private void beginDiff(PagedAudioList pages, int first, int last) {
+        if (pages == null || first < 0)
+            return;
+        pages.setDiffing(first, Math.min(last, pages.size() - 1));
+        if (!diffing.contains(pages))
+            diffing.add(pages);
+    }
+
+    /**
+     * gets the list the adapter positions currently refer to
+     * @return tracks as shown, until the next diff is applied
+     */
+    public List<Audio> getCurrentList() {
+        return differ.getCurrentList();
+    }
+
+    /**
+     * Starts loading album art ahead of the scroll direction. Deferred until after
+     * the first frame, since it initializes Glide.
+     */
+    public void startPreloading() {
+        if (recyclerView == null || preloader != null)
+            return;
+        preloader = new RecyclerViewPreloader<>(glide(), this,
+                new FixedPreloadSizeProvider<Audio>(albumArtSize, albumArtSize), PRELOAD_ROWS);
+        recyclerView.addOnScrollListener(preloader);
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        if (preloader != null)
+            recyclerView.removeOnScrollListener(preloader);
+        preloader = null;
+        this.recyclerView = null;
     }
 
     @NonNull
@@ -39,22 +164,50 @@ public class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapte
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        String text = (list.get(position).getArtist()) + " - " + (list.get(position).getAlbum());
-        holder.title.setText(list.get(position).getTitle());
+        Audio audio = differ.getCurrentList().get(position);
+        String text = (audio.getArtist()) + " - " + (audio.getAlbum());
+        holder.title.setText(audio.getTitle());
         holder.artistAlbum.setText(text);
-        holder.albumArt.setImageBitmap(MediaPlayerService.getAlbumArt(this.mContext,
-                list.get(position).getAlbumId()));
+        albumArtRequest(audio).into(holder.albumArt);
+    }
+
+    /**
+     * Builds the album art request for a row; bind and preload must use the same
+     * options and size so preloaded images are memory cache hits
+     * @param audio track of the row
+     * @return album art request downsampled to the row's image size
+     */
+    private RequestBuilder<Drawable> albumArtRequest(Audio audio) {
+        AlbumArt model = audio.getAlbumId() == null ? null : new AlbumArt(audio.getAlbumId());
+        return glide().load(model)
+                .override(albumArtSize)
+                .placeholder(R.drawable.image)
+                .fallback(R.drawable.image)
+                .error(R.drawable.image)
+                // CircleImageView cannot draw cross-fade transitions
+                .dontAnimate();
+    }
 
-        Glide.with(mContext)
-                .asBitmap()
-                .load(MediaPlayerService.getAlbumArt(this.mContext,
-                        list.get(position).getAlbumId()))
-                .into(holder.albumArt);
+    private RequestManager glide() {
+        if (glide == null)
+            glide = Glide.with(mContext);
+        return glide;
+    }
+
+    @NonNull
+    @Override
+    public List<Audio> getPreloadItems(int position) {
+        return Collections.singletonList(differ.getCurrentList().get(position));
+    }
+
+    @Override
+    public RequestBuilder<?> getPreloadRequestBuilder(@NonNull Audio item) {
+        return albumArtRequest(item);
     }
 
     @Override
     public int getItemCount() {
-        return list.size();
+        return differ.getCurrentList().size();
     }
 
     public class ViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,376 @@
+package com.example.droidpod;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Type-ahead search over track titles, artists and albums.
+ *
+ * Tokens are case and accent folded and kept in a sorted term dictionary, so a
+ * prefix query is a binary search for the range of terms sharing the prefix.
+ * Each term owns a sorted int posting array of (document << 2 | field) entries.
+ * Changes go into a small sorted delta segment that is merged into the main
+ * arrays by {@link #compact()}; removed documents are masked until then, when the
+ * live documents are renumbered so nothing of removed or replaced tracks is kept.
+ */
+public class SearchIndex {
+
+    private static final int FIELD_TITLE = 0;
+    private static final int FIELD_ARTIST = 1;
+    private static final int FIELD_ALBUM = 2;
+    private static final int[] FIELD_WEIGHT = {4, 2, 1};
+
+    // merge the delta once it holds this many postings, or a quarter of the main
+    // segment when that is larger, so bulk loads stay O(n log n)
+    private static final int DELTA_LIMIT = 4096;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final int[] EMPTY = new int[0];
+
+    // main segment
+    private String[] terms = new String[0];
+    private int[][] postings = new int[0][];
+    private int mainPostings;
+
+    // delta segment
+    private final TreeMap<String, int[]> deltaTerms = new TreeMap<>();
+    private final HashMap<String, Integer> deltaSizes = new HashMap<>();
+    private int deltaPostings;
+
+    // documents by number, rows are appended until compact() renumbers them; the key
+    // finds the latest row
+    private TrackTable docs = new TrackTable();
+    private final BitSet deleted = new BitSet();
+    private int liveDocs;
+
+    // per-query scratch, reused so a keystroke does not allocate per document
+    private int[] scores = EMPTY;
+    private int[] matchMask = EMPTY;
+    private int[] queryStamp = EMPTY;
+    private int stamp;
+    private int[] candidates = new int[64];
+
+    /**
+     * Adds a track, replacing any previous track with the same key
+     * @param key stable track key, e.g. the MediaStore row ID
+     * @param audio track to index
+     */
+    public synchronized void put(long key, Audio audio) {
+        remove(key);
+        int doc = docs.add(key, audio);
+        liveDocs++;
+
+        addField(doc, FIELD_TITLE, audio.getTitle());
+        addField(doc, FIELD_ARTIST, audio.getArtist());
+        addField(doc, FIELD_ALBUM, audio.getAlbum());
+
+        if (deltaPostings >= Math.max(DELTA_LIMIT, mainPostings / 4))
+            compact();
+    }
+
+    /**
+     * Removes a track
+     * @param key key the track was added with
+     */
+    public synchronized void remove(long key) {
+        int doc = docs.indexOf(key);
+        if (doc >= 0 && !deleted.get(doc)) {
+            deleted.set(doc);
+            liveDocs--;
+        }
+    }
+
+    /**
+     * Drops every track
+     */
+    public synchronized void clear() {
+        terms = new String[0];
+        postings = new int[0][];
+        mainPostings = 0;
+        deltaTerms.clear();
+        deltaSizes.clear();
+        deltaPostings = 0;
+        docs.clear();
+        deleted.clear();
+        liveDocs = 0;
+    }
+
+    public synchronized int size() {
+        return liveDocs;
+    }
+
+    /**
+     * @return documents held, including removed and replaced ones until compact()
+     */
+    synchronized int getDocumentCount() {
+        return docs.size();
+    }
+
+    /**
+     * Merges the delta segment into the main arrays, drops removed and replaced tracks
+     * and renumbers the rest, so the index only holds live documents
+     */
+    public synchronized void compact() {
+        // old document number -> new one, -1 for dropped documents; null keeps the numbers
+        int[] renumber = null;
+        TrackTable live = docs;
+        if (!deleted.isEmpty()) {
+            renumber = new int[docs.size()];
+            live = new TrackTable();
+            for (int doc = 0; doc < docs.size(); doc++) {
+                renumber[doc] = deleted.get(doc) ? -1 : live.add(docs.getKey(doc), docs.get(doc));
+            }
+        }
+
+        TreeMap<String, int[]> merged = new TreeMap<>();
+        for (int i = 0; i < terms.length; i++) {
+            merged.put(terms[i], postings[i]);
+        }
+        for (Map.Entry<String, int[]> entry : deltaTerms.entrySet()) {
+            int size = deltaSizes.get(entry.getKey());
+            int[] base = merged.get(entry.getKey());
+            int[] combined;
+            if (base == null) {
+                combined = Arrays.copyOf(entry.getValue(), size);
+            } else {
+                combined = Arrays.copyOf(base, base.length + size);
+                System.arraycopy(entry.getValue(), 0, combined, base.length, size);
+                Arrays.sort(combined);
+            }
+            merged.put(entry.getKey(), combined);
+        }
+
+        ArrayList<String> newTerms = new ArrayList<>(merged.size());
+        ArrayList<int[]> newPostings = new ArrayList<>(merged.size());
+        mainPostings = 0;
+        for (Map.Entry<String, int[]> entry : merged.entrySet()) {
+            int[] kept = renumber(entry.getValue(), renumber);
+            if (kept.length > 0) {
+                newTerms.add(entry.getKey());
+                newPostings.add(kept);
+                mainPostings += kept.length;
+            }
+        }
+        terms = newTerms.toArray(new String[0]);
+        postings = newPostings.toArray(new int[0][]);
+        deltaTerms.clear();
+        deltaSizes.clear();
+        deltaPostings = 0;
+        docs = live;
+        deleted.clear();
+        if (scores.length > 2 * docs.size()) {
+            // sized for documents that are gone, reallocated by the next query
+            scores = EMPTY;
+            matchMask = EMPTY;
+            queryStamp = EMPTY;
+        }
+    }
+
+    /**
+     * Finds tracks matching every token of a query as a prefix, best matches first.
+     * Title matches outrank artist matches, which outrank album matches, and whole
+     * word matches outrank prefix matches.
+     * @param query text typed by the user
+     * @param limit maximum number of results
+     * @return matching tracks, ranked
+     */
+    public synchronized List<Audio> search(String query, int limit) {
+        String[] tokens = tokenize(query);
+        ArrayList<Audio> results = new ArrayList<>();
+        if (tokens.length == 0 || limit <= 0)
+            return results;
+        int tokenCount = Math.min(tokens.length, 31);
+        int fullMask = (1 << tokenCount) - 1;
+
+        ensureScratch();
+        stamp++;
+        int candidateCount = 0;
+        for (int t = 0; t < tokenCount; t++) {
+            String token = tokens[t];
+            int from = lowerBound(terms, token);
+            for (int i = from; i < terms.length && terms[i].startsWith(token); i++) {
+                candidateCount = score(postings[i], postings[i].length, t, terms[i].length() == token.length(),
+                        candidateCount);
+            }
+            SortedMap<String, int[]> range = deltaTerms.subMap(token, token + Character.MAX_VALUE);
+            for (Map.Entry<String, int[]> entry : range.entrySet()) {
+                candidateCount = score(entry.getValue(), deltaSizes.get(entry.getKey()), t,
+                        entry.getKey().length() == token.length(), candidateCount);
+            }
+        }
+
+        // keep the best `limit` hits in a min-heap of packed (score, doc) longs
+        int heapSize = 0;
+        long[] heap = new long[Math.min(limit, candidateCount)];
+        for (int i = 0; i < candidateCount; i++) {
+            int doc = candidates[i];
+            if (matchMask[doc] != fullMask)
+                continue;
+            long hit = ((long) scores[doc] << 32) | (Integer.MAX_VALUE - doc);
+            if (heapSize < heap.length) {
+                heap[heapSize] = hit;
+                siftUp(heap, heapSize++);
+            } else if (hit > heap[0]) {
+                heap[0] = hit;
+                siftDown(heap, heapSize);
+            }
+        }
+        Arrays.sort(heap, 0, heapSize);
+        for (int i = heapSize - 1; i >= 0; i--) {
+            int doc = Integer.MAX_VALUE - (int) heap[i];
+            results.add(docs.get(doc));
+        }
+        return results;
+    }
+
+    /**
+     * Folds case and accents and splits on anything that is not a letter or digit
+     * @param text raw title, artist, album or query
+     * @return normalized tokens
+     */
+    static String[] tokenize(String text) {
+        if (text == null || text.isEmpty())
+            return new String[0];
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean word = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    private void addField(int doc, int field, String text) {
+        int posting = (doc << 2) | field;
+        for (String token : tokenize(text)) {
+            int[] list = deltaTerms.get(token);
+            int size = list == null ? 0 : deltaSizes.get(token);
+            if (list == null) {
+                list = new int[2];
+            } else if (size == list.length) {
+                list = Arrays.copyOf(list, size * 2);
+            } else if (list[size - 1] == posting) {
+                continue; // token repeated within the same field
+            }
+            list[size] = posting;
+            deltaTerms.put(token, list);
+            deltaSizes.put(token, size + 1);
+            deltaPostings++;
+        }
+    }
+
+    private int score(int[] list, int length, int token, boolean exact, int candidateCount) {
+        int bit = 1 << token;
+        boolean anyDeleted = !deleted.isEmpty();
+        for (int i = 0; i < length; i++) {
+            int doc = list[i] >>> 2;
+            if (anyDeleted && deleted.get(doc))
+                continue;
+            if (queryStamp[doc] != stamp) {
+                if (token != 0)
+                    continue; // missed an earlier token, cannot match
+                queryStamp[doc] = stamp;
+                matchMask[doc] = 0;
+                scores[doc] = 0;
+                if (candidateCount == candidates.length)
+                    candidates = Arrays.copyOf(candidates, candidateCount * 2);
+                candidates[candidateCount++] = doc;
+            }
+            matchMask[doc] |= bit;
+            int weight = FIELD_WEIGHT[list[i] & 3];
+            scores[doc] += exact ? weight * 2 : weight;
+        }
+        return candidateCount;
+    }
+
+    private void ensureScratch() {
+        if (scores.length < docs.size()) {
+            int capacity = Math.max(docs.size(), scores.length * 2);
+            scores = new int[capacity];
+            matchMask = new int[capacity];
+            queryStamp = new int[capacity];
+            stamp = 0;
+        }
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        long hit = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= hit)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = hit;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        long hit = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if (heap[child] >= hit)
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = hit;
+    }
+
+    /**
+     * Drops the postings of removed documents and renumbers the rest; the numbering
+     * keeps the document order, so the postings stay sorted
+     */
+    private static int[] renumber(int[] list, int[] renumber) {
+        if (renumber == null)
+            return list;
+        int live = 0;
+        for (int posting : list) {
+            if (renumber[posting >>> 2] >= 0)
+                live++;
+        }
+        int[] kept = new int[live];
+        int k = 0;
+        for (int posting : list) {
+            int doc = renumber[posting >>> 2];
+            if (doc >= 0)
+                kept[k++] = (doc << 2) | (posting & 3);
+        }
+        return kept;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].compareTo(key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.droidpod;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Cold start instrumentation.
+ * Sections show up in systrace / Perfetto through {@link Trace} and are also kept,
+ * with milestones such as the first frame, for an in-app report. Every time is
+ * measured from process start. Recording stops once {@link #finish()} is called,
+ * the trace sections keep being emitted.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+    private static final String COLD_START = "cold start";
+    private static final int COLD_START_COOKIE = 0;
+
+    private static final class Entry {
+        final String name;
+        final long startMs;
+        long durationMs = -1;
+
+        Entry(String name, long startMs) {
+            this.name = name;
+            this.startMs = startMs;
+        }
+    }
+
+    private static final ArrayList<Entry> entries = new ArrayList<>();
+    // open sections of the main thread, innermost first
+    private static final ArrayDeque<Entry> open = new ArrayDeque<>();
+    private static boolean started;
+    private static boolean finished;
+
+    private StartupTrace() { }
+
+    /**
+     * Opens a section; sections nest and must be closed on the thread that opened
+     * them, which for this class is always the main thread
+     * @param name section name
+     */
+    public static synchronized void begin(String name) {
+        if (!started) {
+            started = true;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+                Trace.beginAsyncSection(COLD_START, COLD_START_COOKIE);
+        }
+        Trace.beginSection(name);
+        open.push(new Entry(name, sinceProcessStart()));
+    }
+
+    /**
+     * Closes the innermost open section
+     */
+    public static synchronized void end() {
+        Trace.endSection();
+        Entry entry = open.pop();
+        if (!finished) {
+            entry.durationMs = sinceProcessStart() - entry.startMs;
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Records a milestone the first time it is reached
+     * @param name milestone name, e.g. "first frame"
+     */
+    public static synchronized void mark(String name) {
+        if (finished)
+            return;
+        for (Entry entry : entries) {
+            if (entry.name.equals(name))
+                return;
+        }
+        entries.add(new Entry(name, sinceProcessStart()));
+    }
+
+    /**
+     * Ends the cold start, logs the report and stops recording
+     */
+    public static synchronized void finish() {
+        if (finished)
+            return;
+        finished = true;
+        if (started && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.endAsyncSection(COLD_START, COLD_START_COOKIE);
+        Log.i(TAG, report());
+    }
+
+    public static synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Formats the recorded sections and milestones in start order
+     * @return one line per entry, times in ms since process start
+     */
+    public static synchronized String report() {
+        ArrayList<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.startMs, b.startMs);
+            }
+        });
+
+        StringBuilder report = new StringBuilder("     0 ms  process start");
+        for (Entry entry : sorted) {
+            report.append('\n').append(String.format(Locale.ROOT, "%6d ms  %s", entry.startMs, entry.name));
+            if (entry.durationMs >= 0)
+                report.append(" (").append(entry.durationMs).append(" ms)");
+        }
+        return report.toString();
+    }
+
+    private static long sinceProcessStart() {
+        return SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+    }
+}
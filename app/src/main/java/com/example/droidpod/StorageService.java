@@ -6,11 +6,21 @@ import android.content.SharedPreferences;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.List;
 
 public class StorageService {
     private final String STORAGE = "com.example.droidPod.STORAGE";
+    // player settings, unlike STORAGE not cleared with the playlist
+    private static final String SETTINGS = "com.example.droidPod.SETTINGS";
+    private static final String PLAYLIST_FILE = "playlist.bin";
+    private static final String QUEUE_FILE = "queue.bin";
+    private static final String POSITIONS_FILE = "positions.log";
+    // prefs key of the Gson playlist written by older versions
+    private static final String LEGACY_PLAYLIST_KEY = "audioArrayList";
     private SharedPreferences preferences;
     private Context context;
 
@@ -18,23 +28,74 @@ public class StorageService {
         this.context = context;
     }
 
-    public void storeAudio(ArrayList<Audio> arrayList) {
-        preferences = context.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
-
-        SharedPreferences.Editor editor = preferences.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(arrayList);
-        editor.putString("audioArrayList", json);
-        editor.apply();
+    public void storeAudio(List<Audio> arrayList) {
+        try {
+            PlaylistFile.write(playlistFile(), arrayList);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public ArrayList<Audio> loadAudio() {
+        List<Audio> playlist = loadPlaylist();
+        return playlist == null ? null : new ArrayList<>(playlist);
+    }
+
+    /**
+     * Loads the stored playlist without decoding it; tracks are read on access
+     * @return memory-mapped playlist, or null if none is stored
+     */
+    public List<Audio> loadPlaylist() {
+        migrateLegacyPlaylist();
+        File file = playlistFile();
+        if (!file.exists())
+            return null;
+        try {
+            return PlaylistFile.open(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Moves a Gson playlist left in SharedPreferences into the binary playlist file
+     */
+    private void migrateLegacyPlaylist() {
         preferences = context.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
+        String json = preferences.getString(LEGACY_PLAYLIST_KEY, null);
+        if (json == null)
+            return;
+
         Gson gson = new Gson();
-        String json = preferences.getString("audioArrayList", null);
         Type type = new TypeToken<ArrayList<Audio>>() {
         }.getType();
-        return gson.fromJson(json, type);
+        ArrayList<Audio> legacy = gson.fromJson(json, type);
+        if (legacy != null && !playlistFile().exists()) {
+            storeAudio(legacy);
+        }
+        preferences.edit().remove(LEGACY_PLAYLIST_KEY).apply();
+    }
+
+    private File playlistFile() {
+        return new File(context.getFilesDir(), PLAYLIST_FILE);
+    }
+
+    /**
+     * gets the store of the playback queue built over the stored playlist
+     * @return queue snapshot and journal
+     */
+    public QueueStore queueStore() {
+        return new QueueStore(new File(context.getFilesDir(), QUEUE_FILE));
+    }
+
+    /**
+     * gets the store of per-track resume positions; unlike the playlist it is kept
+     * when the player is closed
+     * @return resume position log
+     */
+    public PositionStore positionStore() {
+        return new PositionStore(new File(context.getFilesDir(), POSITIONS_FILE));
     }
 
     public void storeAudioIndex(int index) {
@@ -49,10 +110,72 @@ public class StorageService {
         return preferences.getInt("audioIndex", -1);//return -1 if no data found
     }
 
+    /**
+     * stores the playback engine the player uses
+     * @param type PlaybackEnginePool.ENGINE_MEDIA_PLAYER or ENGINE_CODEC
+     */
+    public void storePlaybackEngine(int type) {
+        context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE).edit()
+                .putInt("playbackEngine", type)
+                .apply();
+    }
+
+    public int loadPlaybackEngine() {
+        return context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE)
+                .getInt("playbackEngine", PlaybackEnginePool.ENGINE_MEDIA_PLAYER);
+    }
+
+    /**
+     * stores how tracks are loudness normalized
+     * @param mode MediaPlayerService.REPLAY_GAIN_OFF, REPLAY_GAIN_TRACK or REPLAY_GAIN_ALBUM
+     */
+    public void storeReplayGainMode(int mode) {
+        context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE).edit()
+                .putInt("replayGainMode", mode)
+                .apply();
+    }
+
+    public int loadReplayGainMode() {
+        return context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE)
+                .getInt("replayGainMode", MediaPlayerService.REPLAY_GAIN_TRACK);
+    }
+
+    /**
+     * stores whether the library reads the files' own tags
+     * @param mode LibrarySync.TAG_SCAN_OFF, TAG_SCAN_ENRICH or TAG_SCAN_REPLACE
+     */
+    public void storeTagScanMode(int mode) {
+        context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE).edit()
+                .putInt("tagScanMode", mode)
+                .apply();
+    }
+
+    public int loadTagScanMode() {
+        return context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE)
+                .getInt("tagScanMode", LibrarySync.TAG_SCAN_OFF);
+    }
+
+    /**
+     * stores how many bytes of upcoming files the player reads ahead
+     * @param bytes budget per track change, 0 for none
+     */
+    public void storeReadaheadBudget(long bytes) {
+        context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE).edit()
+                .putLong("readaheadBudget", bytes)
+                .apply();
+    }
+
+    public long loadReadaheadBudget() {
+        return context.getSharedPreferences(SETTINGS, Context.MODE_PRIVATE)
+                .getLong("readaheadBudget", Readahead.DEFAULT_BUDGET_BYTES);
+    }
+
     public void clearCachedAudioPlaylist() {
         preferences = context.getSharedPreferences(STORAGE, Context.MODE_PRIVATE);
         SharedPreferences.Editor editor = preferences.edit();
         editor.clear();
         editor.commit();
+        playlistFile().delete();
+        new File(context.getFilesDir(), QUEUE_FILE).delete();
     }
 }
@@ -0,0 +1,282 @@
+package com.example.droidpod;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Size-bounded disk cache of streamed tracks, filled progressively: each URL has a data
+ * file holding the first bytes of the resource and grows as they are downloaded, so a
+ * partly played track keeps its prefix. A small meta file records the full length and
+ * content type once known. Entries are evicted least recently opened first, but never
+ * while open. The order survives restarts through the files' mtimes.
+ */
+public class StreamCache {
+
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+
+    /**
+     * Cached prefix of one resource; fields are guarded by the cache
+     */
+    public static final class Entry {
+        final String key;
+        // bytes on disk, always a prefix of the resource
+        long length;
+        // full length, -1 while unknown
+        long total = -1;
+        String contentType;
+        int readers;
+        boolean writing;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    // in access order, least recently opened first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Reads the entries already on disk
+     * @param dir cache directory, created if missing
+     * @param maxBytes size the cache is trimmed to whenever an entry is closed
+     */
+    public StreamCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        // oldest first, so the access order matches the last session's
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(DATA_SUFFIX))
+                continue;
+            Entry entry = new Entry(name.substring(0, name.length() - DATA_SUFFIX.length()));
+            entry.length = file.length();
+            readMeta(entry);
+            entries.put(entry.key, entry);
+            totalBytes += entry.length;
+        }
+    }
+
+    /**
+     * Opens the entry of a URL, creating an empty one if needed; close it with {@link #close}
+     * @param url resource URL
+     * @return open entry
+     */
+    public synchronized Entry open(String url) {
+        String key = keyOf(url);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+        entry.readers++;
+        dataFile(entry).setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Closes an entry and trims the cache to its size bound
+     * @param entry entry from {@link #open}
+     */
+    public synchronized void close(Entry entry) {
+        entry.readers--;
+        trim();
+    }
+
+    /**
+     * Claims the right to append to an entry; one connection writes at a time
+     * @param entry open entry
+     * @return false if another connection is writing it
+     */
+    public synchronized boolean beginWrite(Entry entry) {
+        if (entry.writing)
+            return false;
+        entry.writing = true;
+        return true;
+    }
+
+    public synchronized void endWrite(Entry entry) {
+        entry.writing = false;
+    }
+
+    /**
+     * Opens the data file for appending; only the writer of the entry may use it
+     * @param entry entry being written
+     * @return stream positioned at the end of the cached prefix
+     * @throws IOException if the data file cannot be opened
+     */
+    public FileOutputStream openAppend(Entry entry) throws IOException {
+        return new FileOutputStream(dataFile(entry), true);
+    }
+
+    /**
+     * Makes bytes written through {@link #openAppend} part of the cached prefix
+     * @param entry entry being written
+     * @param count bytes appended
+     */
+    public synchronized void appended(Entry entry, int count) {
+        entry.length += count;
+        totalBytes += count;
+    }
+
+    /**
+     * Opens the data file for reading; bytes up to {@link #getLength} are valid
+     * @param entry open entry
+     * @return data file
+     * @throws IOException if the data file cannot be opened
+     */
+    public RandomAccessFile openRead(Entry entry) throws IOException {
+        return new RandomAccessFile(dataFile(entry), "r");
+    }
+
+    /**
+     * Records the full length and content type reported by the origin
+     * @param entry open entry
+     * @param total full length, -1 if unknown
+     * @param contentType content type, may be null
+     */
+    public synchronized void setInfo(Entry entry, long total, String contentType) {
+        if (entry.total == total && (contentType == null || contentType.equals(entry.contentType)))
+            return;
+        entry.total = total;
+        if (contentType != null)
+            entry.contentType = contentType;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(metaFile(entry)))) {
+            out.writeLong(entry.total);
+            out.writeUTF(entry.contentType == null ? "" : entry.contentType);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getLength(Entry entry) {
+        return entry.length;
+    }
+
+    public synchronized long getTotal(Entry entry) {
+        return entry.total;
+    }
+
+    public synchronized String getContentType(Entry entry) {
+        return entry.contentType;
+    }
+
+    /**
+     * @param entry open entry
+     * @return true if the whole resource is on disk
+     */
+    public synchronized boolean isComplete(Entry entry) {
+        return entry.total >= 0 && entry.length >= entry.total;
+    }
+
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    /**
+     * gets the number of bytes cached for a URL
+     * @param url resource URL
+     * @return cached prefix length, 0 if not cached
+     */
+    synchronized long cachedLength(String url) {
+        Entry entry = entries.get(keyOf(url));
+        return entry == null ? 0 : entry.length;
+    }
+
+    /**
+     * @param url resource URL
+     * @return true while a connection appends to the URL's entry
+     */
+    synchronized boolean isWriting(String url) {
+        Entry entry = entries.get(keyOf(url));
+        return entry != null && entry.writing;
+    }
+
+    /**
+     * Evicts least recently opened entries that nobody uses until the cache fits
+     */
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.readers > 0 || entry.writing)
+                continue;
+            it.remove();
+            totalBytes -= entry.length;
+            dataFile(entry).delete();
+            metaFile(entry).delete();
+        }
+        // drop empty entries nobody holds, so they do not pile up
+        ArrayList<String> empty = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.length == 0 && entry.readers == 0 && !entry.writing)
+                empty.add(entry.key);
+        }
+        for (String key : empty) {
+            Entry entry = entries.remove(key);
+            dataFile(entry).delete();
+            metaFile(entry).delete();
+        }
+    }
+
+    private void readMeta(Entry entry) {
+        File meta = metaFile(entry);
+        if (!meta.exists())
+            return;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(meta))) {
+            entry.total = in.readLong();
+            String contentType = in.readUTF();
+            entry.contentType = contentType.isEmpty() ? null : contentType;
+        } catch (IOException e) {
+            entry.total = -1;
+        }
+    }
+
+    private File dataFile(Entry entry) {
+        return new File(dir, entry.key + DATA_SUFFIX);
+    }
+
+    private File metaFile(Entry entry) {
+        return new File(dir, entry.key + META_SUFFIX);
+    }
+
+    /**
+     * 128 bit FNV-1a style key of a URL, two independent 64 bit hashes
+     */
+    static String keyOf(String url) {
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        long a = 0xcbf29ce484222325L;
+        long b = 0x84222325cbf29ce4L;
+        for (byte value : bytes) {
+            a = (a ^ (value & 0xff)) * 0x100000001b3L;
+            b = (b ^ (value & 0xff)) * 0x100000001b3L;
+            b = Long.rotateLeft(b, 5);
+        }
+        return String.format(Locale.ROOT, "%016x%016x", a, b);
+    }
+}
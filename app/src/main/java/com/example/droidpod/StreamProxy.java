@@ -0,0 +1,396 @@
+package com.example.droidpod;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server the playback engines stream remote tracks through. Each request
+ * names the origin URL; bytes come from the {@link StreamCache} as far as it holds
+ * them and from the origin after that, and what is downloaded is appended to the
+ * cache while it is passed on. Range requests are answered, so seeks inside the
+ * cached prefix never reach the network and replays of a complete track are served
+ * from disk. A range starting past the cached prefix, or requested while another
+ * connection is appending to the cache, gets what is cached from disk and the rest
+ * passed through uncached.
+ */
+public class StreamProxy {
+
+    private static final String TAG = "StreamProxy";
+    private static final String PATH = "/stream?url=";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 30 * 1000;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private final StreamCache cache;
+    private ServerSocket server;
+    private Thread acceptThread;
+
+    public StreamProxy(StreamCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @param data track path or URL
+     * @return true for http and https URLs, which are played through the proxy
+     */
+    public static boolean isRemote(String data) {
+        return data != null && (data.startsWith("http://") || data.startsWith("https://"));
+    }
+
+    /**
+     * Starts listening on a free loopback port
+     * @throws IOException if no socket can be opened
+     */
+    public synchronized void start() throws IOException {
+        if (server != null)
+            return;
+        server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        final ServerSocket listening = server;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(listening);
+            }
+        }, TAG);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops listening; connections being served finish on their own
+     */
+    public synchronized void stop() {
+        if (server == null)
+            return;
+        try {
+            server.close();
+        } catch (IOException ignored) { }
+        server = null;
+        acceptThread = null;
+    }
+
+    /**
+     * gets the URL the engines play a remote track from
+     * @param url origin URL
+     * @return URL on the local proxy
+     */
+    public synchronized String proxyUrl(String url) {
+        if (server == null)
+            throw new IllegalStateException("proxy not started");
+        try {
+            return "http://127.0.0.1:" + server.getLocalPort() + PATH + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void acceptLoop(ServerSocket listening) {
+        while (!listening.isClosed()) {
+            final Socket socket;
+            try {
+                socket = listening.accept();
+            } catch (IOException e) {
+                return;
+            }
+            // players open few connections at a time, typically one per track and seek
+            Thread connection = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, TAG + " connection");
+            connection.setDaemon(true);
+            connection.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket client = socket) {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null)
+                return;
+            long from = 0;
+            long to = -1;
+            boolean ranged = false;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    Matcher range = RANGE.matcher(line.substring(colon + 1).trim());
+                    if (range.matches()) {
+                        ranged = true;
+                        from = Long.parseLong(range.group(1));
+                        to = range.group(2).isEmpty() ? -1 : Long.parseLong(range.group(2));
+                    }
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            if (parts.length < 2 || !parts[1].startsWith(PATH)
+                    || !(parts[0].equals("GET") || parts[0].equals("HEAD"))) {
+                writeStatus(out, "400 Bad Request");
+                out.write("Connection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return;
+            }
+            String url = URLDecoder.decode(parts[1].substring(PATH.length()), "UTF-8");
+            StreamCache.Entry entry = cache.open(url);
+            try {
+                new Request(entry, url, from, to, ranged, parts[0].equals("HEAD")).respond(out);
+            } finally {
+                cache.close(entry);
+            }
+        } catch (IOException ignored) {
+            // the engine drops connections it no longer needs, e.g. after a seek, and
+            // an unreachable origin surfaces as a playback error
+        }
+    }
+
+    /**
+     * One client request for a byte range of a resource
+     */
+    private class Request {
+        private final StreamCache.Entry entry;
+        private final String url;
+        private final long from;
+        private long to;
+        private final boolean ranged;
+        private final boolean headOnly;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        Request(StreamCache.Entry entry, String url, long from, long to, boolean ranged, boolean headOnly) {
+            this.entry = entry;
+            this.url = url;
+            this.from = from;
+            this.to = to;
+            this.ranged = ranged;
+            this.headOnly = headOnly;
+        }
+
+        void respond(OutputStream out) throws IOException {
+            long total = cache.getTotal(entry);
+            long cached = cache.getLength(entry);
+            if (total >= 0 && (to < 0 || to >= total))
+                to = total - 1;
+            // served from disk alone
+            if (cache.isComplete(entry) || (to >= 0 && to < cached)) {
+                if (!writeHeaders(out, total, cache.getContentType(entry)))
+                    return;
+                copyFromCache(out, from, to + 1);
+                out.flush();
+                return;
+            }
+            if (from <= cached && cache.beginWrite(entry)) {
+                try {
+                    readThrough(out, cached);
+                } finally {
+                    cache.endWrite(entry);
+                }
+                return;
+            }
+            // another connection is appending, e.g. the one playing before a seek
+            passThrough(out, Math.max(from, cached));
+        }
+
+        /**
+         * Serves the cached bytes from the requested start, then downloads the rest,
+         * appending it to the cache as it is passed on
+         */
+        private void readThrough(OutputStream out, long cached) throws IOException {
+            HttpURLConnection origin = openOrigin(cached, to);
+            try {
+                InputStream body = originBody(origin, cached);
+                long total = originTotal(origin);
+                cache.setInfo(entry, total, origin.getContentType());
+                if (total >= 0 && (to < 0 || to >= total))
+                    to = total - 1;
+                if (!writeHeaders(out, total, cache.getContentType(entry)))
+                    return;
+                copyFromCache(out, from, cached);
+                long end = to < 0 ? Long.MAX_VALUE : to + 1;
+                try (FileOutputStream file = cache.openAppend(entry)) {
+                    long position = cached;
+                    int n;
+                    while (position < end && (n = body.read(buffer, 0, (int) Math.min(buffer.length, end - position))) > 0) {
+                        // on disk first, so bytes the client got are never missing from the cache
+                        file.write(buffer, 0, n);
+                        cache.appended(entry, n);
+                        out.write(buffer, 0, n);
+                        position += n;
+                    }
+                }
+                out.flush();
+            } finally {
+                origin.disconnect();
+            }
+        }
+
+        /**
+         * Serves the cached bytes from the requested start, then the rest straight from
+         * the origin without caching it
+         * @param start where the origin takes over, the end of the cached part served
+         */
+        private void passThrough(OutputStream out, long start) throws IOException {
+            HttpURLConnection origin = openOrigin(start, to);
+            try {
+                InputStream body = originBody(origin, start);
+                long total = originTotal(origin);
+                if (total >= 0 && (to < 0 || to >= total))
+                    to = total - 1;
+                String contentType = origin.getContentType();
+                if (!writeHeaders(out, total, contentType != null ? contentType : cache.getContentType(entry)))
+                    return;
+                copyFromCache(out, from, start);
+                long remaining = to < 0 ? Long.MAX_VALUE : to + 1 - start;
+                int n;
+                while (remaining > 0 && (n = body.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                out.flush();
+            } finally {
+                origin.disconnect();
+            }
+        }
+
+        private void copyFromCache(OutputStream out, long start, long end) throws IOException {
+            if (start >= end)
+                return;
+            try (RandomAccessFile file = cache.openRead(entry)) {
+                file.seek(start);
+                long remaining = end - start;
+                while (remaining > 0) {
+                    int n = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n < 0)
+                        throw new IOException("cache file shorter than recorded");
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+
+        /**
+         * @return false if the range cannot be satisfied and the response is complete
+         */
+        private boolean writeHeaders(OutputStream out, long total, String contentType) throws IOException {
+            StringBuilder headers = new StringBuilder();
+            if (total >= 0 && from >= total && total > 0) {
+                writeStatus(out, "416 Range Not Satisfiable");
+                headers.append("Content-Range: bytes */").append(total).append("\r\n");
+                headers.append("Connection: close\r\n\r\n");
+                out.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return false;
+            }
+            writeStatus(out, ranged ? "206 Partial Content" : "200 OK");
+            if (contentType != null)
+                headers.append("Content-Type: ").append(contentType).append("\r\n");
+            headers.append("Accept-Ranges: bytes\r\n");
+            if (to >= 0)
+                headers.append("Content-Length: ").append(to + 1 - from).append("\r\n");
+            if (ranged) {
+                headers.append("Content-Range: bytes ").append(from).append('-')
+                        .append(to >= 0 ? String.valueOf(to) : "*").append('/')
+                        .append(total >= 0 ? String.valueOf(total) : "*").append("\r\n");
+            }
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+            if (headOnly) {
+                out.flush();
+                return false;
+            }
+            return true;
+        }
+
+        private HttpURLConnection openOrigin(long start, long end) throws IOException {
+            HttpURLConnection origin = (HttpURLConnection) new URL(url).openConnection();
+            origin.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            origin.setReadTimeout(READ_TIMEOUT_MS);
+            if (start > 0 || end >= 0)
+                origin.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+            int code = origin.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                origin.disconnect();
+                throw new IOException("origin answered " + code + " for " + url);
+            }
+            return origin;
+        }
+
+        /**
+         * gets the origin's body positioned at the requested start; an origin without
+         * range support sends the whole resource, which is skipped up to it
+         */
+        private InputStream originBody(HttpURLConnection origin, long start) throws IOException {
+            InputStream body = origin.getInputStream();
+            if (origin.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                long skip = start;
+                while (skip > 0) {
+                    long skipped = body.skip(skip);
+                    if (skipped <= 0) {
+                        if (body.read() < 0)
+                            throw new IOException("origin body ended before " + start);
+                        skipped = 1;
+                    }
+                    skip -= skipped;
+                }
+            }
+            return body;
+        }
+
+        /**
+         * @return full length of the resource, -1 if the origin does not say
+         */
+        private long originTotal(HttpURLConnection origin) throws IOException {
+            if (origin.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = origin.getHeaderField("Content-Range");
+                Matcher range = contentRange == null ? null : CONTENT_RANGE.matcher(contentRange);
+                return range != null && range.matches() ? Long.parseLong(range.group(3)) : -1;
+            }
+            return origin.getContentLengthLong();
+        }
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Reads a CRLF terminated header line
+     * @return line without the terminator, null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r')
+                    line.setLength(length - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+            if (line.length() > 8192)
+                throw new IOException("header line too long");
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
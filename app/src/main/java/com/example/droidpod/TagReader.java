@@ -0,0 +1,542 @@
+package com.example.droidpod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads ID3v2, FLAC and Ogg Vorbis comments and MP4 (iTunes) metadata straight from
+ * a file. Headers are read into small buffers to find the tag region, and only that
+ * region is read or, if large, memory-mapped; only the bytes of wanted fields are
+ * touched, so audio payload and embedded pictures are never paged in.
+ */
+public final class TagReader {
+
+    // bytes read to recognize the format
+    private static final int HEAD_BYTES = 16;
+    // tag regions up to this size are read into the heap, larger ones are mapped
+    private static final int READ_LIMIT = 64 * 1024;
+    // largest tag region mapped; pages are only read when touched
+    private static final int MAP_LIMIT = 16 * 1024 * 1024;
+    // largest Ogg comment packet reassembled, embedded pictures past it are cut off
+    private static final int OGG_PACKET_LIMIT = 256 * 1024;
+    // the comment packet plus the page headers around it and the identification page
+    private static final int OGG_REGION = OGG_PACKET_LIMIT + 128 * 1024;
+
+    private static final int FLAC_VORBIS_COMMENT = 4;
+
+    private static final int ATOM_MOOV = fourcc("moov");
+    private static final int ATOM_UDTA = fourcc("udta");
+    private static final int ATOM_META = fourcc("meta");
+    private static final int ATOM_HDLR = fourcc("hdlr");
+    private static final int ATOM_ILST = fourcc("ilst");
+    private static final int ATOM_DATA = fourcc("data");
+    private static final int ATOM_NAME = fourcc("name");
+    private static final int ATOM_FREEFORM = fourcc("----");
+    private static final int ATOM_TITLE = fourcc("\u00a9nam");
+    private static final int ATOM_ARTIST = fourcc("\u00a9ART");
+    private static final int ATOM_ALBUM = fourcc("\u00a9alb");
+    private static final int ATOM_ALBUM_ARTIST = fourcc("aART");
+    private static final int ATOM_TRACK = fourcc("trkn");
+    private static final int ATOM_DISC = fourcc("disk");
+
+    private TagReader() { }
+
+    /**
+     * Reads the tags of a file
+     * @param file audio file
+     * @return tags, or null if the file has no tags in a known format or cannot be read
+     */
+    public static TrackTags read(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < 12)
+                return null;
+            ByteBuffer head = region(channel, 0, Math.min(size, HEAD_BYTES));
+            TrackTags tags = new TrackTags();
+            long pos = 0;
+            boolean found = false;
+            if (matches(head, 0, "ID3")) {
+                int flags = head.get(5) & 0xff;
+                long end = 10L + synchsafe(head, 6) + ((flags & 0x10) != 0 ? 10 : 0);
+                pos = parseId3(region(channel, 0, Math.min(size, end)), 0, tags);
+                found = true;
+                if (pos + 4 > size)
+                    return tags;
+                head = region(channel, pos, Math.min(size - pos, HEAD_BYTES));
+            }
+            if (matches(head, 0, "fLaC")) {
+                parseFlac(channel, pos + 4, size, tags);
+                found = true;
+            } else if (matches(head, 0, "OggS")) {
+                found |= parseOgg(region(channel, pos, Math.min(size - pos, OGG_REGION)), 0, tags);
+            } else if (pos == 0 && matches(head, 4, "ftyp")) {
+                found = parseMp4(channel, size, tags);
+            }
+            return found ? tags : null;
+        } catch (IOException | RuntimeException e) {
+            // truncated or malformed tags are treated as missing
+            return null;
+        }
+    }
+
+    // ---- ID3v2 ----
+
+    /**
+     * Parses an ID3v2.2, 2.3 or 2.4 tag
+     * @return offset just past the tag
+     */
+    private static int parseId3(ByteBuffer map, int start, TrackTags tags) {
+        int major = map.get(start + 3);
+        int flags = map.get(start + 5) & 0xff;
+        int size = synchsafe(map, start + 6);
+        int end = start + 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+        if (major < 2 || major > 4 || start + 10 + size > map.limit())
+            return Math.min(end, map.limit());
+
+        ByteBuffer tag = slice(map, start + 10, size);
+        if ((flags & 0x80) != 0 && major < 4)
+            tag = unsynchronize(tag, 0, size);
+        int pos = 0;
+        if ((flags & 0x40) != 0 && major > 2)
+            pos = major == 3 ? 4 + tag.getInt(0) : synchsafe(tag, 0);
+
+        int headerSize = major == 2 ? 6 : 10;
+        while (pos + headerSize <= tag.limit()) {
+            if (tag.get(pos) == 0)
+                break; // padding
+            int id;
+            int frameSize;
+            int frameFlags = 0;
+            if (major == 2) {
+                id = ((tag.get(pos) & 0xff) << 16) | ((tag.get(pos + 1) & 0xff) << 8) | (tag.get(pos + 2) & 0xff);
+                frameSize = ((tag.get(pos + 3) & 0xff) << 16) | ((tag.get(pos + 4) & 0xff) << 8) | (tag.get(pos + 5) & 0xff);
+            } else {
+                id = tag.getInt(pos);
+                frameSize = major == 4 ? synchsafe(tag, pos + 4) : tag.getInt(pos + 4);
+                frameFlags = tag.getShort(pos + 8) & 0xffff;
+            }
+            int data = pos + headerSize;
+            if (frameSize <= 0 || data + frameSize > tag.limit())
+                break;
+            pos = data + frameSize;
+
+            String key = id3Key(id, major);
+            if (key == null)
+                continue;
+            ByteBuffer frame = tag;
+            int frameStart = data;
+            int length = frameSize;
+            if (major == 3 && (frameFlags & 0xc0) != 0 || major == 4 && (frameFlags & 0x0c) != 0)
+                continue; // compressed or encrypted
+            if (major == 3 && (frameFlags & 0x20) != 0) {
+                frameStart++; // group id
+                length--;
+            }
+            if (major == 4) {
+                if ((frameFlags & 0x40) != 0) {
+                    frameStart++;
+                    length--;
+                }
+                if ((frameFlags & 0x01) != 0) {
+                    frameStart += 4; // data length indicator
+                    length -= 4;
+                }
+                if ((frameFlags & 0x02) != 0 && length > 0) {
+                    frame = unsynchronize(tag, frameStart, length);
+                    frameStart = 0;
+                    length = frame.limit();
+                }
+            }
+            if (length < 2)
+                continue;
+            readTextFrame(frame, frameStart, length, key, tags);
+        }
+        return end;
+    }
+
+    /**
+     * Maps the text frames we use to Vorbis comment names; TXXX yields "" and takes
+     * its name from the frame
+     */
+    private static String id3Key(int id, int major) {
+        if (major == 2) {
+            switch (id) {
+                case 0x545432: return "TITLE";        // TT2
+                case 0x545031: return "ARTIST";       // TP1
+                case 0x54414c: return "ALBUM";        // TAL
+                case 0x545032: return "ALBUMARTIST";  // TP2
+                case 0x54524b: return "TRACKNUMBER";  // TRK
+                case 0x545041: return "DISCNUMBER";   // TPA
+                case 0x545858: return "";             // TXX
+                default: return null;
+            }
+        }
+        switch (id) {
+            case 0x54495432: return "TITLE";          // TIT2
+            case 0x54504531: return "ARTIST";         // TPE1
+            case 0x54414c42: return "ALBUM";          // TALB
+            case 0x54504532: return "ALBUMARTIST";    // TPE2
+            case 0x5452434b: return "TRACKNUMBER";    // TRCK
+            case 0x54504f53: return "DISCNUMBER";     // TPOS
+            case 0x54585858: return "";               // TXXX
+            default: return null;
+        }
+    }
+
+    private static void readTextFrame(ByteBuffer frame, int start, int length, String key, TrackTags tags) {
+        int encoding = frame.get(start);
+        byte[] bytes = new byte[length - 1];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = frame.get(start + 1 + i);
+        }
+        Charset charset = id3Charset(encoding);
+        int unit = encoding == 1 || encoding == 2 ? 2 : 1;
+        int first = terminator(bytes, 0, unit);
+        if (key.isEmpty()) {
+            // user text: description, then value
+            String name = new String(bytes, 0, first, charset);
+            int valueStart = Math.min(bytes.length, first + unit);
+            int valueEnd = terminator(bytes, valueStart, unit);
+            // a UTF-16 value carries its own byte order mark
+            tags.set(name, new String(bytes, valueStart, valueEnd - valueStart, charset));
+        } else {
+            tags.set(key, new String(bytes, 0, first, charset));
+        }
+    }
+
+    private static Charset id3Charset(int encoding) {
+        switch (encoding) {
+            case 1: return StandardCharsets.UTF_16;
+            case 2: return StandardCharsets.UTF_16BE;
+            case 3: return StandardCharsets.UTF_8;
+            default: return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    /**
+     * @return index of the first string terminator at or after from, or the length
+     */
+    private static int terminator(byte[] bytes, int from, int unit) {
+        for (int i = from; i + unit <= bytes.length; i += unit) {
+            if (bytes[i] == 0 && (unit == 1 || bytes[i + 1] == 0))
+                return i;
+        }
+        return bytes.length;
+    }
+
+    /**
+     * Undoes ID3 unsynchronization, which inserts a zero byte after every 0xFF
+     */
+    private static ByteBuffer unsynchronize(ByteBuffer buffer, int start, int length) {
+        byte[] out = new byte[length];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(start + i);
+            out[n++] = b;
+            if (b == (byte) 0xff && i + 1 < length && buffer.get(start + i + 1) == 0)
+                i++;
+        }
+        return ByteBuffer.wrap(out, 0, n).slice();
+    }
+
+    private static int synchsafe(ByteBuffer buffer, int pos) {
+        return ((buffer.get(pos) & 0x7f) << 21) | ((buffer.get(pos + 1) & 0x7f) << 14)
+                | ((buffer.get(pos + 2) & 0x7f) << 7) | (buffer.get(pos + 3) & 0x7f);
+    }
+
+    // ---- FLAC and Ogg ----
+
+    /**
+     * Walks the FLAC metadata block headers up to the last block, reading only the
+     * Vorbis comment block
+     */
+    private static void parseFlac(FileChannel channel, long pos, long fileSize, TrackTags tags)
+            throws IOException {
+        while (pos + 4 <= fileSize) {
+            ByteBuffer block = region(channel, pos, 4);
+            int header = block.get(0) & 0xff;
+            int length = ((block.get(1) & 0xff) << 16) | ((block.get(2) & 0xff) << 8) | (block.get(3) & 0xff);
+            if ((header & 0x7f) == FLAC_VORBIS_COMMENT && pos + 4 + length <= fileSize) {
+                parseVorbisComment(region(channel, pos + 4, length), tags);
+                return;
+            }
+            if ((header & 0x80) != 0)
+                return;
+            pos += 4 + length;
+        }
+    }
+
+    /**
+     * Reassembles the second packet of an Ogg stream, the comment header of Vorbis and Opus
+     * @return true if a comment header was found
+     */
+    private static boolean parseOgg(ByteBuffer map, int pos, TrackTags tags) {
+        byte[] packet = new byte[4096];
+        int packetLength = 0;
+        int packetIndex = 0;
+        while (pos + 27 <= map.limit() && matches(map, pos, "OggS")) {
+            int segments = map.get(pos + 26) & 0xff;
+            int data = pos + 27 + segments;
+            for (int s = 0; s < segments && data <= map.limit(); s++) {
+                int lacing = map.get(pos + 27 + s) & 0xff;
+                if (packetIndex == 1) {
+                    int copy = Math.min(lacing, OGG_PACKET_LIMIT - packetLength);
+                    if (packetLength + copy > packet.length)
+                        packet = Arrays.copyOf(packet, Math.max(packet.length * 2, packetLength + copy));
+                    for (int i = 0; i < copy && data + i < map.limit(); i++) {
+                        packet[packetLength++] = map.get(data + i);
+                    }
+                }
+                data += lacing;
+                if (lacing < 255 && ++packetIndex == 2 || packetLength >= OGG_PACKET_LIMIT)
+                    return parseOggComment(packet, packetLength, tags);
+            }
+            pos = data;
+        }
+        return false;
+    }
+
+    private static boolean parseOggComment(byte[] packet, int length, TrackTags tags) {
+        ByteBuffer buffer = ByteBuffer.wrap(packet, 0, length).slice();
+        int skip;
+        if (length > 7 && packet[0] == 3 && matches(buffer, 1, "vorbis"))
+            skip = 7;
+        else if (length > 8 && matches(buffer, 0, "OpusTags"))
+            skip = 8;
+        else
+            return false;
+        parseVorbisComment(slice(buffer, skip, length - skip), tags);
+        return true;
+    }
+
+    /**
+     * Reads a little endian Vorbis comment structure: vendor string, then NAME=value pairs
+     */
+    private static void parseVorbisComment(ByteBuffer block, TrackTags tags) {
+        ByteBuffer in = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int pos = 4 + in.getInt(0);
+        if (pos < 4 || pos + 4 > in.limit())
+            return;
+        int count = in.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < count && pos + 4 <= in.limit(); i++) {
+            int length = in.getInt(pos);
+            pos += 4;
+            if (length < 0 || pos + length > in.limit())
+                return;
+            int eq = -1;
+            for (int j = 0; j < length && j < 32; j++) {
+                if (in.get(pos + j) == '=') {
+                    eq = j;
+                    break;
+                }
+            }
+            // pictures and unknown fields are skipped before their value is read
+            if (eq > 0 && isWantedComment(in, pos, eq)) {
+                byte[] bytes = new byte[length];
+                for (int j = 0; j < length; j++) {
+                    bytes[j] = in.get(pos + j);
+                }
+                tags.set(new String(bytes, 0, eq, StandardCharsets.US_ASCII),
+                        new String(bytes, eq + 1, length - eq - 1, StandardCharsets.UTF_8));
+            }
+            pos += length;
+        }
+    }
+
+    private static final String[] WANTED_COMMENTS = {"TITLE", "ARTIST", "ALBUM", "ALBUMARTIST",
+            "ALBUM ARTIST", "TRACKNUMBER", "DISCNUMBER", "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_ALBUM_GAIN"};
+
+    private static boolean isWantedComment(ByteBuffer in, int pos, int keyLength) {
+        for (String wanted : WANTED_COMMENTS) {
+            if (wanted.length() != keyLength)
+                continue;
+            int j = 0;
+            while (j < keyLength && Character.toUpperCase((char) in.get(pos + j)) == wanted.charAt(j)) {
+                j++;
+            }
+            if (j == keyLength)
+                return true;
+        }
+        return false;
+    }
+
+    // ---- MP4 ----
+
+    /**
+     * Finds moov/udta by reading box headers only, then reads udta and its
+     * meta/ilst; the sample tables in moov are never read
+     * @return true if an item list was found
+     */
+    private static boolean parseMp4(FileChannel channel, long fileSize, TrackTags tags) throws IOException {
+        long[] moov = findBox(channel, 0, fileSize, ATOM_MOOV);
+        long[] udtaBox = moov != null ? findBox(channel, moov[0], moov[0] + moov[1], ATOM_UDTA) : null;
+        if (udtaBox == null)
+            return false;
+        ByteBuffer udta = region(channel, udtaBox[0], udtaBox[1]);
+        ByteBuffer meta = child(udta, ATOM_META);
+        if (meta == null)
+            return false;
+        // meta is a full box in iTunes files, a plain one in QuickTime files
+        if (meta.limit() >= 8 && meta.getInt(4) != ATOM_HDLR)
+            meta = slice(meta, 4, meta.limit() - 4);
+        ByteBuffer ilst = child(meta, ATOM_ILST);
+        if (ilst == null)
+            return false;
+        parseItemList(ilst, tags);
+        return true;
+    }
+
+    /**
+     * Finds a box among the sibling boxes in [from, to), reading their headers only
+     * @return offset and length of the box contents, or null
+     */
+    private static long[] findBox(FileChannel channel, long from, long to, int type) throws IOException {
+        long pos = from;
+        while (pos + 8 <= to) {
+            ByteBuffer header = region(channel, pos, Math.min(16, to - pos));
+            if (header.limit() < 8)
+                return null;
+            long size = header.getInt(0) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.limit() < 16)
+                    return null;
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = to - pos;
+            }
+            if (size < headerSize)
+                return null;
+            if (header.getInt(4) == type)
+                return new long[]{pos + headerSize, Math.min(size, to - pos) - headerSize};
+            pos += size;
+        }
+        return null;
+    }
+
+    private static void parseItemList(ByteBuffer ilst, TrackTags tags) {
+        int pos = 0;
+        while (pos + 8 <= ilst.limit()) {
+            int size = ilst.getInt(pos);
+            if (size < 8 || pos + size > ilst.limit())
+                return;
+            int type = ilst.getInt(pos + 4);
+            ByteBuffer item = slice(ilst, pos + 8, size - 8);
+            pos += size;
+
+            String key = null;
+            if (type == ATOM_TITLE)
+                key = "TITLE";
+            else if (type == ATOM_ARTIST)
+                key = "ARTIST";
+            else if (type == ATOM_ALBUM)
+                key = "ALBUM";
+            else if (type == ATOM_ALBUM_ARTIST)
+                key = "ALBUMARTIST";
+            else if (type == ATOM_FREEFORM)
+                key = freeformName(item);
+
+            ByteBuffer data = key != null || type == ATOM_TRACK || type == ATOM_DISC ? child(item, ATOM_DATA) : null;
+            // data: 4 bytes type, 4 bytes locale, then the value
+            if (data == null || data.limit() < 8)
+                continue;
+            if (type == ATOM_TRACK || type == ATOM_DISC) {
+                if (data.limit() >= 12) {
+                    int number = data.getShort(10) & 0xffff;
+                    if (type == ATOM_TRACK)
+                        tags.trackNumber = number;
+                    else
+                        tags.discNumber = number;
+                }
+            } else {
+                byte[] bytes = new byte[data.limit() - 8];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = data.get(8 + i);
+                }
+                tags.set(key, new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * @return the name of a freeform ---- item, e.g. replaygain_track_gain
+     */
+    private static String freeformName(ByteBuffer item) {
+        ByteBuffer name = child(item, ATOM_NAME);
+        if (name == null || name.limit() < 4)
+            return null;
+        // full box: version and flags precede the name
+        byte[] bytes = new byte[name.limit() - 4];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = name.get(4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return contents of the first child atom of a type, or null
+     */
+    private static ByteBuffer child(ByteBuffer parent, int type) {
+        int pos = 0;
+        while (pos + 8 <= parent.limit()) {
+            int size = parent.getInt(pos);
+            if (size < 8 || pos + size > parent.limit())
+                return null;
+            if (parent.getInt(pos + 4) == type)
+                return slice(parent, pos + 8, size - 8);
+            pos += size;
+        }
+        return null;
+    }
+
+    // ---- helpers ----
+
+    /**
+     * Reads a region of a file into the heap, or maps it if it is large
+     * @return buffer over the region; shorter than asked if the file ends early
+     * @throws IOException if the region is too large to be a tag
+     */
+    private static ByteBuffer region(FileChannel channel, long pos, long length) throws IOException {
+        if (length < 0 || length > MAP_LIMIT)
+            throw new IOException("tag region of " + length + " bytes");
+        if (length > READ_LIMIT)
+            return channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(length, channel.size() - pos));
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, pos + buffer.position()) > 0) {
+            // positional reads do not move the channel
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.limit(start + length).position(start);
+        return copy.slice();
+    }
+
+    private static boolean matches(ByteBuffer buffer, int pos, String magic) {
+        if (pos < 0 || pos + magic.length() > buffer.limit())
+            return false;
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer.get(pos + i) != (byte) magic.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int fourcc(String s) {
+        return ((s.charAt(0) & 0xff) << 24) | ((s.charAt(1) & 0xff) << 16)
+                | ((s.charAt(2) & 0xff) << 8) | (s.charAt(3) & 0xff);
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.droidpod;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads tags of many files in parallel with {@link TagReader}, either for a list of
+ * paths or for every audio file under a set of directories. Directories are walked
+ * as separate fork-join tasks, so listing and reading overlap across the tree.
+ */
+public class TagScanner {
+
+    // files read by one task before it splits
+    private static final int FILES_PER_TASK = 16;
+    private static final String[] AUDIO_EXTENSIONS = {".mp3", ".flac", ".m4a", ".mp4", ".aac", ".alac",
+            ".ogg", ".oga", ".opus"};
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param pool pool the scans run on
+     */
+    public TagScanner(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads the tags of the given files
+     * @param paths file paths
+     * @return tags by path, files without readable tags are left out
+     */
+    public Map<String, TrackTags> read(List<String> paths) {
+        ConcurrentHashMap<String, TrackTags> result = new ConcurrentHashMap<>();
+        if (!paths.isEmpty())
+            pool.invoke(new FilesTask(paths, 0, paths.size(), result));
+        return result;
+    }
+
+    /**
+     * Finds every audio file under the given directories and reads its tags. Hidden
+     * directories and those holding a .nomedia file are skipped, as MediaStore does.
+     * @param roots directories to walk
+     * @return tags by path; files without readable tags map to empty tags
+     */
+    public Map<String, TrackTags> scan(List<File> roots) {
+        ConcurrentHashMap<String, TrackTags> result = new ConcurrentHashMap<>();
+        ArrayList<DirectoryTask> tasks = new ArrayList<>();
+        for (File root : roots) {
+            tasks.add(new DirectoryTask(root, result));
+        }
+        for (DirectoryTask task : tasks) {
+            pool.execute(task);
+        }
+        for (DirectoryTask task : tasks) {
+            task.join();
+        }
+        return result;
+    }
+
+    static boolean isAudioFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String extension : AUDIO_EXTENSIONS) {
+            if (lower.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lists one directory, forks a task per subdirectory and reads its own files
+     */
+    private static class DirectoryTask extends RecursiveAction {
+        private final File directory;
+        private final ConcurrentHashMap<String, TrackTags> result;
+
+        DirectoryTask(File directory, ConcurrentHashMap<String, TrackTags> result) {
+            this.directory = directory;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = directory.listFiles();
+            if (children == null || new File(directory, ".nomedia").exists())
+                return;
+            ArrayList<RecursiveAction> tasks = new ArrayList<>();
+            ArrayList<String> files = new ArrayList<>();
+            for (File child : children) {
+                String name = child.getName();
+                if (name.startsWith("."))
+                    continue;
+                if (child.isDirectory())
+                    tasks.add(new DirectoryTask(child, result));
+                else if (isAudioFile(name))
+                    files.add(child.getPath());
+            }
+            if (!files.isEmpty())
+                tasks.add(new FilesTask(files, 0, files.size(), result, true));
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Reads a range of files, halving the range until it is small
+     */
+    private static class FilesTask extends RecursiveAction {
+        private final List<String> paths;
+        private final int from;
+        private final int to;
+        private final ConcurrentHashMap<String, TrackTags> result;
+        // keep untagged files, a directory scan lists every audio file it finds
+        private final boolean keepUntagged;
+
+        FilesTask(List<String> paths, int from, int to, ConcurrentHashMap<String, TrackTags> result) {
+            this(paths, from, to, result, false);
+        }
+
+        FilesTask(List<String> paths, int from, int to, ConcurrentHashMap<String, TrackTags> result,
+                  boolean keepUntagged) {
+            this.paths = paths;
+            this.from = from;
+            this.to = to;
+            this.result = result;
+            this.keepUntagged = keepUntagged;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new FilesTask(paths, from, mid, result, keepUntagged),
+                        new FilesTask(paths, mid, to, result, keepUntagged));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                String path = paths.get(i);
+                TrackTags tags = TagReader.read(new File(path));
+                if (tags == null && keepUntagged)
+                    tags = new TrackTags();
+                if (tags != null)
+                    result.put(path, tags);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.droidpod;
+
+/**
+ * Formatting of playback positions for display
+ */
+public final class TimeFormat {
+
+    private TimeFormat() { }
+
+    /**
+     * Convert time in ms to a string with M:SS format
+     * @param time ms time toString
+     * @return String conversion of the raw int data
+     */
+    public static String minutesSeconds(int time) {
+        int minutes = time / 60000;
+        int seconds = (time % 60000) / 1000;
+        if (seconds < 10)
+            return minutes + ":0" + seconds;
+        return minutes + ":" + seconds;
+    }
+}
@@ -0,0 +1,393 @@
+package com.example.droidpod;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Track list stored column by column in primitive arrays. Artist, album, album artist
+ * and directory strings are interned in one pool and referenced by int; titles and
+ * file names, which rarely repeat, are packed as UTF-8 into one byte array. Rows are
+ * found by key through an open addressing map, so no per-track objects or boxed keys
+ * exist. {@link #get(int)} hands out {@link Audio} objects built on demand, which are
+ * not retained by the table.
+ */
+public class TrackTable {
+
+    private static final long NO_ALBUM_ID = Long.MIN_VALUE;
+    private static final int NO_STRING = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    // HashMap node and boxed index of a pooled string, for getFootprintBytes()
+    private static final int POOL_ENTRY_BYTES = 48;
+
+    private int size;
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] albumIds = new long[INITIAL_CAPACITY];
+    private int[] dirs = new int[INITIAL_CAPACITY];
+    // offsets into text, NO_STRING for null
+    private int[] names = new int[INITIAL_CAPACITY];
+    private int[] titles = new int[INITIAL_CAPACITY];
+    private int[] albums = new int[INITIAL_CAPACITY];
+    private int[] artists = new int[INITIAL_CAPACITY];
+    private int[] albumArtists = new int[INITIAL_CAPACITY];
+    // disc << 16 | track
+    private int[] numbers = new int[INITIAL_CAPACITY];
+
+    // length-prefixed UTF-8 strings; bytes of replaced and removed rows are dead until compactText()
+    private byte[] text = new byte[INITIAL_CAPACITY * 32];
+    private int textSize;
+    private int deadText;
+
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private String[] pool = new String[INITIAL_CAPACITY];
+    private int poolSize;
+
+    // key -> row + 1, linear probing; 0 marks a free slot
+    private long[] slotKeys = new long[INITIAL_CAPACITY * 2];
+    private int[] slotRows = new int[INITIAL_CAPACITY * 2];
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a track, or replaces the track with the same key in place
+     * @param key stable track key, e.g. the MediaStore row ID
+     * @param audio track
+     * @return row of the track
+     */
+    public int put(long key, Audio audio) {
+        int row = indexOf(key);
+        if (row < 0) {
+            row = size;
+            ensureCapacity(size + 1);
+            size++;
+            keys[row] = key;
+            mapKey(key, row);
+            set(row, audio, false);
+        } else {
+            set(row, audio, true);
+            if (deadText > textSize / 2)
+                compactText();
+        }
+        return row;
+    }
+
+    /**
+     * Appends a track even if its key is already present; the key then finds the new row.
+     * For callers that number rows themselves and never remove them.
+     * @param key track key
+     * @param audio track
+     * @return row of the track
+     */
+    public int add(long key, Audio audio) {
+        int row = size;
+        ensureCapacity(size + 1);
+        size++;
+        keys[row] = key;
+        mapKey(key, row);
+        set(row, audio, false);
+        return row;
+    }
+
+    /**
+     * Removes a track; the last row moves into its place, so rows are not stable across removals
+     * @param key track key
+     * @return true if the track was present
+     */
+    public boolean remove(long key) {
+        int row = indexOf(key);
+        if (row < 0)
+            return false;
+        unmapKey(key);
+        deadText += textBytes(names[row]) + textBytes(titles[row]);
+        int last = size - 1;
+        if (row != last) {
+            keys[row] = keys[last];
+            albumIds[row] = albumIds[last];
+            dirs[row] = dirs[last];
+            names[row] = names[last];
+            titles[row] = titles[last];
+            albums[row] = albums[last];
+            artists[row] = artists[last];
+            albumArtists[row] = albumArtists[last];
+            numbers[row] = numbers[last];
+            mapKey(keys[row], row);
+        }
+        size = last;
+        if (deadText > textSize / 2)
+            compactText();
+        return true;
+    }
+
+    /**
+     * Drops every track and the string pool
+     */
+    public void clear() {
+        size = 0;
+        textSize = 0;
+        deadText = 0;
+        poolIndex.clear();
+        Arrays.fill(pool, 0, poolSize, null);
+        poolSize = 0;
+        Arrays.fill(slotKeys, 0);
+        Arrays.fill(slotRows, 0);
+    }
+
+    /**
+     * @param key track key
+     * @return row of the track, -1 if absent
+     */
+    public int indexOf(long key) {
+        int mask = slotKeys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (slotRows[slot] == 0)
+                return -1;
+            if (slotKeys[slot] == key)
+                return slotRows[slot] - 1;
+        }
+    }
+
+    /**
+     * Builds the track of a row; pooled strings are shared with the table
+     * @param row row index
+     * @return new Audio for the row
+     */
+    public Audio get(int row) {
+        checkRow(row);
+        Audio audio = new Audio(getData(row), text(titles[row]), string(albums[row]), string(artists[row]),
+                albumIds[row] == NO_ALBUM_ID ? null : albumIds[row]);
+        audio.setAlbumArtist(string(albumArtists[row]));
+        audio.setTrackNumber(numbers[row] & 0xffff);
+        audio.setDiscNumber(numbers[row] >>> 16);
+        return audio;
+    }
+
+    public long getKey(int row) {
+        checkRow(row);
+        return keys[row];
+    }
+
+    public String getTitle(int row) {
+        checkRow(row);
+        return text(titles[row]);
+    }
+
+    public String getData(int row) {
+        checkRow(row);
+        String dir = string(dirs[row]);
+        String name = text(names[row]);
+        return dir == null ? name : name == null ? dir : dir + '/' + name;
+    }
+
+    /**
+     * gets a read-only list over rows in a given order, building tracks as they are read
+     * @param rows row indices; the list is only valid while the table is unchanged
+     * @return list view
+     */
+    public List<Audio> view(final int[] rows) {
+        return new RowList(rows);
+    }
+
+    /**
+     * @return number of distinct pooled strings
+     */
+    int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return bytes of title and file name text held, live or dead
+     */
+    int getTextSize() {
+        return textSize;
+    }
+
+    /**
+     * gets the bytes held by the columns, the key map, the text and the string pool,
+     * counting UTF-16 chars for pooled strings and a fixed cost per pool map entry
+     * @return approximate retained size, without object headers
+     */
+    long getFootprintBytes() {
+        long bytes = (long) keys.length * (8 + 8 + 7 * 4)
+                + slotKeys.length * 8L + slotRows.length * 4L
+                + text.length
+                + pool.length * 4L + poolSize * POOL_ENTRY_BYTES;
+        for (int i = 0; i < poolSize; i++) {
+            bytes += 2L * pool[i].length();
+        }
+        return bytes;
+    }
+
+    private class RowList extends AbstractList<Audio> implements RandomAccess {
+        private final int[] rows;
+
+        RowList(int[] rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public Audio get(int index) {
+            return TrackTable.this.get(rows[index]);
+        }
+
+        @Override
+        public int size() {
+            return rows.length;
+        }
+    }
+
+    private void set(int row, Audio audio, boolean replace) {
+        if (replace)
+            deadText += textBytes(names[row]) + textBytes(titles[row]);
+        String data = audio.getData();
+        int slash = data == null ? -1 : data.lastIndexOf('/');
+        dirs[row] = slash < 0 ? NO_STRING : intern(data.substring(0, slash));
+        names[row] = appendText(slash < 0 ? data : data.substring(slash + 1));
+        titles[row] = appendText(audio.getTitle());
+        albums[row] = intern(audio.getAlbum());
+        artists[row] = intern(audio.getArtist());
+        albumArtists[row] = intern(audio.getAlbumArtist());
+        albumIds[row] = audio.getAlbumId() == null ? NO_ALBUM_ID : audio.getAlbumId();
+        numbers[row] = (audio.getDiscNumber() & 0xffff) << 16 | (audio.getTrackNumber() & 0xffff);
+    }
+
+    private int appendText(String s) {
+        if (s == null)
+            return NO_STRING;
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return appendText(bytes, 0, bytes.length);
+    }
+
+    private int appendText(byte[] bytes, int offset, int length) {
+        if (textSize + 4 + length > text.length)
+            text = Arrays.copyOf(text, Math.max(textSize + 4 + length, text.length * 2));
+        int at = textSize;
+        text[at] = (byte) (length >>> 24);
+        text[at + 1] = (byte) (length >>> 16);
+        text[at + 2] = (byte) (length >>> 8);
+        text[at + 3] = (byte) length;
+        System.arraycopy(bytes, offset, text, at + 4, length);
+        textSize += 4 + length;
+        return at;
+    }
+
+    private static int textLength(byte[] bytes, int at) {
+        return (bytes[at] & 0xff) << 24 | (bytes[at + 1] & 0xff) << 16 | (bytes[at + 2] & 0xff) << 8 | (bytes[at + 3] & 0xff);
+    }
+
+    private int textBytes(int at) {
+        return at == NO_STRING ? 0 : 4 + textLength(text, at);
+    }
+
+    private String text(int at) {
+        return at == NO_STRING ? null : new String(text, at + 4, textLength(text, at), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the live strings into a new array, dropping those of replaced and removed rows
+     */
+    private void compactText() {
+        byte[] source = text;
+        text = new byte[Math.max(INITIAL_CAPACITY * 32, (textSize - deadText) * 5 / 4)];
+        textSize = 0;
+        deadText = 0;
+        for (int row = 0; row < size; row++) {
+            names[row] = copyText(source, names[row]);
+            titles[row] = copyText(source, titles[row]);
+        }
+    }
+
+    private int copyText(byte[] source, int at) {
+        return at == NO_STRING ? NO_STRING : appendText(source, at + 4, textLength(source, at));
+    }
+
+    private int intern(String s) {
+        if (s == null)
+            return NO_STRING;
+        Integer ref = poolIndex.get(s);
+        if (ref == null) {
+            if (poolSize == pool.length)
+                pool = Arrays.copyOf(pool, poolSize * 2);
+            ref = poolSize;
+            pool[poolSize++] = s;
+            poolIndex.put(s, ref);
+        }
+        return ref;
+    }
+
+    private String string(int ref) {
+        return ref == NO_STRING ? null : pool[ref];
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > keys.length) {
+            int grown = Math.max(capacity, keys.length * 2);
+            keys = Arrays.copyOf(keys, grown);
+            albumIds = Arrays.copyOf(albumIds, grown);
+            dirs = Arrays.copyOf(dirs, grown);
+            names = Arrays.copyOf(names, grown);
+            titles = Arrays.copyOf(titles, grown);
+            albums = Arrays.copyOf(albums, grown);
+            artists = Arrays.copyOf(artists, grown);
+            albumArtists = Arrays.copyOf(albumArtists, grown);
+            numbers = Arrays.copyOf(numbers, grown);
+        }
+        // keep the map at most half full
+        if (capacity * 2 > slotKeys.length) {
+            slotKeys = new long[slotKeys.length * 2];
+            slotRows = new int[slotRows.length * 2];
+            for (int row = 0; row < size; row++) {
+                mapKey(keys[row], row);
+            }
+        }
+    }
+
+    private void mapKey(long key, int row) {
+        int mask = slotKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (slotRows[slot] != 0 && slotKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        slotKeys[slot] = key;
+        slotRows[slot] = row + 1;
+    }
+
+    /**
+     * Frees a key's slot and shifts later entries of its probe run back, so lookups
+     * need no tombstones
+     */
+    private void unmapKey(long key) {
+        int mask = slotKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (slotKeys[slot] != key || slotRows[slot] == 0) {
+            if (slotRows[slot] == 0)
+                return;
+            slot = (slot + 1) & mask;
+        }
+        int free = slot;
+        for (int next = (free + 1) & mask; slotRows[next] != 0; next = (next + 1) & mask) {
+            int home = hash(slotKeys[next]) & mask;
+            // move the entry if its home is not within (free, next]
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                slotKeys[free] = slotKeys[next];
+                slotRows[free] = slotRows[next];
+                free = next;
+            }
+        }
+        slotRows[free] = 0;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.droidpod;
+
+import java.util.Locale;
+
+/**
+ * Tags read from a file's own metadata by {@link TagReader}. Text fields are null and
+ * numbers 0 when the file does not carry them; ReplayGain values are NaN when absent.
+ */
+public class TrackTags {
+
+    String title;
+    String artist;
+    String album;
+    String albumArtist;
+    int trackNumber;
+    int discNumber;
+    float trackGainDb = Float.NaN;
+    float albumGainDb = Float.NaN;
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getAlbumArtist() {
+        return albumArtist;
+    }
+
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    public int getDiscNumber() {
+        return discNumber;
+    }
+
+    /**
+     * @return REPLAYGAIN_TRACK_GAIN in dB, NaN if the file has none
+     */
+    public float getTrackGainDb() {
+        return trackGainDb;
+    }
+
+    /**
+     * @return REPLAYGAIN_ALBUM_GAIN in dB, NaN if the file has none
+     */
+    public float getAlbumGainDb() {
+        return albumGainDb;
+    }
+
+    /**
+     * Overwrites a track's fields with the tags the file carries, keeping the others
+     * @param audio track to enrich
+     */
+    public void applyTo(Audio audio) {
+        if (title != null)
+            audio.setTitle(title);
+        if (artist != null)
+            audio.setArtist(artist);
+        if (album != null)
+            audio.setAlbum(album);
+        if (albumArtist != null)
+            audio.setAlbumArtist(albumArtist);
+        if (trackNumber > 0)
+            audio.setTrackNumber(trackNumber);
+        if (discNumber > 0)
+            audio.setDiscNumber(discNumber);
+    }
+
+    /**
+     * Sets a field from a Vorbis comment or a user text frame, by its case-insensitive name
+     * @param key field name, e.g. TITLE or REPLAYGAIN_TRACK_GAIN
+     * @param value field value
+     */
+    void set(String key, String value) {
+        if (value == null || value.isEmpty())
+            return;
+        switch (key.toUpperCase(Locale.ROOT)) {
+            case "TITLE":
+                title = value;
+                break;
+            case "ARTIST":
+                artist = value;
+                break;
+            case "ALBUM":
+                album = value;
+                break;
+            case "ALBUMARTIST":
+            case "ALBUM ARTIST":
+                albumArtist = value;
+                break;
+            case "TRACKNUMBER":
+                trackNumber = leadingInt(value);
+                break;
+            case "DISCNUMBER":
+                discNumber = leadingInt(value);
+                break;
+            case "REPLAYGAIN_TRACK_GAIN":
+                trackGainDb = leadingFloat(value);
+                break;
+            case "REPLAYGAIN_ALBUM_GAIN":
+                albumGainDb = leadingFloat(value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parses numbers such as "3/12"
+     * @return the number before any separator, 0 if there is none
+     */
+    static int leadingInt(String value) {
+        int n = 0;
+        int i = 0;
+        while (i < value.length() && value.charAt(i) == ' ') {
+            i++;
+        }
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9' || n > 100000)
+                break;
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    /**
+     * Parses gains such as "-6.50 dB"
+     * @return the leading number, NaN if there is none
+     */
+    static float leadingFloat(String value) {
+        String s = value.trim();
+        int end = 0;
+        while (end < s.length() && "+-.0123456789".indexOf(s.charAt(end)) >= 0) {
+            end++;
+        }
+        try {
+            return Float.parseFloat(s.substring(0, end));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+}
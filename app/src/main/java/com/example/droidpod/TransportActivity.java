@@ -9,7 +9,13 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaControllerCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -25,7 +31,6 @@ public class TransportActivity extends AppCompatActivity {
 
     private MediaPlayerService player;
     private boolean mBound;
-    private int curProg;
 
     private TextView title;
     private TextView artist;
@@ -36,19 +41,36 @@ public class TransportActivity extends AppCompatActivity {
     private ImageView albumArtImg;
     private SeekBar seekBar;
 
-    final Handler handler = new Handler();
-    final Runnable r = new Runnable() {
+    private MediaControllerCompat mediaController;
+    private PlaybackStateCompat playbackState;
+    private long duration;
+    private int shownSecond = -1;
+    private boolean visible;
+
+    // while the seek bar is dragged, fast preview seeks are issued at most this often
+    private static final long SCRUB_INTERVAL_MS = 150;
+    private boolean scrubbing;
+    private int scrubPosition;
+    private long lastScrubAt;
+    private final Handler scrubHandler = new Handler(Looper.getMainLooper());
+    private final Runnable scrubRunnable = new Runnable() {
+        @Override
         public void run() {
-            handler.postDelayed(this, 1000);
-            if (player.mStatus == PlaybackStatus.PLAYING) {
-                updateTime();
-                playPauseBtn.setImageResource(R.drawable.pause);
-            } else
-                playPauseBtn.setImageResource(R.drawable.play);
-            if (curProg >= player.getEndVal())
-                player.transportControls.skipToNext();
-            if (player.activeAudio.getTitle() != title.getText())
-                setMetadata();
+            scrub();
+        }
+    };
+
+    /**
+     * Extrapolates the playback position from the last published state, on the frame
+     * where the shown second changes or the seek bar moves by a pixel, whichever is
+     * first; only scheduled while the activity is visible and playback is running
+     */
+    private final Choreographer.FrameCallback progressUpdater = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            long position = updateTime();
+            if (position >= 0)
+                Choreographer.getInstance().postFrameCallbackDelayed(this, nextUpdateDelay(position));
         }
     };
 
@@ -63,6 +85,10 @@ public class TransportActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        scrubHandler.removeCallbacks(scrubRunnable);
+        if (mediaController != null) {
+            mediaController.unregisterCallback(controllerCallback);
+        }
         unbindService(mConnection);
     }
 
@@ -73,6 +99,15 @@ public class TransportActivity extends AppCompatActivity {
             Intent mIntent = new Intent(this, MediaPlayerService.class);
             bindService(mIntent, mConnection, Context.BIND_AUTO_CREATE);
         }
+        visible = true;
+        scheduleProgressUpdates();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        visible = false;
+        scheduleProgressUpdates();
     }
 
     private void initializeActivity() {
@@ -92,23 +127,39 @@ public class TransportActivity extends AppCompatActivity {
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                // set seek bar to change song progress
-                if (fromUser) {
+                if (!fromUser || !mBound)
+                    return;
+                if (!scrubbing) {
+                    // a tap or key press, not a drag
                     player.seekTo(progress);
-                    if (player.mStatus == PlaybackStatus.PAUSED) {
-                        player.setResumePosition(progress);
-                    }
+                    return;
                 }
+                scrubPosition = progress;
+                curTime.setText(MediaPlayerService.timeToString(progress));
+                long wait = lastScrubAt + SCRUB_INTERVAL_MS - SystemClock.uptimeMillis();
+                scrubHandler.removeCallbacks(scrubRunnable);
+                if (wait <= 0)
+                    scrub();
+                else
+                    scrubHandler.postDelayed(scrubRunnable, wait);
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-
+                scrubbing = true;
+                lastScrubAt = 0;
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-
+                scrubbing = false;
+                scrubHandler.removeCallbacks(scrubRunnable);
+                // the updater stopped while the bar followed the finger
+                scheduleProgressUpdates();
+                // one precise seek where the drag ended
+                if (mBound)
+                    player.seekTo(seekBar.getProgress());
+                shownSecond = -1;
             }
         });
     }
@@ -119,8 +170,11 @@ public class TransportActivity extends AppCompatActivity {
             MediaPlayerService.LocalBinder binder = (MediaPlayerService.LocalBinder) service;
             player = binder.getService();
             mBound = true;
-            setMetadata();
-            r.run();
+
+            mediaController = new MediaControllerCompat(TransportActivity.this, player.getSessionToken());
+            mediaController.registerCallback(controllerCallback);
+            setMetadata(mediaController.getMetadata());
+            setPlaybackState(mediaController.getPlaybackState());
         }
 
         @Override
@@ -129,43 +183,135 @@ public class TransportActivity extends AppCompatActivity {
         }
     };
 
-    private void setMetadata() {
-        title.setText(player.activeAudio.getTitle());
-        artist.setText(player.activeAudio.getArtist());
-        album.setText(player.activeAudio.getAlbum());
-        endTime.setText(player.getEndTime());
-        seekBar.setMax(player.getEndVal());
+    /**
+     * Receives metadata and playback state pushed by the service's media session
+     */
+    private final MediaControllerCompat.Callback controllerCallback = new MediaControllerCompat.Callback() {
+        @Override
+        public void onMetadataChanged(MediaMetadataCompat metadata) {
+            setMetadata(metadata);
+        }
+
+        @Override
+        public void onPlaybackStateChanged(PlaybackStateCompat state) {
+            setPlaybackState(state);
+        }
+    };
 
+    private void setMetadata(MediaMetadataCompat metadata) {
+        if (metadata == null)
+            return;
+        title.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        artist.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
+        album.setText(metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
+        duration = metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+        endTime.setText(MediaPlayerService.timeToString((int) duration));
+        seekBar.setMax((int) duration);
+
+        AlbumArt albumArt = metadata.containsKey(MediaPlayerService.METADATA_KEY_ALBUM_ID)
+                ? new AlbumArt(metadata.getLong(MediaPlayerService.METADATA_KEY_ALBUM_ID)) : null;
         Glide.with(this)
-                .asBitmap()
-                .load(MediaPlayerService.getAlbumArt(this, player.activeAudio.getAlbumId()))
+                .load(albumArt)
                 .into(albumArtImg);
     }
 
-    private void updateTime() {
-            curTime.setText(player.getCurrentTime());
-            curProg = player.getCurrentVal();
-            seekBar.setProgress(curProg);
+    private void setPlaybackState(PlaybackStateCompat state) {
+        playbackState = state;
+        if (isPlaying())
+            playPauseBtn.setImageResource(R.drawable.pause);
+        else
+            playPauseBtn.setImageResource(R.drawable.play);
+        updateTime();
+        scheduleProgressUpdates();
+    }
+
+    private boolean isPlaying() {
+        return playbackState != null && playbackState.getState() == PlaybackStateCompat.STATE_PLAYING;
+    }
+
+    /**
+     * Runs the progress updater only while visible and playing
+     */
+    private void scheduleProgressUpdates() {
+        Choreographer choreographer = Choreographer.getInstance();
+        choreographer.removeFrameCallback(progressUpdater);
+        if (visible && isPlaying())
+            choreographer.postFrameCallback(progressUpdater);
+    }
+
+    /**
+     * gets the time until the shown position next changes: the next second of the
+     * time label or the next pixel of the seek bar
+     * @param position position just shown in ms
+     * @return delay in ms of wall time
+     */
+    private long nextUpdateDelay(long position) {
+        long delay = 1000 - position % 1000;
+        int track = seekBar.getWidth() - seekBar.getPaddingLeft() - seekBar.getPaddingRight();
+        if (track > 0 && duration > 0) {
+            long perPixel = duration / track;
+            if (perPixel > 0)
+                delay = Math.min(delay, perPixel - position % perPixel);
+        }
+        float speed = playbackState.getPlaybackSpeed();
+        if (speed > 0)
+            delay = (long) (delay / speed);
+        return Math.max(1, delay);
+    }
+
+    /**
+     * Issues a fast preview seek to the latest drag position
+     */
+    private void scrub() {
+        lastScrubAt = SystemClock.uptimeMillis();
+        if (mBound)
+            player.scrubTo(scrubPosition);
+    }
+
+    /**
+     * Shows the extrapolated playback position
+     * @return position shown in ms, -1 if nothing was shown
+     */
+    private long updateTime() {
+        // the seek bar follows the finger while dragged
+        if (playbackState == null || scrubbing)
+            return -1;
+
+        long position = playbackState.getPosition();
+        if (playbackState.getState() == PlaybackStateCompat.STATE_PLAYING) {
+            long elapsed = SystemClock.elapsedRealtime() - playbackState.getLastPositionUpdateTime();
+            position += (long) (elapsed * playbackState.getPlaybackSpeed());
+        }
+        if (duration > 0 && position > duration)
+            position = duration;
+
+        seekBar.setProgress((int) position);
+        int second = (int) (position / 1000);
+        if (second != shownSecond) {
+            shownSecond = second;
+            curTime.setText(MediaPlayerService.timeToString((int) position));
+        }
+        return position;
     }
 
     public void onPrevButtonClick(View v) {
-        player.transportControls.skipToPrevious();
+        mediaController.getTransportControls().skipToPrevious();
         playPauseBtn.setImageResource(R.drawable.pause);
     }
 
     public void onNextButtonClick(View v) {
-        player.transportControls.skipToNext();
+        mediaController.getTransportControls().skipToNext();
         playPauseBtn.setImageResource(R.drawable.pause);
     }
 
     public void onPlayPauseButtonClick(View v) {
         // alternate between play and pause button image and playback action
-        if (player.mStatus == PlaybackStatus.PLAYING) { // pause
+        if (isPlaying()) { // pause
             playPauseBtn.setImageResource(R.drawable.play);
-            player.transportControls.pause();
+            mediaController.getTransportControls().pause();
         } else {         // play
             playPauseBtn.setImageResource(R.drawable.pause);
-            player.transportControls.play();
+            mediaController.getTransportControls().play();
         }
     }
 
@@ -0,0 +1,168 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gain, EQ response and limiting of the DSP chain
+ */
+public class DspChainTest {
+
+    private static final int RATE = 44100;
+
+    private static float[] sine(float frequency, float amplitude, int frames, int channels) {
+        float[] pcm = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float v = (float) (amplitude * Math.sin(2 * Math.PI * frequency * i / RATE));
+            for (int c = 0; c < channels; c++) {
+                pcm[i * channels + c] = v;
+            }
+        }
+        return pcm;
+    }
+
+    private static double rms(float[] pcm, int from) {
+        double sum = 0;
+        for (int i = from; i < pcm.length; i++) {
+            sum += pcm[i] * pcm[i];
+        }
+        return Math.sqrt(sum / (pcm.length - from));
+    }
+
+    private static float peak(float[] pcm) {
+        float peak = 0;
+        for (float v : pcm) {
+            peak = Math.max(peak, Math.abs(v));
+        }
+        return peak;
+    }
+
+    private static DspChain chain(DspParams params, int channels) {
+        DspChain chain = new DspChain(params);
+        chain.configure(RATE, channels);
+        return chain;
+    }
+
+    @Test
+    public void flatSettings_leaveQuietSignalUnchanged() {
+        float[] pcm = sine(440, 0.5f, 4096, 2);
+        float[] original = pcm.clone();
+        chain(new DspParams(), 2).process(pcm, 0, 4096);
+        assertArrayEquals(original, pcm, 0f);
+    }
+
+    @Test
+    public void preGain_scalesSignal() {
+        DspParams params = new DspParams();
+        params.setPreGainDb(-6.0206f);
+        float[] pcm = sine(440, 0.8f, 4096, 1);
+        double before = rms(pcm, 0);
+        chain(params, 1).process(pcm, 0, 4096);
+        assertEquals(before / 2, rms(pcm, 0), 1e-3);
+    }
+
+    @Test
+    public void trackGain_appliesWithEqDisabled() {
+        DspParams params = new DspParams();
+        params.setEnabled(false);
+        DspChain chain = chain(params, 1);
+        chain.setTrackGainDb(-6.0206f);
+        float[] pcm = sine(440, 0.8f, 4096, 1);
+        double before = rms(pcm, 0);
+        chain.process(pcm, 0, 4096);
+        assertEquals(before / 2, rms(pcm, 0), 1e-3);
+    }
+
+    @Test
+    public void limiter_holdsPeaksAtThreshold() {
+        DspParams params = new DspParams();
+        params.setPreGainDb(12f);
+        params.setLimiterThresholdDb(-1f);
+        float[] pcm = sine(1000, 0.9f, 8192, 2);
+        chain(params, 2).process(pcm, 0, 8192);
+        assertTrue(peak(pcm) <= DspChain.dbToLinear(-1f) + 1e-6f);
+    }
+
+    @Test
+    public void peakingBand_boostsItsFrequencyOnly() {
+        DspParams params = new DspParams();
+        params.setBand(2, Biquad.PEAKING, 1000, 12f, 1f);
+        params.setLimiterThresholdDb(0f);
+
+        float[] inBand = sine(1000, 0.1f, RATE / 2, 1);
+        double inBandBefore = rms(inBand, RATE / 4);
+        chain(params, 1).process(inBand, 0, inBand.length);
+        assertEquals(3.98, rms(inBand, RATE / 4) / inBandBefore, 0.1);
+
+        float[] outOfBand = sine(100, 0.1f, RATE / 2, 1);
+        double outOfBandBefore = rms(outOfBand, RATE / 4);
+        chain(params, 1).process(outOfBand, 0, outOfBand.length);
+        assertEquals(1.0, rms(outOfBand, RATE / 4) / outOfBandBefore, 0.1);
+    }
+
+    @Test
+    public void shortBuffer_matchesFloatPath() {
+        DspParams params = new DspParams();
+        params.setBand(0, Biquad.LOW_SHELF, 100, 6f, 0.707f);
+        params.setPreGainDb(3f);
+        int frames = 10000;
+        float[] pcm = sine(80, 0.5f, frames, 2);
+        ShortBuffer shorts = ShortBuffer.allocate(pcm.length + 4);
+        shorts.position(4);
+        for (int i = 0; i < pcm.length; i++) {
+            shorts.put(4 + i, (short) Math.round(pcm[i] * 32768f));
+            pcm[i] = shorts.get(4 + i) / 32768f;
+        }
+
+        chain(params, 2).process(pcm, 0, frames);
+        chain(params, 2).process(shorts, frames);
+        assertEquals(4, shorts.position());
+        for (int i = 0; i < pcm.length; i++) {
+            assertEquals(pcm[i] * 32768f, shorts.get(4 + i), 1.5f);
+        }
+    }
+
+    @Test
+    public void settingsChange_isPickedUpByTheNextBlock() {
+        DspParams params = new DspParams();
+        DspChain chain = chain(params, 1);
+        float[] pcm = sine(440, 0.2f, 512, 1);
+        chain.process(pcm, 0, 512);
+        params.setEnabled(false);
+        params.setPreGainDb(6f);
+        float[] original = pcm.clone();
+        chain.process(pcm, 0, 512);
+        assertArrayEquals(original, pcm, 0f);
+    }
+
+    @Test
+    public void steadyState_doesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        DspParams params = new DspParams();
+        params.setBandGain(1, 4f);
+        params.setPreGainDb(6f);
+        DspChain chain = chain(params, 2);
+        float[] pcm = sine(440, 0.9f, 1024, 2);
+        ShortBuffer shorts = ShortBuffer.allocate(2048);
+        chain.process(pcm, 0, 1024);
+        chain.process(shorts, 1024);
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 1000; i++) {
+            chain.process(pcm, 0, 1024);
+            chain.process(shorts, 1024);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        // the measurement itself may allocate a little
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+}
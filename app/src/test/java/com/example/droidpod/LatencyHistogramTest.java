@@ -0,0 +1,113 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing, percentiles and concurrent recording of the latency histograms
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueWithBoundedError() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000_000L, 7);
+        int previous = -1;
+        for (long value = 0; value < 1_000_000; value += 1 + value / 100) {
+            int index = histogram.indexOf(value);
+            assertTrue(index >= previous);
+            previous = index;
+            assertTrue(histogram.lowestEquivalent(index) <= value);
+            assertTrue(histogram.highestEquivalent(index) >= value);
+            // 7 bits keep the bucket width under 1/64 of the value
+            long width = histogram.highestEquivalent(index) - histogram.lowestEquivalent(index) + 1;
+            assertTrue(value < 128 ? width == 1 : width * 64 <= value);
+        }
+        assertEquals(histogram.indexOf(127) + 1, histogram.indexOf(128));
+        assertEquals(histogram.lowestEquivalent(histogram.indexOf(129)), 128);
+    }
+
+    @Test
+    public void percentiles_matchRecordedDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram(60_000_000L, 7);
+        for (int value = 1; value <= 10_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 64);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 64);
+        assertEquals(10_000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void outOfRangeValues_areClamped() {
+        LatencyHistogram histogram = new LatencyHistogram(1000, 4);
+        histogram.record(-5);
+        histogram.record(5000);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(1000, histogram.getMax());
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecording_losesNoCounts() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram(60_000_000L, 7);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 100_000; i++) {
+                        histogram.record(random.nextInt(1_000_000));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(500_000, histogram.getValueAtPercentile(50), 20_000);
+    }
+
+    @Test
+    public void telemetryDump_listsHistogramsFocusAndErrors() {
+        PlaybackTelemetry telemetry = new PlaybackTelemetry();
+        telemetry.recordPrepare(System.nanoTime(), true);
+        telemetry.recordTapToStart(120, PlaybackTelemetry.ROUTE_BOUND);
+        telemetry.recordTapToStart(400, PlaybackTelemetry.ROUTE_STARTED);
+        telemetry.recordFocus(PlaybackTelemetry.FOCUS_GRANTED);
+        telemetry.recordFocus(PlaybackTelemetry.FOCUS_FAILED);
+        telemetry.recordError("/music/a.FLAC", "1/-1004");
+        telemetry.recordError("/music/b.flac", "1/-1004");
+        telemetry.recordError("/music.dir/noext", "open");
+
+        StringWriter dump = new StringWriter();
+        telemetry.writeTo(new PrintWriter(dump));
+        String text = dump.toString();
+        assertTrue(text.contains("prepare: count=1"));
+        assertTrue(text.contains("prepare read ahead: count=1"));
+        assertTrue(text.contains("prepare cold: count=0"));
+        assertTrue(text.contains("seek: count=0"));
+        assertTrue(text.contains("tap to start: count=2"));
+        assertTrue(text.contains("tap to start bound: count=1"));
+        assertTrue(text.contains("tap to start session: count=0"));
+        assertTrue(text.contains("tap to start started: count=1"));
+        assertTrue(text.contains("granted=1 delayed=0 failed=1"));
+        assertTrue(text.contains("flac 1/-1004 2"));
+        assertTrue(text.contains("unknown open 1"));
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshots the repository publishes to the activity and the player
+ */
+public class LibraryRepositoryTest {
+
+    private static PagedAudioList library(int size) {
+        ArrayList<Audio> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Audio("/sdcard/Music/" + i + ".mp3", "Track " + i, "Album", "Artist", (long) i));
+        }
+        return new PagedAudioList(list);
+    }
+
+    @Test
+    public void next_exposesThePagedWindowBehindTheReadOnlyTracks() {
+        PagedAudioList pages = library(5000);
+        LibraryRepository.Snapshot first = LibraryRepository.next(null, pages, null);
+        assertEquals(1, first.getVersion());
+        assertSame(pages, first.getPages());
+        assertEquals(5000, first.getTracks().size());
+        try {
+            first.getTracks().set(0, null);
+            fail("tracks must be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        // what the adapter does while diffing the shown snapshot against a new one
+        LibraryRepository.Snapshot second = LibraryRepository.next(first, library(5000), null);
+        assertEquals(2, second.getVersion());
+        first.getPages().setDiffing(0, 20);
+        second.getPages().setDiffing(0, 20);
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(first.getTracks().get(i).getData(), second.getTracks().get(i).getData());
+        }
+        assertEquals(PagedAudioList.MAX_PAGES + 1, first.getPages().cachedPageCount());
+        first.getPages().setDiffing(-1, -1);
+        assertEquals(PagedAudioList.MAX_PAGES, first.getPages().cachedPageCount());
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * BS.1770 loudness, gating, gains and the result cache
+ */
+public class LoudnessMeterTest {
+
+    private static final int RATE = 48000;
+
+    private static float[] sine(float frequency, float amplitude, float seconds, int channels) {
+        int frames = (int) (RATE * seconds);
+        float[] pcm = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float v = (float) (amplitude * Math.sin(2 * Math.PI * frequency * i / RATE));
+            for (int c = 0; c < channels; c++) {
+                pcm[i * channels + c] = v;
+            }
+        }
+        return pcm;
+    }
+
+    @Test
+    public void stereoSine_measuresItsLevel() {
+        // EBU Tech 3341 case 1: 1 kHz stereo sine at -23 dBFS reads -23 LUFS
+        float amplitude = (float) Math.pow(10, -23 / 20.0);
+        LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        float[] pcm = sine(1000, amplitude, 20, 2);
+        meter.process(pcm, 0, pcm.length / 2);
+        assertEquals(-23f, meter.getLoudness(), 0.2f);
+        assertEquals(amplitude, meter.getPeak(), 1e-4f);
+    }
+
+    @Test
+    public void silence_isGatedOut() {
+        float amplitude = (float) Math.pow(10, -23 / 20.0);
+        LoudnessMeter meter = new LoudnessMeter(RATE, 2);
+        float[] tone = sine(1000, amplitude, 10, 2);
+        float[] silence = new float[tone.length];
+        meter.process(tone, 0, tone.length / 2);
+        meter.process(silence, 0, silence.length / 2);
+        assertEquals(-23f, meter.getLoudness(), 0.2f);
+
+        LoudnessMeter empty = new LoudnessMeter(RATE, 2);
+        empty.process(silence, 0, silence.length / 2);
+        assertEquals(LoudnessMeter.SILENCE_LUFS, empty.getLoudness(), 0f);
+        assertEquals(0, empty.getGatedBlocks());
+    }
+
+    @Test
+    public void shortBuffer_matchesFloatInput() {
+        float[] pcm = sine(440, 0.3f, 5, 1);
+        ShortBuffer shorts = ShortBuffer.allocate(pcm.length);
+        for (int i = 0; i < pcm.length; i++) {
+            shorts.put(i, (short) Math.round(pcm[i] * 32767));
+        }
+        LoudnessMeter floats = new LoudnessMeter(RATE, 1);
+        floats.process(pcm, 0, pcm.length);
+        LoudnessMeter pcm16 = new LoudnessMeter(RATE, 1);
+        pcm16.process(shorts, pcm.length);
+        assertEquals(floats.getLoudness(), pcm16.getLoudness(), 0.01f);
+    }
+
+    @Test
+    public void gain_isCappedByPeak() {
+        assertEquals(5f, LoudnessMeter.gainDb(-23f, 0.1f), 1e-4f);
+        // -30 LUFS wants +12 dB, a -6 dBFS peak leaves room for only 6
+        assertEquals(6.02f, LoudnessMeter.gainDb(-30f, 0.5f), 0.01f);
+        assertEquals(0f, LoudnessMeter.gainDb(LoudnessMeter.SILENCE_LUFS, 0f), 0f);
+    }
+
+    @Test
+    public void albumLoudness_weightsTracksByLength() {
+        float[] loudness = {-20f, -10f};
+        assertEquals(-20f, LoudnessMeter.albumLoudness(loudness, new int[]{10, 0}, 2), 1e-4f);
+        // equal weights average the energies, not the LUFS values
+        assertEquals(-12.6f, LoudnessMeter.albumLoudness(loudness, new int[]{10, 10}, 2), 0.05f);
+    }
+
+    @Test
+    public void cache_roundTripsAndDetectsChangedFiles() throws IOException {
+        File file = File.createTempFile("loudness", ".bin");
+        try {
+            LoudnessCache cache = new LoudnessCache(file);
+            cache.put("/a.mp3", new LoudnessCache.Entry(1000, 5, -9f, 0.99f, 300));
+            cache.put("/b.mp3", new LoudnessCache.Entry(2000, 6, -14f, 0.5f, 200));
+            cache.setAlbum("/a.mp3", -11f, 0.99f);
+            cache.save();
+
+            LoudnessCache loaded = new LoudnessCache(file);
+            loaded.load();
+            assertEquals(2, loaded.size());
+            assertNotNull(loaded.getIfCurrent("/a.mp3", 1000, 5));
+            assertNull(loaded.getIfCurrent("/a.mp3", 1000, 7));
+            assertEquals(-9f, loaded.gainDb("/a.mp3", false), 1e-4f);
+            assertEquals(-7f, loaded.gainDb("/a.mp3", true), 1e-4f);
+            assertEquals(0f, loaded.gainDb("/missing.mp3", false), 0f);
+
+            assertTrue(loaded.retainAll(Collections.singleton("/b.mp3")));
+            assertFalse(loaded.retainAll(Collections.singleton("/b.mp3")));
+            assertNull(loaded.get("/a.mp3"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void cache_groupsTracksByStoredAlbum() throws IOException {
+        File file = File.createTempFile("loudness", ".bin");
+        try {
+            LoudnessCache cache = new LoudnessCache(file);
+            cache.put("/a.mp3", new LoudnessCache.Entry(1000, 5, -9f, 0.99f, 300));
+            cache.put("/b.mp3", new LoudnessCache.Entry(2000, 6, -14f, 0.5f, 200));
+            cache.put("/c.mp3", new LoudnessCache.Entry(3000, 7, -10f, 0.7f, 100));
+            cache.put("/single.mp3", new LoudnessCache.Entry(4000, 8, -10f, 0.7f, 100));
+            cache.setAlbumId("/a.mp3", 1L);
+            cache.setAlbumId("/b.mp3", 1L);
+            cache.setAlbumId("/c.mp3", 2L);
+            cache.save();
+
+            LoudnessCache loaded = new LoudnessCache(file);
+            loaded.load();
+            assertEquals(Long.valueOf(1), loaded.get("/a.mp3").getAlbumId());
+            assertNull(loaded.get("/single.mp3").getAlbumId());
+
+            // what the analyzer recomputes after a track of album 1 changed
+            HashMap<Long, ArrayList<String>> albums = loaded.albumTracks(Collections.singleton(1L));
+            assertEquals(1, albums.size());
+            assertEquals(new HashSet<>(Arrays.asList("/a.mp3", "/b.mp3")), new HashSet<>(albums.get(1L)));
+            assertEquals(2, loaded.albumTracks(null).size());
+
+            assertNotNull(loaded.remove("/c.mp3"));
+            assertNull(loaded.remove("/c.mp3"));
+            assertEquals(1, loaded.albumTracks(null).size());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Paging behaviour of the windowed track list
+ */
+public class PagedAudioListTest {
+
+    private static ArrayList<Audio> library(int size) {
+        ArrayList<Audio> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(new Audio("/sdcard/Music/" + i + ".mp3", "Track " + i, "Album", "Artist", (long) i));
+        }
+        return list;
+    }
+
+    @Test
+    public void get_returnsSourceTracksInOrder() {
+        ArrayList<Audio> source = library(1000);
+        PagedAudioList paged = new PagedAudioList(source);
+
+        assertEquals(1000, paged.size());
+        for (int i = 0; i < source.size(); i++) {
+            assertSame(source.get(i), paged.get(i));
+        }
+    }
+
+    @Test
+    public void get_keepsPageCacheBounded() {
+        PagedAudioList paged = new PagedAudioList(library(200000));
+        for (int i = 0; i < paged.size(); i += 17) {
+            paged.get(i);
+        }
+        assertTrue(paged.cachedPageCount() <= PagedAudioList.MAX_PAGES);
+    }
+
+    @Test
+    public void setDiffing_keepsVisiblePagesThroughFullPassesThenReleasesThem() {
+        PagedAudioList paged = new PagedAudioList(library(10000));
+        Audio shown = paged.get(5000);
+        paged.setDiffing(4990, 5010);
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < paged.size(); i++) {
+                paged.get(i);
+            }
+        }
+        assertSame(shown, paged.get(5000));
+        // the visible rows span two pages on top of the usual window
+        assertEquals(PagedAudioList.MAX_PAGES + 2, paged.cachedPageCount());
+
+        paged.setDiffing(-1, -1);
+        assertEquals(PagedAudioList.MAX_PAGES, paged.cachedPageCount());
+    }
+
+    @Test
+    public void get_reusesDecodedPage() {
+        PagedAudioList paged = new PagedAudioList(library(100));
+        Audio first = paged.get(3);
+        assertSame(first, paged.get(3));
+        assertEquals(1, paged.cachedPageCount());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void get_rejectsOutOfRange() {
+        new PagedAudioList(library(10)).get(10);
+    }
+}
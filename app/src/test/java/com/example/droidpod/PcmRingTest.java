@@ -0,0 +1,104 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot hand-off between decoder and writer
+ */
+public class PcmRingTest {
+
+    private static void fill(PcmRing ring, int slot, int value, long timeUs) {
+        ByteBuffer buffer = ring.buffer(slot);
+        buffer.putInt(value);
+        buffer.flip();
+        ring.publish(slot, timeUs);
+    }
+
+    @Test
+    public void slots_areConsumedInOrderUntilFull() throws InterruptedException {
+        PcmRing ring = new PcmRing(3, 64);
+        for (int i = 0; i < 3; i++) {
+            int slot = ring.acquireWrite();
+            assertTrue(slot >= 0);
+            fill(ring, slot, i, i * 1000L);
+        }
+        assertEquals(-1, ring.acquireWrite());
+
+        for (int i = 0; i < 3; i++) {
+            int slot = ring.acquireRead(0);
+            assertEquals(i, ring.buffer(slot).getInt());
+            assertEquals(i * 1000L, ring.timeUs(slot));
+            assertTrue(ring.release());
+        }
+        assertEquals(-1, ring.acquireRead(0));
+    }
+
+    @Test
+    public void unreleasedSlot_isReadAgainWithItsPosition() throws InterruptedException {
+        PcmRing ring = new PcmRing(2, 64);
+        int slot = ring.acquireWrite();
+        ByteBuffer buffer = ring.buffer(slot);
+        buffer.putInt(1).putInt(2);
+        buffer.flip();
+        ring.publish(slot, 0);
+
+        assertEquals(1, ring.buffer(ring.acquireRead(0)).getInt());
+        assertEquals(2, ring.buffer(ring.acquireRead(0)).getInt());
+    }
+
+    @Test
+    public void clear_dropsSlotsAndReservesTheOneBeingRead() throws InterruptedException {
+        PcmRing ring = new PcmRing(2, 64);
+        fill(ring, ring.acquireWrite(), 1, 0);
+        fill(ring, ring.acquireWrite(), 2, 0);
+        int reading = ring.acquireRead(0);
+
+        ring.clear();
+        assertEquals(0, ring.size());
+        int slot = ring.acquireWrite();
+        assertNotEquals(reading, slot);
+        fill(ring, slot, 3, 0);
+        assertEquals(-1, ring.acquireWrite());
+
+        assertFalse(ring.release());
+        assertEquals(3, ring.buffer(ring.acquireRead(0)).getInt());
+        assertTrue(ring.release());
+    }
+
+    @Test
+    public void end_isReportedOnceDrained() throws InterruptedException {
+        PcmRing ring = new PcmRing(2, 64);
+        fill(ring, ring.acquireWrite(), 1, 0);
+        ring.publishEnd();
+        assertFalse(ring.isDrained());
+        ring.acquireRead(0);
+        ring.release();
+        assertTrue(ring.isDrained());
+        assertEquals(-1, ring.acquireRead(10));
+    }
+
+    @Test
+    public void acquireRead_waitsForProducer() throws InterruptedException {
+        final PcmRing ring = new PcmRing(2, 64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ignored) { }
+                fill(ring, ring.acquireWrite(), 7, 0);
+            }
+        });
+        producer.start();
+        int slot = -1;
+        for (int i = 0; i < 100 && slot < 0; i++) {
+            slot = ring.acquireRead(50);
+        }
+        producer.join();
+        assertEquals(7, ring.buffer(slot).getInt());
+    }
+}
@@ -0,0 +1,247 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queue order, edits and journal replay
+ */
+public class PlayQueueTest {
+
+    private static List<Audio> tracks(int count) {
+        ArrayList<Audio> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new Audio("/sdcard/Music/" + i + ".mp3", "Track " + i, "Album", "Artist", 1L));
+        }
+        return list;
+    }
+
+    @Test
+    public void next_playsInOrderAndStopsAtEnd() {
+        PlayQueue queue = new PlayQueue(tracks(3), 1, new Random(1));
+        assertEquals(1, queue.current());
+        assertEquals(2, queue.next(true));
+        assertEquals(-1, queue.next(true));
+        assertEquals(2, queue.current());
+    }
+
+    @Test
+    public void repeatAll_wrapsBothWays() {
+        PlayQueue queue = new PlayQueue(tracks(3), 2, new Random(1));
+        queue.setRepeatMode(PlayQueue.REPEAT_ALL);
+        assertEquals(0, queue.peekNext());
+        assertEquals(0, queue.next(true));
+        assertEquals(2, queue.previous());
+    }
+
+    @Test
+    public void repeatOne_repeatsOnlyOnCompletion() {
+        PlayQueue queue = new PlayQueue(tracks(3), 0, new Random(1));
+        queue.setRepeatMode(PlayQueue.REPEAT_ONE);
+        assertEquals(0, queue.next(true));
+        assertEquals(1, queue.next(false));
+    }
+
+    @Test
+    public void playNext_playsBeforeMainOrderContinues() {
+        PlayQueue queue = new PlayQueue(tracks(3), 0, new Random(1));
+        int first = queue.playNext(new Audio("/a.mp3", "A", null, null, null));
+        int second = queue.playNext(new Audio("/b.mp3", "B", null, null, null));
+        assertEquals(second, queue.peekNext());
+        assertEquals(second, queue.next(true));
+        assertEquals(first, queue.next(true));
+        assertEquals(1, queue.next(true));
+        assertEquals(2, queue.next(true));
+        assertEquals(-1, queue.next(true));
+    }
+
+    @Test
+    public void peekAhead_listsUpNextThenMainOrderWithoutMoving() {
+        PlayQueue queue = new PlayQueue(tracks(5), 1, new Random(1));
+        int up = queue.playNext(new Audio("/a.mp3", "A", null, null, null));
+        queue.remove(3);
+        assertArrayEquals(new int[]{up, 2, 4}, queue.peekAhead(3));
+        assertArrayEquals(new int[]{up}, queue.peekAhead(1));
+        assertEquals(1, queue.current());
+        assertEquals(up, queue.peekNext());
+        queue.setRepeatMode(PlayQueue.REPEAT_ONE);
+        assertEquals(0, queue.peekAhead(3).length);
+    }
+
+    @Test
+    public void peekAhead_inShuffleStopsAtUndrawnPositions() {
+        PlayQueue queue = new PlayQueue(tracks(5), 0, new Random(1));
+        queue.setShuffle(true);
+        assertEquals(0, queue.peekAhead(3).length);
+        int next = queue.peekNext();
+        assertArrayEquals(new int[]{next}, queue.peekAhead(3));
+    }
+
+    @Test
+    public void peekAhead_afterGaplessPromotionSkipsTheNewNextPlayer() {
+        // what the service reads ahead after continuing on its pre-prepared player
+        PlayQueue queue = new PlayQueue(tracks(8), 0, new Random(1));
+        int prepared = queue.peekNext();
+        assertArrayEquals(new int[]{2, 3, 4}, queue.peekAhead(3, prepared));
+        assertEquals(prepared, queue.next(true));
+        int nextPrepared = queue.peekNext();
+        assertEquals(2, nextPrepared);
+        assertArrayEquals(new int[]{3, 4, 5}, queue.peekAhead(3, nextPrepared));
+
+        int up = queue.playNext(new Audio("/a.mp3", "A", null, null, null));
+        assertArrayEquals(new int[]{2, 3, 4}, queue.peekAhead(3, up));
+        assertEquals(up, queue.next(true));
+        assertArrayEquals(new int[]{3, 4, 5}, queue.peekAhead(3, queue.peekNext()));
+    }
+
+    @Test
+    public void previous_fromUpNextReturnsToInterruptedTrack() {
+        PlayQueue queue = new PlayQueue(tracks(3), 1, new Random(1));
+        int up = queue.playNext(new Audio("/a.mp3", "A", null, null, null));
+        assertEquals(up, queue.next(false));
+        assertEquals(1, queue.previous());
+        assertEquals(2, queue.next(false));
+    }
+
+    @Test
+    public void enqueueAndRemove_editTheMainOrder() {
+        PlayQueue queue = new PlayQueue(tracks(3), 0, new Random(1));
+        int added = queue.enqueue(new Audio("/a.mp3", "A", null, null, null));
+        assertTrue(queue.remove(1));
+        assertFalse(queue.remove(1));
+        assertEquals(2, queue.next(true));
+        assertEquals(added, queue.next(true));
+        assertEquals("A", queue.get(added).getTitle());
+        assertEquals(2, queue.previous());
+    }
+
+    @Test
+    public void shuffle_visitsEveryTrackOnce() {
+        int count = 10000;
+        PlayQueue queue = new PlayQueue(tracks(count), 42, new Random(7));
+        queue.setShuffle(true);
+        assertEquals(42, queue.current());
+
+        BitSet seen = new BitSet();
+        seen.set(queue.current());
+        int played = 1;
+        int id;
+        while ((id = queue.next(true)) >= 0) {
+            assertFalse("played twice: " + id, seen.get(id));
+            seen.set(id);
+            played++;
+        }
+        assertEquals(count, played);
+    }
+
+    @Test
+    public void shuffle_peekMatchesNextAndPreviousWalksHistory() {
+        PlayQueue queue = new PlayQueue(tracks(50), 0, new Random(3));
+        queue.setShuffle(true);
+        int[] history = new int[10];
+        history[0] = queue.current();
+        for (int i = 1; i < history.length; i++) {
+            int peeked = queue.peekNext();
+            history[i] = queue.next(true);
+            assertEquals(peeked, history[i]);
+        }
+        for (int i = history.length - 2; i >= 0; i--) {
+            assertEquals(history[i], queue.previous());
+        }
+        assertEquals(history[1], queue.next(false));
+    }
+
+    @Test
+    public void shuffle_jumpToDrawsItemNext() {
+        PlayQueue queue = new PlayQueue(tracks(20), 0, new Random(5));
+        queue.setShuffle(true);
+        assertTrue(queue.jumpTo(13));
+        assertEquals(13, queue.current());
+        assertEquals(0, queue.previous());
+    }
+
+    @Test
+    public void replay_restoresStateFromSnapshotAndJournal() throws IOException {
+        List<Audio> base = tracks(100);
+        PlayQueue queue = new PlayQueue(base, 10, new Random(11));
+
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        queue.writeSnapshot(out);
+        queue.setJournal(out);
+
+        queue.setShuffle(true);
+        for (int i = 0; i < 30; i++) {
+            queue.next(false);
+        }
+        queue.playNext(new Audio("/a.mp3", "A", null, null, 9L));
+        queue.enqueue(new Audio("/b.mp3", "B", "Album", null, null));
+        queue.remove(queue.peekNext());
+        queue.setRepeatMode(PlayQueue.REPEAT_ALL);
+        queue.previous();
+        assertTrue(queue.getJournalRecords() > 0);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.toByteArray()));
+        PlayQueue restored = PlayQueue.readSnapshot(in, base, new Random(99));
+        restored.replay(in);
+
+        assertEquals(queue.current(), restored.current());
+        assertEquals(queue.itemCount(), restored.itemCount());
+        assertEquals(queue.getRepeatMode(), restored.getRepeatMode());
+        assertTrue(restored.isShuffle());
+        // the drawn history replays identically in both directions
+        for (int i = 0; i < 5; i++) {
+            assertEquals(queue.previous(), restored.previous());
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(queue.next(false), restored.next(false));
+        }
+    }
+
+    @Test
+    public void replay_ignoresTornLastRecord() throws IOException {
+        List<Audio> base = tracks(5);
+        PlayQueue queue = new PlayQueue(base, 0, new Random(1));
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(file);
+        queue.writeSnapshot(out);
+        queue.setJournal(out);
+        queue.next(false);
+        queue.next(false);
+
+        byte[] bytes = file.toByteArray();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 3));
+        PlayQueue restored = PlayQueue.readSnapshot(in, base, new Random(1));
+        assertEquals(1, restored.replay(in));
+        assertEquals(1, restored.current());
+    }
+
+    @Test(expected = IOException.class)
+    public void readSnapshot_rejectsOtherPlaylist() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        new PlayQueue(tracks(5), 0, new Random(1)).writeSnapshot(new DataOutputStream(file));
+        PlayQueue.readSnapshot(new DataInputStream(new ByteArrayInputStream(file.toByteArray())),
+                tracks(6), new Random(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void readSnapshot_rejectsOtherPlaylistOfSameLength() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        new PlayQueue(tracks(5), 0, new Random(1)).writeSnapshot(new DataOutputStream(file));
+        List<Audio> other = tracks(5);
+        other.set(3, new Audio("/sdcard/Music/other.mp3", "Other", "Album", "Artist", 1L));
+        PlayQueue.readSnapshot(new DataInputStream(new ByteArrayInputStream(file.toByteArray())),
+                other, new Random(1));
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the binary playlist format
+ */
+public class PlaylistFileTest {
+
+    private static ArrayList<Audio> sampleList() {
+        ArrayList<Audio> list = new ArrayList<>();
+        list.add(new Audio("/sdcard/Music/a.mp3", "Baby Alligator", "Tru", "Ovlov", 7L));
+        list.add(new Audio("/sdcard/Music/b.mp3", "Grab It From The Garden", "Tru", "Ovlov", 7L));
+        list.add(new Audio("/sdcard/Music/c.flac", "\u00dcn\u00efc\u00f6d\u00e9", null, "Ovlov", null));
+        list.get(1).setAlbumArtist("Ovlov");
+        list.get(1).setTrackNumber(2);
+        list.get(1).setDiscNumber(1);
+        return list;
+    }
+
+    @Test
+    public void encode_roundTripsEveryField() throws IOException {
+        ArrayList<Audio> list = sampleList();
+        PlaylistFile playlist = PlaylistFile.wrap(PlaylistFile.encode(list));
+
+        assertEquals(list.size(), playlist.size());
+        for (int i = 0; i < list.size(); i++) {
+            assertEquals(list.get(i).getData(), playlist.get(i).getData());
+            assertEquals(list.get(i).getTitle(), playlist.get(i).getTitle());
+            assertEquals(list.get(i).getAlbum(), playlist.get(i).getAlbum());
+            assertEquals(list.get(i).getArtist(), playlist.get(i).getArtist());
+            assertEquals(list.get(i).getAlbumId(), playlist.get(i).getAlbumId());
+            assertEquals(list.get(i).getAlbumArtist(), playlist.get(i).getAlbumArtist());
+            assertEquals(list.get(i).getTrackNumber(), playlist.get(i).getTrackNumber());
+            assertEquals(list.get(i).getDiscNumber(), playlist.get(i).getDiscNumber());
+        }
+    }
+
+    @Test
+    public void encode_internsRepeatedStrings() throws IOException {
+        PlaylistFile playlist = PlaylistFile.wrap(PlaylistFile.encode(sampleList()));
+        assertSame(playlist.get(0).getArtist(), playlist.get(2).getArtist());
+        assertSame(playlist.get(0).getAlbum(), playlist.get(1).getAlbum());
+    }
+
+    @Test
+    public void open_readsWrittenFile() throws IOException {
+        File file = File.createTempFile("playlist", ".bin");
+        try {
+            PlaylistFile.write(file, sampleList());
+            PlaylistFile playlist = PlaylistFile.open(file);
+            assertEquals(3, playlist.size());
+            assertEquals("Grab It From The Garden", playlist.get(1).getTitle());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void wrap_rejectsGarbage() throws IOException {
+        PlaylistFile.wrap(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}));
+    }
+}
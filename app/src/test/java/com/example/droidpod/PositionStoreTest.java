@@ -0,0 +1,136 @@
+package com.example.droidpod;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resume positions survive a reload of the log
+ */
+public class PositionStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("positions", ".log");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void flush_persistsPositionsAndLastTrack() {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        store.update("/book.m4b", 120000);
+        store.update("/mix.mp3", 5000);
+        store.flush();
+        store.update("/book.m4b", 180000);
+        store.flush();
+
+        PositionStore reloaded = new PositionStore(file);
+        reloaded.load();
+        assertEquals(180000, reloaded.get("/book.m4b"));
+        assertEquals(5000, reloaded.get("/mix.mp3"));
+        assertEquals(0, reloaded.get("/unknown.mp3"));
+        assertEquals("/book.m4b", reloaded.getLastPath());
+        assertEquals(180000, reloaded.getLastPosition());
+    }
+
+    @Test
+    public void update_isNotWrittenBeforeFlush() {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        store.update("/book.m4b", 1000);
+        assertEquals(1000, store.get("/book.m4b"));
+
+        PositionStore reloaded = new PositionStore(file);
+        reloaded.load();
+        assertNull(reloaded.getLastPath());
+    }
+
+    @Test
+    public void flush_compactsStaleLog() {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        for (int i = 0; i < 3000; i++) {
+            store.update("/book.m4b", i);
+            store.update("/done.mp3", 0);
+            store.flush();
+        }
+        assertTrue(store.getRecordCount() < 1100);
+
+        PositionStore reloaded = new PositionStore(file);
+        reloaded.load();
+        assertEquals(2999, reloaded.get("/book.m4b"));
+        assertEquals("/done.mp3", reloaded.getLastPath());
+    }
+
+    @Test
+    public void load_ignoresTornLastRecord() throws IOException {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        store.update("/a.mp3", 1000);
+        store.flush();
+        store.update("/b.mp3", 2000);
+        store.flush();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+
+        PositionStore reloaded = new PositionStore(file);
+        reloaded.load();
+        assertEquals(1000, reloaded.get("/a.mp3"));
+        assertEquals(0, reloaded.get("/b.mp3"));
+        assertEquals("/a.mp3", reloaded.getLastPath());
+    }
+
+    @Test
+    public void flush_afterTornRecordAppendsReadableRecords() throws IOException {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        store.update("/a.mp3", 1000);
+        store.update("/b.mp3", 2000);
+        store.flush();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 2);
+        }
+
+        PositionStore resumed = new PositionStore(file);
+        resumed.load();
+        resumed.update("/c.mp3", 3000);
+        resumed.update("/d.mp3", 4000);
+        resumed.flush();
+
+        PositionStore reloaded = new PositionStore(file);
+        reloaded.load();
+        assertEquals(1000, reloaded.get("/a.mp3"));
+        assertEquals(0, reloaded.get("/b.mp3"));
+        assertEquals(3000, reloaded.get("/c.mp3"));
+        assertEquals(4000, reloaded.get("/d.mp3"));
+        assertEquals("/d.mp3", reloaded.getLastPath());
+        assertEquals(3, reloaded.getRecordCount());
+    }
+
+    @Test
+    public void load_keepsLogWithNonAsciiPathsIntact() throws IOException {
+        PositionStore store = new PositionStore(file);
+        store.load();
+        store.update("/Musik/Größe – 東京.mp3", 7000);
+        store.flush();
+        long length = file.length();
+
+        new PositionStore(file).load();
+        assertEquals(length, file.length());
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.droidpod;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Head and moov reads of synthetic files within a budget
+ */
+public class PrefetchReaderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("prefetch", ".m4a");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static void atom(DataOutputStream out, String type, int payload) throws IOException {
+        out.writeInt(8 + payload);
+        out.write(type.getBytes(StandardCharsets.US_ASCII));
+        out.write(new byte[payload]);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+    }
+
+    private byte[] mp4(int mdat, int moov) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        atom(out, "ftyp", 16);
+        atom(out, "mdat", mdat);
+        atom(out, "moov", moov);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void read_coversHeadAndTrailingMoov() throws IOException {
+        write(mp4(100000, 5000));
+        PrefetchReader reader = new PrefetchReader(4096);
+        assertEquals(1000 + 5008, reader.read(file, 1000, 1 << 20));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long[] moov = reader.findMoov(raf.getChannel(), raf.length());
+            assertEquals(24 + 100008, moov[0]);
+            assertEquals(5008, moov[1]);
+        }
+    }
+
+    @Test
+    public void read_doesNotCountMoovInsideHeadTwice() throws IOException {
+        write(mp4(100, 50));
+        assertEquals(24 + 108 + 58, new PrefetchReader(4096).read(file, 1 << 20, 1 << 20));
+    }
+
+    @Test
+    public void read_staysWithinBudget() throws IOException {
+        write(mp4(100000, 50000));
+        assertEquals(30000, new PrefetchReader(4096).read(file, 20000, 30000));
+    }
+
+    @Test
+    public void read_nonMp4ReadsOnlyHead() throws IOException {
+        write(new byte[70000]);
+        PrefetchReader reader = new PrefetchReader(4096);
+        assertEquals(65536, reader.read(file, 65536, 1 << 20));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            assertNull(reader.findMoov(raf.getChannel(), raf.length()));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching, ranking and incremental updates of the search index
+ */
+public class SearchIndexTest {
+
+    private static SearchIndex sampleIndex() {
+        SearchIndex index = new SearchIndex();
+        index.put(1, new Audio("/a.mp3", "Baby Alligator", "Tru", "Ovlov", 1L));
+        index.put(2, new Audio("/b.mp3", "Grab It From The Garden", "Tru", "Ovlov", 1L));
+        index.put(3, new Audio("/c.mp3", "Beyonc\u00e9 Tribute", "Covers", "Alligator Sound", 2L));
+        index.put(4, new Audio("/d.mp3", "Tru Love", "Singles", "Baby Bash", 3L));
+        return index;
+    }
+
+    @Test
+    public void tokenize_foldsCaseAndAccents() {
+        assertArrayEquals(new String[]{"beyonce", "tribute"}, SearchIndex.tokenize("BEYONC\u00c9 - Tribute!"));
+    }
+
+    @Test
+    public void search_matchesPrefixes() {
+        List<Audio> results = sampleIndex().search("gard", 10);
+        assertEquals(1, results.size());
+        assertEquals("/b.mp3", results.get(0).getData());
+    }
+
+    @Test
+    public void search_ignoresAccentsInQuery() {
+        List<Audio> results = sampleIndex().search("beyonc\u00e9", 10);
+        assertEquals(1, results.size());
+        assertEquals("/c.mp3", results.get(0).getData());
+    }
+
+    @Test
+    public void search_requiresEveryToken() {
+        List<Audio> results = sampleIndex().search("baby all", 10);
+        assertEquals(1, results.size());
+        assertEquals("/a.mp3", results.get(0).getData());
+    }
+
+    @Test
+    public void search_ranksTitleAboveArtist() {
+        List<Audio> results = sampleIndex().search("alligator", 10);
+        assertEquals(2, results.size());
+        assertEquals("/a.mp3", results.get(0).getData());
+        assertEquals("/c.mp3", results.get(1).getData());
+    }
+
+    @Test
+    public void search_respectsLimit() {
+        assertEquals(1, sampleIndex().search("tru", 1).size());
+    }
+
+    @Test
+    public void remove_hidesTrackBeforeAndAfterCompaction() {
+        SearchIndex index = sampleIndex();
+        index.remove(1);
+        assertEquals(1, index.search("alligator", 10).size());
+        index.compact();
+        assertEquals(1, index.search("alligator", 10).size());
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void put_replacesTrackWithSameKey() {
+        SearchIndex index = sampleIndex();
+        index.compact();
+        index.put(2, new Audio("/b.mp3", "Grab It From The Orchard", "Tru", "Ovlov", 1L));
+        assertEquals(0, index.search("garden", 10).size());
+        assertEquals(1, index.search("orchard", 10).size());
+    }
+
+    @Test
+    public void search_findsTracksAcrossSegments() {
+        SearchIndex index = new SearchIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.put(i, new Audio("/" + i + ".mp3", "Song " + i, "Album " + (i % 100), "Artist " + (i % 37), (long) i));
+        }
+        index.put(20000, new Audio("/new.mp3", "Songbird", "Rumours", "Fleetwood Mac", 9L));
+
+        assertEquals(1, index.search("fleet", 10).size());
+        assertEquals(10001, index.search("song", 20000).size());
+        assertEquals("/new.mp3", index.search("songbird", 10).get(0).getData());
+    }
+
+    @Test
+    public void compact_dropsReplacedAndRemovedDocuments() {
+        SearchIndex index = new SearchIndex();
+        String[] takes = {"alpha", "bravo", "charlie", "delta", "echo"};
+        for (String take : takes) {
+            for (int i = 0; i < 1000; i++) {
+                index.put(i, new Audio("/" + i + ".mp3", "Song " + i + " " + take, "Album", "Artist", 1L));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            index.remove(i);
+        }
+        index.compact();
+
+        assertEquals(900, index.size());
+        assertEquals(900, index.getDocumentCount());
+        assertEquals(0, index.search("delta", 10).size());
+        assertEquals(900, index.search("song echo", 2000).size());
+        assertEquals("/500.mp3", index.search("song 500", 10).get(0).getData());
+
+        // keys keep finding their renumbered documents
+        index.remove(500);
+        index.put(501, new Audio("/501.mp3", "Renamed", "Album", "Artist", 1L));
+        assertEquals(0, index.search("song 500", 10).size());
+        assertEquals(0, index.search("song 501", 10).size());
+        assertEquals("/501.mp3", index.search("renamed", 10).get(0).getData());
+        index.compact();
+        assertEquals(899, index.getDocumentCount());
+        assertEquals("/501.mp3", index.search("renamed", 10).get(0).getData());
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.droidpod;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streaming through the caching proxy against an embedded stand-in for the media server
+ */
+public class StreamProxyTest {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int TRACK_SIZE = 600 * 1024;
+    // tracks named "gated" stop at this offset until the gate opens
+    private static final int GATE_AT = 200 * 1024;
+
+    private HttpServer origin;
+    private final AtomicLong originBytes = new AtomicLong();
+    // first byte of every request the origin answered
+    private final List<Integer> originStarts = new CopyOnWriteArrayList<>();
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private byte[] track;
+    private File cacheDir;
+    private StreamCache cache;
+    private StreamProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        track = new byte[TRACK_SIZE];
+        new Random(7).nextBytes(track);
+        origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        origin.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveTrack(exchange);
+            }
+        });
+        origin.start();
+
+        cacheDir = File.createTempFile("streams", "");
+        cacheDir.delete();
+        cache = new StreamCache(cacheDir, 4L * TRACK_SIZE);
+        proxy = new StreamProxy(cache);
+        proxy.start();
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        proxy.stop();
+        origin.stop(0);
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    private void serveTrack(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestURI().getPath().endsWith("/missing")) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int from = 0;
+        int to = track.length - 1;
+        int code = 200;
+        if (range != null) {
+            Matcher matcher = RANGE.matcher(range);
+            assertTrue(matcher.matches());
+            from = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty())
+                to = Math.min(to, Integer.parseInt(matcher.group(2)));
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + track.length);
+        }
+        originStarts.add(from);
+        exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+        exchange.sendResponseHeaders(code, to + 1 - from);
+        try (OutputStream out = exchange.getResponseBody()) {
+            boolean gated = exchange.getRequestURI().getPath().contains("gated");
+            for (int at = from; at <= to; at += 8192) {
+                if (gated && at == GATE_AT)
+                    gate.await(5, TimeUnit.SECONDS);
+                int n = Math.min(8192, to + 1 - at);
+                out.write(track, at, n);
+                originBytes.addAndGet(n);
+            }
+        } catch (IOException ignored) {
+            // the proxy hung up
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String originUrl(String name) {
+        return "http://127.0.0.1:" + origin.getAddress().getPort() + "/" + name;
+    }
+
+    private static byte[] fetch(String url, String range, int limit) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (range != null)
+            connection.setRequestProperty("Range", range);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while (body.size() < limit && (n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Waits until the proxy cached at least the given prefix of a URL
+     */
+    private void awaitCachedAtLeast(String url, long length) throws InterruptedException {
+        for (int i = 0; i < 200 && cache.cachedLength(url) < length; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(cache.cachedLength(url) >= length);
+    }
+
+    @Test
+    public void replay_isServedFromDisk() throws Exception {
+        String url = originUrl("a.mp3");
+        assertArrayEquals(track, fetch(proxy.proxyUrl(url), null, Integer.MAX_VALUE));
+        awaitCachedAtLeast(url, TRACK_SIZE);
+        long downloaded = originBytes.get();
+        assertEquals(TRACK_SIZE, downloaded);
+
+        assertArrayEquals(track, fetch(proxy.proxyUrl(url), null, Integer.MAX_VALUE));
+        byte[] tail = fetch(proxy.proxyUrl(url), "bytes=500000-", Integer.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOfRange(track, 500000, TRACK_SIZE), tail);
+        assertEquals(downloaded, originBytes.get());
+    }
+
+    @Test
+    public void seekInsideCachedPrefix_continuesFromItsEnd() throws Exception {
+        String url = originUrl("b.mp3");
+        // the player reads the start, then drops the connection
+        fetch(proxy.proxyUrl(url), null, 100 * 1024);
+        awaitCachedAtLeast(url, 100 * 1024);
+        for (int i = 0; i < 500 && cache.isWriting(url); i++) {
+            Thread.sleep(10);
+        }
+        long cached = cache.cachedLength(url);
+        long before = originBytes.get();
+
+        byte[] body = fetch(proxy.proxyUrl(url), "bytes=50000-", Integer.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOfRange(track, 50000, TRACK_SIZE), body);
+        // only what was missing came from the origin
+        assertEquals(TRACK_SIZE - cached, originBytes.get() - before);
+        awaitCachedAtLeast(url, TRACK_SIZE);
+    }
+
+    @Test
+    public void seekWhileFirstConnectionStreams_servesCachedPartFromDisk() throws Exception {
+        String url = originUrl("gated.mp3");
+        // the first connection is still downloading, held at GATE_AT by the origin
+        HttpURLConnection playing = (HttpURLConnection) new URL(proxy.proxyUrl(url)).openConnection();
+        try {
+            InputStream in = playing.getInputStream();
+            byte[] start = new byte[100 * 1024];
+            int read = 0;
+            while (read < start.length) {
+                int n = in.read(start, read, start.length - read);
+                assertTrue(n > 0);
+                read += n;
+            }
+            assertArrayEquals(Arrays.copyOfRange(track, 0, start.length), start);
+            awaitCachedAtLeast(url, GATE_AT);
+            assertTrue(cache.isWriting(url));
+
+            byte[] body = fetch(proxy.proxyUrl(url), "bytes=50000-", Integer.MAX_VALUE);
+            assertArrayEquals(Arrays.copyOfRange(track, 50000, TRACK_SIZE), body);
+            // the seek went to the origin only for what was not cached
+            assertEquals(Arrays.asList(0, GATE_AT), originStarts);
+        } finally {
+            gate.countDown();
+            playing.disconnect();
+        }
+    }
+
+    @Test
+    public void seekPastCachedPrefix_isPassedThrough() throws Exception {
+        String url = originUrl("c.mp3");
+        byte[] body = fetch(proxy.proxyUrl(url), "bytes=400000-409999", Integer.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOfRange(track, 400000, 410000), body);
+        assertEquals(0, cache.cachedLength(url));
+    }
+
+    @Test
+    public void boundedRange_servesExactBytes() throws Exception {
+        String url = originUrl("d.mp3");
+        byte[] body = fetch(proxy.proxyUrl(url), "bytes=0-999", Integer.MAX_VALUE);
+        assertArrayEquals(Arrays.copyOfRange(track, 0, 1000), body);
+        awaitCachedAtLeast(url, 1000);
+        long before = originBytes.get();
+        assertArrayEquals(Arrays.copyOfRange(track, 10, 500), fetch(proxy.proxyUrl(url), "bytes=10-499", Integer.MAX_VALUE));
+        assertEquals(before, originBytes.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void originErrors_failTheRequest() throws Exception {
+        fetch(proxy.proxyUrl(originUrl("missing")), null, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void cache_evictsLeastRecentlyUsedAndSurvivesRestart() throws Exception {
+        proxy.stop();
+        cache = new StreamCache(cacheDir, 2L * TRACK_SIZE);
+        proxy = new StreamProxy(cache);
+        proxy.start();
+        String first = originUrl("1.mp3");
+        String second = originUrl("2.mp3");
+        String third = originUrl("3.mp3");
+        fetch(proxy.proxyUrl(first), null, Integer.MAX_VALUE);
+        awaitCachedAtLeast(first, TRACK_SIZE);
+        fetch(proxy.proxyUrl(second), null, Integer.MAX_VALUE);
+        awaitCachedAtLeast(second, TRACK_SIZE);
+        // played again, so the second track is now the least recently used
+        Thread.sleep(20);
+        fetch(proxy.proxyUrl(first), null, Integer.MAX_VALUE);
+        Thread.sleep(20);
+        fetch(proxy.proxyUrl(third), null, Integer.MAX_VALUE);
+        awaitCachedAtLeast(third, TRACK_SIZE);
+        for (int i = 0; i < 200 && cache.size() > 2L * TRACK_SIZE; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(TRACK_SIZE, cache.cachedLength(first));
+        assertEquals(0, cache.cachedLength(second));
+        assertEquals(2L * TRACK_SIZE, cache.size());
+
+        StreamCache reopened = new StreamCache(cacheDir, 2L * TRACK_SIZE);
+        assertEquals(TRACK_SIZE, reopened.cachedLength(first));
+        assertEquals(TRACK_SIZE, reopened.cachedLength(third));
+        assertEquals(0, reopened.cachedLength(second));
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tag parsing of synthetic ID3v2, FLAC, Ogg and MP4 headers, and directory scans
+ */
+public class TagReaderTest {
+
+    private static File write(File dir, String name, byte[] bytes) throws IOException {
+        File file = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    private static File tempDir() throws IOException {
+        File dir = File.createTempFile("tags", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] id3Frame(int major, String id, int encoding, byte[] text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        int size = text.length + 1;
+        data.writeBytes(id);
+        data.writeInt(major == 4 ? synchsafe(size) : size);
+        data.writeShort(0);
+        data.writeByte(encoding);
+        data.write(text);
+        return out.toByteArray();
+    }
+
+    private static int synchsafe(int n) {
+        return (n & 0x7f) | ((n >> 7) & 0x7f) << 8 | ((n >> 14) & 0x7f) << 16 | ((n >> 21) & 0x7f) << 24;
+    }
+
+    private static byte[] id3(int major, byte[]... frames) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            body.write(frame);
+        }
+        body.write(new byte[64]); // padding
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeBytes("ID3");
+        data.writeByte(major);
+        data.writeByte(0);
+        data.writeByte(0);
+        data.writeInt(synchsafe(body.size()));
+        data.write(body.toByteArray());
+        data.write(new byte[1024]); // audio
+        return out.toByteArray();
+    }
+
+    private static byte[] vorbisComment(String... comments) {
+        int size = 4 + 6 + 4;
+        for (String comment : comments) {
+            size += 4 + comment.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(6).put("vendor".getBytes(StandardCharsets.US_ASCII)).putInt(comments.length);
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length).put(bytes);
+        }
+        return out.array();
+    }
+
+    private static byte[] atom(String type, byte[]... children) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] child : children) {
+            body.write(child);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(8 + body.size());
+        data.write(type.getBytes(StandardCharsets.ISO_8859_1));
+        data.write(body.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] dataAtom(int type, byte[] value) throws IOException {
+        return atom("data", ByteBuffer.allocate(8 + value.length).putInt(type).putInt(0).put(value).array());
+    }
+
+    @Test
+    public void id3v23_readsTextAndReplayGainFrames() throws IOException {
+        File dir = tempDir();
+        try {
+            byte[] bytes = id3(3,
+                    id3Frame(3, "TIT2", 0, "Baby Alligator".getBytes(StandardCharsets.ISO_8859_1)),
+                    id3Frame(3, "TPE1", 1, "Ovlov\u00e9".getBytes(StandardCharsets.UTF_16)),
+                    id3Frame(3, "TRCK", 0, "3/12".getBytes(StandardCharsets.ISO_8859_1)),
+                    id3Frame(3, "TXXX", 0, "REPLAYGAIN_TRACK_GAIN\0-6.50 dB".getBytes(StandardCharsets.ISO_8859_1)));
+            TrackTags tags = TagReader.read(write(dir, "a.mp3", bytes));
+            assertNotNull(tags);
+            assertEquals("Baby Alligator", tags.getTitle());
+            assertEquals("Ovlov\u00e9", tags.getArtist());
+            assertEquals(3, tags.getTrackNumber());
+            assertEquals(-6.5f, tags.getTrackGainDb(), 1e-4f);
+            assertTrue(Float.isNaN(tags.getAlbumGainDb()));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void id3v24_readsUtf8AndSynchsafeSizes() throws IOException {
+        File dir = tempDir();
+        try {
+            char[] longTitle = new char[300];
+            Arrays.fill(longTitle, 'x');
+            byte[] bytes = id3(4,
+                    id3Frame(4, "TIT2", 3, new String(longTitle).getBytes(StandardCharsets.UTF_8)),
+                    id3Frame(4, "TALB", 3, "\u00dcn\u00efc\u00f6d\u00e9".getBytes(StandardCharsets.UTF_8)),
+                    id3Frame(4, "TPOS", 3, "2".getBytes(StandardCharsets.UTF_8)));
+            TrackTags tags = TagReader.read(write(dir, "a.mp3", bytes));
+            assertNotNull(tags);
+            assertEquals(300, tags.getTitle().length());
+            assertEquals("\u00dcn\u00efc\u00f6d\u00e9", tags.getAlbum());
+            assertEquals(2, tags.getDiscNumber());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void flac_readsVorbisCommentPastOtherBlocks() throws IOException {
+        File dir = tempDir();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[]{0, 0, 0, 34});
+            out.write(new byte[34]); // STREAMINFO
+            out.write(new byte[]{6, 0, 16, 0});
+            out.write(new byte[4096]); // PICTURE
+            byte[] comment = vorbisComment("title=Tru", "ALBUMARTIST=Ovlov", "TRACKNUMBER=07",
+                    "REPLAYGAIN_ALBUM_GAIN=+1.25 dB");
+            out.write(new byte[]{(byte) 0x84, 0, (byte) (comment.length >> 8), (byte) comment.length});
+            out.write(comment);
+            out.write(new byte[1024]);
+            TrackTags tags = TagReader.read(write(dir, "a.flac", out.toByteArray()));
+            assertNotNull(tags);
+            assertEquals("Tru", tags.getTitle());
+            assertEquals("Ovlov", tags.getAlbumArtist());
+            assertEquals(7, tags.getTrackNumber());
+            assertEquals(1.25f, tags.getAlbumGainDb(), 1e-4f);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void ogg_reassemblesCommentPacket() throws IOException {
+        File dir = tempDir();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // first page: a 30 byte identification packet
+            out.write(oggPage(new int[]{30}, new byte[30]));
+            byte[] packet = ByteBuffer.allocate(7 + vorbisComment("ARTIST=Ovlov").length)
+                    .put((byte) 3).put("vorbis".getBytes(StandardCharsets.US_ASCII))
+                    .put(vorbisComment("ARTIST=Ovlov")).array();
+            out.write(oggPage(new int[]{packet.length}, packet));
+            TrackTags tags = TagReader.read(write(dir, "a.ogg", out.toByteArray()));
+            assertNotNull(tags);
+            assertEquals("Ovlov", tags.getArtist());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static byte[] oggPage(int[] lacing, byte[] payload) {
+        ByteBuffer page = ByteBuffer.allocate(27 + lacing.length + payload.length);
+        page.put("OggS".getBytes(StandardCharsets.US_ASCII)).put(new byte[22]).put((byte) lacing.length);
+        for (int l : lacing) {
+            page.put((byte) l);
+        }
+        page.put(payload);
+        return page.array();
+    }
+
+    @Test
+    public void mp4_findsMetadataBehindMediaData() throws IOException {
+        File dir = tempDir();
+        try {
+            byte[] ilst = atom("ilst",
+                    atom("\u00a9nam", dataAtom(1, "Grab It From The Garden".getBytes(StandardCharsets.UTF_8))),
+                    atom("trkn", dataAtom(0, new byte[]{0, 0, 0, 5, 0, 10, 0, 0})),
+                    atom("----", atom("mean", "\0\0\0\0com.apple.iTunes".getBytes(StandardCharsets.UTF_8)),
+                            atom("name", "\0\0\0\0replaygain_track_gain".getBytes(StandardCharsets.UTF_8)),
+                            dataAtom(1, "-3.00 dB".getBytes(StandardCharsets.UTF_8))));
+            byte[] meta = atom("meta", new byte[4], atom("hdlr", new byte[25]), ilst);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(atom("ftyp", "M4A \0\0\0\0".getBytes(StandardCharsets.US_ASCII)));
+            out.write(atom("mdat", new byte[64 * 1024]));
+            out.write(atom("moov", atom("udta", meta)));
+            TrackTags tags = TagReader.read(write(dir, "a.m4a", out.toByteArray()));
+            assertNotNull(tags);
+            assertEquals("Grab It From The Garden", tags.getTitle());
+            assertEquals(5, tags.getTrackNumber());
+            assertEquals(-3f, tags.getTrackGainDb(), 1e-4f);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void mp4_readsUdtaPastLargeSampleTables() throws IOException {
+        File dir = tempDir();
+        try {
+            byte[] ilst = atom("ilst", atom("\u00a9ART", dataAtom(1, "Ovlov".getBytes(StandardCharsets.UTF_8))));
+            byte[] meta = atom("meta", new byte[4], atom("hdlr", new byte[25]), ilst);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(atom("ftyp", "M4A \0\0\0\0".getBytes(StandardCharsets.US_ASCII)));
+            out.write(atom("moov", atom("trak", new byte[200 * 1024]), atom("udta", meta)));
+            out.write(atom("mdat", new byte[1024]));
+            TrackTags tags = TagReader.read(write(dir, "a.m4a", out.toByteArray()));
+            assertNotNull(tags);
+            assertEquals("Ovlov", tags.getArtist());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void id3BeforeFlac_readsBothTags() throws IOException {
+        File dir = tempDir();
+        try {
+            // a large ID3 tag, mapped rather than read
+            byte[] id3 = id3(3, id3Frame(3, "TIT2", 0, "Tru".getBytes(StandardCharsets.ISO_8859_1)),
+                    id3Frame(3, "APIC", 0, new byte[100 * 1024]));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(id3, 0, id3.length - 1024);
+            out.write("fLaC".getBytes(StandardCharsets.US_ASCII));
+            byte[] comment = vorbisComment("ARTIST=Ovlov");
+            out.write(new byte[]{(byte) 0x84, 0, (byte) (comment.length >> 8), (byte) comment.length});
+            out.write(comment);
+            out.write(new byte[1024]);
+            TrackTags tags = TagReader.read(write(dir, "a.flac", out.toByteArray()));
+            assertNotNull(tags);
+            assertEquals("Tru", tags.getTitle());
+            assertEquals("Ovlov", tags.getArtist());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void unknownOrTruncatedFiles_haveNoTags() throws IOException {
+        File dir = tempDir();
+        try {
+            assertNull(TagReader.read(write(dir, "a.wav", new byte[256])));
+            byte[] truncated = Arrays.copyOf(id3(3, id3Frame(3, "TIT2", 0, "x".getBytes(StandardCharsets.ISO_8859_1))), 14);
+            // must not throw
+            TagReader.read(write(dir, "b.mp3", truncated));
+            assertNull(TagReader.read(new File(dir, "missing.mp3")));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void scan_walksDirectoriesAndSkipsNomedia() throws IOException {
+        File root = tempDir();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            File album = new File(root, "Ovlov/Tru");
+            album.mkdirs();
+            File hidden = new File(root, "Ringtones");
+            hidden.mkdirs();
+            write(hidden, ".nomedia", new byte[0]);
+            for (int i = 0; i < 40; i++) {
+                write(album, i + ".mp3", id3(3, id3Frame(3, "TIT2", 0,
+                        ("Track " + i).getBytes(StandardCharsets.ISO_8859_1))));
+            }
+            write(album, "cover.jpg", new byte[100]);
+            write(album, "untagged.flac", new byte[100]);
+            write(hidden, "ring.mp3", id3(3));
+
+            Map<String, TrackTags> found = new TagScanner(pool).scan(Collections.singletonList(root));
+            assertEquals(41, found.size());
+            assertEquals("Track 7", found.get(new File(album, "7.mp3").getPath()).getTitle());
+            assertNull(found.get(new File(album, "untagged.flac").getPath()).getTitle());
+
+            Map<String, TrackTags> read = new TagScanner(pool).read(Arrays.asList(
+                    new File(album, "1.mp3").getPath(), new File(album, "untagged.flac").getPath()));
+            assertEquals(1, read.size());
+        } finally {
+            pool.shutdown();
+            delete(root);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.droidpod;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Keyed storage, row moves and footprint of the columnar track table
+ */
+public class TrackTableTest {
+
+    // fresh strings per track, as a cursor or a deserializer produces them
+    private static Audio track(int i) {
+        int album = i / 12;
+        int artist = album / 4;
+        Audio audio = new Audio(new String("/storage/emulated/0/Music/Artist " + artist + "/Album " + album
+                + "/" + (i % 12 + 1) + " Track " + i + ".mp3"), "Track " + i,
+                new String("Album " + album), new String("Artist " + artist), (long) album);
+        audio.setTrackNumber(i % 12 + 1);
+        audio.setDiscNumber(1);
+        return audio;
+    }
+
+    private static void assertSameTrack(Audio expected, Audio actual) {
+        assertEquals(expected.getData(), actual.getData());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getAlbum(), actual.getAlbum());
+        assertEquals(expected.getArtist(), actual.getArtist());
+        assertEquals(expected.getAlbumArtist(), actual.getAlbumArtist());
+        assertEquals(expected.getAlbumId(), actual.getAlbumId());
+        assertEquals(expected.getTrackNumber(), actual.getTrackNumber());
+        assertEquals(expected.getDiscNumber(), actual.getDiscNumber());
+    }
+
+    @Test
+    public void put_roundTripsEveryField() {
+        TrackTable table = new TrackTable();
+        Audio full = track(5);
+        full.setAlbumArtist("Various");
+        Audio sparse = new Audio("relative.mp3", null, null, null, null);
+        table.put(1, full);
+        table.put(2, sparse);
+        assertSameTrack(full, table.get(table.indexOf(1)));
+        assertSameTrack(sparse, table.get(table.indexOf(2)));
+        assertEquals(-1, table.indexOf(3));
+
+        table.put(1, sparse);
+        assertEquals(2, table.size());
+        assertSameTrack(sparse, table.get(table.indexOf(1)));
+    }
+
+    @Test
+    public void repeatedStrings_arePooled() {
+        TrackTable table = new TrackTable();
+        for (int i = 0; i < 120; i++) {
+            table.put(i, track(i));
+        }
+        // 10 albums, 3 artists, 10 directories
+        assertEquals(23, table.getPoolSize());
+        assertSame(table.get(0).getArtist(), table.get(11).getArtist());
+    }
+
+    @Test
+    public void replacedTitles_areCompactedAway() {
+        TrackTable table = new TrackTable();
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 100; i++) {
+                table.put(i, track(round * 100 + i));
+            }
+        }
+        assertEquals(100, table.size());
+        assertEquals("Track 4950", table.getTitle(table.indexOf(50)));
+        // 100 live rows of about 40 bytes, not 5000
+        assertTrue(table.getTextSize() < 100 * 40 * 3);
+    }
+
+    @Test
+    public void removals_keepKeysFindingTheirRows() {
+        TrackTable table = new TrackTable();
+        HashMap<Long, Audio> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int step = 0; step < 20000; step++) {
+            long key = random.nextInt(2000) * 7919L - 5000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, table.remove(key));
+            } else {
+                Audio audio = track(step);
+                table.put(key, audio);
+                expected.put(key, audio);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<Long, Audio> entry : expected.entrySet()) {
+            int row = table.indexOf(entry.getKey());
+            assertEquals((long) entry.getKey(), table.getKey(row));
+            assertSameTrack(entry.getValue(), table.get(row));
+        }
+    }
+
+    @Test
+    public void view_readsRowsInGivenOrder() {
+        TrackTable table = new TrackTable();
+        for (int i = 0; i < 3; i++) {
+            table.put(i, track(i));
+        }
+        List<Audio> view = table.view(new int[]{2, 0});
+        assertEquals(2, view.size());
+        assertEquals("Track 2", view.get(0).getTitle());
+        assertEquals("Track 0", view.get(1).getTitle());
+    }
+
+    @Test
+    public void footprint_poolsSharedStringsAndStaysBounded() {
+        int tracks = 100000;
+        TrackTable table = new TrackTable();
+        for (int i = 0; i < tracks; i++) {
+            table.put(i, track(i));
+        }
+        assertEquals(tracks, table.size());
+        // one directory and one album name per album, one name per artist
+        int albums = (tracks + 11) / 12;
+        int artists = (albums + 3) / 4;
+        assertEquals(2 * albums + artists, table.getPoolSize());
+        // the whole table, array slack included
+        long tableBytes = table.getFootprintBytes();
+        assertTrue("table " + tableBytes, tableBytes / tracks < 200);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.droidpod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor row to Audio mapping: fixed projection positions as LibrarySync reads them,
+ * against the per-row getColumnIndex lookups of the old MainActivity.loadAudio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CursorMappingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private FakeCursor cursor;
+
+    @Setup
+    public void setUp() {
+        cursor = FakeCursor.of(tracks);
+    }
+
+    @Benchmark
+    public ArrayList<Audio> fixedColumns() {
+        ArrayList<Audio> audioList = new ArrayList<>(tracks);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            audioList.add(AudioCursorMapper.fromRow(cursor));
+        }
+        return audioList;
+    }
+
+    @Benchmark
+    public ArrayList<Audio> columnLookupPerRow() {
+        ArrayList<Audio> audioList = new ArrayList<>();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String data = cursor.getString(cursor.getColumnIndex("_data"));
+            String title = cursor.getString(cursor.getColumnIndex("title"));
+            String album = cursor.getString(cursor.getColumnIndex("album"));
+            String artist = cursor.getString(cursor.getColumnIndex("artist"));
+            Long albumId = cursor.getLong(cursor.getColumnIndex("album_id"));
+            audioList.add(new Audio(data, title, album, artist, albumId));
+        }
+        return audioList;
+    }
+}
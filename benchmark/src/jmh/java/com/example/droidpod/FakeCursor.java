@@ -0,0 +1,64 @@
+package com.example.droidpod;
+
+import android.database.Cursor;
+
+/**
+ * In-memory cursor over MediaStore-like rows, in LibrarySync's projection order
+ */
+final class FakeCursor implements Cursor {
+
+    static final String[] COLUMNS = {"_id", "is_music", "_data", "title", "album", "artist", "album_id"};
+
+    private final Object[][] rows;
+    private int position = -1;
+
+    FakeCursor(Object[][] rows) {
+        this.rows = rows;
+    }
+
+    static FakeCursor of(int tracks) {
+        Object[][] rows = new Object[tracks][];
+        int i = 0;
+        for (Audio audio : Libraries.generate(tracks)) {
+            rows[i] = new Object[]{(long) i, 1, audio.getData(), audio.getTitle(), audio.getAlbum(),
+                    audio.getArtist(), audio.getAlbumId()};
+            i++;
+        }
+        return new FakeCursor(rows);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        this.position = Math.min(Math.max(position, -1), rows.length);
+        return this.position >= 0 && this.position < rows.length;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return (String) rows[position][columnIndex];
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return ((Number) rows[position][columnIndex]).longValue();
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return ((Number) rows[position][columnIndex]).intValue();
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.droidpod;
+
+import java.util.ArrayList;
+
+/**
+ * Synthetic libraries with the repetition of a real one: a dozen tracks
+ * per album and a few albums per artist
+ */
+final class Libraries {
+
+    private Libraries() { }
+
+    static ArrayList<Audio> generate(int tracks) {
+        ArrayList<Audio> list = new ArrayList<>(tracks);
+        for (int i = 0; i < tracks; i++) {
+            int album = i / 12;
+            int artist = album / 4;
+            list.add(new Audio("/storage/emulated/0/Music/Artist " + artist + "/Album " + album
+                    + "/" + String.format("%02d", i % 12 + 1) + " Track " + i + ".mp3",
+                    "Track " + i, "Album " + album, "Artist " + artist, (long) album));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.droidpod;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Playlist serialization as done by StorageService: the binary PlaylistFile format
+ * against the Gson-in-SharedPreferences encoding it replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaylistBenchmark {
+
+    private static final Type AUDIO_LIST = new TypeToken<ArrayList<Audio>>() {
+    }.getType();
+
+    @Param({"1000", "10000", "100000"})
+    public int tracks;
+
+    private ArrayList<Audio> audioList;
+    private ByteBuffer binary;
+    private String json;
+    private final Gson gson = new Gson();
+
+    @Setup
+    public void setUp() {
+        audioList = Libraries.generate(tracks);
+        binary = PlaylistFile.encode(audioList);
+        json = gson.toJson(audioList);
+    }
+
+    @Benchmark
+    public ByteBuffer binarySerialize() {
+        return PlaylistFile.encode(audioList);
+    }
+
+    @Benchmark
+    public void binaryDeserializeAll(Blackhole blackhole) throws IOException {
+        PlaylistFile playlist = PlaylistFile.wrap(binary);
+        for (int i = 0; i < playlist.size(); i++) {
+            blackhole.consume(playlist.get(i));
+        }
+    }
+
+    @Benchmark
+    public Audio binaryReadOneTrack() throws IOException {
+        // what MediaPlayerService needs to start playback
+        return PlaylistFile.wrap(binary).get(tracks / 2);
+    }
+
+    @Benchmark
+    public String gsonSerialize() {
+        return gson.toJson(audioList);
+    }
+
+    @Benchmark
+    public ArrayList<Audio> gsonDeserialize() {
+        return gson.fromJson(json, AUDIO_LIST);
+    }
+}
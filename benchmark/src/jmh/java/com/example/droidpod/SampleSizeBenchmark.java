@@ -0,0 +1,31 @@
+package com.example.droidpod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Album art sample size selection, from common cover sizes down to a list row
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleSizeBenchmark {
+
+    @Param({"500", "1400", "3000"})
+    public int coverSize;
+
+    @Param({"216", "1080"})
+    public int targetSize;
+
+    @Benchmark
+    public int calculateInSampleSize() {
+        return BitmapSampling.calculateInSampleSize(coverSize, coverSize, targetSize, targetSize);
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.droidpod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory scans with TagReader over ID3v2.3 files carrying a 256 KB picture frame,
+ * which the reader skips without paging it in. Time per scan over the whole tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagScanBenchmark {
+
+    private static final int FILES_PER_ALBUM = 12;
+    private static final int PICTURE_BYTES = 256 * 1024;
+
+    @Param({"1000"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File root;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = File.createTempFile("tagscan", "");
+        root.delete();
+        for (int i = 0; i < files; i++) {
+            File album = new File(root, "artist" + i / (FILES_PER_ALBUM * 4) + "/album" + i / FILES_PER_ALBUM);
+            album.mkdirs();
+            try (FileOutputStream out = new FileOutputStream(new File(album, i + ".mp3"))) {
+                out.write(id3(i));
+            }
+        }
+        pool = new ForkJoinPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        delete(root);
+    }
+
+    @Benchmark
+    public Map<String, TrackTags> scan() {
+        return new TagScanner(pool).scan(Collections.singletonList(root));
+    }
+
+    private static byte[] id3(int track) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(body);
+        frame(frames, "TIT2", "Track " + track);
+        frame(frames, "TPE1", "Artist " + track / (FILES_PER_ALBUM * 4));
+        frame(frames, "TALB", "Album " + track / FILES_PER_ALBUM);
+        frame(frames, "TRCK", (track % FILES_PER_ALBUM + 1) + "/" + FILES_PER_ALBUM);
+        frames.writeBytes("APIC");
+        frames.writeInt(PICTURE_BYTES);
+        frames.writeShort(0);
+        frames.write(new byte[PICTURE_BYTES]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(out);
+        int size = body.size();
+        data.writeBytes("ID3");
+        data.writeByte(3);
+        data.writeShort(0);
+        data.writeInt((size & 0x7f) | ((size >> 7) & 0x7f) << 8 | ((size >> 14) & 0x7f) << 16
+                | ((size >> 21) & 0x7f) << 24);
+        data.write(body.toByteArray());
+        data.write(new byte[4096]);
+        return out.toByteArray();
+    }
+
+    private static void frame(DataOutputStream out, String id, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        out.writeBytes(id);
+        out.writeInt(bytes.length + 1);
+        out.writeShort(0);
+        out.writeByte(0);
+        out.write(bytes);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.droidpod;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MediaPlayerService.timeToString, called for every position shown on screen
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeFormatBenchmark {
+
+    private int position;
+
+    @Benchmark
+    public String minutesSeconds() {
+        // walk through positions of a long track so both branches are taken
+        position = (position + 1003) % 7200000;
+        return TimeFormat.minutesSeconds(position);
+    }
+}
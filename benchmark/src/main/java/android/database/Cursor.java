@@ -0,0 +1,19 @@
+package android.database;
+
+/**
+ * JVM stand-in for the parts of android.database.Cursor the benchmarked app code uses
+ */
+public interface Cursor {
+
+    boolean moveToNext();
+
+    boolean moveToPosition(int position);
+
+    int getColumnIndex(String columnName);
+
+    String getString(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    int getInt(int columnIndex);
+}